@@ -100,6 +100,8 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
         bindPreferenceSummaryToValue(findPreference(SettingsConsts.PREF_KEY_RSYNC_OUTPUT), Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).toString());
         bindPreferenceSummaryToValue(findPreference(SettingsConsts.PREF_KEY_AUTOPLAY), true);
         bindPreferenceSummaryToValue(findPreference(SettingsConsts.PREF_KEY_RSYNC), false);
+        bindPreferenceSummaryToValue(findPreference(SettingsConsts.PREF_KEY_DISCOVERY_TIMEOUT), "5000");
+        bindPreferenceSummaryToValue(findPreference(SettingsConsts.PREF_KEY_SENSOR_LOOPS), "2");
 //        bindPreferenceSummaryToValue(findPreference(PREF_KEY_FILENAME), de.uni_freiburg.es.sensorrecordingtool.RecorderCommands.getDefaultFileName());
 
         findPreference(SettingsConsts.PREF_KEY_OUTPUTDIR).setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
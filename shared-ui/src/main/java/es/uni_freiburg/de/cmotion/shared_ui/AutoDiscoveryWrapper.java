@@ -52,7 +52,7 @@ public class AutoDiscoveryWrapper {
                 sensorModel.addAvailablePlatform(key.getPlatform());
 
                 if (value.toLowerCase().contains("audio")) // modify predefined sample rate for audio
-                    sensorModel.setSamplingRate(AudioSensor.getAudioSampleRate());
+                    sensorModel.setSamplingRate(AudioSensor.getAudioSampleRate(mContext));
 
                 if (value.toLowerCase().contains("video")) // TODO
                     sensorModel.setSamplingRate(15);
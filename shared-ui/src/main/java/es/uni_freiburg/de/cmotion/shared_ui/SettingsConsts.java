@@ -10,5 +10,8 @@ public class SettingsConsts {
     public static final String PREF_KEY_AUTOPLAY = "autoplay";
     public static final String PREF_KEY_DELETE = "delete";
     public static final String PREF_KEY_RSYNC = "rsync";
+    public static final String PREF_KEY_DISCOVERY_TIMEOUT = "discovery_timeout";
+    public static final String PREF_KEY_SENSOR_LOOPS = "sensor_loops";
+    public static final String PREF_KEY_FFMPEG_VERBOSE = "ffmpeg_verbose";
     public static final String PREF_KEY_RSYNC_OUTPUT = "rsync_out";
 }
@@ -0,0 +1,53 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Test;
+
+import de.uni_freiburg.es.sensorrecordingtool.sensors.AvcFormat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class AvcFormatTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xC0, 0x1E, 0x11, 0x22},
+                                PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+
+    @Test
+    public void testLengthPrefixed() {
+        byte[] annexB = {0, 0, 0, 1, 0x65, 1, 2, 3, 0, 0, 1, 0x41, 9};
+        byte[] expected = {0, 0, 0, 4, 0x65, 1, 2, 3, 0, 0, 0, 2, 0x41, 9};
+        assertArrayEquals(expected, AvcFormat.toLengthPrefixed(annexB, 0, annexB.length));
+    }
+
+    @Test
+    public void testDecoderConfig() {
+        byte[] config = new byte[4 + SPS.length + 4 + PPS.length];
+        config[3] = 1;
+        System.arraycopy(SPS, 0, config, 4, SPS.length);
+        config[4 + SPS.length + 3] = 1;
+        System.arraycopy(PPS, 0, config, 8 + SPS.length, PPS.length);
+
+        byte[] record = AvcFormat.toDecoderConfig(config, 0, config.length);
+        assertEquals(11 + SPS.length + PPS.length, record.length);
+        assertEquals(1, record[0]);
+        assertEquals(0x42, record[1]);
+        assertEquals(0x1E, record[3]);
+        assertEquals((byte) 0xFF, record[4]);
+        assertEquals((byte) 0xE1, record[5]);
+        assertEquals(SPS.length, record[7]);
+        assertEquals(0x67, record[8]);
+        assertEquals(1, record[8 + SPS.length]);
+        assertEquals(PPS.length, record[10 + SPS.length]);
+        assertEquals(0x68, record[11 + SPS.length]);
+    }
+
+    @Test
+    public void testMissingParameterSet() {
+        byte[] config = {0, 0, 1, 0x67, 0x42, 0, 0x1E};
+        try {
+            AvcFormat.toDecoderConfig(config, 0, config.length);
+            fail("accepted a configuration without PPS");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Test;
+
+import de.uni_freiburg.es.sensorrecordingtool.sensors.BatchingPolicy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BatchingPolicyTest {
+    private static final int CAPACITY = 256 * 1024;
+
+    @Test
+    public void testNoFifoNoBatching() {
+        assertEquals(0, BatchingPolicy.getReportLatencyUs(0, 50, 16, CAPACITY, -1));
+        assertEquals(0, BatchingPolicy.getReportLatencyUs(2, 50, 16, CAPACITY, -1));
+    }
+
+    @Test
+    public void testFifoLimitsLatency() {
+        // 3000 events at 100Hz, minus headroom: (2700 - 2) / 100 seconds
+        int us = BatchingPolicy.getReportLatencyUs(3000, 100, 16, CAPACITY, -1);
+        assertEquals(26980000, us);
+    }
+
+    @Test
+    public void testBufferLimitsLatency() {
+        // half of 1KiB holds 32 samples at 16 bytes each
+        int us = BatchingPolicy.getReportLatencyUs(3000, 100, 16, 1024, -1);
+        assertEquals(320000, us);
+    }
+
+    @Test
+    public void testSlowWriterShortensLatency() {
+        int fast = BatchingPolicy.getReportLatencyUs(100000, 100, 16, CAPACITY, 1e6),
+            slow = BatchingPolicy.getReportLatencyUs(100000, 100, 16, CAPACITY, 3200);
+
+        assertTrue(slow < fast);
+        assertEquals(0, BatchingPolicy.getReportLatencyUs(100000, 100, 16, CAPACITY, 1600));
+    }
+
+    @Test
+    public void testLatencyIsBounded() {
+        int us = BatchingPolicy.getReportLatencyUs(Integer.MAX_VALUE, 1, 4, Integer.MAX_VALUE, -1);
+        assertEquals((int) (BatchingPolicy.MAX_LATENCY_S * 1e6), us);
+    }
+}
@@ -0,0 +1,69 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Test;
+
+import de.uni_freiburg.es.sensorrecordingtool.sensors.BufferPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testExhaustedPoolCountsMisses() {
+        BufferPool pool = new BufferPool(2, 16, false);
+        BufferPool.Buffer a = pool.acquire(),
+                          b = pool.acquire();
+
+        assertNotNull(a);
+        assertNotNull(b);
+        assertNull(pool.acquire());
+        assertEquals(1, pool.getMisses());
+
+        a.release();
+        assertEquals(1, pool.getAvailable());
+        assertNotNull(pool.acquire());
+    }
+
+    @Test
+    public void testRetainedBufferIsNotReused() {
+        BufferPool pool = new BufferPool(1, 16, true);
+        BufferPool.Buffer a = pool.acquire();
+        assertTrue(a.data().isDirect());
+
+        a.retain();
+        a.release();
+        assertNull(pool.acquire());
+
+        a.release();
+        assertEquals(1, pool.getAvailable());
+    }
+
+    @Test
+    public void testAcquiredBufferIsCleared() {
+        BufferPool pool = new BufferPool(1, 16, false);
+        BufferPool.Buffer a = pool.acquire();
+        a.data().putInt(42).flip();
+        a.release();
+
+        BufferPool.Buffer b = pool.acquire();
+        assertEquals(0, b.data().position());
+        assertEquals(16, b.data().remaining());
+    }
+
+    @Test
+    public void testReleasedBufferCannotBeRetained() {
+        BufferPool pool = new BufferPool(1, 16, false);
+        BufferPool.Buffer a = pool.acquire();
+        a.release();
+
+        try {
+            a.retain();
+            fail("retained a released buffer");
+        } catch (IllegalStateException e) {
+        }
+    }
+}
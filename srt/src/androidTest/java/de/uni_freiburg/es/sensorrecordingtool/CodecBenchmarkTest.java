@@ -0,0 +1,131 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CodecBenchmarkTest {
+    /** writes outputs of a fixed fraction of the input size instead of running ffmpeg */
+    private static class FakeRunner implements CodecBenchmark.Runner {
+        final List<List<String>> calls = new ArrayList<>();
+
+        @Override
+        public CodecBenchmark.Timing run(List<String> args) throws IOException {
+            calls.add(args);
+            String out = args.get(args.size() - 1);
+
+            if (!out.equals("-")) {
+                long in = new File(args.get(1)).length();
+                int size = (int) (out.contains(".copy.") ? in : in / 4);
+                FileOutputStream fos = new FileOutputStream(out);
+                fos.write(new byte[size]);
+                fos.close();
+                return new CodecBenchmark.Timing(.5, .25, 1);
+            }
+
+            return new CodecBenchmark.Timing(.1, 0, .2);
+        }
+
+        /** inputs named float hold float samples, all others 16bit ones */
+        @Override
+        public List<String> getSampleFormats(File input) {
+            return Arrays.asList(input.getName().startsWith("float") ? "f32le" : "s16le");
+        }
+    }
+
+    @Test
+    public void testParseTiming() {
+        CodecBenchmark.Timing t = CodecBenchmark.parseTiming(
+                "bench: utime=0.123s stime=0.010s rtime=0.200s");
+        assertEquals(.123, t.user, 1e-9);
+        assertEquals(.01, t.system, 1e-9);
+        assertEquals(.2, t.real, 1e-9);
+        assertEquals(.133, t.getCpu(), 1e-9);
+
+        assertNull(CodecBenchmark.parseTiming("bench: maxrss=12345kB"));
+        assertNull(CodecBenchmark.parseTiming("Stream #0:0: Audio: pcm_f32le"));
+    }
+
+    @Test
+    public void testParseAudioStream() {
+        assertEquals("f32le", CodecBenchmark.parseAudioStream(
+                "    Stream #0:0: Audio: pcm_f32le, 50 Hz, 3 channels, flt, 4800 kb/s"));
+        assertEquals("s16le", CodecBenchmark.parseAudioStream(
+                "    Stream #0:1(eng): Audio: pcm_s16le, 44100 Hz, mono, s16 (default)"));
+        assertEquals("flac", CodecBenchmark.parseAudioStream(
+                "    Stream #0:2: Audio: flac, 44100 Hz, mono, s16"));
+
+        assertNull(CodecBenchmark.parseAudioStream(
+                "    Stream #0:3: Video: h264 (High), yuv420p, 320x240"));
+        assertNull(CodecBenchmark.parseAudioStream("Input #0, matroska,webm, from 'a.mkv':"));
+    }
+
+    @Test
+    public void testLossyCombinationsAreSkipped() throws Exception {
+        File dir = File.createTempFile("corpus", "");
+        assertTrue(dir.delete() && dir.mkdir());
+
+        FileOutputStream fos = new FileOutputStream(new File(dir, "float.mkv"));
+        fos.write(new byte[4000]);
+        fos.close();
+
+        FakeRunner runner = new FakeRunner();
+        List<CodecBenchmark.Result> results = new CodecBenchmark(runner, dir)
+                .run(CodecBenchmark.listCorpus(dir), StreamCodec.values());
+
+        /** flac and tta would convert the floats */
+        assertEquals(2, results.size());
+        assertEquals(StreamCodec.WAVPACK, results.get(0).codec);
+        assertEquals(StreamCodec.COPY, results.get(1).codec);
+        assertEquals(4, runner.calls.size());
+    }
+
+    @Test
+    public void testRun() throws Exception {
+        File dir = File.createTempFile("corpus", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        File work = new File(dir, "work");
+        assertTrue(work.mkdir());
+
+        FileOutputStream fos = new FileOutputStream(new File(dir, "acc.mkv"));
+        fos.write(new byte[4000]);
+        fos.close();
+        assertTrue(new File(dir, "notes.txt").createNewFile());
+
+        List<File> corpus = CodecBenchmark.listCorpus(dir);
+        assertEquals(1, corpus.size());
+
+        FakeRunner runner = new FakeRunner();
+        List<CodecBenchmark.Result> results = new CodecBenchmark(runner, work)
+                .run(corpus, StreamCodec.COPY, StreamCodec.FLAC);
+
+        assertEquals(2, results.size());
+        assertEquals(4, runner.calls.size());
+        assertTrue(runner.calls.get(2).containsAll(Arrays.asList("-c:a", "flac")));
+
+        CodecBenchmark.Result copy = results.get(0), flac = results.get(1);
+        assertEquals(1, copy.getRatio(), 1e-9);
+        assertEquals(4, flac.getRatio(), 1e-9);
+        assertEquals(1000, flac.encodedBytes);
+        assertEquals(.75, flac.encode.getCpu(), 1e-9);
+        assertEquals(.2, flac.decode.real, 1e-9);
+
+        /** the encoded files are removed */
+        assertEquals(0, work.list().length);
+
+        String csv = CodecBenchmark.toCsv(results);
+        assertTrue(csv.startsWith(CodecBenchmark.CSV_HEADER));
+        assertTrue(csv, csv.contains("acc.mkv,flac,4000,1000,4.000,0.750,0.100,0.200"));
+        assertFalse(csv.contains("notes.txt"));
+    }
+}
@@ -0,0 +1,92 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.uni_freiburg.es.sensorrecordingtool.sensors.Completion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompletionTest {
+
+    @Test
+    public void testFinishesOnlyOnce() throws Exception {
+        Completion c = new Completion("test");
+        assertTrue(c.isPending());
+        assertEquals(-1, c.getLatencyNanos());
+
+        assertTrue(c.complete());
+        assertFalse(c.fail(new Exception()));
+        assertTrue(c.isDone());
+        assertTrue(c.getLatencyNanos() >= 0);
+        c.sync(0, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testCallbacks() {
+        final AtomicInteger calls = new AtomicInteger();
+        Completion.Callback cb = new Completion.Callback() {
+            @Override
+            public void onFinished(Completion c) {
+                calls.incrementAndGet();
+            }
+        };
+
+        Completion c = new Completion("test");
+        c.addCallback(cb);
+        assertEquals(0, calls.get());
+        c.complete();
+        assertEquals(1, calls.get());
+        c.addCallback(cb);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testCompletedFromOtherThread() throws Exception {
+        final Completion c = new Completion("test");
+        new Thread() {
+            @Override
+            public void run() {
+                c.complete();
+            }
+        }.start();
+
+        c.sync(5, TimeUnit.SECONDS);
+        assertTrue(c.isDone());
+    }
+
+    @Test
+    public void testFailureIsReported() throws Exception {
+        Completion c = new Completion("test");
+        Exception reason = new Exception("broken");
+        c.fail(reason);
+
+        try {
+            c.sync(0, TimeUnit.MILLISECONDS);
+            fail("failure was not reported");
+        } catch (Exception e) {
+            assertSame(reason, e.getCause());
+        }
+    }
+
+    @Test
+    public void testSyncAllNamesPending() throws Exception {
+        Completion a = new Completion("a"), b = new Completion("b");
+        a.complete();
+
+        try {
+            Completion.syncAll(Arrays.asList(a, b), 10, TimeUnit.MILLISECONDS);
+            fail("no timeout");
+        } catch (TimeoutException e) {
+            assertTrue(e.getMessage().startsWith("b "));
+        }
+    }
+}
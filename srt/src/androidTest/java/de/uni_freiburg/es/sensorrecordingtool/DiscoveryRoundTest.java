@@ -0,0 +1,102 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import de.uni_freiburg.es.sensorrecordingtool.autodiscovery.DiscoveryRound;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DiscoveryRoundTest {
+
+    private static Set<String> set(String... aids) {
+        return new HashSet<>(Arrays.asList(aids));
+    }
+
+    @Test
+    public void testCompletesWhenExpectedAnswered() throws Exception {
+        final DiscoveryRound round = new DiscoveryRound(set("a", "b"), 10000);
+        round.respond("a");
+
+        new Thread() {
+            @Override
+            public void run() {
+                round.respond("b");
+            }
+        }.start();
+
+        long start = System.currentTimeMillis();
+        Set<String> nodes = round.await(5000);
+        assertTrue(System.currentTimeMillis() - start < 2500);
+        assertEquals(set("a", "b"), nodes);
+    }
+
+    @Test
+    public void testTimeoutReportsMissing() throws Exception {
+        DiscoveryRound round = new DiscoveryRound(set("a", "b"), 10000);
+        round.respond("a");
+
+        assertEquals(set("a"), round.await(50));
+        assertEquals(set("b"), round.getMissing());
+    }
+
+    @Test
+    public void testLateJoinersAreRejected() throws Exception {
+        DiscoveryRound round = new DiscoveryRound(set("a"), 10000);
+        assertTrue(round.respond("a"));
+        round.await(50);
+
+        assertFalse(round.respond("c"));
+        assertTrue(round.respond("a"));
+        assertEquals(set("a"), round.getResponders());
+
+        /** to be expected next time */
+        assertEquals(set("c"), round.getLateJoiners());
+    }
+
+    @Test
+    public void testStaysOpenForMinimumTime() throws Exception {
+        final DiscoveryRound round = new DiscoveryRound(set("a"), 10, 300);
+        long start = System.currentTimeMillis();
+        round.respond("a");
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                }
+                round.respond("slow");
+            }
+        }.start();
+
+        assertEquals(set("a", "slow"), round.await(5000));
+        assertTrue(System.currentTimeMillis() - start >= 300);
+    }
+
+    @Test
+    public void testSettlesWithoutExpectation() throws Exception {
+        DiscoveryRound round = new DiscoveryRound(Collections.<String>emptySet(), 100);
+        round.respond("a");
+
+        long start = System.currentTimeMillis();
+        assertEquals(set("a"), round.await(5000));
+        assertTrue(System.currentTimeMillis() - start < 2500);
+    }
+
+    @Test
+    public void testNoAnswerWaitsUpperBound() throws Exception {
+        DiscoveryRound round = new DiscoveryRound(Collections.<String>emptySet(), 10);
+
+        long start = System.currentTimeMillis();
+        assertEquals(0, round.await(100).size());
+        assertTrue(System.currentTimeMillis() - start >= 100);
+    }
+}
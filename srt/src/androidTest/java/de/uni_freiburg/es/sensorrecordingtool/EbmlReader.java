@@ -0,0 +1,118 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads back the elements written by the MatroskaWriter in document order. Master elements are
+ * entered instead of skipped, so the result is a flat list in which children follow their
+ * parent. This works for elements of unknown size as well.
+ */
+public class EbmlReader {
+    public static final int EBML = 0x1A45DFA3, SEGMENT = 0x18538067, INFO = 0x1549A966,
+            TRACKS = 0x1654AE6B, TRACK_ENTRY = 0xAE, VIDEO = 0xE0, AUDIO = 0xE1,
+            CLUSTER = 0x1F43B675, DOC_TYPE = 0x4282, TRACK_NUMBER = 0xD7, TRACK_TYPE = 0x83,
+            CODEC_ID = 0x86, CODEC_PRIVATE = 0x63A2, PIXEL_WIDTH = 0xB0, PIXEL_HEIGHT = 0xBA,
+            COLOUR_SPACE = 0x2EB524, SAMPLING_FREQUENCY = 0xB5, CHANNELS = 0x9F,
+            TIMECODE = 0xE7, SIMPLE_BLOCK = 0xA3, TAGS = 0x1254C367, TAG = 0x7373,
+            TARGETS = 0x63C0, TAG_TRACK_UID = 0x63C5, SIMPLE_TAG = 0x67C8, TAG_NAME = 0x45A3,
+            TAG_STRING = 0x4487;
+
+    private static final List<Integer> MASTERS = Arrays.asList(
+            EBML, SEGMENT, INFO, TRACKS, TRACK_ENTRY, VIDEO, AUDIO, CLUSTER, TAGS, TAG, TARGETS,
+            SIMPLE_TAG);
+
+    public static class Element {
+        public final int id;
+        public final byte[] data;
+
+        Element(int id, byte[] data) {
+            this.id = id;
+            this.data = data;
+        }
+
+        public long uint() {
+            long v = 0;
+            for (byte b : data)
+                v = (v << 8) | (b & 0xFF);
+            return v;
+        }
+
+        public double dbl() {
+            return Double.longBitsToDouble(uint());
+        }
+
+        public String string() {
+            return new String(data);
+        }
+
+        /** @return track number of a SimpleBlock */
+        public int blockTrack() {
+            return data[0] & 0x7F;
+        }
+
+        /** @return timecode of a SimpleBlock relative to its cluster */
+        public int blockTimecode() {
+            return (short) (((data[1] & 0xFF) << 8) | (data[2] & 0xFF));
+        }
+
+        public boolean blockKey() {
+            return (data[3] & 0x80) != 0;
+        }
+
+        public byte[] blockPayload() {
+            return Arrays.copyOfRange(data, 4, data.length);
+        }
+    }
+
+    public static List<Element> read(byte[] b) {
+        List<Element> elements = new ArrayList<>();
+        int pos = 0;
+
+        while (pos < b.length) {
+            /** the id keeps its length marker */
+            int idLength = length(b[pos]), id = 0;
+            for (int i = 0; i < idLength; i++)
+                id = (id << 8) | (b[pos++] & 0xFF);
+
+            int sizeLength = length(b[pos]);
+            long size = b[pos++] & (0xFF >> sizeLength);
+            boolean unknown = size == (0xFF >> sizeLength);
+            for (int i = 1; i < sizeLength; i++) {
+                unknown &= (b[pos] & 0xFF) == 0xFF;
+                size = (size << 8) | (b[pos++] & 0xFF);
+            }
+
+            if (MASTERS.contains(id)) {
+                elements.add(new Element(id, new byte[0]));
+                continue;
+            }
+
+            if (unknown || pos + size > b.length)
+                throw new IllegalArgumentException("truncated element " + Integer.toHexString(id));
+
+            elements.add(new Element(id, Arrays.copyOfRange(b, pos, (int) (pos + size))));
+            pos += size;
+        }
+
+        return elements;
+    }
+
+    private static int length(byte first) {
+        int len = 1;
+        while (len <= 8 && (first & (0x100 >> len)) == 0)
+            len++;
+        if (len > 8)
+            throw new IllegalArgumentException("invalid variable length integer");
+        return len;
+    }
+
+    public static List<Element> filter(List<Element> elements, int id) {
+        List<Element> matched = new ArrayList<>();
+        for (Element e : elements)
+            if (e.id == id)
+                matched.add(e);
+        return matched;
+    }
+}
@@ -0,0 +1,88 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FFMpegProgressTest {
+    private static final String OUTPUT =
+            "frame=120\n" +
+            "fps=29.87\n" +
+            "stream_0_0_q=28.0\n" +
+            "bitrate= 812.3kbits/s\n" +
+            "total_size=406528\n" +
+            "out_time_ms=4000000\n" +
+            "out_time=00:00:04.000000\n" +
+            "dup_frames=2\n" +
+            "drop_frames=1\n" +
+            "speed=1.01x\n" +
+            "progress=continue\n" +
+            "frame=150\n" +
+            "fps=29.90\n" +
+            "bitrate=N/A\n" +
+            "total_size=N/A\n" +
+            "out_time_us=5000000\n" +
+            "out_time_ms=5000000\n" +
+            "dup_frames=2\n" +
+            "drop_frames=3\n" +
+            "speed=N/A\n" +
+            "progress=end\n";
+
+    @Test
+    public void testBlocks() throws Exception {
+        FFMpegProgress p = new FFMpegProgress();
+        final List<FFMpegProgress.Snapshot> seen = new ArrayList<>();
+        p.setListener(new FFMpegProgress.Listener() {
+            @Override
+            public void onProgress(FFMpegProgress.Snapshot snapshot) {
+                seen.add(snapshot);
+            }
+        });
+
+        assertNull(p.getLast());
+        p.read(new ByteArrayInputStream(OUTPUT.getBytes("UTF-8")));
+        assertEquals(2, p.getUpdates());
+        assertEquals(2, seen.size());
+
+        FFMpegProgress.Snapshot s = seen.get(0);
+        assertEquals(120, s.frames);
+        assertEquals(29.87, s.fps, 1e-9);
+        assertEquals(812.3, s.bitrateKbps, 1e-9);
+        assertEquals(406528, s.totalSize);
+        assertEquals(4000000, s.outTimeUs);
+        assertEquals(2, s.dupFrames);
+        assertEquals(1, s.dropFrames);
+        assertEquals(1.01, s.speed, 1e-9);
+        assertFalse(s.end);
+
+        s = p.getLast();
+        assertEquals(150, s.frames);
+        assertEquals(-1, s.bitrateKbps, 0);
+        assertEquals(-1, s.totalSize);
+        assertEquals(5000000, s.outTimeUs);
+        assertEquals(3, s.dropFrames);
+        assertEquals(-1, s.speed, 0);
+        assertTrue(s.end);
+    }
+
+    @Test
+    public void testIncompleteBlock() {
+        FFMpegProgress p = new FFMpegProgress();
+        assertNull(p.feed("frame=1"));
+        assertNull(p.feed("garbage"));
+        assertNull(p.feed(""));
+        assertNull(p.getLast());
+        assertEquals("no progress yet", p.toString());
+
+        FFMpegProgress.Snapshot s = p.feed("progress=continue");
+        assertEquals(1, s.frames);
+        assertEquals(-1, s.dupFrames);
+    }
+}
@@ -0,0 +1,46 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import de.uni_freiburg.es.sensorrecordingtool.sensors.VideoEncoder;
+
+/**
+ * Stands in for a compressing encoder on the JVM. Each frame becomes a record behind an Annex-B
+ * start code: a key frame flag, the timestamp in nanoseconds and a checksum of the frame.
+ */
+public class FakeVideoEncoder extends VideoEncoder {
+    public static final int RECORD_SIZE = 4 + 1 + 8 + 8;
+    private final int mKeyFrameInterval;
+    private DataOutputStream mData;
+
+    public FakeVideoEncoder(int keyFrameInterval) {
+        mKeyFrameInterval = keyFrameInterval;
+    }
+
+    @Override
+    public boolean isCompressed() {
+        return true;
+    }
+
+    @Override
+    protected void onStart() {
+        mData = new DataOutputStream(mOut);
+    }
+
+    @Override
+    protected void encodeFrame(byte[] nv21, int off, int len, long timestampNs)
+            throws IOException {
+        if (len != mWidth * mHeight * 3 / 2)
+            throw new IOException("not a frame of " + mWidth + "x" + mHeight);
+
+        CRC32 crc = new CRC32();
+        crc.update(nv21, off, len);
+
+        mData.writeInt(1);
+        mData.writeByte(getFrames() % mKeyFrameInterval == 1 ? 1 : 0);
+        mData.writeLong(timestampNs);
+        mData.writeLong(crc.getValue());
+    }
+}
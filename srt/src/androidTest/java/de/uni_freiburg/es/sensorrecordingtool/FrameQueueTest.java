@@ -0,0 +1,89 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.uni_freiburg.es.sensorrecordingtool.sensors.FrameQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FrameQueueTest {
+    private final List<byte[]> recycled = new ArrayList<>();
+
+    private final FrameQueue.Recycler recycler = new FrameQueue.Recycler() {
+        @Override
+        public synchronized void recycle(byte[] data) {
+            recycled.add(data);
+        }
+    };
+
+    @Test
+    public void testDropsOldestFrame() throws Exception {
+        FrameQueue q = new FrameQueue(2, FrameQueue.Policy.DROP, recycler);
+        byte[] a = new byte[1], b = new byte[1], c = new byte[1];
+
+        q.put(a, 1);
+        q.put(b, 2);
+        q.put(c, 3);
+
+        assertEquals(1, q.getDropped());
+        assertSame(a, recycled.get(0));
+
+        FrameQueue.Frame f = q.take();
+        assertSame(b, f.data);
+        assertEquals(2, f.timestamp);
+        q.release(f);
+        assertSame(b, recycled.get(1));
+    }
+
+    @Test
+    public void testBlocksUntilTaken() throws Exception {
+        final FrameQueue q = new FrameQueue(1, FrameQueue.Policy.BLOCK, recycler);
+        q.put(new byte[1], 1);
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    q.release(q.take());
+                } catch (InterruptedException e) {
+                }
+            }
+        }.start();
+
+        assertTrue(q.put(new byte[1], 2));
+        assertEquals(0, q.getDropped());
+        assertTrue(q.getBlockedNanos() > 0);
+        assertEquals(2, q.take().timestamp);
+    }
+
+    @Test
+    public void testCloseRecyclesAndWakesUp() throws Exception {
+        final FrameQueue q = new FrameQueue(1, FrameQueue.Policy.BLOCK, recycler);
+        q.put(new byte[1], 1);
+
+        Thread closer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                }
+                q.close();
+            }
+        };
+        closer.start();
+
+        assertFalse(q.put(new byte[1], 2));
+        closer.join();
+        assertEquals(2, recycled.size());
+        assertNull(q.take());
+    }
+}
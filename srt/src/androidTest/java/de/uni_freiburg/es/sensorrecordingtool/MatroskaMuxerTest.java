@@ -0,0 +1,151 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import static de.uni_freiburg.es.sensorrecordingtool.EbmlReader.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MatroskaMuxerTest {
+    private static class ClosingStream extends ByteArrayOutputStream {
+        boolean closed = false;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static byte[] samples(int first, int count, int channels) {
+        ByteBuffer b = ByteBuffer.allocate(count * channels * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < count * channels; i++)
+            b.putFloat(first * channels + i);
+        return b.array();
+    }
+
+    @Test
+    public void testStreamsAndTags() throws Exception {
+        ClosingStream out = new ClosingStream();
+        MatroskaMuxer m = new MatroskaMuxer(out);
+        m.addStream(50, 3).setTag("name", "accelerometer");
+        m.addStream(100, 1).setTag("name", "light");
+        m.setTag("recording_id", "abc");
+        m.setTag("wear_location", "LEFT_WRIST");
+
+        OutputStream acc = m.getOutputStream(0), light = m.getOutputStream(1);
+        acc.write(samples(0, 25, 3));
+        light.write(samples(0, 10, 1));
+        acc.write(samples(25, 50, 3));
+        light.write(samples(10, 10, 1));
+        acc.close();
+        assertFalse(out.closed);
+        light.close();
+        assertTrue(out.closed);
+        assertTrue(m.awaitClosed());
+        assertEquals(75, m.getSamples(0));
+
+        List<Element> e = read(out.toByteArray());
+        assertEquals(MatroskaMuxer.CODEC, filter(e, CODEC_ID).get(0).string());
+        assertEquals(50., filter(e, SAMPLING_FREQUENCY).get(0).dbl(), 0);
+        assertEquals(3, filter(e, CHANNELS).get(0).uint());
+        assertEquals(1, filter(e, CHANNELS).get(1).uint());
+
+        List<Element> names = filter(e, TAG_NAME), values = filter(e, TAG_STRING);
+        assertEquals("NAME", names.get(0).string());
+        assertEquals("accelerometer", values.get(0).string());
+        assertEquals("light", values.get(1).string());
+        assertEquals("RECORDING_ID", names.get(2).string());
+        assertEquals("LEFT_WRIST", values.get(3).string());
+        assertEquals(2, filter(e, TAG_TRACK_UID).get(1).uint());
+
+        /** blocks are stamped by the samples written before, per track */
+        List<Element> blocks = filter(e, SIMPLE_BLOCK);
+        assertEquals(4, blocks.size());
+        assertEquals(1, blocks.get(2).blockTrack());
+        assertEquals(500, blocks.get(2).blockTimecode());
+        assertEquals(2, blocks.get(3).blockTrack());
+        assertEquals(100, blocks.get(3).blockTimecode());
+        assertArrayEquals(samples(25, 50, 3), blocks.get(2).blockPayload());
+    }
+
+    @Test
+    public void testEmptyRecordingHasTracks() throws Exception {
+        ClosingStream out = new ClosingStream();
+        MatroskaMuxer m = new MatroskaMuxer(out);
+        m.addStream(50, 3);
+        m.close();
+
+        assertTrue(out.closed);
+        assertEquals(1, filter(read(out.toByteArray()), TRACK_ENTRY).size());
+        assertTrue(filter(read(out.toByteArray()), SIMPLE_BLOCK).isEmpty());
+    }
+
+    @Test
+    public void testClosedInputRejectsSamples() throws Exception {
+        MatroskaMuxer m = new MatroskaMuxer(new ClosingStream());
+        m.addStream(50, 1);
+        m.addStream(50, 1);
+        OutputStream s = m.getOutputStream(0);
+        s.close();
+
+        try {
+            s.write(samples(0, 1, 1));
+            fail("wrote to a closed input");
+        } catch (IOException e) {
+        }
+
+        try {
+            m.addStream(50, 1);
+            m.getOutputStream(1).write(samples(0, 1, 1));
+            m.addStream(50, 1);
+            fail("added a stream after writing");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        ClosingStream out = new ClosingStream();
+        final MatroskaMuxer m = new MatroskaMuxer(out);
+        final int streams = 4, blocks = 200;
+        for (int i = 0; i < streams; i++)
+            m.addStream(50, 3);
+
+        Thread[] threads = new Thread[streams];
+        for (int i = 0; i < streams; i++) {
+            final OutputStream s = m.getOutputStream(i);
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int k = 0; k < blocks; k++)
+                            s.write(samples(k * 10, 10, 3));
+                        s.close();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        assertTrue(m.awaitClosed());
+        for (Thread t : threads)
+            t.join();
+
+        List<Element> e = read(out.toByteArray());
+        assertEquals(streams * blocks, filter(e, SIMPLE_BLOCK).size());
+        for (int i = 0; i < streams; i++)
+            assertEquals(blocks * 10, m.getSamples(i));
+    }
+}
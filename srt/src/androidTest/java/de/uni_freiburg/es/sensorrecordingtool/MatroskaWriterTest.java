@@ -0,0 +1,208 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static de.uni_freiburg.es.sensorrecordingtool.EbmlReader.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MatroskaWriterTest {
+    private static class CountingStream extends ByteArrayOutputStream {
+        int writes = 0;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+    }
+
+    @Test
+    public void testHeaderAndTracks() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MatroskaWriter w = new MatroskaWriter(out);
+        assertEquals(1, w.addTrack(new MatroskaWriter.Track(
+                MatroskaWriter.TRACK_VIDEO, "V_UNCOMPRESSED").setVideo(320, 240, "NV21")));
+        assertEquals(2, w.addTrack(new MatroskaWriter.Track(
+                MatroskaWriter.TRACK_AUDIO, "A_PCM/FLOAT/IEEE").setAudio(50, 3, 32)
+                .setCodecPrivate(new byte[]{1, 2})));
+        w.writeHeader();
+
+        List<Element> e = read(out.toByteArray());
+        assertEquals(EBML, e.get(0).id);
+        assertEquals("matroska", filter(e, DOC_TYPE).get(0).string());
+        assertEquals(1, filter(e, SEGMENT).size());
+        assertEquals(2, filter(e, TRACK_ENTRY).size());
+
+        assertEquals(1, filter(e, TRACK_NUMBER).get(0).uint());
+        assertEquals(2, filter(e, TRACK_NUMBER).get(1).uint());
+        assertEquals("V_UNCOMPRESSED", filter(e, CODEC_ID).get(0).string());
+        assertEquals(320, filter(e, PIXEL_WIDTH).get(0).uint());
+        assertEquals(240, filter(e, PIXEL_HEIGHT).get(0).uint());
+        assertEquals("NV21", filter(e, COLOUR_SPACE).get(0).string());
+        assertEquals(50., filter(e, SAMPLING_FREQUENCY).get(0).dbl(), 0);
+        assertEquals(3, filter(e, CHANNELS).get(0).uint());
+        assertArrayEquals(new byte[]{1, 2}, filter(e, CODEC_PRIVATE).get(0).data);
+        assertTrue(filter(e, CLUSTER).isEmpty());
+    }
+
+    @Test
+    public void testVariableTimestamps() throws Exception {
+        CountingStream out = new CountingStream();
+        MatroskaWriter w = new MatroskaWriter(out);
+        w.addTrack(new MatroskaWriter.Track(MatroskaWriter.TRACK_VIDEO, "V_UNCOMPRESSED")
+                .setVideo(2, 2, "NV21"));
+        w.writeHeader();
+        int headerWrites = out.writes;
+
+        /** irregular intervals like a camera under load, crossing a cluster boundary */
+        long[] ms = {0, 33, 70, 71, 150, 4999, 5000, 5033, 12345};
+        for (int i = 0; i < ms.length; i++)
+            w.writeFrame(1, ms[i] * 1000 * 1000 + 999, i % 3 == 0, new byte[]{(byte) i}, 0, 1);
+
+        assertEquals(ms.length, out.writes - headerWrites);
+
+        List<Element> e = read(out.toByteArray());
+        List<Element> clusters = filter(e, TIMECODE), blocks = filter(e, SIMPLE_BLOCK);
+        assertEquals(3, clusters.size());
+        assertEquals(0, clusters.get(0).uint());
+        assertEquals(5000, clusters.get(1).uint());
+        assertEquals(12345, clusters.get(2).uint());
+        assertEquals(ms.length, blocks.size());
+
+        long cluster = -1;
+        int b = 0;
+        for (Element el : e) {
+            if (el.id == TIMECODE)
+                cluster = el.uint();
+            else if (el.id == SIMPLE_BLOCK) {
+                assertEquals(ms[b], cluster + el.blockTimecode());
+                assertEquals(1, el.blockTrack());
+                assertEquals(b % 3 == 0, el.blockKey());
+                assertArrayEquals(new byte[]{(byte) b}, el.blockPayload());
+                b++;
+            }
+        }
+    }
+
+    @Test
+    public void testLargeFrame() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MatroskaWriter w = new MatroskaWriter(out);
+        w.addTrack(new MatroskaWriter.Track(MatroskaWriter.TRACK_VIDEO, "V_UNCOMPRESSED")
+                .setVideo(1280, 720, "NV21"));
+
+        byte[] frame = new byte[1280 * 720 * 3 / 2];
+        for (int i = 0; i < frame.length; i++)
+            frame[i] = (byte) (i * 7);
+        w.writeFrame(1, 0, true, frame, 0, frame.length);
+
+        List<Element> blocks = filter(read(out.toByteArray()), SIMPLE_BLOCK);
+        assertEquals(1, blocks.size());
+        assertArrayEquals(frame, blocks.get(0).blockPayload());
+    }
+
+    @Test
+    public void testInvalidUse() throws Exception {
+        MatroskaWriter w = new MatroskaWriter(new ByteArrayOutputStream());
+
+        try {
+            w.writeHeader();
+            fail("wrote a header without tracks");
+        } catch (IllegalStateException e) {
+        }
+
+        int track = w.addTrack(new MatroskaWriter.Track(MatroskaWriter.TRACK_AUDIO, "A_MS/ACM"));
+
+        try {
+            w.writeFrame(track + 1, 0, true, new byte[1], 0, 1);
+            fail("wrote to an unknown track");
+        } catch (IllegalArgumentException e) {
+        }
+
+        try {
+            w.writeFrame(track, -1, true, new byte[1], 0, 1);
+            fail("wrote a negative timestamp");
+        } catch (IllegalArgumentException e) {
+        }
+
+        w.writeFrame(track, 0, true, new byte[1], 0, 1);
+        try {
+            w.addTrack(new MatroskaWriter.Track(MatroskaWriter.TRACK_AUDIO, "A_MS/ACM"));
+            fail("added a track after the header");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void testFramesAreWrittenAsAWhole() throws IOException {
+        CountingStream out = new CountingStream();
+        MatroskaWriter w = new MatroskaWriter(out);
+        w.addTrack(new MatroskaWriter.Track(MatroskaWriter.TRACK_VIDEO, "V_UNCOMPRESSED"));
+
+        w.writeFrame(1, 0, true, new byte[100], 0, 100);
+        int first = out.writes;
+        w.writeFrame(1, 1000, false, new byte[100], 10, 50);
+        assertEquals(first + 1, out.writes);
+        assertFalse(filter(read(out.toByteArray()), SIMPLE_BLOCK).get(1).blockKey());
+    }
+
+    /** a sink that takes nothing until it is opened, like a pipe nobody reads from */
+    private static class GatedStream extends ByteArrayOutputStream {
+        private final CountDownLatch mOpen = new CountDownLatch(1);
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            try {
+                mOpen.await();
+            } catch (InterruptedException e) {
+            }
+            super.write(b, off, len);
+        }
+    }
+
+    @Test
+    public void testDroppedClusterIsStartedAgain() throws Exception {
+        GatedStream sink = new GatedStream();
+        RingBufferOutputStream ring = new RingBufferOutputStream(sink, 1024);
+        MatroskaWriter w = new MatroskaWriter(ring);
+        w.addTrack(new MatroskaWriter.Track(MatroskaWriter.TRACK_VIDEO, "V_MPEG4/ISO/AVC"));
+
+        assertTrue(w.writeFrame(1, 0, true, new byte[300], 0, 300));
+        /** starts a new cluster, but does not fit */
+        assertFalse(w.writeFrame(1, 6000L * 1000 * 1000, false, new byte[700], 0, 700));
+        /** depends on the dropped frame */
+        assertFalse(w.writeFrame(1, 6500L * 1000 * 1000, false, new byte[1], 0, 1));
+
+        sink.mOpen.countDown();
+        while (ring.getFillLevel() > 0)
+            Thread.sleep(1);
+
+        assertTrue(w.writeFrame(1, 7000L * 1000 * 1000, true, new byte[]{7}, 0, 1));
+        ring.close();
+        assertEquals(1, w.getSkippedFrames());
+
+        List<Element> e = read(sink.toByteArray());
+        assertEquals(1, filter(e, TRACK_ENTRY).size());
+
+        long cluster = -1;
+        List<Long> times = new ArrayList<>();
+        for (Element el : e)
+            if (el.id == TIMECODE)
+                cluster = el.uint();
+            else if (el.id == SIMPLE_BLOCK)
+                times.add(cluster + el.blockTimecode());
+
+        assertEquals(Arrays.asList(0L, 7000L), times);
+    }
+}
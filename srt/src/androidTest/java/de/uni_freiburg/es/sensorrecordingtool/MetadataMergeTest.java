@@ -0,0 +1,67 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import de.uni_freiburg.es.sensorrecordingtool.merger.MetadataMerge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MetadataMergeTest {
+
+    private static File metadata(String content) throws IOException {
+        File f = File.createTempFile("metadata", MetadataMerge.EXTENSION);
+        f.deleteOnExit();
+        Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+        w.write(content);
+        w.close();
+        return f;
+    }
+
+    @Test
+    public void testStreamsFollowTheNodes() throws IOException {
+        MetadataMerge merge = new MetadataMerge();
+        merge.add("a", metadata(";FFMETADATA1\nstartup_trace=parse@0.0+1.0\\;start@1.0+2.0\n" +
+                "[STREAM]\nsamples_dropped=3\n[STREAM]\n"));
+        merge.add("b", metadata(";FFMETADATA1\nffmpeg_frames_dropped=0\n" +
+                "[STREAM]\nframes_written=10\nframes_dropped=2\n"));
+
+        assertTrue(merge.isAligned());
+        assertEquals(";FFMETADATA1\n" +
+                "startup_trace_a=parse@0.0+1.0\\;start@1.0+2.0\n" +
+                "ffmpeg_frames_dropped_b=0\n" +
+                "[STREAM]\nsamples_dropped=3\n[STREAM]\n" +
+                "[STREAM]\nframes_written=10\nframes_dropped=2\n", merge.toString());
+    }
+
+    @Test
+    public void testMissingNodeEndsTheStreams() throws IOException {
+        MetadataMerge merge = new MetadataMerge();
+        merge.add("a", metadata(";FFMETADATA1\n[STREAM]\nsamples_dropped=1\n"));
+        merge.add("b", null);
+        merge.add("c", metadata(";FFMETADATA1\nx=1\n[STREAM]\nsamples_dropped=2\n"));
+
+        assertFalse(merge.isAligned());
+        assertEquals(";FFMETADATA1\nx_c=1\n[STREAM]\nsamples_dropped=1\n", merge.toString());
+    }
+
+    @Test
+    public void testEscapedLineBreaksAreKept() throws IOException {
+        MetadataMerge merge = new MetadataMerge();
+        merge.add("a", metadata(";FFMETADATA1\n; comment\nnote=two\\\nlines\n"));
+
+        assertEquals(";FFMETADATA1\nnote_a=two\\\nlines\n", merge.toString());
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsOtherFiles() throws IOException {
+        new MetadataMerge().add("a", metadata("not metadata\n"));
+    }
+}
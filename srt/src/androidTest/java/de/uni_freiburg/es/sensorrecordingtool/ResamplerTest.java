@@ -0,0 +1,128 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.uni_freiburg.es.sensorrecordingtool.sensors.Resampler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResamplerTest {
+    private static final long MS = 1000 * 1000;
+
+    private static class Collector implements Resampler.Sink {
+        List<Float> values = new ArrayList<>();
+
+        @Override
+        public void onSample(float[] frame) {
+            values.add(frame[0]);
+        }
+    }
+
+    @Test
+    public void testRegularInputIsMeasured() throws Exception {
+        Resampler r = Resampler.create(null, 50, 1);
+        Collector c = new Collector();
+
+        for (int i = 0; i < 100; i++)
+            r.push(1000 * MS + i * 20 * MS, new float[]{i}, c);
+
+        assertEquals(100, c.values.size());
+        assertEquals(100, r.getMeasured());
+        assertEquals(0, r.getSynthesized());
+        assertEquals(99f, c.values.get(99), 0);
+    }
+
+    @Test
+    public void testZeroOrderHoldRepeatsInGaps() throws Exception {
+        Resampler r = Resampler.create("zoh", 50, 1);
+        Collector c = new Collector();
+
+        r.push(0, new float[]{1}, c);
+        r.push(100 * MS, new float[]{2}, c);
+
+        assertEquals(6, c.values.size());
+        for (int i = 0; i < 5; i++)
+            assertEquals(1f, c.values.get(i), 0);
+        assertEquals(2f, c.values.get(5), 0);
+        assertEquals(2, r.getMeasured());
+        assertEquals(4, r.getSynthesized());
+    }
+
+    @Test
+    public void testLinearInterpolatesInGaps() throws Exception {
+        Resampler r = Resampler.create("linear", 50, 1);
+        Collector c = new Collector();
+
+        r.push(0, new float[]{0}, c);
+        r.push(100 * MS, new float[]{5}, c);
+
+        assertEquals(6, c.values.size());
+        for (int i = 0; i < 6; i++)
+            assertEquals(i, c.values.get(i), 1e-4);
+    }
+
+    @Test
+    public void testNoDriftOverLongRecordings() throws Exception {
+        Resampler r = Resampler.create("linear", 100, 1);
+        Collector c = new Collector();
+
+        /* input at 3ms jitter-free, one hour of output at 100Hz */
+        long hour = 3600L * 1000 * MS;
+        for (long t = 0; t <= hour; t += 3 * MS)
+            r.push(t, new float[]{0}, c);
+
+        assertEquals(3600 * 100 + 1, r.getEmitted());
+    }
+
+    @Test
+    public void testSincReproducesSlowSignal() throws Exception {
+        Resampler r = Resampler.create("sinc", 100, 1);
+        Collector c = new Collector();
+
+        /* a 1Hz sine sampled with 7ms jitter-free steps, resampled to 100Hz */
+        for (long t = 0; t <= 2000 * MS; t += 7 * MS)
+            r.push(t, new float[]{(float) Math.sin(2 * Math.PI * t * 1e-9)}, c);
+        r.drain(c);
+
+        assertTrue(c.values.size() >= 199);
+        for (int i = 10; i < 190; i++)
+            assertEquals(Math.sin(2 * Math.PI * i / 100.), c.values.get(i), 0.02);
+    }
+
+    @Test
+    public void testBatchEqualsSingle() throws Exception {
+        long[] ts = new long[50];
+        float[] values = new float[100];
+        for (int i = 0; i < ts.length; i++) {
+            ts[i] = i * 13 * MS;
+            values[2 * i] = i;
+            values[2 * i + 1] = -i;
+        }
+
+        Resampler a = Resampler.create("linear", 60, 2), b = Resampler.create("linear", 60, 2);
+        Collector ca = new Collector(), cb = new Collector();
+
+        a.process(ts, values, ts.length, ca);
+        for (int i = 0; i < ts.length; i++)
+            b.push(ts[i], new float[]{values[2 * i], values[2 * i + 1]}, cb);
+
+        assertEquals(ca.values, cb.values);
+    }
+
+    @Test
+    public void testNonIncreasingTimestampsAreDiscarded() throws Exception {
+        Resampler r = Resampler.create(null, 50, 1);
+        Collector c = new Collector();
+
+        r.push(20 * MS, new float[]{1}, c);
+        r.push(20 * MS, new float[]{2}, c);
+        r.push(10 * MS, new float[]{3}, c);
+
+        assertEquals(2, r.getDiscarded());
+        assertEquals(1, c.values.size());
+    }
+}
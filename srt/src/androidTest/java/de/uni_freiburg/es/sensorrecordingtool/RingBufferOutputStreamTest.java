@@ -0,0 +1,147 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferOutputStreamTest {
+
+    @Test
+    public void testCapacityIsPowerOfTwo() throws IOException {
+        RingBufferOutputStream rb = new RingBufferOutputStream(new ByteArrayOutputStream(), 1000);
+        assertEquals(1024, rb.getCapacity());
+        rb.close();
+    }
+
+    @Test
+    public void testDataArrivesInOrder() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RingBufferOutputStream rb = new RingBufferOutputStream(out, 64);
+        byte[] expected = new byte[10000];
+
+        for (int i = 0; i < expected.length; i++)
+            expected[i] = (byte) i;
+
+        /* write in chunks which wrap around the ring, wait until there is space again */
+        for (int off = 0; off < expected.length; off += 24) {
+            int len = Math.min(24, expected.length - off);
+            while (rb.getCapacity() - rb.getFillLevel() < len)
+                Thread.yield();
+            rb.write(expected, off, len);
+        }
+        rb.close();
+
+        assertArrayEquals(expected, out.toByteArray());
+        assertEquals(0, rb.getOverflowCount());
+        assertTrue(rb.getHighWaterMark() <= rb.getCapacity());
+    }
+
+    @Test
+    public void testOverflowDropsWholeWrites() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1),
+                       stalled = new CountDownLatch(1);
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+
+        RingBufferOutputStream rb = new RingBufferOutputStream(
+                new BlockingStream(sink, entered, stalled), 16);
+        byte[] sample = new byte[]{1, 2, 3, 4, 5, 6, 7, 8};
+
+        rb.write(sample); // picked up by the writer thread, which then stalls
+        entered.await();
+
+        rb.write(sample);
+        rb.write(sample); // does not fit anymore
+        stalled.countDown();
+        rb.close();
+
+        assertEquals(1, rb.getOverflowCount());
+        assertEquals(8, rb.getDroppedBytes());
+        assertEquals(16, rb.getHighWaterMark());
+        assertEquals(16, sink.size());
+    }
+
+    @Test
+    public void testGapFillerKeepsLength() throws Exception {
+        byte[] a = new byte[]{1, 1, 1, 1};
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        RingBufferOutputStream rb = overflowWithFiller(sink);
+
+        while (rb.getFillLevel() > 0)
+            Thread.yield();
+        rb.write(a); // fills the gap first
+        rb.close();
+
+        assertEquals(1, rb.getOverflowCount());
+        assertEquals(4, rb.getFilledBytes());
+        assertArrayEquals(new byte[]{1, 1, 1, 1, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2,
+                                     9, 8, 9, 8, 1, 1, 1, 1},
+                sink.toByteArray());
+    }
+
+    @Test
+    public void testTrailingGapIsFilledOnClose() throws Exception {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        RingBufferOutputStream rb = overflowWithFiller(sink);
+        rb.close();
+
+        assertEquals(4, rb.getFilledBytes());
+        assertArrayEquals(new byte[]{1, 1, 1, 1, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2,
+                                     9, 8, 9, 8},
+                sink.toByteArray());
+    }
+
+    /**
+     * fills a 16 byte ring with a stalled writer, drops a single write of four bytes and lets
+     * the writer continue
+     */
+    private static RingBufferOutputStream overflowWithFiller(OutputStream sink) throws Exception {
+        CountDownLatch entered = new CountDownLatch(1),
+                       stalled = new CountDownLatch(1);
+        RingBufferOutputStream rb = new RingBufferOutputStream(
+                new BlockingStream(sink, entered, stalled), 16);
+        rb.setGapFiller(new byte[]{9, 8});
+
+        rb.write(new byte[]{1, 1, 1, 1});
+        entered.await();
+
+        for (int i = 0; i < 3; i++)
+            rb.write(new byte[]{2, 2, 2, 2});
+        rb.write(new byte[]{3, 3, 3, 3}); // does not fit anymore
+        stalled.countDown();
+        return rb;
+    }
+
+    private static class BlockingStream extends OutputStream {
+        private final OutputStream mOut;
+        private final CountDownLatch mEntered, mStalled;
+
+        BlockingStream(OutputStream out, CountDownLatch entered, CountDownLatch stalled) {
+            mOut = out;
+            mEntered = entered;
+            mStalled = stalled;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mOut.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mOut.write(b, off, len);
+            mEntered.countDown();
+            try {
+                mStalled.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import de.uni_freiburg.es.sensorrecordingtool.sensors.SampleEncoding;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SampleEncodingTest {
+    private static float roundTrip(SampleEncoding encoding, float value) {
+        ByteBuffer b = ByteBuffer.allocate(encoding.getBytes()).order(ByteOrder.nativeOrder());
+        encoding.put(b, value);
+        assertEquals(0, b.remaining());
+        b.flip();
+        return encoding.get(b);
+    }
+
+    @Test
+    public void testF32IsExact() {
+        Random r = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            float v = (r.nextFloat() - .5f) * 1e6f;
+            assertEquals(v, roundTrip(SampleEncoding.F32, v), 0);
+        }
+    }
+
+    @Test
+    public void testS16ErrorIsHalfAStep() {
+        /** an accelerometer with +-4g */
+        double range = 4 * 9.81;
+        SampleEncoding.S16 s16 = SampleEncoding.S16.forRange(range);
+        Random r = new Random(2);
+
+        for (int i = 0; i < 10000; i++) {
+            float v = (float) ((r.nextDouble() * 2 - 1) * range);
+            assertEquals(v, roundTrip(s16, v), s16.scale / 2 + 1e-6);
+        }
+
+        assertEquals(range, roundTrip(s16, (float) range), 1e-4);
+        assertEquals(-range, roundTrip(s16, (float) -range), 1e-4);
+
+        /** values outside of the range are clamped */
+        assertEquals(range, roundTrip(s16, (float) (range * 3)), 1e-4);
+        assertEquals(Short.MIN_VALUE * s16.scale, roundTrip(s16, (float) (-range * 3)), 1e-4);
+    }
+
+    @Test
+    public void testS16Offset() {
+        /** pressure around sea level in steps of .01hPa */
+        SampleEncoding.S16 s16 = new SampleEncoding.S16(.01, 1000);
+        assertEquals(1013.25f, roundTrip(s16, 1013.25f), .005 + 1e-4);
+        assertEquals(987.5f, roundTrip(s16, 987.5f), .005 + 1e-4);
+        assertEquals("s16", s16.getTags().get("encoding"));
+        assertEquals("0.01", s16.getTags().get("scale"));
+        assertEquals("1000.0", s16.getTags().get("offset"));
+    }
+
+    @Test
+    public void testF16RelativeError() {
+        Random r = new Random(3);
+        double smallest = Math.pow(2, -14);
+
+        for (int i = 0; i < 10000; i++) {
+            float v = (float) ((r.nextDouble() * 2 - 1) * Math.pow(10, r.nextInt(9) - 4));
+            if (Math.abs(v) < smallest || Math.abs(v) > SampleEncoding.F16_MAX)
+                continue;
+
+            float back = roundTrip(SampleEncoding.F16, v);
+            assertTrue(v + " became " + back,
+                    Math.abs(back - v) <= Math.abs(v) * SampleEncoding.F16_PRECISION);
+        }
+    }
+
+    @Test
+    public void testF16SpecialValues() {
+        for (int i = -2048; i <= 2048; i++)
+            assertEquals(i, SampleEncoding.fromHalf(SampleEncoding.toHalf(i)), 0);
+
+        assertEquals(0x3C00, SampleEncoding.toHalf(1f));
+        assertEquals((short) 0xC000, SampleEncoding.toHalf(-2f));
+        assertEquals(0x7BFF, SampleEncoding.toHalf(SampleEncoding.F16_MAX));
+        assertEquals(SampleEncoding.F16_MAX, SampleEncoding.fromHalf((short) 0x7BFF), 0);
+
+        /** ties round to even, 2049 lies between 2048 and 2050 */
+        assertEquals(2048f, SampleEncoding.fromHalf(SampleEncoding.toHalf(2049f)), 0);
+        assertEquals(2052f, SampleEncoding.fromHalf(SampleEncoding.toHalf(2051f)), 0);
+
+        /** subnormals are kept in steps of 2^-24 */
+        float tiny = (float) Math.pow(2, -24);
+        assertEquals(1, SampleEncoding.toHalf(tiny));
+        assertEquals(tiny, SampleEncoding.fromHalf((short) 1), 0);
+        assertEquals(3 * tiny, SampleEncoding.fromHalf(SampleEncoding.toHalf(3 * tiny)), 0);
+        assertEquals(0, SampleEncoding.toHalf(tiny / 4));
+
+        assertEquals(Float.POSITIVE_INFINITY, roundTrip(SampleEncoding.F16, 1e6f), 0);
+        assertEquals(Float.NEGATIVE_INFINITY,
+                roundTrip(SampleEncoding.F16, Float.NEGATIVE_INFINITY), 0);
+        assertTrue(Float.isNaN(roundTrip(SampleEncoding.F16, Float.NaN)));
+    }
+
+    @Test
+    public void testChoose() {
+        assertSame(SampleEncoding.F32, SampleEncoding.choose(null, .01, 40));
+        assertSame(SampleEncoding.F32, SampleEncoding.choose("linear", .01, 40));
+        assertSame(SampleEncoding.F16, SampleEncoding.choose("encoding=f16", 0, 0));
+        assertSame(SampleEncoding.F32, SampleEncoding.choose("encoding=s16", .01, 0));
+        assertSame(SampleEncoding.F32, SampleEncoding.choose("encoding=auto", 0, 40));
+
+        /** 16bit steps of 40/32767 are finer than the .01 of the sensor */
+        SampleEncoding auto = SampleEncoding.choose("linear:encoding=auto", .01, 40);
+        assertTrue(auto instanceof SampleEncoding.S16);
+        assertEquals(40. / Short.MAX_VALUE, ((SampleEncoding.S16) auto).scale, 1e-12);
+
+        /** but not for a sensor with a large range and a fine resolution */
+        assertSame(SampleEncoding.F32, SampleEncoding.choose("encoding=auto", 1e-4, 1000));
+
+        assertTrue(SampleEncoding.choose("encoding=S16", .01, 40) instanceof
+                SampleEncoding.S16);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownEncoding() {
+        SampleEncoding.choose("encoding=u8", .01, 40);
+    }
+}
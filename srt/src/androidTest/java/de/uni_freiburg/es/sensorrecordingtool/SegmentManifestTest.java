@@ -0,0 +1,202 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentManifestTest {
+    private File mDir;
+    private SegmentManifest mManifest;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("segments", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+        mManifest = new SegmentManifest(new File(mDir, "rec.mkv"));
+    }
+
+    private static void write(File f, String content, boolean append) throws IOException {
+        FileOutputStream out = new FileOutputStream(f, append);
+        out.write(content.getBytes("UTF-8"));
+        out.close();
+    }
+
+    private static String read(File f) throws IOException {
+        Scanner s = new Scanner(f, "UTF-8").useDelimiter("\\A");
+        try {
+            return s.hasNext() ? s.next() : "";
+        } finally {
+            s.close();
+        }
+    }
+
+    /** does what ffmpeg's segment muxer does once a segment is complete */
+    private void ffmpegCompletes(int index, double start, double end) throws IOException {
+        String part = String.format(mManifest.getPartPattern(), index);
+        write(new File(part), "segment " + index, false);
+        write(mManifest.getListFile(),
+                String.format("%s,%f,%f\n", new File(part).getName(), start, end), true);
+    }
+
+    @Test
+    public void testNames() {
+        assertEquals(new File(mDir, "rec.00003.mkv"), mManifest.getSegmentFile(3));
+        assertEquals(new File(mDir, "rec.segments"), mManifest.getManifestFile());
+        assertEquals(new File(mDir, "rec.%05d.mkv.part").getPath(), mManifest.getPartPattern());
+        assertEquals(12, mManifest.parseIndex("rec.00012.mkv.part"));
+    }
+
+    @Test
+    public void testSegmentsAreRenamedAndListed() throws Exception {
+        assertEquals(0, mManifest.update());
+
+        ffmpegCompletes(0, 0, 10);
+        /** the next segment is still being written */
+        File writing = new File(String.format(mManifest.getPartPattern(), 1));
+        write(writing, "partial", false);
+
+        assertEquals(1, mManifest.update());
+        assertEquals(0, mManifest.update());
+        assertTrue(mManifest.getSegmentFile(0).exists());
+        assertEquals("segment 0", read(mManifest.getSegmentFile(0)));
+        assertFalse(new File(mManifest.getSegmentFile(0) + SegmentManifest.PART).exists());
+        assertTrue(writing.exists());
+        assertFalse(mManifest.getSegmentFile(1).exists());
+
+        /** the manifest is readable at any time, but not finished */
+        assertTrue(SegmentManifest.isManifest(mManifest.getManifestFile()));
+        assertEquals(SegmentManifest.HEADER + "\nrec.00000.mkv,0.000000,10.000000\n",
+                read(mManifest.getManifestFile()));
+
+        try {
+            SegmentManifest.read(mManifest.getManifestFile());
+            assertTrue("unfinished manifest was read", false);
+        } catch (IOException e) {
+        }
+
+        ffmpegCompletes(1, 10, 20.5);
+        mManifest.finish();
+
+        assertTrue(mManifest.isFinished());
+        assertFalse(mManifest.getListFile().exists());
+
+        List<SegmentManifest.Entry> entries = SegmentManifest.read(mManifest.getManifestFile());
+        assertEquals(2, entries.size());
+        assertEquals("rec.00001.mkv", entries.get(1).name);
+        assertEquals(10, entries.get(1).start, 1e-9);
+        assertEquals(20.5, entries.get(1).end, 1e-9);
+
+        /** no temporary files are left behind */
+        assertEquals(Arrays.asList("rec.00000.mkv", "rec.00001.mkv", "rec.segments"),
+                sorted(mDir.list()));
+    }
+
+    private static List<String> sorted(String[] names) {
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    @Test
+    public void testLineBeingWrittenIsLeftForLater() throws Exception {
+        File part = new File(String.format(mManifest.getPartPattern(), 0));
+        write(part, "segment 0", false);
+        write(mManifest.getListFile(), part.getName() + ",0.000000,10.5", false);
+
+        /** the end time could still grow */
+        assertEquals(0, mManifest.update());
+        assertFalse(mManifest.getSegmentFile(0).exists());
+
+        write(mManifest.getListFile(), "00000\n", true);
+        assertEquals(1, mManifest.update());
+        assertEquals(10.500000, mManifest.getEntries().get(0).end, 1e-9);
+    }
+
+    @Test(expected = IOException.class)
+    public void testSegmentsAreCompletedInOrder() throws Exception {
+        ffmpegCompletes(1, 10, 20);
+        mManifest.update();
+    }
+
+    @Test
+    public void testAwait() throws Exception {
+        final AtomicReference<SegmentManifest.Entry> first = new AtomicReference<>();
+        final AtomicReference<SegmentManifest.Entry> second = new AtomicReference<>();
+
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    first.set(mManifest.await(0));
+                    second.set(mManifest.await(1));
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        consumer.start();
+
+        ffmpegCompletes(0, 0, 5);
+        mManifest.update();
+        mManifest.finish();
+        consumer.join(5000);
+
+        assertFalse(consumer.isAlive());
+        assertEquals("rec.00000.mkv", first.get().name);
+        assertNull(second.get());
+    }
+
+    @Test
+    public void testNotAManifest() throws Exception {
+        File f = new File(mDir, "rec.mkv");
+        write(f, "\u001aE\u00df\u00a3", false);
+        assertFalse(SegmentManifest.isManifest(f));
+        assertFalse(SegmentManifest.isManifest(new File(mDir, "missing")));
+    }
+
+    @Test
+    public void testConcatList() throws Exception {
+        File list = new File(mDir, "list");
+        SegmentManifest.writeConcatList(list, Arrays.asList(
+                new File("/sdcard/DCIM/a.00000.mkv"), new File("/sdcard/DCIM/it's.mkv")));
+
+        assertEquals("ffconcat version 1.0\n" +
+                     "file '/sdcard/DCIM/a.00000.mkv'\n" +
+                     "file '/sdcard/DCIM/it'\\''s.mkv'\n", read(list));
+    }
+
+    @Test
+    public void testPolicy() {
+        assertEquals(300, SegmentManifest.Policy.parse("300").seconds, 0);
+        assertEquals(2.5, SegmentManifest.Policy.parse("2.5s").seconds, 0);
+        assertEquals(64 * 1024 * 1024, SegmentManifest.Policy.parse("64M").bytes);
+        assertEquals(512 * 1024, SegmentManifest.Policy.parse("512k").bytes);
+
+        /** sizes are turned into a time at the given data rate */
+        assertEquals(60, SegmentManifest.Policy.parse("60s").getSeconds(1000), 0);
+        assertEquals(64, SegmentManifest.Policy.parse("64M").getSeconds(1024 * 1024), 1e-9);
+
+        for (String invalid : new String[]{"", "0", "-5", "abc", "1.5x"})
+            try {
+                SegmentManifest.Policy.parse(invalid);
+                assertTrue(invalid + " was accepted", false);
+            } catch (IllegalArgumentException e) {
+            }
+    }
+
+    @Test
+    public void testItemIds() {
+        assertEquals("abc.0", SegmentManifest.getItemId("abc", 0));
+        assertEquals("abc.12", SegmentManifest.getItemId("abc", 12));
+    }
+}
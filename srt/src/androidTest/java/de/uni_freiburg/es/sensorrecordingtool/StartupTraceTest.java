@@ -0,0 +1,46 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StartupTraceTest {
+
+    @Test
+    public void testOnlyEndedPhasesAreEncoded() {
+        StartupTrace t = new StartupTrace();
+        t.begin("parse");
+        t.end("parse");
+        t.begin("discovery");
+
+        String encoded = t.encode();
+        assertTrue(encoded.startsWith("parse@"));
+        assertFalse(encoded.contains("discovery"));
+        assertEquals(-1, t.getDurationNanos("discovery"));
+    }
+
+    @Test
+    public void testRoundTrip() {
+        StartupTrace t = new StartupTrace();
+        long origin = t.getOrigin();
+        t.record("prepare", origin, origin + 5 * 1000 * 1000);
+        t.record("video prepare", origin + 1000 * 1000, origin + 251 * 1000 * 1000);
+
+        assertEquals("prepare@0.0+5.0;video prepare@1.0+250.0", t.encode());
+
+        LinkedHashMap<String, Double> phases = StartupTrace.decode(t.encode());
+        assertEquals(2, phases.size());
+        assertEquals(5.0, phases.get("prepare"), 1e-9);
+        assertEquals(250.0, phases.get("video prepare"), 1e-9);
+    }
+
+    @Test
+    public void testDecodeEmpty() {
+        assertEquals(0, StartupTrace.decode(null).size());
+        assertEquals(0, StartupTrace.decode("").size());
+    }
+}
@@ -0,0 +1,66 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StreamBufferingTest {
+    @Test
+    public void testBufferSizes() {
+        /** 1Hz pressure, a single float */
+        assertEquals(StreamBuffering.MIN_BUFFER, StreamBuffering.getBufferSize(4));
+        /** 200Hz accelerometer */
+        assertEquals(2400, StreamBuffering.getBufferSize(200 * 3 * 4));
+        /** 48kHz stereo audio */
+        assertEquals(StreamBuffering.MAX_BUFFER, StreamBuffering.getBufferSize(48000 * 2 * 2));
+        /** 30fps 640x480 NV21 */
+        assertEquals(0, StreamBuffering.getBufferSize(640 * 480 * 3 / 2 * 30));
+        assertEquals(StreamBuffering.DEFAULT_BUFFER, StreamBuffering.getBufferSize(-1));
+    }
+
+    @Test
+    public void testBatchesAreTimeBounded() {
+        int frame = 3 * 4;
+
+        /** a batch never holds more than the flush interval worth of samples */
+        for (double rate : new double[]{.1, 1, 5, 50, 200, 1000}) {
+            int bytes = StreamBuffering.getBatchBytes(rate, frame, 8192);
+            int samples = bytes / frame;
+
+            assertEquals(0, bytes % frame);
+            assertTrue(samples >= 1);
+            assertTrue(rate + "Hz", samples == 1 ||
+                                    samples / rate <= StreamBuffering.FLUSH_INTERVAL_S);
+            assertTrue(bytes <= 8192);
+        }
+
+        assertEquals(50 * frame, StreamBuffering.getBatchBytes(50, frame, 8192));
+        assertEquals(682 * frame, StreamBuffering.getBatchBytes(1000, frame, 8192));
+        assertEquals(frame, StreamBuffering.getBatchBytes(1, frame, 8192));
+    }
+
+    @Test
+    public void testSampleBytes() {
+        assertEquals(4, StreamBuffering.getSampleBytes("f32le"));
+        assertEquals(2, StreamBuffering.getSampleBytes("s16be"));
+        assertEquals(1, StreamBuffering.getSampleBytes("u8"));
+        assertEquals(8, StreamBuffering.getSampleBytes("f64le"));
+        assertEquals(-1, StreamBuffering.getSampleBytes("rawvideo"));
+        assertEquals(-1, StreamBuffering.getSampleBytes("s"));
+        assertEquals(-1, StreamBuffering.getSampleBytes(null));
+    }
+
+    @Test
+    public void testGapSample() {
+        assertArrayEquals(new byte[]{0, 0, (byte) 0xc0, 0x7f}, StreamBuffering.getGapSample("f32le"));
+        assertArrayEquals(new byte[]{0x7f, (byte) 0xc0, 0, 0}, StreamBuffering.getGapSample("f32be"));
+        assertArrayEquals(new byte[]{0, 0}, StreamBuffering.getGapSample("s16le"));
+        assertArrayEquals(new byte[]{(byte) 0x80}, StreamBuffering.getGapSample("u8"));
+        assertArrayEquals(new byte[]{(byte) 0x80, 0}, StreamBuffering.getGapSample("u16be"));
+        assertEquals(8, StreamBuffering.getGapSample("f64le").length);
+        assertNull(StreamBuffering.getGapSample("rawvideo"));
+    }
+}
@@ -0,0 +1,46 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StreamCodecTest {
+    @Test
+    public void testChoose() {
+        assertEquals(StreamCodec.DEFAULT, StreamCodec.choose(null, "f32le"));
+        assertEquals(StreamCodec.DEFAULT, StreamCodec.choose("linear:encoding=f16", "s16le"));
+        assertEquals(StreamCodec.FLAC, StreamCodec.choose("encoding=s16:codec=flac", "s16le"));
+        assertEquals(StreamCodec.TTA, StreamCodec.choose("codec=TTA", "s16be"));
+        assertEquals(StreamCodec.COPY, StreamCodec.choose("codec=copy", "f32le"));
+        assertEquals("wavpack", StreamCodec.choose("codec=wavpack", "f32be").getEncoder());
+    }
+
+    @Test
+    public void testLossless() {
+        assertTrue(StreamCodec.WAVPACK.isLossless("f32le"));
+        assertTrue(StreamCodec.FLAC.isLossless("s16le"));
+        assertFalse(StreamCodec.FLAC.isLossless("f32le"));
+        assertFalse(StreamCodec.TTA.isLossless("f32be"));
+        assertTrue(StreamCodec.COPY.isLossless("f64le"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFloatsInFlacAreRejected() {
+        StreamCodec.choose("codec=flac", "f32le");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownCodec() {
+        StreamCodec.choose("codec=mp3", "s16le");
+    }
+
+    @Test
+    public void testRequested() {
+        assertFalse(StreamCodec.isRequested(null));
+        assertFalse(StreamCodec.isRequested("linear"));
+        assertFalse(StreamCodec.isRequested("codec=copy"));
+        assertTrue(StreamCodec.isRequested("codec=wavpack"));
+    }
+}
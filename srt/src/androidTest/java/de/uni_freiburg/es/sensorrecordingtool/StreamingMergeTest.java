@@ -0,0 +1,214 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.uni_freiburg.es.sensorrecordingtool.merger.StreamingMerge;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingMergeTest {
+    private File mDir;
+
+    /** reads the pipes in order on its own thread, like ffmpeg would */
+    private static class ReadingMuxer implements StreamingMerge.Muxer {
+        final List<File> started = new ArrayList<>();
+        final List<byte[]> read = new ArrayList<>();
+        private Thread mThread;
+        private volatile boolean mFailed = false;
+
+        @Override
+        public void start(final List<File> inputs) throws IOException {
+            started.addAll(inputs);
+            mThread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        List<InputStream> streams = new ArrayList<>();
+                        for (File f : inputs)
+                            streams.add(new FileInputStream(f));
+
+                        for (InputStream in : streams) {
+                            ByteArrayOutputStream out = new ByteArrayOutputStream();
+                            byte[] buf = new byte[256];
+                            int n;
+                            while ((n = in.read(buf)) >= 0)
+                                out.write(buf, 0, n);
+                            in.close();
+                            synchronized (read) {
+                                read.add(out.toByteArray());
+                            }
+                        }
+                    } catch (IOException e) {
+                        mFailed = true;
+                    }
+                }
+            };
+            mThread.start();
+        }
+
+        @Override
+        public boolean await() throws InterruptedException {
+            mThread.join(5000);
+            return !mThread.isAlive() && !mFailed;
+        }
+    }
+
+    /** writes *data* into *out* and closes it, remembering whether that failed */
+    private static class Writer extends Thread {
+        private final StreamingMerge.Input mOut;
+        private final byte[] mData;
+        volatile boolean failed = false;
+        volatile IOException error = null;
+
+        Writer(StreamingMerge.Input out, byte[] data) {
+            mOut = out;
+            mData = data;
+            start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                mOut.write(mData, 0, mData.length);
+                mOut.close();
+            } catch (IOException e) {
+                error = e;
+                failed = true;
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("merge", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+    }
+
+    @Test
+    public void testAllNodesAreMerged() throws Exception {
+        ReadingMuxer muxer = new ReadingMuxer();
+        StreamingMerge merge = new StreamingMerge(mDir, muxer, 5000);
+        StreamingMerge.Input a = merge.addInput("a"), b = merge.addInput("b");
+
+        Writer wb = new Writer(b, new byte[]{4, 5});
+        Writer wa = new Writer(a, new byte[]{1, 2, 3});
+        wa.join(5000);
+        wb.join(5000);
+
+        assertTrue(merge.finish());
+        assertFalse(wa.failed || wb.failed);
+        assertEquals(2, merge.getMerged().size());
+        assertArrayEquals(new byte[]{1, 2, 3}, muxer.read.get(0));
+        assertArrayEquals(new byte[]{4, 5}, muxer.read.get(1));
+
+        /** the pipes are removed */
+        assertEquals(0, mDir.list().length);
+    }
+
+    @Test
+    public void testLateNodeIsLeftOut() throws Exception {
+        ReadingMuxer muxer = new ReadingMuxer();
+        StreamingMerge merge = new StreamingMerge(mDir, muxer, 200);
+        StreamingMerge.Input a = merge.addInput("a"), late = merge.addInput("late");
+
+        Writer wa = new Writer(a, new byte[]{1});
+        wa.join(5000);
+        assertFalse(wa.isAlive());
+
+        Writer wl = new Writer(late, new byte[]{2});
+        wl.join(5000);
+
+        /** which lets the retriever store it in a file instead */
+        assertTrue(wl.error instanceof StreamingMerge.LeftOutException);
+        assertTrue(merge.finish());
+        assertEquals(1, muxer.started.size());
+        assertEquals(a.getPipe(), muxer.started.get(0));
+        assertArrayEquals(new byte[]{1}, muxer.read.get(0));
+    }
+
+    @Test
+    public void testNodeThatGaveUpIsNotWaitedOn() throws Exception {
+        ReadingMuxer muxer = new ReadingMuxer();
+        StreamingMerge merge = new StreamingMerge(mDir, muxer, 60 * 1000);
+        StreamingMerge.Input a = merge.addInput("a"), failed = merge.addInput("failed");
+
+        failed.close();
+        long start = System.currentTimeMillis();
+        Writer wa = new Writer(a, new byte[]{1, 2});
+        wa.join(5000);
+
+        assertFalse(wa.isAlive());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertTrue(merge.finish());
+        assertEquals(1, merge.getMerged().size());
+    }
+
+    /** exits right after starting, without opening any pipe, like a failing ffmpeg */
+    private static class FailingMuxer implements StreamingMerge.Muxer {
+        @Override
+        public void start(List<File> inputs) {
+        }
+
+        @Override
+        public boolean await() {
+            return false;
+        }
+    }
+
+    @Test
+    public void testWritersAreReleasedWhenMuxerExits() throws Exception {
+        StreamingMerge merge = new StreamingMerge(mDir, new FailingMuxer(), 60 * 1000);
+        StreamingMerge.Input a = merge.addInput("a");
+
+        Writer wa = new Writer(a, new byte[]{1});
+        wa.join(5000);
+
+        assertFalse(wa.isAlive());
+        assertTrue(wa.failed);
+        assertFalse(merge.finish());
+    }
+
+    @Test
+    public void testTimeoutRestartsWithEachNode() throws Exception {
+        ReadingMuxer muxer = new ReadingMuxer();
+        StreamingMerge merge = new StreamingMerge(mDir, muxer, 400);
+        StreamingMerge.Input a = merge.addInput("a"), b = merge.addInput("b"),
+                             c = merge.addInput("c");
+
+        Writer wa = new Writer(a, new byte[]{1});
+        Thread.sleep(300);
+        Writer wb = new Writer(b, new byte[]{2});
+        Thread.sleep(300);
+        /** more than the timeout after the first node, but not after the last one */
+        Writer wc = new Writer(c, new byte[]{3});
+        wa.join(5000);
+        wb.join(5000);
+        wc.join(5000);
+
+        assertFalse(wa.failed || wb.failed || wc.failed);
+        assertTrue(merge.finish());
+        assertEquals(3, merge.getMerged().size());
+    }
+
+    @Test
+    public void testNothingToMerge() throws Exception {
+        ReadingMuxer muxer = new ReadingMuxer();
+        StreamingMerge merge = new StreamingMerge(mDir, muxer, 200);
+        merge.addInput("a");
+
+        assertFalse(merge.finish());
+        assertTrue(muxer.started.isEmpty());
+    }
+}
@@ -0,0 +1,104 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import de.uni_freiburg.es.sensorrecordingtool.merger.TransferBenchmark;
+import de.uni_freiburg.es.sensorrecordingtool.merger.TransferEngine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TransferEngineTest {
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("transfer", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+    }
+
+    private File createFile(String name, int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+
+        File f = new File(mDir, name);
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+        return f;
+    }
+
+    private static byte[] read(File f) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(f);
+        new TransferEngine().transfer(in, out);
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testStreamsAreCopiedCompletely() throws Exception {
+        byte[] data = new byte[TransferEngine.BUFFER_SIZE * 2 + 17];
+        new Random(1).nextBytes(data);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(data.length,
+                new TransferEngine().transfer(new ByteArrayInputStream(data), out));
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void testFilesAreCopiedCompletely() throws Exception {
+        File input = createFile("in", 5 * 1024 * 1024 + 3), output = new File(mDir, "out");
+
+        FileInputStream in = new FileInputStream(input);
+        FileOutputStream out = new FileOutputStream(output);
+        assertEquals(input.length(), new TransferEngine().transfer(in, out));
+        in.close();
+        out.close();
+
+        assertArrayEquals(read(input), read(output));
+    }
+
+    @Test
+    public void testProgressIsThrottled() throws Exception {
+        final List<Long> reports = new ArrayList<>();
+        byte[] data = new byte[TransferEngine.BUFFER_SIZE * 8];
+
+        new TransferEngine(60 * 1000).setProgressListener(new TransferEngine.ProgressListener() {
+            @Override
+            public void onProgress(long bytes) {
+                reports.add(bytes);
+            }
+        }).transfer(new ByteArrayInputStream(data), new ByteArrayOutputStream());
+
+        /** only the final report falls outside of the interval */
+        assertEquals(Arrays.asList((long) data.length), reports);
+    }
+
+    @Test
+    public void testLoopbackBenchmark() throws Exception {
+        File input = createFile("in", 64 * 1024 * 1024), output = new File(mDir, "out");
+
+        TransferBenchmark.Result r = TransferBenchmark.run(input, output);
+        System.out.println("loopback transfer: " + r);
+
+        assertEquals(input.length(), r.bytes);
+        assertArrayEquals(read(input), read(output));
+        assertTrue(r.getMegabytesPerSecond() > 0);
+    }
+}
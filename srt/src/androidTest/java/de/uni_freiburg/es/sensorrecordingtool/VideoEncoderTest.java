@@ -0,0 +1,138 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import de.uni_freiburg.es.sensorrecordingtool.sensors.VideoEncoder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class VideoEncoderTest {
+    private static final int W = 32, H = 24, FRAME = W * H * 3 / 2;
+
+    private static class ClosingStream extends ByteArrayOutputStream {
+        boolean closed = false;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static byte[] frame(int i) {
+        byte[] b = new byte[FRAME];
+        for (int k = 0; k < b.length; k++)
+            b[k] = (byte) (i + k);
+        return b;
+    }
+
+    @Test
+    public void testRawPassesFramesThrough() throws Exception {
+        ClosingStream out = new ClosingStream();
+        VideoEncoder enc = new VideoEncoder.Raw();
+        enc.start(W, H, 90, 30, out);
+
+        enc.encode(frame(0), 0, FRAME, 0);
+        enc.encode(frame(1), 0, FRAME, 45 * 1000 * 1000);
+        enc.asStream().close();
+        assertTrue(out.closed);
+        assertEquals("matroska", enc.getFormat());
+
+        List<EbmlReader.Element> e = EbmlReader.read(out.toByteArray());
+        assertEquals("V_UNCOMPRESSED", EbmlReader.filter(e, EbmlReader.CODEC_ID).get(0).string());
+        assertEquals(W, EbmlReader.filter(e, EbmlReader.PIXEL_WIDTH).get(0).uint());
+        assertEquals(H, EbmlReader.filter(e, EbmlReader.PIXEL_HEIGHT).get(0).uint());
+
+        List<EbmlReader.Element> blocks = EbmlReader.filter(e, EbmlReader.SIMPLE_BLOCK);
+        assertEquals(2, blocks.size());
+        assertArrayEquals(frame(0), blocks.get(0).blockPayload());
+        assertArrayEquals(frame(1), blocks.get(1).blockPayload());
+        assertEquals(0, blocks.get(0).blockTimecode());
+        assertEquals(45, blocks.get(1).blockTimecode());
+    }
+
+    @Test
+    public void testCompressedPipeline() throws Exception {
+        ClosingStream out = new ClosingStream();
+        VideoEncoder enc = new FakeVideoEncoder(10);
+        enc.start(W, H, 0, 25, out);
+
+        OutputStream s = enc.asStream();
+        for (int i = 0; i < 30; i++)
+            s.write(frame(i));
+        s.close();
+
+        assertEquals(30, enc.getFrames());
+        assertEquals(30 * FakeVideoEncoder.RECORD_SIZE, out.size());
+        assertTrue(out.closed);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        for (int i = 0; i < 30; i++) {
+            assertEquals(1, in.readInt());
+            assertEquals(i % 10 == 0 ? 1 : 0, in.readByte());
+            assertEquals(i * 40000000L, in.readLong());
+
+            CRC32 crc = new CRC32();
+            crc.update(frame(i));
+            assertEquals(crc.getValue(), in.readLong());
+        }
+    }
+
+    @Test
+    public void testTimestampsArePassedOn() throws Exception {
+        ClosingStream out = new ClosingStream();
+        VideoEncoder enc = new FakeVideoEncoder(10);
+        enc.start(W, H, 0, 30, out);
+
+        /** a camera that slows down and catches up, nothing is dropped or repeated */
+        long[] ts = {0, 33000000L, 100000000L, 101000000L, 250000000L};
+        for (int i = 0; i < ts.length; i++)
+            enc.encode(frame(i), 0, FRAME, ts[i]);
+        enc.stop();
+
+        assertEquals(ts.length, enc.getFrames());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        for (long t : ts) {
+            in.readInt();
+            in.readByte();
+            assertEquals(t, in.readLong());
+            in.readLong();
+        }
+    }
+
+    @Test
+    public void testStoppedEncoderRejectsFrames() throws Exception {
+        VideoEncoder enc = new FakeVideoEncoder(10);
+        enc.start(W, H, 0, 25, new ClosingStream());
+        enc.stop();
+        enc.stop();
+
+        try {
+            enc.encode(frame(0), 0, FRAME, 0);
+            fail("encoded after stop");
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void testPartialFramesAreRejected() throws Exception {
+        VideoEncoder enc = new VideoEncoder.Raw();
+        enc.start(W, H, 0, 25, new ClosingStream());
+
+        try {
+            enc.asStream().write(1);
+            fail("wrote a single byte as frame");
+        } catch (IOException e) {
+        }
+    }
+}
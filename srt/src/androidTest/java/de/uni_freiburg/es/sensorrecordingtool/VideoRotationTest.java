@@ -0,0 +1,161 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import de.uni_freiburg.es.sensorrecordingtool.sensors.VideoRotation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class VideoRotationTest {
+    private static final int[][] RESOLUTIONS = {
+            {320, 240}, {640, 480}, {1280, 720}, {1920, 1080}};
+
+    private static byte[] frame(int w, int h) {
+        byte[] b = new byte[w * h * 3 / 2];
+        new Random(w * h).nextBytes(b);
+        return b;
+    }
+
+    /** straightforward per-pixel rotation, used as reference */
+    private static byte[] reference(byte[] in, int w, int h, int degrees) {
+        byte[] out = new byte[in.length];
+        boolean swap = degrees == 90 || degrees == 270;
+        int ow = swap ? h : w, oh = swap ? w : h;
+
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++) {
+                int[] o = map(x, y, w, h, degrees);
+                out[o[1] * ow + o[0]] = in[y * w + x];
+            }
+
+        for (int y = 0; y < h / 2; y++)
+            for (int x = 0; x < w / 2; x++) {
+                int[] o = map(x, y, w / 2, h / 2, degrees);
+                int src = w * h + (y * w / 2 + x) * 2,
+                    dst = ow * oh + (o[1] * ow / 2 + o[0]) * 2;
+                out[dst] = in[src];
+                out[dst + 1] = in[src + 1];
+            }
+
+        return out;
+    }
+
+    private static int[] map(int x, int y, int w, int h, int degrees) {
+        switch (degrees) {
+            case 90:  return new int[]{h - 1 - y, x};
+            case 180: return new int[]{w - 1 - x, h - 1 - y};
+            case 270: return new int[]{y, w - 1 - x};
+            default:  return new int[]{x, y};
+        }
+    }
+
+    /** the per-pixel rotator VideoSensor used before, with divisions in the inner loop */
+    private static byte[] perPixel(byte[] input, int width, int height, int rotation) {
+        byte[] output = new byte[input.length];
+        boolean swap = (rotation == 90 || rotation == 270);
+        boolean yflip = (rotation == 90 || rotation == 180);
+        boolean xflip = (rotation == 270 || rotation == 180);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                int xo = x, yo = y;
+                int w = width, h = height;
+                int xi = xo, yi = yo;
+                if (swap) {
+                    xi = w * yo / h;
+                    yi = h * xo / w;
+                }
+                if (yflip) {
+                    yi = h - yi - 1;
+                }
+                if (xflip) {
+                    xi = w - xi - 1;
+                }
+                output[w * yo + xo] = input[w * yi + xi];
+                int fs = w * h;
+                xi = (xi >> 1);
+                yi = (yi >> 1);
+                xo = (xo >> 1);
+                yo = (yo >> 1);
+                w = (w >> 1);
+                int ui = fs + (w * yi + xi) * 2;
+                int uo = fs + (w * yo + xo) * 2;
+                output[uo] = input[ui];
+                output[uo + 1] = input[ui + 1];
+            }
+        }
+        return output;
+    }
+
+    @Test
+    public void testMatchesReference() {
+        int[][] sizes = {{6, 4}, {64, 48}, {100, 36}};
+
+        for (int[] s : sizes)
+            for (int degrees = 0; degrees < 360; degrees += 90) {
+                byte[] in = frame(s[0], s[1]), out = new byte[in.length];
+                VideoRotation.rotateNV21(in, out, s[0], s[1], degrees);
+                assertArrayEquals(s[0] + "x" + s[1] + " by " + degrees,
+                        reference(in, s[0], s[1], degrees), out);
+            }
+    }
+
+    @Test
+    public void testFullTurn() {
+        byte[] in = frame(64, 48), a = new byte[in.length], b = new byte[in.length];
+
+        VideoRotation.rotateNV21(in, a, 64, 48, 90);
+        VideoRotation.rotateNV21(a, b, 48, 64, 270);
+        assertArrayEquals(in, b);
+
+        VideoRotation.rotateNV21(in, a, 64, 48, -90);
+        VideoRotation.rotateNV21(in, b, 64, 48, 270);
+        assertArrayEquals(a, b);
+    }
+
+    @Test
+    public void testFilters() {
+        assertNull(VideoRotation.getFilter(0));
+        assertEquals("transpose=1", VideoRotation.getFilter(90));
+        assertEquals("hflip,vflip", VideoRotation.getFilter(180));
+        assertEquals("transpose=2", VideoRotation.getFilter(270));
+        assertEquals("transpose=2", VideoRotation.getFilter(-90));
+    }
+
+    /**
+     * compares the tiled rotator against the former per-pixel one, prints the time per frame.
+     * The ffmpeg filters run in native code and are not part of this comparison.
+     */
+    @Test
+    public void benchmark() {
+        for (int[] s : RESOLUTIONS) {
+            int w = s[0], h = s[1], n = Math.max(3, 20 * 320 * 240 / (w * h));
+            byte[] in = frame(w, h), out = new byte[in.length];
+
+            for (int degrees = 90; degrees < 360; degrees += 90) {
+                long[] tiled = new long[n], pixel = new long[n];
+
+                for (int i = 0; i < n; i++) {
+                    long start = System.nanoTime();
+                    VideoRotation.rotateNV21(in, out, w, h, degrees);
+                    tiled[i] = System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    perPixel(in, w, h, degrees);
+                    pixel[i] = System.nanoTime() - start;
+                }
+
+                Arrays.sort(tiled);
+                Arrays.sort(pixel);
+                System.out.println(String.format(Locale.US,
+                        "%4dx%-4d %3d deg: tiled %6.2fms, per-pixel %6.2fms (median of %d)",
+                        w, h, degrees, tiled[n / 2] / 1e6, pixel[n / 2] / 1e6, n));
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Replays a corpus of recordings through each StreamCodec and measures the compression ratio,
+ * the CPU time to encode and the time to decode them again, so that the codec of each sensor
+ * can be chosen from data. The corpus should hold raw samples, i.e. recordings made in process
+ * or with codec=copy, as the ratio is given against the size of the input file. Only the audio
+ * streams, i.e. all sensor streams but video, are transcoded. ffmpeg would convert samples a
+ * codec can not store, e.g. floats for FLAC, so such combinations are skipped and missing from
+ * the results, see StreamCodec.
+ * <p>
+ * On a device the benchmark is started with
+ * <pre>
+ *   am broadcast -a senserec_benchmark -e corpus /sdcard/DCIM/corpus
+ * </pre>
+ * which writes the results to codec_benchmark.csv in the corpus directory.
+ */
+public class CodecBenchmark {
+    public static final String ACTION = "senserec_benchmark";
+    public static final String EXTRA_CORPUS = "corpus";
+    public static final String REPORT = "codec_benchmark.csv";
+
+    /** runs a single ffmpeg invocation with -benchmark */
+    public interface Runner {
+        /**
+         * @param args ffmpeg arguments, without the executable
+         * @return the times reported by ffmpeg
+         */
+        Timing run(List<String> args) throws IOException, InterruptedException;
+
+        /**
+         * @return the sample format of each audio stream of *input*, see parseAudioStream()
+         */
+        List<String> getSampleFormats(File input) throws IOException, InterruptedException;
+    }
+
+    /** the times of a single ffmpeg run in seconds */
+    public static class Timing {
+        public final double user, system, real;
+
+        public Timing(double user, double system, double real) {
+            this.user = user;
+            this.system = system;
+            this.real = real;
+        }
+
+        public double getCpu() {
+            return user + system;
+        }
+    }
+
+    public static class Result {
+        public final String input;
+        public final StreamCodec codec;
+        public final long inputBytes, encodedBytes;
+        public final Timing encode, decode;
+
+        public Result(String input, StreamCodec codec, long inputBytes, long encodedBytes,
+                      Timing encode, Timing decode) {
+            this.input = input;
+            this.codec = codec;
+            this.inputBytes = inputBytes;
+            this.encodedBytes = encodedBytes;
+            this.encode = encode;
+            this.decode = decode;
+        }
+
+        /** @return size of the input over size of the output, larger is better */
+        public double getRatio() {
+            return encodedBytes > 0 ? inputBytes / (double) encodedBytes : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s,%s,%d,%d,%.3f,%.3f,%.3f,%.3f", input,
+                    codec.getName(), inputBytes, encodedBytes, getRatio(), encode.getCpu(),
+                    decode.getCpu(), decode.real);
+        }
+    }
+
+    public static final String CSV_HEADER =
+            "input,codec,input_bytes,encoded_bytes,ratio,encode_cpu_s,decode_cpu_s,decode_real_s";
+
+    private final Runner mRunner;
+    private final File mWorkDir;
+
+    /**
+     * @param runner  executes ffmpeg
+     * @param workDir where the encoded files are kept while they are decoded
+     */
+    public CodecBenchmark(Runner runner, File workDir) {
+        mRunner = runner;
+        mWorkDir = workDir;
+    }
+
+    /**
+     * @return the recordings in *dir*, sorted by name
+     */
+    public static List<File> listCorpus(File dir) {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().toLowerCase(Locale.US).endsWith(".mkv");
+            }
+        });
+
+        if (files == null)
+            return new ArrayList<>();
+
+        Arrays.sort(files);
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    /**
+     * encodes each file of the corpus with each codec that stores all its audio streams
+     * losslessly and decodes it again.
+     */
+    public List<Result> run(List<File> corpus, StreamCodec... codecs)
+            throws IOException, InterruptedException {
+        List<Result> results = new ArrayList<>();
+
+        for (File input : corpus) {
+            List<String> formats = mRunner.getSampleFormats(input);
+
+            for (StreamCodec codec : codecs) {
+                if (!isLossless(codec, formats))
+                    continue;
+
+                File encoded = new File(mWorkDir, input.getName() + "." + codec.getName() + ".mkv");
+
+                try {
+                    Timing encode = mRunner.run(Arrays.asList(
+                            "-i", input.getPath(), "-map", "0:a", "-c:a", codec.getEncoder(),
+                            "-f", "matroska", "-y", encoded.getPath()));
+                    Timing decode = mRunner.run(Arrays.asList(
+                            "-i", encoded.getPath(), "-map", "0:a", "-f", "null", "-"));
+
+                    results.add(new Result(input.getName(), codec, input.length(),
+                            encoded.length(), encode, decode));
+                } finally {
+                    encoded.delete();
+                }
+            }
+        }
+
+        return results;
+    }
+
+    private static boolean isLossless(StreamCodec codec, List<String> sampleFormats) {
+        for (String format : sampleFormats)
+            if (!codec.isLossless(format))
+                return false;
+        return true;
+    }
+
+    /**
+     * parses a stream line ffmpeg prints for its inputs, e.g.
+     * "Stream #0:0: Audio: pcm_f32le, 50 Hz, 3 channels, flt, 4800 kb/s".
+     *
+     * @return the sample format of a raw audio stream, e.g. f32le, the codec of a compressed
+     * one, which no StreamCodec stores losslessly, or null if the line is something else
+     */
+    public static String parseAudioStream(String line) {
+        int i = line.indexOf(": Audio: ");
+        if (!line.trim().startsWith("Stream #") || i < 0)
+            return null;
+
+        String codec = line.substring(i + ": Audio: ".length()).trim().split("[ ,]")[0];
+        return codec.startsWith("pcm_") ? codec.substring("pcm_".length()) : codec;
+    }
+
+    /**
+     * @return the results as CSV, one line per input and codec
+     */
+    public static String toCsv(List<Result> results) {
+        StringBuilder sb = new StringBuilder(CSV_HEADER).append('\n');
+        for (Result r : results)
+            sb.append(r).append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * parses the line ffmpeg prints with -benchmark, e.g.
+     * "bench: utime=0.123s stime=0.010s rtime=0.200s".
+     *
+     * @return the timing or null if the line is something else
+     */
+    public static Timing parseTiming(String line) {
+        line = line.trim();
+        if (!line.startsWith("bench:") || !line.contains("utime="))
+            return null;
+
+        double user = -1, system = -1, real = -1;
+        for (String field : line.substring("bench:".length()).trim().split("\\s+")) {
+            int eq = field.indexOf('=');
+            if (eq <= 0)
+                continue;
+
+            double value = FFMpegProgress.parseDouble(field.substring(eq + 1), "s");
+            String key = field.substring(0, eq);
+
+            if (key.equals("utime"))
+                user = value;
+            else if (key.equals("stime"))
+                system = value;
+            else if (key.equals("rtime"))
+                real = value;
+        }
+
+        return user < 0 || system < 0 || real < 0 ? null : new Timing(user, system, real);
+    }
+
+    /** runs the ffmpeg executable of the app */
+    public static class FFMpegRunner implements Runner {
+        private final File mExecutable;
+
+        public FFMpegRunner(File executable) {
+            mExecutable = executable;
+        }
+
+        @Override
+        public Timing run(List<String> args) throws IOException, InterruptedException {
+            LinkedList<String> cmdline = new LinkedList<>(args);
+            cmdline.addFirst("-benchmark");
+            cmdline.addFirst("-nostats");
+            cmdline.addFirst("-nostdin");
+            cmdline.addFirst(mExecutable.getPath());
+
+            Process p = new ProcessBuilder(cmdline).redirectErrorStream(true).start();
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(p.getInputStream(), "UTF-8"));
+
+            Timing timing = null;
+            String line, last = null;
+            while ((line = reader.readLine()) != null) {
+                Timing t = parseTiming(line);
+                if (t != null)
+                    timing = t;
+                last = line;
+            }
+
+            int exit = p.waitFor();
+            if (exit != 0 || timing == null)
+                throw new IOException(String.format("ffmpeg %s failed with %d: %s",
+                        args, exit, last));
+
+            return timing;
+        }
+
+        @Override
+        public List<String> getSampleFormats(File input) throws IOException,
+                InterruptedException {
+            /** without an output ffmpeg only prints the streams and fails */
+            Process p = new ProcessBuilder(mExecutable.getPath(), "-nostdin", "-hide_banner",
+                    "-i", input.getPath()).redirectErrorStream(true).start();
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(p.getInputStream(), "UTF-8"));
+
+            List<String> formats = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String format = parseAudioStream(line);
+                if (format != null)
+                    formats.add(format);
+            }
+
+            p.waitFor();
+            return formats;
+        }
+    }
+}
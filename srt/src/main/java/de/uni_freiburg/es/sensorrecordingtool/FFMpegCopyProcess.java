@@ -3,17 +3,24 @@ package de.uni_freiburg.es.sensorrecordingtool;
 import android.content.Context;
 import android.os.AsyncTask;
 import android.os.Environment;
+import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 
+/**
+ * Copies the streams of one or more recordings into a new file with ffmpeg, optionally adding
+ * tags. The progress is parsed from stdout into an FFMpegProgress.
+ */
 public class FFMpegCopyProcess {
     protected FFMpegCopyProcess.ExitCallback exit;
+    protected final FFMpegProgress mProgress = new FFMpegProgress();
     protected static final ExecutorService THREAD_POOL_EXECUTOR = Executors.newCachedThreadPool();
     protected final Process p;
     protected final ProcessBuilder pb;
@@ -28,11 +35,22 @@ public class FFMpegCopyProcess {
 
                 while(!isCancelled()) {
                     int n = is.read(buf);
+                    if (n < 0)
+                        break;
                     System.err.write(buf, 0, n);
                 }
             } catch (IOException e) {}
             return null;
     }};
+    protected final AsyncTask<InputStream, Void, Void> progressMonitor =
+        new AsyncTask<InputStream, Void, Void>() {
+        @Override
+        protected Void doInBackground(InputStream... ps) {
+            try {
+                mProgress.read(ps[0]);
+            } catch (IOException e) {}
+            return null;
+    }};
     protected final AsyncTask<Process, Void, Void> exitMonitor = new AsyncTask<Process, Void, Void>() {
         @Override
         protected Void doInBackground(Process... ps) {
@@ -53,12 +71,21 @@ public class FFMpegCopyProcess {
         p = pb.start();
         System.err.println("executing " + pb.command().toString());
         verboseMonitor.executeOnExecutor(THREAD_POOL_EXECUTOR, p.getErrorStream());
+        progressMonitor.executeOnExecutor(THREAD_POOL_EXECUTOR, p.getInputStream());
         exitMonitor.executeOnExecutor(THREAD_POOL_EXECUTOR, p);
     }
 
+    /**
+     * @return the progress of the copy
+     */
+    public FFMpegProgress getProgress() {
+        return mProgress;
+    }
+
     public int waitFor() throws InterruptedException {
         int ret = p.waitFor();
         verboseMonitor.cancel(true);
+        Log.d("FFMpegCopyProcess", "finished with " + mProgress);
         return ret;
     }
 
@@ -68,10 +95,6 @@ public class FFMpegCopyProcess {
         return p.waitFor();
     }
 
-    public InputStream getInputStream() {
-        return p.getInputStream();
-    }
-
     public void exitCallback(FFMpegCopyProcess.ExitCallback cb) {
         this.exit = cb;
     }
@@ -84,6 +107,15 @@ public class FFMpegCopyProcess {
     public static class Builder {
         private String output;
         private String[] input;
+        private boolean verbose = false;
+        private final LinkedList<String> tags = new LinkedList<String>();
+        private final HashMap<Integer, LinkedList<String>> inputopts = new HashMap<>();
+
+        /** log at debug level instead of errors only */
+        public Builder setVerbose(boolean verbose) {
+            this.verbose = verbose;
+            return this;
+        }
 
 
         public Builder setOutput(String output) throws Exception {
@@ -110,15 +142,36 @@ public class FFMpegCopyProcess {
             return this;
         }
 
+        /** add a cmdline switch for the *j*-th input, e.g. to set its format
+         *
+         * @param option include the leading dash to the command line option
+         */
+        public Builder addInputArgument(int j, String option, String value) {
+            if (!inputopts.containsKey(j))
+                inputopts.put(j, new LinkedList<String>());
+            inputopts.get(j).add(option);
+            inputopts.get(j).add(value);
+            return this;
+        }
+
+        /** add a global metadata entry to the output */
+        public Builder setTag(String key, String value) {
+            tags.add("-metadata");
+            tags.add(key + "=" + value);
+            return this;
+        }
+
         public FFMpegCopyProcess build(Context c) throws IOException {
             LinkedList<String> cmdline = new LinkedList<String>();
             File path = new File(new File(c.getFilesDir().getParentFile(), "lib"), "libffmpeg.so");
 
             cmdline.add(path.toString());
 
-            for(String file : input) {
+            for(int i = 0; i<input.length; i++) {
+                if (inputopts.containsKey(i))
+                    cmdline.addAll(inputopts.get(i));
                 cmdline.add("-i");
-                cmdline.add(file);
+                cmdline.add(input[i]);
             }
 
             cmdline.add("-c");
@@ -132,6 +185,12 @@ public class FFMpegCopyProcess {
 
             }
 
+            cmdline.addAll(tags);
+            cmdline.add("-loglevel");
+            cmdline.add(verbose ? "debug" : "error");
+            cmdline.add("-nostats");
+            cmdline.add("-progress");
+            cmdline.add("pipe:1");
             cmdline.add(output);
             ProcessBuilder pb = new ProcessBuilder(cmdline);
             pb.directory(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM));
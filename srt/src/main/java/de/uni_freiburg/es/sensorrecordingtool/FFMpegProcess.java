@@ -3,6 +3,7 @@ package de.uni_freiburg.es.sensorrecordingtool;
 import android.content.Context;
 import android.os.AsyncTask;
 import android.os.Environment;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 import java.io.BufferedOutputStream;
@@ -12,8 +13,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
+import java.nio.channels.FileChannel;
 import java.util.LinkedList;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -21,14 +24,29 @@ import java.util.concurrent.Executors;
  * This is a wrapper for FFMpeg that allows to run ffmpeg executable and returns Process
  * object to interact with the running process. Data with ffmpeg can be exchanged via named
  * pipes which are created with addPipedInput(). The connected OutputStream which writes to
- * ffmpeg can be obtained with getOutputStream().
+ * ffmpeg can be obtained with getOutputStream(). Each of those streams is decoupled from the
+ * pipe by a RingBufferOutputStream, so a stalling ffmpeg does not block the writing thread.
+ * The buffer behind the ring is sized by the data rate of the input, see StreamBuffering.
+ * Writers that buffer on their own can write straight into the pipe with getChannel() instead.
+ *
+ * ffmpeg reports its progress on stdout, which is parsed into an FFMpegProgress, unless stdout
+ * carries the output itself, see getInputStream(). Only errors
+ * are copied from stderr unless verbose logging is switched on in the preferences.
  *
  * Created by phil on 8/26/16.
  */
 public class FFMpegProcess {
+    /* preference to have ffmpeg log at debug level */
+    public static final String KEY_VERBOSE = "ffmpeg_verbose";
+
     protected Process p;
+    protected final FFMpegProgress mProgress = new FFMpegProgress();
     protected LinkedList<File> mFiles = new LinkedList<>();
-    protected HashMap<Integer,OutputStream> mStreams = new HashMap<>();
+    protected LinkedList<Integer> mCapacities = new LinkedList<>();
+    protected LinkedList<Double> mByteRates = new LinkedList<>();
+    protected LinkedList<byte[]> mGapFillers = new LinkedList<>();
+    protected ConcurrentHashMap<Integer,OutputStream> mStreams = new ConcurrentHashMap<>();
+    protected ConcurrentHashMap<Integer,FileChannel> mChannels = new ConcurrentHashMap<>();
     protected FFMpegProcess.ExitCallback exit;
     protected static final ExecutorService THREAD_POOL_EXECUTOR = Executors.newCachedThreadPool();
     protected final AsyncTask<InputStream, Void, Void> verboseMonitor =
@@ -42,11 +60,22 @@ public class FFMpegProcess {
 
                 while(!isCancelled()) {
                     int n = is.read(buf);
+                    if (n < 0)
+                        break;
                     System.err.write(buf, 0, n);
                 }
             } catch (IOException e) {}
             return null;
     }};
+    protected final AsyncTask<InputStream, Void, Void> progressMonitor =
+        new AsyncTask<InputStream, Void, Void>() {
+        @Override
+        protected Void doInBackground(InputStream... ps) {
+            try {
+                mProgress.read(ps[0]);
+            } catch (IOException e) {}
+            return null;
+    }};
     protected final AsyncTask<Process, Void, Void> exitMonitor = new AsyncTask<Process, Void, Void>() {
         @Override
         protected Void doInBackground(Process... ps) {
@@ -62,39 +91,84 @@ public class FFMpegProcess {
     }};
 
 
-    protected FFMpegProcess(ProcessBuilder b, LinkedList<File> files) throws IOException {
+    /** for subclasses that write the output without running ffmpeg */
+    protected FFMpegProcess() {
+    }
+
+    /**
+     * @param gapFillers per input the bytes replacing dropped writes, null to drop them
+     * @param progress whether ffmpeg reports its progress on stdout, otherwise stdout carries
+     *                 the output and is left to getInputStream()
+     */
+    protected FFMpegProcess(ProcessBuilder b, LinkedList<File> files,
+                            LinkedList<Integer> capacities,
+                            LinkedList<Double> byteRates,
+                            LinkedList<byte[]> gapFillers, boolean progress) throws IOException {
         p = b.start();
         mFiles = files;
+        mCapacities = capacities;
+        mByteRates = byteRates;
+        mGapFillers = gapFillers;
         System.err.println("executing " + b.command().toString());
         verboseMonitor.executeOnExecutor(THREAD_POOL_EXECUTOR, p.getErrorStream());
+        if (progress)
+            progressMonitor.executeOnExecutor(THREAD_POOL_EXECUTOR, p.getInputStream());
         exitMonitor.executeOnExecutor(THREAD_POOL_EXECUTOR, p);
     }
 
+    /**
+     * @return whether ffmpeg should log at debug level, off unless asked for in the preferences
+     */
+    public static boolean isVerbose(Context c) {
+        return PreferenceManager.getDefaultSharedPreferences(c).getBoolean(KEY_VERBOSE, false);
+    }
+
+    /**
+     * @return the progress of the output, updated about twice a second while ffmpeg runs
+     */
+    public FFMpegProgress getProgress() {
+        return mProgress;
+    }
+
     public int waitFor() throws InterruptedException {
         int ret = p.waitFor();
         for (OutputStream s : mStreams.values())
             try { s.close(); }
             catch (IOException e) {}
+        for (FileChannel c : mChannels.values())
+            try { c.close(); }
+            catch (IOException e) {}
 
         return ret;
     }
 
     public InputStream getErrorStream() { return p.getErrorStream();  }
 
+    /**
+     * @return stdout of ffmpeg, which carries the output if it was set to "-" or "pipe:1"
+     */
+    public InputStream getInputStream() {
+        return p.getInputStream();
+    }
+
     public int terminate() throws InterruptedException {
-        for (OutputStream s : mStreams.values())
+        for (OutputStream s : mStreams.values()) {
             try { s.close(); }
             catch (IOException e) {  }
 
+            Log.d("FFMpegProcess", s.toString());
+        }
+
+        for (FileChannel c : mChannels.values())
+            try { c.close(); }
+            catch (IOException e) {  }
+
         int i = p.waitFor();
         verboseMonitor.cancel(true);
+        Log.d("FFMpegProcess", "finished with " + mProgress);
         return i;
     }
 
-    public InputStream getInputStream() {
-        return p.getInputStream();
-    }
-
     public void exitCallback(FFMpegProcess.ExitCallback cb) {
         this.exit = cb;
     }
@@ -102,14 +176,53 @@ public class FFMpegProcess {
     public OutputStream getOutputStream(int j) throws FileNotFoundException {
         OutputStream s = mStreams.get(j);
         if (s == null) {
+            if (mChannels.containsKey(j))
+                throw new IllegalStateException("input " + j + " is already open as a channel");
+
             File f = mFiles.get(j);
             FileOutputStream fos = new FileOutputStream(f);
             f.delete();
-            mStreams.put(j, new BufferedOutputStream(fos));
+
+            /** the ring drains fast streams in large chunks, those go to the pipe directly */
+            int size = StreamBuffering.getBufferSize(mByteRates.get(j));
+            OutputStream out = size == 0 ? fos : new BufferedOutputStream(fos, size);
+            RingBufferOutputStream ring = new RingBufferOutputStream(out,
+                    mCapacities.get(j), "ffmpeg input " + j);
+            ring.setGapFiller(mGapFillers.get(j));
+            mStreams.put(j, ring);
         }
         return mStreams.get(j);
     }
 
+    /**
+     * @return number of writes to the *j*-th input that were dropped by its ring buffer, raw
+     * audio inputs replace them with a gap sample to keep their timing
+     */
+    public long getDroppedWrites(int j) {
+        OutputStream s = mStreams.get(j);
+        return s instanceof RingBufferOutputStream ?
+               ((RingBufferOutputStream) s).getOverflowCount() : 0;
+    }
+
+    /**
+     * opens the *j*-th input without a ring buffer in between, so writing a direct ByteBuffer
+     * hands it to the pipe without any copy. Writes block while ffmpeg does not read, and an
+     * input can either be opened as a channel or as a stream, not both.
+     */
+    public FileChannel getChannel(int j) throws FileNotFoundException {
+        FileChannel c = mChannels.get(j);
+        if (c == null) {
+            if (mStreams.containsKey(j))
+                throw new IllegalStateException("input " + j + " is already open as a stream");
+
+            File f = mFiles.get(j);
+            c = new FileOutputStream(f).getChannel();
+            f.delete();
+            mChannels.put(j, c);
+        }
+        return c;
+    }
+
     /** This is a helper class to build what my common usages for the FFMpeg tool will be, feel
      * free to add additional stuff here. You can always add your own command line switches with
      * the addSwitch() function.
@@ -118,27 +231,44 @@ public class FFMpegProcess {
         LinkedList<String> inputopts = new LinkedList<String>(),
                           outputopts = new LinkedList<String>();
         LinkedList<File> mInputPipes = new LinkedList<>();
+        LinkedList<Integer> mBufferCapacities = new LinkedList<>();
+        LinkedList<Double> mByteRates = new LinkedList<>();
+        LinkedList<byte[]> mGapFillers = new LinkedList<>();
 
         int numinputs  = 0;
         private String output_fmt;
         private String output;
+        private String loglevel = "error";
         private Context mContext;
 
         public Builder(Context c) {
             mContext = c;
         }
 
-        /** add an audio stream to the ffmpeg input
+        /** add an audio stream to the ffmpeg input. Since the position of a raw sample is its
+         * time, samples dropped by the ring buffer are replaced by gap samples, see
+         * StreamBuffering.getGapSample().
+         *
          * @param format sample format, list them with ffmpeg -formats or documentation
          * @param rate   sample rate in Hz
          * @param channels number of channels
          */
         public Builder addAudio(String format, double rate, int channels) throws IOException, InterruptedException {
-            return
-             addInputArgument("-f", format)
+            addInputArgument("-f", format)
             .addInputArgument("-ar", new Double(rate).toString())
             .addInputArgument("-ac", new Double(channels).toString())
             .addPipedInput();
+
+            byte[] sample = StreamBuffering.getGapSample(format);
+            if (sample != null && channels > 0) {
+                byte[] filler = new byte[sample.length * channels];
+                for (int i = 0; i < channels; i++)
+                    System.arraycopy(sample, 0, filler, i * sample.length, sample.length);
+                mGapFillers.set(mGapFillers.size() - 1, filler);
+            }
+
+            int bytes = StreamBuffering.getSampleBytes(format);
+            return setByteRate(bytes > 0 ? bytes * rate * channels : -1);
         }
 
         /** add a video stream to the ffmpeg input
@@ -158,6 +288,20 @@ public class FFMpegProcess {
             .addInputArgument("-s", String.format("%d:%d", width, height))
             .addInputArgument("-f", fmt)
             .addInputArgument(pixfmt == null ? "" : "-pix_fmt", pixfmt == null ? "" : pixfmt)
+            .addPipedInput()
+            /** assumes a YUV420 frame, which is the case on Android */
+            .setByteRate(width * height * 3 / 2 * rate);
+        }
+
+        /** add a video stream in a container to the ffmpeg input. The container carries the
+         * size and the timestamp of each frame, so no rate is given. Compressed streams should
+         * be copied with setStreamCodec("copy") since they can not be filtered.
+         *
+         * @param fmt     format of the container, e.g. matroska
+         */
+        public Builder addEncodedVideo(String fmt) throws IOException, InterruptedException {
+            return
+             addInputArgument("-f", fmt)
             .addPipedInput();
         }
 
@@ -188,6 +332,37 @@ public class FFMpegProcess {
             return this;
         }
 
+        /** set the capacity of the ring buffer which decouples the writer of the last defined
+         * piped input from ffmpeg. Should hold at least a couple of frames or samples, writes
+         * that do not fit are dropped.
+         *
+         * @param bytes capacity in bytes, defaults to RingBufferOutputStream.DEFAULT_CAPACITY
+         */
+        public Builder setStreamBufferCapacity(int bytes) throws Exception {
+            if (mBufferCapacities.size() == 0)
+                throw new Exception("no piped input to apply buffer size to, please add one first");
+
+            mBufferCapacities.set(mBufferCapacities.size() - 1, bytes);
+            return this;
+        }
+
+        /** set the data rate of the last defined piped input, which sizes the buffer in front
+         * of the pipe. Audio and video inputs derive it from their format already.
+         *
+         * @param bytesPerSecond data rate of the input, zero or less if unknown
+         */
+        public Builder setStreamByteRate(double bytesPerSecond) throws Exception {
+            if (mByteRates.size() == 0)
+                throw new Exception("no piped input to apply the rate to, please add one first");
+
+            return setByteRate(bytesPerSecond);
+        }
+
+        private Builder setByteRate(double bytesPerSecond) {
+            mByteRates.set(mByteRates.size() - 1, bytesPerSecond);
+            return this;
+        }
+
         /** set the output codec for the current stream. In case this is not set the default
          * for the output format will be used.
          *
@@ -203,6 +378,21 @@ public class FFMpegProcess {
             return this;
         }
 
+        /** set the filter graph for the current stream, which can not be combined with a copy
+         * codec.
+         *
+         * @param filter a simple filter graph, e.g. transpose=1
+         */
+        public Builder setStreamFilter(String filter) throws Exception {
+            if (numinputs == 0)
+                throw new Exception("no stream to apply the filter to, please add one first");
+
+            outputopts.add(String.format("-filter:%d", numinputs-1));
+            outputopts.add(filter);
+
+            return this;
+        }
+
         public Builder setSubtitleFile(File subtitleFile) throws Exception{
             if(!subtitleFile.exists() || !subtitleFile.isFile())
                 throw new Exception("something is wrong with the subtitle file");
@@ -271,6 +461,9 @@ public class FFMpegProcess {
             f = new File(f.getAbsolutePath());
             f.deleteOnExit();
             mInputPipes.add( f );
+            mBufferCapacities.add(RingBufferOutputStream.DEFAULT_CAPACITY);
+            mByteRates.add(-1.);
+            mGapFillers.add(null);
             numinputs ++;
 
             return this;
@@ -295,12 +488,52 @@ public class FFMpegProcess {
             return this;
         }
 
+        /** write the output in segments of about *seconds* each, see SegmentManifest. Segments
+         * are cut at keyframes and keep the timestamps of the whole recording.
+         *
+         * @param format container of the segments
+         */
+        public Builder setSegmentedOutput(SegmentManifest manifest, String format, double seconds)
+                throws Exception {
+            setOutput(manifest.getPartPattern(), "segment");
+            outputopts.add("-segment_format");
+            outputopts.add(format);
+            outputopts.add("-segment_time");
+            outputopts.add(String.format(Locale.US, "%.3f", seconds));
+            outputopts.add("-reset_timestamps");
+            outputopts.add("0");
+            outputopts.add("-segment_list");
+            outputopts.add(manifest.getListFile().getPath());
+            outputopts.add("-segment_list_type");
+            outputopts.add("csv");
+            return this;
+        }
+
+        /** @return bytes per second written to all inputs whose rate is known */
+        public double getInputByteRate() {
+            double sum = 0;
+            for (double rate : mByteRates)
+                if (rate > 0)
+                    sum += rate;
+            return sum;
+        }
+
         public Builder setLoglevel(String level) {
-            outputopts.add("-loglevel");
-            outputopts.add(level);
+            loglevel = level;
             return this;
         }
 
+        /** log at debug level instead of errors only
+         */
+        public Builder setVerbose(boolean verbose) {
+            return setLoglevel(verbose ? "debug" : "error");
+        }
+
+        private static boolean isStdout(String output) {
+            return output != null && (output.equals("-") || output.equals("pipe:") ||
+                                      output.equals("pipe:1"));
+        }
+
         public FFMpegProcess build() throws IOException {
             LinkedList<String> cmdline = new LinkedList<String>();
             File dir = mContext.getFilesDir().getParentFile();
@@ -317,6 +550,17 @@ public class FFMpegProcess {
                     outputopts.add(String.format("%d", i));
                 }
 
+            /** report the progress on stdout instead of a status line on stderr, unless
+             * stdout carries the output itself, in which case there is no progress */
+            boolean progress = !isStdout(output);
+            outputopts.add("-loglevel");
+            outputopts.add(loglevel);
+            outputopts.add("-nostats");
+            if (progress) {
+                outputopts.add("-progress");
+                outputopts.add("pipe:1");
+            }
+
             if (output_fmt != null) {
                 outputopts.add("-f");
                 outputopts.add(output_fmt);
@@ -333,7 +577,8 @@ public class FFMpegProcess {
 
             pb.directory(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM));
 
-            FFMpegProcess p = new FFMpegProcess(pb, mInputPipes);
+            FFMpegProcess p = new FFMpegProcess(pb, mInputPipes, mBufferCapacities,
+                    mByteRates, mGapFillers, progress);
 
             return p;
         }
@@ -0,0 +1,140 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses the machine-readable progress ffmpeg writes with -progress. It consists of blocks of
+ * key=value lines, each ending with a progress=continue or progress=end line, and describes the
+ * single output of an ffmpeg process.
+ */
+public class FFMpegProgress {
+    public interface Listener {
+        void onProgress(Snapshot snapshot);
+    }
+
+    /** the state of an output as reported by one block */
+    public static class Snapshot {
+        public final long frames, totalSize, outTimeUs, dupFrames, dropFrames;
+        public final double fps, bitrateKbps, speed;
+        public final boolean end;
+
+        Snapshot(Map<String, String> v) {
+            frames = parseLong(v.get("frame"));
+            totalSize = parseLong(v.get("total_size"));
+            /** out_time_ms is given in microseconds as well, newer versions add out_time_us */
+            outTimeUs = v.containsKey("out_time_us") ? parseLong(v.get("out_time_us")) :
+                                                       parseLong(v.get("out_time_ms"));
+            dupFrames = parseLong(v.get("dup_frames"));
+            dropFrames = parseLong(v.get("drop_frames"));
+            fps = parseDouble(v.get("fps"), "");
+            bitrateKbps = parseDouble(v.get("bitrate"), "kbits/s");
+            speed = parseDouble(v.get("speed"), "x");
+            end = "end".equals(v.get("progress"));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("frames=%d fps=%.1f bitrate=%.1fkbit/s size=%d time=%.2fs " +
+                                 "speed=%.2fx dup=%d drop=%d%s", frames, fps, bitrateKbps,
+                    totalSize, outTimeUs / 1e6, speed, dupFrames, dropFrames, end ? " end" : "");
+        }
+    }
+
+    private final Map<String, String> mPending = new HashMap<>();
+    private volatile Snapshot mLast = null;
+    private volatile long mUpdates = 0;
+    private volatile Listener mListener = null;
+
+    /**
+     * @return value of a number, -1 if it is missing or N/A
+     */
+    static long parseLong(String value) {
+        if (value == null)
+            return -1;
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static double parseDouble(String value, String unit) {
+        if (value == null)
+            return -1;
+
+        value = value.trim();
+        if (value.endsWith(unit))
+            value = value.substring(0, value.length() - unit.length());
+
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * parses a single line of the progress output.
+     *
+     * @return the snapshot if the line completed a block, null otherwise
+     */
+    public Snapshot feed(String line) {
+        int eq = line.indexOf('=');
+        if (eq <= 0)
+            return null;
+
+        String key = line.substring(0, eq).trim();
+        mPending.put(key, line.substring(eq + 1).trim());
+
+        if (!"progress".equals(key))
+            return null;
+
+        Snapshot s = new Snapshot(mPending);
+        mPending.clear();
+        mLast = s;
+        mUpdates++;
+
+        Listener l = mListener;
+        if (l != null)
+            l.onProgress(s);
+
+        return s;
+    }
+
+    /**
+     * parses the progress from *in* until the end of the stream.
+     */
+    public void read(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        String line;
+
+        while ((line = reader.readLine()) != null)
+            feed(line);
+    }
+
+    /** @return the latest snapshot, null if none was reported yet */
+    public Snapshot getLast() {
+        return mLast;
+    }
+
+    /** @return number of snapshots reported so far */
+    public long getUpdates() {
+        return mUpdates;
+    }
+
+    @Override
+    public String toString() {
+        Snapshot s = mLast;
+        return s == null ? "no progress yet" : s.toString();
+    }
+}
@@ -0,0 +1,196 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Muxes streams of native-endian float samples into a Matroska file without ffmpeg, each
+ * stream becomes a track of 32bit float PCM just like ffmpeg stores them with the pcm_f32le
+ * codec. Each write to one of the inputs is stored as a single block, stamped with the number
+ * of samples written to that input before. So a block that is dropped later on leaves a gap
+ * instead of shifting all following samples.
+ * <p>
+ * Inputs can be written from different threads. The muxer is done once all inputs are closed.
+ */
+public class MatroskaMuxer {
+    public static final String CODEC = "A_PCM/FLOAT/IEEE";
+    private static final int FLOAT_SIZE = 4;
+
+    private final MatroskaWriter mWriter;
+    private final List<Input> mInputs = new ArrayList<>();
+    private int mOpen = 0;
+    private boolean mStarted = false, mClosed = false;
+    private IOException mError = null;
+
+    /**
+     * @param out where the file is written to, as a little endian platform is assumed
+     */
+    public MatroskaMuxer(OutputStream out) {
+        mWriter = new MatroskaWriter(out);
+    }
+
+    /**
+     * adds a stream of *channels* floats per sample at *rate* Hz.
+     *
+     * @return the track, e.g. to set its tags
+     */
+    public synchronized MatroskaWriter.Track addStream(double rate, int channels) {
+        return addStream(rate, channels, CODEC, FLOAT_SIZE);
+    }
+
+    /**
+     * adds a stream of *channels* values per sample at *rate* Hz, each *valueSize* bytes
+     * stored with the Matroska *codec*.
+     *
+     * @return the track, e.g. to set its tags
+     */
+    public synchronized MatroskaWriter.Track addStream(double rate, int channels, String codec,
+                                                       int valueSize) {
+        if (mStarted)
+            throw new IllegalStateException("streams must be added before the first write");
+        if (rate <= 0 || channels <= 0)
+            throw new IllegalArgumentException(String.format(
+                    "invalid stream with %d channels at %.2fHz", channels, rate));
+
+        MatroskaWriter.Track track = new MatroskaWriter.Track(MatroskaWriter.TRACK_AUDIO, codec)
+                .setAudio(rate, channels, valueSize * 8);
+        int number = mWriter.addTrack(track);
+        mInputs.add(new Input(number, rate, channels * valueSize));
+        mOpen++;
+        return track;
+    }
+
+    public synchronized void setTag(String key, String value) {
+        mWriter.setTag(key, value);
+    }
+
+    /** @return number of streams */
+    public synchronized int getStreams() {
+        return mInputs.size();
+    }
+
+    /**
+     * @return the stream for the *j*-th input, closing it finishes the track
+     */
+    public synchronized OutputStream getOutputStream(int j) {
+        return mInputs.get(j);
+    }
+
+    /**
+     * closes all inputs and the file.
+     */
+    public void close() throws IOException {
+        List<Input> inputs;
+        synchronized (this) {
+            inputs = new ArrayList<>(mInputs);
+        }
+
+        for (Input in : inputs)
+            in.close();
+
+        synchronized (this) {
+            finish();
+            if (mError != null)
+                throw mError;
+        }
+    }
+
+    /**
+     * waits until all inputs are closed.
+     *
+     * @return false if writing the file failed
+     */
+    public synchronized boolean awaitClosed() throws InterruptedException {
+        while (!mClosed)
+            wait();
+
+        return mError == null;
+    }
+
+    /** @return the samples written to the *j*-th input */
+    public synchronized long getSamples(int j) {
+        Input in = mInputs.get(j);
+        return in.mBytes / in.mFrameSize;
+    }
+
+    private void finish() {
+        if (mClosed)
+            return;
+
+        try {
+            /** a file without any samples still tells which streams were recorded */
+            if (mError == null)
+                mWriter.writeHeader();
+        } catch (IOException e) {
+            mError = e;
+        } catch (IllegalStateException e) {
+            /* no streams at all, the file stays empty */
+        }
+
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            if (mError == null)
+                mError = e;
+        }
+
+        mClosed = true;
+        notifyAll();
+    }
+
+    private class Input extends OutputStream {
+        final int mTrack, mFrameSize;
+        final double mRate;
+        long mBytes = 0;
+        boolean mInputClosed = false;
+
+        Input(int track, double rate, int frameSize) {
+            mTrack = track;
+            mRate = rate;
+            mFrameSize = frameSize;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            throw new IOException("samples must be written as a whole");
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return;
+
+            synchronized (MatroskaMuxer.this) {
+                if (mInputClosed)
+                    throw new IOException("input " + mTrack + " is closed");
+                if (mError != null)
+                    throw mError;
+
+                long ns = (long) (mBytes / mFrameSize * 1e9 / mRate);
+                mBytes += len;
+                mStarted = true;
+
+                try {
+                    mWriter.writeFrame(mTrack, ns, true, b, off, len);
+                } catch (IOException e) {
+                    mError = e;
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (MatroskaMuxer.this) {
+                if (mInputClosed)
+                    return;
+
+                mInputClosed = true;
+                if (--mOpen == 0)
+                    finish();
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import de.uni_freiburg.es.sensorrecordingtool.sensors.SampleEncoding;
+import de.uni_freiburg.es.sensorrecordingtool.sensors.SensorIndex;
+
+/**
+ * Takes the place of ffmpeg for recordings of scalar sensors only. The samples are muxed into
+ * the Matroska file right here by a MatroskaMuxer, so no process is started, no named pipes are
+ * created and the samples are stored as they are instead of being encoded. The file is written
+ * through a plain buffer that blocks while the storage is busy, nothing of the file is ever
+ * dropped. The sensors batch their samples, so they are not held up by a short stall.
+ */
+public class MatroskaProcess extends FFMpegProcess {
+    private static final String TAG = "MatroskaProcess";
+
+    private final MatroskaMuxer mMuxer;
+    private boolean mExited = false;
+
+    protected MatroskaProcess(MatroskaMuxer muxer) {
+        mMuxer = muxer;
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+        boolean ok = mMuxer.awaitClosed();
+        exited();
+        return ok ? 0 : 1;
+    }
+
+    @Override
+    public int terminate() throws InterruptedException {
+        int ret = 0;
+
+        try {
+            mMuxer.close();
+        } catch (IOException e) {
+            Log.e(TAG, "unable to write the recording", e);
+            ret = 1;
+        }
+
+        exited();
+        return ret;
+    }
+
+    private void exited() {
+        synchronized (this) {
+            if (mExited)
+                return;
+            mExited = true;
+        }
+
+        if (exit != null)
+            exit.processDone();
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public OutputStream getOutputStream(int j) {
+        return mMuxer.getOutputStream(j);
+    }
+
+    @Override
+    public FileChannel getChannel(int j) {
+        throw new IllegalStateException("input " + j + " can only be opened as a stream");
+    }
+
+    /**
+     * @return whether *sensor* can be recorded without ffmpeg. Samples are stored in native
+     * order, which must be little endian for Matroska.
+     */
+    public static boolean canRecord(SensorIndex.SensorInfo sensor) {
+        return sensor.kind != SensorIndex.Kind.VIDEO && sensor.kind != SensorIndex.Kind.AUDIO &&
+               ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+    }
+
+    /** Collects streams and tags like the FFMpegProcess.Builder does for scalar sensors.
+     */
+    protected static class Builder {
+        private static final int BUFFER_SIZE = 64 * 1024;
+        private final MatroskaMuxer mMuxer;
+        private MatroskaWriter.Track mLast;
+
+        /**
+         * @param output the output file, relative ones are put under DCIM like ffmpeg does
+         */
+        public Builder(String output) throws FileNotFoundException {
+            if (output.startsWith("file:"))
+                output = output.substring("file:".length());
+
+            File f = new File(output);
+            if (!f.isAbsolute())
+                f = new File(Environment.getExternalStoragePublicDirectory(
+                        Environment.DIRECTORY_DCIM), output);
+
+            mMuxer = new MatroskaMuxer(new BufferedOutputStream(new FileOutputStream(f),
+                    BUFFER_SIZE));
+        }
+
+        /** add a stream of float samples
+         *
+         * @param rate     samples per second
+         * @param channels floats per sample
+         */
+        public Builder addStream(double rate, int channels) {
+            mLast = mMuxer.addStream(rate, channels);
+            return this;
+        }
+
+        /** add a stream of samples written with *encoding*
+         *
+         * @param rate     samples per second
+         * @param channels values per sample
+         */
+        public Builder addStream(double rate, int channels, SampleEncoding encoding) {
+            mLast = mMuxer.addStream(rate, channels, encoding.getMatroskaCodec(),
+                    encoding.getBytes());
+            return this;
+        }
+
+        /** set a metadata tag for the last defined stream
+         */
+        public Builder setStreamTag(String key, String value) throws Exception {
+            if (mLast == null)
+                throw new Exception("no stream to apply tags to, please add one first");
+
+            mLast.setTag(key, value);
+            return this;
+        }
+
+        /** set a global metadata tag
+         */
+        public Builder setTag(String key, String value) {
+            mMuxer.setTag(key, value);
+            return this;
+        }
+
+        public MatroskaProcess build() {
+            return new MatroskaProcess(mMuxer);
+        }
+    }
+}
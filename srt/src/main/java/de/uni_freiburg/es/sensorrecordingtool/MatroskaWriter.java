@@ -0,0 +1,389 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes a minimal Matroska stream that can be read from a pipe, e.g. by ffmpeg. Each frame is
+ * stored in a SimpleBlock with its own timestamp, so tracks may have a variable rate. The
+ * segment and its clusters have an unknown size, nothing is ever seeked to.
+ * <p>
+ * Timestamps are stored in milliseconds. Every call to writeFrame() ends up in exactly one
+ * write() on the wrapped stream, so a stream that drops writes as a whole (like the
+ * RingBufferOutputStream) never tears a frame apart. On such a stream the header is written
+ * without being dropped, and a dropped frame is noticed: if it started a cluster, the next
+ * frame starts one again, so no block refers to a cluster the file does not have. Frames that
+ * are not key frames are skipped after a dropped frame of their track until its next key
+ * frame, as they could not be decoded without the frames they depend on.
+ * <p>
+ * Tags of the segment and of each track are stored like ffmpeg does, with upper case names.
+ */
+public class MatroskaWriter {
+    public static final int TRACK_VIDEO = 1, TRACK_AUDIO = 2;
+
+    /** a new cluster is started after this many milliseconds */
+    public static final long CLUSTER_MS = 5000;
+
+    private static final long NS_PER_MS = 1000 * 1000;
+    private static final byte[] UNKNOWN_SIZE = {0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                                                (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int EBML = 0x1A45DFA3, EBML_VERSION = 0x4286,
+            EBML_READ_VERSION = 0x42F7, EBML_MAX_ID_LENGTH = 0x42F2,
+            EBML_MAX_SIZE_LENGTH = 0x42F3, DOC_TYPE = 0x4282, DOC_TYPE_VERSION = 0x4287,
+            DOC_TYPE_READ_VERSION = 0x4285, SEGMENT = 0x18538067, INFO = 0x1549A966,
+            TIMECODE_SCALE = 0x2AD7B1, MUXING_APP = 0x4D80, WRITING_APP = 0x5741,
+            TRACKS = 0x1654AE6B, TRACK_ENTRY = 0xAE, TRACK_NUMBER = 0xD7, TRACK_UID = 0x73C5,
+            TRACK_TYPE = 0x83, FLAG_LACING = 0x9C, NAME = 0x536E, CODEC_ID = 0x86,
+            CODEC_PRIVATE = 0x63A2, VIDEO = 0xE0, PIXEL_WIDTH = 0xB0, PIXEL_HEIGHT = 0xBA,
+            COLOUR_SPACE = 0x2EB524, AUDIO = 0xE1, SAMPLING_FREQUENCY = 0xB5, CHANNELS = 0x9F,
+            BIT_DEPTH = 0x6264, CLUSTER = 0x1F43B675, TIMECODE = 0xE7, SIMPLE_BLOCK = 0xA3,
+            TAGS = 0x1254C367, TAG = 0x7373, TARGETS = 0x63C0, TAG_TRACK_UID = 0x63C5,
+            SIMPLE_TAG = 0x67C8, TAG_NAME = 0x45A3, TAG_STRING = 0x4487;
+
+    public static class Track {
+        final int type;
+        final String codec;
+        String name;
+        byte[] codecPrivate;
+        int width, height;
+        String colourSpace;
+        double samplingFrequency;
+        int channels, bitDepth;
+        final Map<String, String> tags = new LinkedHashMap<>();
+
+        /**
+         * @param type  TRACK_VIDEO or TRACK_AUDIO
+         * @param codec Matroska codec id, e.g. V_UNCOMPRESSED or A_PCM/FLOAT/IEEE
+         */
+        public Track(int type, String codec) {
+            this.type = type;
+            this.codec = codec;
+        }
+
+        public Track setName(String name) {
+            this.name = name;
+            return this;
+        }
+
+        public Track setCodecPrivate(byte[] data) {
+            codecPrivate = data;
+            return this;
+        }
+
+        /**
+         * @param colourSpace fourcc of uncompressed frames, e.g. NV21, may be null
+         */
+        public Track setVideo(int width, int height, String colourSpace) {
+            this.width = width;
+            this.height = height;
+            this.colourSpace = colourSpace;
+            return this;
+        }
+
+        public Track setAudio(double samplingFrequency, int channels, int bitDepth) {
+            this.samplingFrequency = samplingFrequency;
+            this.channels = channels;
+            this.bitDepth = bitDepth;
+            return this;
+        }
+
+        public Track setTag(String key, String value) {
+            tags.put(key, value);
+            return this;
+        }
+    }
+
+    private final OutputStream mOut;
+    private final List<Track> mTracks = new ArrayList<>();
+    private final Map<String, String> mTags = new LinkedHashMap<>();
+    private final Element mBlock = new Element();
+    private boolean mStarted = false;
+    private long mCluster = Long.MIN_VALUE;
+    private final List<Integer> mAwaitingKey = new ArrayList<>();
+    private long mSkipped = 0;
+
+    public MatroskaWriter(OutputStream out) {
+        mOut = out;
+    }
+
+    /**
+     * @return the number of the track, starting at one
+     */
+    public int addTrack(Track track) {
+        if (mStarted)
+            throw new IllegalStateException("tracks must be added before the first frame");
+
+        mTracks.add(track);
+        return mTracks.size();
+    }
+
+    /**
+     * sets a tag of the whole segment, must be called before the header is written.
+     */
+    public void setTag(String key, String value) {
+        if (mStarted)
+            throw new IllegalStateException("tags must be set before the first frame");
+
+        mTags.put(key, value);
+    }
+
+    /**
+     * writes the header with all tracks, called by the first writeFrame() at the latest.
+     */
+    public void writeHeader() throws IOException {
+        if (mStarted)
+            return;
+
+        if (mTracks.isEmpty())
+            throw new IllegalStateException("no tracks to write");
+
+        Element header = new Element(),
+                ebml = new Element(),
+                info = new Element(),
+                tracks = new Element(),
+                tags = new Element();
+
+        ebml.putUInt(EBML_VERSION, 1)
+            .putUInt(EBML_READ_VERSION, 1)
+            .putUInt(EBML_MAX_ID_LENGTH, 4)
+            .putUInt(EBML_MAX_SIZE_LENGTH, 8)
+            .putString(DOC_TYPE, "matroska")
+            .putUInt(DOC_TYPE_VERSION, 4)
+            .putUInt(DOC_TYPE_READ_VERSION, 2);
+
+        info.putUInt(TIMECODE_SCALE, NS_PER_MS)
+            .putString(MUXING_APP, "cmotion")
+            .putString(WRITING_APP, "cmotion");
+
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track t = mTracks.get(i);
+            Element entry = new Element();
+
+            entry.putUInt(TRACK_NUMBER, i + 1)
+                 .putUInt(TRACK_UID, i + 1)
+                 .putUInt(TRACK_TYPE, t.type)
+                 .putUInt(FLAG_LACING, 0)
+                 .putString(CODEC_ID, t.codec);
+
+            if (t.name != null)
+                entry.putString(NAME, t.name);
+            if (t.codecPrivate != null)
+                entry.putBytes(CODEC_PRIVATE, t.codecPrivate, 0, t.codecPrivate.length);
+
+            if (t.type == TRACK_VIDEO) {
+                Element video = new Element();
+                video.putUInt(PIXEL_WIDTH, t.width)
+                     .putUInt(PIXEL_HEIGHT, t.height);
+                if (t.colourSpace != null)
+                    video.putString(COLOUR_SPACE, t.colourSpace);
+                entry.putElement(VIDEO, video);
+            } else if (t.type == TRACK_AUDIO) {
+                Element audio = new Element();
+                audio.putDouble(SAMPLING_FREQUENCY, t.samplingFrequency)
+                     .putUInt(CHANNELS, t.channels);
+                if (t.bitDepth > 0)
+                    audio.putUInt(BIT_DEPTH, t.bitDepth);
+                entry.putElement(AUDIO, audio);
+            }
+
+            tracks.putElement(TRACK_ENTRY, entry);
+
+            if (!t.tags.isEmpty())
+                tags.putElement(TAG, tag(i + 1, t.tags));
+        }
+
+        if (!mTags.isEmpty())
+            tags.putElement(TAG, tag(0, mTags));
+
+        header.putElement(EBML, ebml);
+        header.putId(SEGMENT);
+        header.write(UNKNOWN_SIZE, 0, UNKNOWN_SIZE.length);
+        header.putElement(INFO, info)
+              .putElement(TRACKS, tracks);
+        if (tags.size() > 0)
+            header.putElement(TAGS, tags);
+
+        if (mOut instanceof RingBufferOutputStream)
+            ((RingBufferOutputStream) mOut).writeBlocking(header.buffer(), 0, header.size());
+        else
+            mOut.write(header.buffer(), 0, header.size());
+        mStarted = true;
+    }
+
+    /**
+     * writes a single frame of the given track.
+     *
+     * @param track       number returned by addTrack()
+     * @param timestampNs presentation time of the frame in nanoseconds, not negative
+     * @param key         whether the frame can be decoded on its own
+     * @return false if the frame was dropped by the stream or skipped since its track waits
+     * for a key frame
+     */
+    public boolean writeFrame(int track, long timestampNs, boolean key,
+                              byte[] data, int off, int len) throws IOException {
+        if (track < 1 || track > mTracks.size())
+            throw new IllegalArgumentException("no such track " + track);
+        if (timestampNs < 0)
+            throw new IllegalArgumentException("negative timestamp " + timestampNs);
+
+        writeHeader();
+
+        if (mAwaitingKey.contains(track)) {
+            if (!key) {
+                mSkipped++;
+                return false;
+            }
+            mAwaitingKey.remove((Integer) track);
+        }
+
+        long ms = timestampNs / NS_PER_MS, previous = mCluster;
+        mBlock.reset();
+
+        if (mCluster == Long.MIN_VALUE || ms - mCluster >= CLUSTER_MS ||
+            ms - mCluster < Short.MIN_VALUE) {
+            mCluster = ms;
+            mBlock.putId(CLUSTER);
+            mBlock.write(UNKNOWN_SIZE, 0, UNKNOWN_SIZE.length);
+            mBlock.putUInt(TIMECODE, ms);
+        }
+
+        /** track number as vint, relative timecode and flags */
+        int relative = (int) (ms - mCluster);
+        mBlock.putId(SIMPLE_BLOCK);
+        mBlock.putSize(4 + len);
+        mBlock.write(0x80 | track);
+        mBlock.write(relative >> 8);
+        mBlock.write(relative);
+        mBlock.write(key ? 0x80 : 0x00);
+        mBlock.write(data, off, len);
+
+        if (!(mOut instanceof RingBufferOutputStream)) {
+            mOut.write(mBlock.buffer(), 0, mBlock.size());
+            return true;
+        }
+
+        RingBufferOutputStream ring = (RingBufferOutputStream) mOut;
+        long overflows = ring.getOverflowCount();
+        ring.write(mBlock.buffer(), 0, mBlock.size());
+
+        if (ring.getOverflowCount() == overflows)
+            return true;
+
+        /** the cluster that was started with this frame is not in the file */
+        if (mCluster != previous)
+            mCluster = Long.MIN_VALUE;
+        if (!mAwaitingKey.contains(track))
+            mAwaitingKey.add(track);
+        return false;
+    }
+
+    /**
+     * @return number of frames that were skipped as they followed a dropped frame
+     */
+    public long getSkippedFrames() {
+        return mSkipped;
+    }
+
+    /**
+     * @param uid of the track the tags belong to, zero for the whole segment
+     */
+    private static Element tag(int uid, Map<String, String> values) {
+        Element tag = new Element(), targets = new Element();
+
+        if (uid > 0)
+            targets.putUInt(TAG_TRACK_UID, uid);
+        tag.putElement(TARGETS, targets);
+
+        for (Map.Entry<String, String> e : values.entrySet()) {
+            Element simple = new Element();
+            simple.putString(TAG_NAME, e.getKey().toUpperCase(Locale.US))
+                  .putString(TAG_STRING, e.getValue());
+            tag.putElement(SIMPLE_TAG, simple);
+        }
+
+        return tag;
+    }
+
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    /**
+     * collects the encoded children of an element.
+     */
+    private static class Element extends ByteArrayOutputStream {
+        byte[] buffer() {
+            return buf;
+        }
+
+        Element putId(int id) {
+            for (int shift = 24; shift >= 0; shift -= 8)
+                if ((id >>> shift) != 0 || shift == 0)
+                    write(id >>> shift);
+            return this;
+        }
+
+        /** writes *size* as a variable length integer of at most eight bytes */
+        Element putSize(long size) {
+            int len = 1;
+            while (len < 8 && size >= (1L << (7 * len)) - 1)
+                len++;
+
+            for (int i = len - 1; i >= 0; i--) {
+                int b = (int) (size >>> (8 * i));
+                if (i == len - 1)
+                    b |= 0x100 >> len;
+                write(b);
+            }
+            return this;
+        }
+
+        Element putBytes(int id, byte[] data, int off, int len) {
+            putId(id);
+            putSize(len);
+            write(data, off, len);
+            return this;
+        }
+
+        Element putUInt(int id, long value) {
+            int len = 1;
+            while (len < 8 && (value >>> (8 * len)) != 0)
+                len++;
+
+            byte[] b = new byte[len];
+            for (int i = 0; i < len; i++)
+                b[i] = (byte) (value >>> (8 * (len - 1 - i)));
+            return putBytes(id, b, 0, len);
+        }
+
+        Element putDouble(int id, double value) {
+            long bits = Double.doubleToLongBits(value);
+            byte[] b = new byte[8];
+            for (int i = 0; i < 8; i++)
+                b[i] = (byte) (bits >>> (8 * (7 - i)));
+            return putBytes(id, b, 0, 8);
+        }
+
+        Element putString(int id, String value) {
+            byte[] b = value.getBytes(UTF8);
+            return putBytes(id, b, 0, b.length);
+        }
+
+        Element putElement(int id, Element child) {
+            return putBytes(id, child.buf, 0, child.count);
+        }
+    }
+}
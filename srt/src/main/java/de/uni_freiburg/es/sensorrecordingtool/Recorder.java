@@ -8,35 +8,56 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.PowerManager;
 import android.os.Vibrator;
+import android.preference.PreferenceManager;
 import android.provider.Settings;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.ByteOrder;
-import java.security.InvalidParameterException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 import de.uni_freiburg.es.intentforwarder.ForwardedUtils;
 import de.uni_freiburg.es.sensorrecordingtool.autodiscovery.AutoDiscovery;
 import de.uni_freiburg.es.sensorrecordingtool.merger.MergeService;
+import de.uni_freiburg.es.sensorrecordingtool.merger.MetadataMerge;
 import de.uni_freiburg.es.sensorrecordingtool.merger.provider.MergeProviderSession;
 import de.uni_freiburg.es.sensorrecordingtool.sensors.AudioSensor;
 import de.uni_freiburg.es.sensorrecordingtool.sensors.BlockSensorProcess;
+import de.uni_freiburg.es.sensorrecordingtool.sensors.Completion;
+import de.uni_freiburg.es.sensorrecordingtool.sensors.MediaCodecVideoEncoder;
 import de.uni_freiburg.es.sensorrecordingtool.sensors.NonBlockSensorProcess;
-import de.uni_freiburg.es.sensorrecordingtool.sensors.Sensor;
+import de.uni_freiburg.es.sensorrecordingtool.sensors.SampleEncoding;
+import de.uni_freiburg.es.sensorrecordingtool.sensors.SensorIndex;
+import de.uni_freiburg.es.sensorrecordingtool.sensors.SensorLoopPool;
 import de.uni_freiburg.es.sensorrecordingtool.sensors.SensorProcess;
+import de.uni_freiburg.es.sensorrecordingtool.sensors.VideoEncoder;
+import de.uni_freiburg.es.sensorrecordingtool.sensors.VideoRotation;
 import de.uni_freiburg.es.sensorrecordingtool.sensors.VideoSensor;
 import de.unifreiburg.es.btclocksync.ClockSyncManager;
 import de.unifreiburg.es.btclocksync.ClockSyncServerThread;
@@ -69,9 +90,26 @@ import de.unifreiburg.es.btclocksync.ClockSyncServerThread;
  * output directory under /sdcard/DCIM under which the recordings are stored
  * <p>
  * -f [single string or list of strings]
- * list of string specifying the sensor format for each input, null to use the default,
- * currently only the video sensor has any specs, which is the recording size given as
- * widthxheight, e.g. 1280x720.
+ * list of string specifying the sensor format for each input, null to use the default. Each
+ * format is a ':'-separated list of options. The video sensor takes the recording size given
+ * as widthxheight, e.g. 1280x720 (320x240 by default), the block flag to stall the camera
+ * instead of dropping frames when ffmpeg falls behind, and encoder=raw to encode in ffmpeg
+ * even if a platform H.264 encoder is available. Other sensors take the resampling strategy, which is one of
+ * zoh (repeat the last sample, default), linear or sinc. Audio takes the capture latency in
+ * milliseconds as latency=ms, e.g. latency=40, shorter blocks reach ffmpeg sooner. Scalar
+ * sensors take the sample encoding as encoding=f32|f16|s16|auto, see SampleEncoding, and
+ * audio and scalar sensors take their lossless codec as codec=wavpack|flac|tta|copy, see
+ * StreamCodec.
+ * <p>
+ * -b [boolean or String]
+ * batching mode, sensors collect samples in their hardware FIFO while the CPU sleeps and deliver
+ * them in batches. Trades latency for a much longer battery life, default is false.
+ * <p>
+ * -s [String]
+ * write the recording in segments of the given length, either in seconds, e.g. 300, or as a
+ * size with a k, M or G suffix, e.g. 64M. Completed segments are listed in a manifest and
+ * are transferred to the merging node while the recording is still running, see
+ * SegmentManifest. Off by default.
  * <p>
  * A Broadcast Intent is sent once the recording is started or canceled. The latest recording
  * can be canceled with the senserec_cancel broadcast action, e.g.:
@@ -108,6 +146,12 @@ public class Recorder extends InfiniteIntentService {
     /* optional format specifier for each sensor */
     public static final String RECORDER_FORMAT = "-f";
 
+    /* optionally record in batching mode, letting the CPU sleep between batches */
+    public static final String RECORDER_BATCHING = "-b";
+
+    /* optionally write the recording in segments of the given length */
+    public static final String RECORDER_SEGMENT = "-s";
+
     /* the main action for recording */
     public static final String RECORD_ACTION = ForwardedUtils.RECORD_ACTION;
 
@@ -128,6 +172,22 @@ public class Recorder extends InfiniteIntentService {
 
     public static final long DEFAULT_STEADY_TIME = 3000;
 
+    /* upper bound for waiting on discovery answers, unless configured otherwise */
+    public static final long DISCOVERY_TIMEOUT_MS = 5000;
+    public static final String KEY_DISCOVERY_TIMEOUT = "discovery_timeout";
+
+    /* time for all local sensors to get ready, before the recording fails */
+    public static final long PREPARE_TIMEOUT_MS = 10000;
+
+    /* number of event loops shared by all non-blocking sensors, unless configured otherwise */
+    public static final String KEY_SENSOR_LOOPS = "sensor_loops";
+
+    /* number of NV21 frames that can be buffered for ffmpeg before frames get dropped */
+    public static final int VIDEO_BUFFER_FRAMES = 8;
+
+    /* appended to the output for the file holding the metadata only known after stopping */
+    public static final String FRAME_COUNTERS_EXTENSION = MetadataMerge.EXTENSION;
+
     public static CountDownLatch SEMAPHORE = new CountDownLatch(1);
     public static boolean isMaster;
     public static boolean isReady = false;
@@ -138,12 +198,16 @@ public class Recorder extends InfiniteIntentService {
 
     /* members when a recording is ongoing, stored here for cleanup from onDestroy */
     private List<SensorProcess> sensorProcesses;
+    private SensorLoopPool mLoopPool;
     private PowerManager.WakeLock mWl = null;
     private RecorderStatus status;
     private FFMpegProcess ffmpeg;
     private String output;
     public static long OFFSET;
     private double duration;
+    private boolean batching;
+    private SegmentManifest.Policy segmentPolicy;
+    private SegmentManifest segments;
     private boolean error = false;
 
 
@@ -151,29 +215,50 @@ public class Recorder extends InfiniteIntentService {
 
     public static ArrayList<String> mReadyNodes = new ArrayList<>();
 
+    /* android ids of the nodes in the discovery round that did not report READY yet */
+    private static final Set<String> mPendingNodes = new HashSet<>();
+
+    /* encoded startup traces of all ready nodes, by android id, only collected by the master */
+    public static HashMap<String, String> mStartupTraces = new HashMap<>();
+
+    private StartupTrace mTrace;
+
     public Recorder() {
         super(Recorder.class.getName());
     }
 
     private SensorProcess newSensorProcess(String sensor, String format, double rate,
-                                           double dur, FFMpegProcess p, int j) throws Exception {
+                                           double dur) throws Exception {
         Context c = this.getApplicationContext();
 
-        /** one thread for each sensor to make sure that they can block on write on their
-         * respective delivery outputstream without interacting with any other sensorprocesses */
-        HandlerThread h = new HandlerThread("sensorprocess " + sensor);
-        h.start();
-
         SensorProcess process;
 
-        if (sensor.contains("video") || sensor.contains("audio"))
-            process = new BlockSensorProcess(c, sensor, rate, format, dur, p, j,
-                    new Handler(h.getLooper()));
-        else
-            process = new NonBlockSensorProcess(c, sensor, rate, format, dur, p, j,
+        if (sensor.contains("video") || sensor.contains("audio")) {
+            /** one thread for each blocking sensor to make sure that they can block on write on
+             * their respective delivery outputstream without interacting with any other
+             * sensorprocesses */
+            HandlerThread h = new HandlerThread("sensorprocess " + sensor);
+            h.start();
+            BlockSensorProcess block = new BlockSensorProcess(c, sensor, rate, format, dur,
                     new Handler(h.getLooper()));
+            block.setHandlerThread(h);
+
+            if (block.getSensor() instanceof VideoSensor)
+                block.setEncoder(VideoSensor.newEncoder(format));
+            process = block;
+        } else {
+            /** all others only write to their ring buffer and never block, so they share a
+             * few event loops */
+            NonBlockSensorProcess scalar = new NonBlockSensorProcess(c, sensor, rate, format,
+                    dur, mLoopPool.acquire());
+
+            SensorIndex.SensorInfo info = SensorIndex.getInstance(c).find(sensor);
+            if (info != null)
+                scalar.setEncoding(info.getEncoding(format));
+            process = scalar;
+        }
 
-        process.setHandlerThread(h);
+        process.getSensor().setBatching(batching);
         return process;
     }
 
@@ -193,34 +278,33 @@ public class Recorder extends InfiniteIntentService {
 
         mIsRecording = true;
         mReadyNodes.clear(); // remove all old ready-flagged nodes
+        mStartupTraces.clear();
+        mTrace = new StartupTrace();
 
         isMaster = !isIntentForwarded(intent);
         Log.e(TAG, "We are " + (isMaster ? "Master" : "Slave"));
 
         try {
             long tick = System.currentTimeMillis();
+            mTrace.begin("parse");
             intent = RecorderCommands.parseRecorderIntent(this, intent);
             output = intent.getStringExtra(RECORDER_OUTPUT);
             String[] sensors = intent.getStringArrayExtra(RECORDER_INPUT);
             String[] formats = intent.getStringArrayExtra(RECORDER_FORMAT);
             double[] rates = intent.getDoubleArrayExtra(RECORDER_RATE);
             duration = intent.getDoubleExtra(RECORDER_DURATION, -1);
+            batching = intent.getBooleanExtra(RECORDER_BATCHING, false);
+            String segment = intent.getStringExtra(RECORDER_SEGMENT);
+            segmentPolicy = segment == null ? null : SegmentManifest.Policy.parse(segment);
+            segments = segment == null ? null : new SegmentManifest(new File(output));
             isReady = false;
 
+            mTrace.end("parse");
+
             if (isMaster)
                 mRecordUUID = UUID.randomUUID().toString();
 
             status = new RecorderStatus(getApplicationContext(), sensors.length, duration, mRecordUUID);
-            initSynchronization(isMaster);
-
-            ffmpeg = buildFFMPEG(this, sensors, formats, rates, duration);
-            sensorProcesses = new LinkedList<>();
-
-            /** create a sensorprocess for each input and wire it to the ffmpeg process */
-            for (int j = 0; j < sensors.length; j++)
-                if(SensorProcess.getMatchingSensor(this, sensors[j]) != null)
-                    sensorProcesses.add(newSensorProcess(
-                        sensors[j], formats[j], rates[j], duration, ffmpeg, j));
 
             /** notify the system that a new recording was started, and make
              * sure that the service does not get called when an activity is
@@ -230,17 +314,65 @@ public class Recorder extends InfiniteIntentService {
             startForeground(status.NOTIFICATION_ID, status.mNotification.build());
 
             /** make sure the screen is turning on for some time, otherwise sensors won't start.
-             * They keep running though, once the screen turns off again. */
+             * They keep running though, once the screen turns off again. In batching mode
+             * wake-up sensors are used, which only need the CPU to be awake until they are
+             * registered. */
             mWl = ((PowerManager) getSystemService(POWER_SERVICE))
-                    .newWakeLock(PowerManager.SCREEN_DIM_WAKE_LOCK |
+                    .newWakeLock(batching ? PowerManager.PARTIAL_WAKE_LOCK :
+                                    PowerManager.SCREEN_DIM_WAKE_LOCK |
                                     PowerManager.ACQUIRE_CAUSES_WAKEUP,
                             "sensorlock");
             mWl.acquire();
 
+            /** start preparing all local sensors at once, opening cameras or connecting to
+             * location services takes a while, so this overlaps with discovery, clock sync
+             * and building the ffmpeg process below. */
+            ExecutorService preparation = Executors.newCachedThreadPool();
+            sensorProcesses = new LinkedList<>();
+            mLoopPool = new SensorLoopPool(getSensorLoops(), "sensorloop");
+            List<Completion> prepared = new LinkedList<>();
+
+            for (int j = 0; j < sensors.length; j++)
+                if(SensorIndex.getInstance(this).find(sensors[j]) != null)
+                    sensorProcesses.add(newSensorProcess(
+                        sensors[j], formats[j], rates[j], duration));
+
+            mTrace.begin("prepare");
+            for (SensorProcess process : sensorProcesses)
+                prepared.add(process.prepare(preparation));
+
+            Future<Long> offset = isMaster ? null : preparation.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    mTrace.begin("clocksync");
+                    try {
+                        return new ClockSyncManager(Recorder.this).getOffsetSafe();
+                    } finally {
+                        mTrace.end("clocksync");
+                    }
+                }
+            });
+            preparation.shutdown();
+
+            mTrace.begin("discovery");
+            initSynchronization(isMaster);
+            mTrace.end("discovery");
+
+            mTrace.begin("ffmpeg");
+            ffmpeg = buildFFMPEG(this, sensors, formats, rates, duration);
+            mTrace.end("ffmpeg");
+
+            /** wire each sensorprocess to its ffmpeg input, unknown sensors got no input */
+            int stream = 0;
+            for (SensorProcess process : sensorProcesses)
+                process.attach(ffmpeg, stream++);
+
             /** wait for all local sensors */
-            for (boolean ready = false; !ready; ready = true) {
-                for (SensorProcess process : sensorProcesses)
-                    ready &= process.getSensor().isPrepared();
+            Completion.syncAll(prepared, PREPARE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            mTrace.end("prepare");
+            for (Completion c : prepared) {
+                Log.d(TAG, c.toString());
+                mTrace.record(c.getName(), c.getStartNanos(), c.getFinishNanos());
             }
 
             if (Thread.currentThread().interrupted())
@@ -249,10 +381,10 @@ public class Recorder extends InfiniteIntentService {
             boolean driftCalculated = true;
             if (!isMaster) {
                 try {
-                    OFFSET = new ClockSyncManager(this).getOffsetSafe();
-                } catch (TimeoutException e) {
+                    OFFSET = offset.get();
+                } catch (ExecutionException e) {
                     // TODO come up with something clever here.
-                    e.printStackTrace();
+                    e.getCause().printStackTrace();
                     driftCalculated = false;
                     OFFSET = 0;
                 }
@@ -264,17 +396,23 @@ public class Recorder extends InfiniteIntentService {
             if (Thread.currentThread().interrupted())
                 throw new InterruptedIOException();
 
+            mTrace.begin("readysteady");
             readySteady(isMaster, getFoundSensorArray(sensorProcesses), OFFSET, driftCalculated);
+            mTrace.end("readysteady");
 
 //            if (mAutoDiscovery.getConnectedNodes() > 1)
 
+            mTrace.begin("start");
             for (SensorProcess process : sensorProcesses)
                 process.startRecording();
+            mTrace.end("start");
 
             mRecordingSince = System.currentTimeMillis();
+            spawnSegmentProvider();
             ((Vibrator) getApplicationContext().getSystemService(VIBRATOR_SERVICE)).vibrate(100);
             Log.e(TAG, String.format("RECORDING (time-to-start: %.2f secs)",
                     (mRecordingSince - tick) / 1000.));
+            Log.d(TAG, "startup trace " + mTrace);
 
             waitUntilEnd();
         } catch (InterruptedException ie) {
@@ -319,8 +457,9 @@ public class Recorder extends InfiniteIntentService {
         // XXX +1000ms to hope that all recordings have recorded enough, actually we should
         //     wait on a clock provided by ffmpeg instead of the wall clock!
         if (mIsRecording && (ms_duration <= 0 || ms_elapsed < ms_duration + 1000)) {
-            Log.d(TAG, "recording status");
+            Log.d(TAG, "recording status, output " + ffmpeg.getProgress());
             status.recording(ms_elapsed, ms_duration);
+            updateSegments();
 
             if (mWl.isHeld())  // make sure to not hold this forever
                 mWl.release();
@@ -340,7 +479,9 @@ public class Recorder extends InfiniteIntentService {
 
     private void readySteady(boolean isMaster, String[] sensors, long drift, boolean driftSet) throws InterruptedException {
         isReady = true;
-        status.ready(sensors, drift, driftSet);
+        /** goes out before readysteady and start end, so the trace of READY is partial, the
+         * complete one is only written once the recording stopped */
+        status.ready(sensors, drift, driftSet, mTrace.encode());
 
         if (!isMaster)
             SEMAPHORE.await(); // wait and die
@@ -374,15 +515,62 @@ public class Recorder extends InfiniteIntentService {
             mAutoDiscovery = AutoDiscovery.getInstance(this);
             Log.e(TAG, "Running discovery to find nodes");
             mAutoDiscovery.discover();
-            Thread.sleep(Recorder.DEFAULT_STEADY_TIME);
-            Log.e(TAG, String.format("We have at least %s nodes (including us)",
-                    mAutoDiscovery.getConnectedNodes()));
+            Set<String> nodes = mAutoDiscovery.awaitRound(getDiscoveryTimeout());
+            Log.e(TAG, String.format("We have %s nodes (including us)", nodes.size()));
 
-            SEMAPHORE = new CountDownLatch(Math.max(0, mAutoDiscovery.getConnectedNodes())); // do not init Latch with negative number
+            synchronized (mPendingNodes) {
+                mPendingNodes.clear();
+                mPendingNodes.addAll(nodes);
+                SEMAPHORE = new CountDownLatch(nodes.size());
+            }
             Log.e(TAG, "Latch at " + SEMAPHORE.getCount());
 
-        } else
-            SEMAPHORE = new CountDownLatch(1);
+        } else {
+            synchronized (mPendingNodes) {
+                mPendingNodes.clear();
+                SEMAPHORE = new CountDownLatch(1);
+            }
+        }
+    }
+
+    /**
+     * counts the READY of node *aid* towards SEMAPHORE, only once and only if it was found in
+     * the discovery round, so that late or repeated answers can not start the recording early.
+     *
+     * @return whether the node was awaited
+     */
+    public static boolean nodeReady(String aid) {
+        synchronized (mPendingNodes) {
+            if (!mPendingNodes.remove(aid))
+                return false;
+            SEMAPHORE.countDown();
+            return true;
+        }
+    }
+
+    /**
+     * @return number of event loops for non-blocking sensors from the preferences
+     */
+    private int getSensorLoops() {
+        try {
+            return Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(this)
+                    .getString(KEY_SENSOR_LOOPS, Integer.toString(SensorLoopPool.DEFAULT_SIZE)));
+        } catch (NumberFormatException e) {
+            return SensorLoopPool.DEFAULT_SIZE;
+        }
+    }
+
+    /**
+     * @return upper bound for waiting on discovery answers in ms, can be raised in the
+     * preferences for slowly forwarding nodes
+     */
+    private long getDiscoveryTimeout() {
+        try {
+            return Long.parseLong(PreferenceManager.getDefaultSharedPreferences(this)
+                    .getString(KEY_DISCOVERY_TIMEOUT, Long.toString(DISCOVERY_TIMEOUT_MS)));
+        } catch (NumberFormatException e) {
+            return DISCOVERY_TIMEOUT_MS;
+        }
     }
 
     /**
@@ -394,6 +582,8 @@ public class Recorder extends InfiniteIntentService {
         Intent startServiceIntent = new Intent(getApplicationContext(), MergeService.class);
         startServiceIntent.putExtra(RecorderStatus.RECORDING_UUID, mRecordUUID);
         startServiceIntent.putExtra(MergeService.RELEVANT_AIDS, mReadyNodes);
+        startServiceIntent.putExtra(MergeService.STARTUP_TRACES, new HashMap<>(mStartupTraces));
+        startServiceIntent.putExtra(MergeService.SEGMENTED, segments != null);
         getApplicationContext().startService(startServiceIntent);
         try {
             Thread.sleep(1000);
@@ -402,95 +592,168 @@ public class Recorder extends InfiniteIntentService {
         }
     }
 
+    /**
+     * @return the global tags of the recording, in the order they are written
+     */
+    private LinkedHashMap<String, String> getRecordingTags(Context context) {
+        LinkedHashMap<String, String> tags = new LinkedHashMap<>();
+
+        tags.put("recorder", "cmotion (" + new Date(BuildConfig.TIMESTAMP).toString() + ")");
+        tags.put("android_id", Settings.Secure.getString(getContentResolver(),
+                Settings.Secure.ANDROID_ID));
+        tags.put("platform", getPlatform());
+        tags.put("fingerprint", Build.FINGERPRINT);
+        tags.put("beginning", getCurrentDataAsIso());
+
+        if (isMaster)
+            tags.put("recording_id", mRecordUUID);
+
+        if (context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_WATCH))
+            tags.put("wear_location", WearPositionManager.getPosition(context).name());
+
+        return tags;
+    }
+
+    private static String getPlatform() {
+        return Build.BOARD + " " + Build.DEVICE + " " + Build.VERSION.SDK_INT;
+    }
+
     private FFMpegProcess buildFFMPEG(Context context, String[] sensors, String[] formats,
                                       double[] rates, double duration) throws Exception {
+        /** scalar sensors only, which are most recordings on wearables, are muxed right here
+         * without starting ffmpeg at all */
+        boolean scalarOnly = true;
+        for (int j = 0; j < sensors.length; j++) {
+            SensorIndex.SensorInfo matched = SensorIndex.getInstance(this).find(sensors[j]);
+            scalarOnly &= matched == null || MatroskaProcess.canRecord(matched);
+            /** only ffmpeg compresses */
+            scalarOnly &= !StreamCodec.isRequested(formats[j]);
+        }
+        /** and only ffmpeg writes segments */
+        scalarOnly &= segments == null;
+
+        if (scalarOnly)
+            return buildMatroska(context, sensors, rates);
 
-        String platform = Build.BOARD + " " + Build.DEVICE + " " + Build.VERSION.SDK_INT;
+        String platform = getPlatform();
 
         /** create an ffmpeg process that will demux all sensor recordings into
          * a single file on one time axis. */
         FFMpegProcess.Builder fp = new FFMpegProcess.Builder(context);
 
-        int rotation = 0;
 
         fp.setOutput(output, "matroska")
-                .setCodec("a", "wavpack")
                 .setCodec("v", "libx264")
-                .setTag("recorder", "cmotion (" + new Date(BuildConfig.TIMESTAMP).toString() + ")")
-                .setTag("android_id", Settings.Secure.getString(getContentResolver(),
-                        Settings.Secure.ANDROID_ID))
-                .setTag("platform", platform)
-                .setTag("fingerprint", Build.FINGERPRINT)
-                .setTag("beginning", getCurrentDataAsIso())
                 .addOutputArgument("-preset", "ultrafast")
-                .setLoglevel("debug");
-
+                /** keep the timestamps of the video frames instead of resampling to a rate */
+                .addOutputArgument("-vsync", "vfr")
+                .setVerbose(FFMpegProcess.isVerbose(context));
 
+        for (Map.Entry<String, String> tag : getRecordingTags(context).entrySet())
+            fp.setTag(tag.getKey(), tag.getValue());
 
         if (duration > 0)
             fp.addOutputArgument("-t", new Double(duration).toString());
 
-        if (isMaster)
-            fp.setTag("recording_id", mRecordUUID);
-
-        if (context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_WATCH))
-            fp.setTag("wear_location", WearPositionManager.getPosition(context).name());
 
-
-        /** create a SensorProcess for each input and wire it to ffmpeg accordingly */
+        /** create an input for each SensorProcess, in the same order they get attached */
+        Iterator<SensorProcess> processes = sensorProcesses.iterator();
         for (int j = 0; j < sensors.length; j++) {
-            Sensor matched = SensorProcess.getMatchingSensor(this, sensors[j]);
+            SensorIndex.SensorInfo matched = SensorIndex.getInstance(this).find(sensors[j]);
 
             if(matched == null)
                 continue;
 
-            if (matched instanceof VideoSensor) {
-                VideoSensor vs = ((VideoSensor) matched);
-                rotation = vs.getCameraRotation();
-                VideoSensor.CameraSize size = VideoSensor.getCameraSize(formats[j], vs.getCameraID());
+            SensorProcess process = processes.next();
+
+            if (matched.kind == SensorIndex.Kind.VIDEO) {
+                VideoSensor vs = (VideoSensor) process.getSensor();
+                /** the camera may still be opening, then the requested size serves as estimate
+                 * for the buffers, the encoder tells ffmpeg the actual one */
+                VideoSensor.CameraSize size = vs.getSize() != null ? vs.getSize() :
+                        VideoSensor.getCameraSize(formats[j], vs.getCameraID());
+                VideoEncoder encoder = ((BlockSensorProcess) process).getEncoder();
+
+                /** encoders stamp each frame, compressed streams are rotated by their encoder
+                 * and copied as they are */
+                fp.addEncodedVideo(encoder.getFormat())
+                  .setStreamByteRate(size.width * size.height * rates[j] *
+                          (encoder.isCompressed() ? MediaCodecVideoEncoder.BITS_PER_PIXEL / 8
+                                                  : 3 / 2.));
+
+                if (encoder.isCompressed())
+                    fp.setStreamCodec("copy");
+                else {
+                    String rotation = VideoRotation.getFilter(vs.getCameraRotation());
+                    if (rotation != null)
+                        fp.setStreamFilter(rotation);
+                }
 
                 fp
-                        .addVideo(size.width, size.height, rates[j], "rawvideo", "nv21")
+                        .setStreamBufferCapacity(VIDEO_BUFFER_FRAMES * size.width * size.height * 3 / 2)
                         .setStreamTag("name", "Android Default Cam");
                 ;
-            } else if (matched instanceof AudioSensor) {
+            } else if (matched.kind == SensorIndex.Kind.AUDIO) {
+                String sampleFormat = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? "s16le" : "s16be";
                 fp
-                        .addAudio(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? "s16le" : "s16be",
+                        .addAudio(sampleFormat,
                                 rates[j],
-                                ((AudioSensor) matched).getChannels()) // native endian!
+                                ((AudioSensor) matched.newSensor(this)).getChannels()) // native endian!
+                        .setStreamCodec(StreamCodec.choose(formats[j], sampleFormat).getEncoder())
 //                        .setStreamTag("resolution", sensors[j].getResolution())
 //                        .setStreamTag("unit", sensors[j].getUnit())
                         .setStreamTag("name", sensors[j])
                 ;
-            } else
+            } else {
+                SampleEncoding encoding = ((NonBlockSensorProcess) process).getEncoding();
                 fp
-                        .addAudio("f32be", rates[j], SensorProcess.getSampleSize(this, sensors[j]))
+                        .addAudio(encoding.getFormat(), rates[j], SensorProcess.getSampleSize(this, sensors[j]))
+                        .setStreamCodec(StreamCodec.choose(formats[j], encoding.getFormat()).getEncoder())
                         .setStreamTag("name", sensors[j]);
 
+                for (Map.Entry<String, String> tag : encoding.getTags().entrySet())
+                    fp.setStreamTag(tag.getKey(), tag.getValue());
+            }
+
             fp.setStreamTag("platform", platform);
         }
 
-        String rotationParam = getRotationParam(rotation);
-        if(rotationParam != null)
-            fp.addOutputArgument("-vf", rotationParam);
+        /** segments by size are cut by time at the rate of the uncompressed inputs, so they
+         * end up no larger than asked for */
+        if (segments != null)
+            fp.setSegmentedOutput(segments, "matroska",
+                    segmentPolicy.getSeconds(fp.getInputByteRate()));
 
         return fp.build();
     }
 
-    private String getRotationParam(int rotation) {
-        if (rotation % 90 != 0)
-            throw new InvalidParameterException("Rotation must be a factor of 90");
-
-        switch (rotation) {
-            case 90:
-                return "transpose=1";
-            case 180:
-                return "transpose=1,transpose=1";
-            case 270:
-                return "transpose=1,transpose=1,transpose=1";
-            default:
-                return null;
+    /**
+     * creates the in-process muxer for recordings without audio and video, the streams and
+     * tags are the same ffmpeg would write, with samples stored in the encoding of each
+     * sensor process.
+     */
+    private FFMpegProcess buildMatroska(Context context, String[] sensors, double[] rates)
+            throws Exception {
+        MatroskaProcess.Builder mp = new MatroskaProcess.Builder(output);
+
+        for (Map.Entry<String, String> tag : getRecordingTags(context).entrySet())
+            mp.setTag(tag.getKey(), tag.getValue());
+
+        Iterator<SensorProcess> processes = sensorProcesses.iterator();
+        for (int j = 0; j < sensors.length; j++) {
+            if (SensorIndex.getInstance(this).find(sensors[j]) == null)
+                continue;
+
+            SampleEncoding encoding = ((NonBlockSensorProcess) processes.next()).getEncoding();
+            mp.addStream(rates[j], SensorProcess.getSampleSize(this, sensors[j]), encoding)
+              .setStreamTag("name", sensors[j])
+              .setStreamTag("platform", getPlatform());
+
+            for (Map.Entry<String, String> tag : encoding.getTags().entrySet())
+                mp.setStreamTag(tag.getKey(), tag.getValue());
         }
+
+        return mp.build();
     }
 
     private boolean isIntentForwarded(Intent intent) {
@@ -535,13 +798,24 @@ public class Recorder extends InfiniteIntentService {
             public void run() {
                 if (sensorProcesses != null) {
 
-                    /** close all streams to notify each process that we're done */
+                    /** ask all sensors to deliver their batched samples at once, then close
+                     * all streams to notify each process that we're done */
+                    for (SensorProcess p : sensorProcesses)
+                        p.requestFlush();
+
                     for (SensorProcess p : sensorProcesses)
                         p.terminate();
 
+                    if (mLoopPool != null)
+                        mLoopPool.quit();
+
                     /** wait for ffmpeg to finish */
                     try {
                         ffmpeg.terminate();
+                        if (segments != null)
+                            finishSegments();
+                        else
+                            writeFrameCounters();
                     } catch (InterruptedException e) {
                     }
 
@@ -558,7 +832,8 @@ public class Recorder extends InfiniteIntentService {
                 spawnMerging();
 
                 if (!error)
-                    status.finished(output);
+                    status.finished(segments != null ? segments.getManifestFile().getPath()
+                                                     : output);
                 else
                     status.error(new Exception("fail"));
 
@@ -570,8 +845,106 @@ public class Recorder extends InfiniteIntentService {
         }.start();
     }
 
+    /**
+     * stores the complete startup trace, the number of written and dropped frames of each video
+     * stream, and the number of samples of each audio stream that were replaced by silence,
+     * next to the recording, in ffmpeg's metadata format with a [STREAM] section per stream.
+     * Those are only known once starting, respectively ffmpeg, finished, and adding them as
+     * tags would mean copying the recording.
+     */
+    private void writeFrameCounters() {
+        File out = new File(output);
+        StringBuilder sb = new StringBuilder(MetadataMerge.HEADER + "\n");
+        sb.append("startup_trace=").append(escapeMetadata(mTrace.encode())).append('\n');
+
+        /** frames ffmpeg itself dropped or duplicated, for all video streams together */
+        FFMpegProgress.Snapshot progress = ffmpeg.getProgress().getLast();
+        if (progress != null)
+            sb.append("ffmpeg_frames_dropped=").append(progress.dropFrames).append('\n')
+              .append("ffmpeg_frames_duplicated=").append(progress.dupFrames).append('\n');
+
+        int j = -1;
+        for (SensorProcess p : sensorProcesses) {
+            j++;
+            sb.append("[STREAM]\n");
+            if (p.getSensor() instanceof AudioSensor)
+                sb.append("samples_dropped=").append(p.getSensor().getDropped()).append('\n');
+            if (!(p.getSensor() instanceof VideoSensor))
+                continue;
+
+            /** by the camera, the encoder and the buffer in front of ffmpeg */
+            long dropped = p.getSensor().getDropped() + ffmpeg.getDroppedWrites(j) +
+                    ((BlockSensorProcess) p).getEncoder().getDroppedFrames();
+            sb.append("frames_written=").append(p.getMeasuredSamples()).append('\n')
+              .append("frames_dropped=").append(dropped).append('\n');
+        }
+
+        if (!out.exists())
+            return;
+
+        File counters = new File(output + FRAME_COUNTERS_EXTENSION);
+        Writer w = null;
+        try {
+            w = new OutputStreamWriter(new FileOutputStream(counters), "UTF-8");
+            w.write(sb.toString());
+        } catch (IOException e) {
+            Log.e(TAG, "unable to write frame counters to " + counters, e);
+        } finally {
+            if (w != null)
+                try {
+                    w.close();
+                } catch (IOException e) {
+                }
+        }
+    }
+
+    /**
+     * @return *value* with the characters that are special in ffmpeg's metadata format escaped
+     */
+    private static String escapeMetadata(String value) {
+        StringBuilder b = new StringBuilder(value.length());
+        for (char c : value.toCharArray()) {
+            if ("=;#\\\n".indexOf(c) >= 0)
+                b.append('\\');
+            b.append(c);
+        }
+        return b.toString();
+    }
+
     private void spawnMerging() {
-        if (!isMaster) // masters dont have providers
+        if (!isMaster && segments == null) // masters dont have providers
             new MergeProviderSession(Recorder.this, mRecordUUID, new File(output));
     }
+
+    /**
+     * segmented recordings are served while they are recorded, one segment after the other
+     * and the manifest once the recording finished.
+     */
+    private void spawnSegmentProvider() {
+        if (!isMaster && segments != null)
+            new MergeProviderSession(Recorder.this, mRecordUUID, segments);
+    }
+
+    /** moves the segments ffmpeg completed to their final name */
+    private void updateSegments() {
+        if (segments == null)
+            return;
+
+        try {
+            segments.update();
+        } catch (IOException e) {
+            Log.e(TAG, "unable to complete segments of " + output, e);
+        }
+    }
+
+    /** completes the last segments once ffmpeg exited and closes the manifest */
+    private void finishSegments() {
+        try {
+            segments.finish();
+            Log.i(TAG, String.format("recorded %d segments to %s",
+                    segments.getEntries().size(), segments.getManifestFile()));
+        } catch (IOException e) {
+            Log.e(TAG, "unable to finish segments of " + output, e);
+        }
+    }
 }
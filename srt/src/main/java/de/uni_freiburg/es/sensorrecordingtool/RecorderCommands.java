@@ -11,6 +11,7 @@ import android.support.v4.content.ContextCompat;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
@@ -52,9 +53,48 @@ public class RecorderCommands extends android.content.BroadcastReceiver {
             receivedRecord(context, intent);
         } else if (Recorder.CANCEL_ACTION.equals(intent.getAction())) {
             Recorder.stopCurrentRecording();
+        } else if (CodecBenchmark.ACTION.equals(intent.getAction())) {
+            receivedBenchmark(context, intent);
         }
     }
 
+    private void receivedBenchmark(Context context, Intent intent) {
+        String corpus = intent.getStringExtra(CodecBenchmark.EXTRA_CORPUS);
+        if (corpus == null) {
+            Log.e(TAG, "no corpus directory given for the codec benchmark");
+            return;
+        }
+
+        final File dir = new File(corpus);
+        final File ffmpeg = new File(new File(context.getFilesDir().getParentFile(), "lib"),
+                "libffmpeg.so");
+        final File work = context.getCacheDir();
+
+        /** transcoding takes a while, so do not block the receiver */
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    CodecBenchmark b = new CodecBenchmark(
+                            new CodecBenchmark.FFMpegRunner(ffmpeg), work);
+                    String csv = CodecBenchmark.toCsv(
+                            b.run(CodecBenchmark.listCorpus(dir), StreamCodec.values()));
+
+                    FileOutputStream out = new FileOutputStream(
+                            new File(dir, CodecBenchmark.REPORT));
+                    try {
+                        out.write(csv.getBytes("UTF-8"));
+                    } finally {
+                        out.close();
+                    }
+                    Log.i(TAG, "codec benchmark of " + dir + "\n" + csv);
+                } catch (Exception e) {
+                    Log.e(TAG, "codec benchmark failed", e);
+                }
+            }
+        }, "codec benchmark").start();
+    }
+
     private void receivedRecord(final Context context, final Intent intent) {
         Recorder.stopCurrentRecording();
         parseIntentOrFail(context, intent);
@@ -82,13 +122,19 @@ public class RecorderCommands extends android.content.BroadcastReceiver {
     private void receivedReady(Intent intent) {
 
         Recorder.mReadyNodes.add(intent.getStringExtra(RecorderStatus.ANDROID_ID));
+        if (intent.hasExtra(RecorderStatus.STARTUP_TRACE))
+            Recorder.mStartupTraces.put(intent.getStringExtra(RecorderStatus.ANDROID_ID),
+                    intent.getStringExtra(RecorderStatus.STARTUP_TRACE));
+
+        if (!Recorder.nodeReady(intent.getStringExtra(RecorderStatus.ANDROID_ID)))
+            Log.w(TAG, "ignoring READY of " + intent.getStringExtra(RecorderStatus.ANDROID_ID) +
+                    ", which is not awaited in this round");
 
         Log.e(TAG, String.format("node %s[%s] is ready with OFFSET=%s, Semaphore at %d",
                 intent.getStringExtra(RecorderStatus.ANDROID_ID),
                 intent.getStringExtra(RecorderStatus.PLATFORM),
                 intent.getDoubleExtra(RecorderStatus.DRIFT, 0) + " ms",
                 Recorder.SEMAPHORE.getCount()));
-        Recorder.SEMAPHORE.countDown();
     }
 
     private void parseIntentOrFail(Context context, Intent intent) {
@@ -159,6 +205,15 @@ public class RecorderCommands extends android.content.BroadcastReceiver {
         call.putExtra(Recorder.RECORDER_RATE, rates);
         call.putExtra(Recorder.RECORDER_FORMAT, formats);
         call.putExtra(Recorder.RECORDER_DURATION, duration);
+        call.putExtra(Recorder.RECORDER_BATCHING,
+                getBooleanOrString(intent, Recorder.RECORDER_BATCHING, false));
+
+        /** a length in seconds or a size with a unit, which may come as a number or a string */
+        if (intent.hasExtra(Recorder.RECORDER_SEGMENT)) {
+            String segment = String.valueOf(intent.getExtras().get(Recorder.RECORDER_SEGMENT));
+            SegmentManifest.Policy.parse(segment);
+            call.putExtra(Recorder.RECORDER_SEGMENT, segment);
+        }
 
         return call;
     }
@@ -43,6 +43,7 @@ public class RecorderStatus {
     public static final String CONNECTIONTECH = "recording_connectiontech";
     public static final String CONNECTIONTECH_ID = "recording_connectiontech_ID";
     public static final String AUTONOMOUS = "recording_autonomous";
+    public static final String STARTUP_TRACE = "recording_startup_trace";
 
 
     /* store the duration to handle the progressbar */
@@ -185,14 +186,17 @@ public class RecorderStatus {
      * to be called when an all sensors are initialised, only sent by slaves.
      *
      * @param sensors all initialised sensors
+     * @param trace   the encoded StartupTrace up to this point, i.e. without the readysteady
+     *                and start phases
      */
-    public void ready(String[] sensors, long drift, boolean driftSet) {
+    public void ready(String[] sensors, long drift, boolean driftSet, String trace) {
         mSrtStatus = NodeStatus.READY;
 
         Bundle extra = new Bundle();
         extra.putStringArray(SENSORS, sensors);
         extra.putDouble(DRIFT, drift);
         extra.putBoolean(DRIFT_VALID, driftSet);
+        extra.putString(STARTUP_TRACE, trace);
 
         Intent i = new Intent(Recorder.READY_ACTION);
         i.putExtras(extra);
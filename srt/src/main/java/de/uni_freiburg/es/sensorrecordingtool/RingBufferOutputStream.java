@@ -0,0 +1,362 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded single-producer/single-consumer ring buffer in front of a possibly blocking
+ * OutputStream, e.g. a named pipe into ffmpeg. The producing thread never blocks: a write that
+ * does not fit into the free space is dropped as a whole (so samples and frames are never torn
+ * apart) and counted as an overflow. A dedicated writer thread drains the buffer into the
+ * wrapped stream and flushes it whenever the buffer runs empty.
+ *
+ * Raw streams, whose position is their time, may set a gap filler with setGapFiller(). Dropped
+ * writes are then replaced by as many copies of the filler as soon as there is room again, so
+ * the stream keeps its length while the dropped bytes are still counted as overflows.
+ *
+ * Only a single thread may write into this stream at a time.
+ */
+public class RingBufferOutputStream extends OutputStream {
+    public static final int DEFAULT_CAPACITY = 256 * 1024;
+
+    /** upper bound for the producer to sleep in writeBlocking() while the buffer is full */
+    private static final long PARK_NANOS = 5 * 1000 * 1000;
+
+    private final OutputStream mOut;
+    private final byte[] mRing;
+    private final int mMask;
+    private final Thread mWriter;
+
+    /** absolute read (consumer) and write (producer) positions */
+    private final AtomicLong mHead = new AtomicLong(0);
+    private final AtomicLong mTail = new AtomicLong(0);
+
+    private volatile boolean mClosed = false;
+    private volatile boolean mWriterParked = false;
+    private volatile IOException mError = null;
+
+    private volatile long mHighWaterMark = 0;
+    private volatile long mOverflows = 0;
+    private volatile long mDroppedBytes = 0;
+    private volatile long mDrainedBytes = 0;
+    private volatile long mDrainNanos = 0;
+
+    /** pattern replacing dropped bytes, and the number of bytes still to be replaced */
+    private byte[] mFiller = null;
+    private long mGap = 0;
+    private volatile long mFilledBytes = 0;
+    private final byte[] mSingle = new byte[1];
+
+    /** drain speed of previously closed streams in bytes per second, shared by the process */
+    private static volatile double sDrainRate = -1;
+    private static final double DRAIN_RATE_WEIGHT = .25;
+
+    /**
+     * @param out      stream to drain into, will be closed when this stream is closed
+     * @param capacity minimum capacity in bytes, rounded up to the next power of two
+     * @param name     name of the writer thread
+     */
+    public RingBufferOutputStream(OutputStream out, int capacity, String name) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive, but was " + capacity);
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+
+        mOut = out;
+        mRing = new byte[size];
+        mMask = size - 1;
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, name);
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    public RingBufferOutputStream(OutputStream out, int capacity) {
+        this(out, capacity, "ringbuffer writer");
+    }
+
+    /**
+     * replace the bytes of dropped writes with repetitions of *filler*, e.g. a sample of
+     * silence over all channels. Must be set before the first write.
+     */
+    public void setGapFiller(byte[] filler) {
+        if (filler != null && filler.length == 0)
+            throw new IllegalArgumentException("filler must not be empty");
+        mFiller = filler;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        mSingle[0] = (byte) b;
+        write(mSingle, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mClosed)
+            throw new IOException("stream is closed");
+        if (mError != null)
+            throw mError;
+        if (len <= 0)
+            return;
+
+        if (mGap > 0)
+            fillGap();
+
+        long tail = mTail.get(),
+             used = tail - mHead.get();
+
+        if (mGap > 0 || len > mRing.length - used) {
+            mOverflows++;
+            mDroppedBytes += len;
+            if (mFiller != null)
+                mGap += len;
+            return;
+        }
+
+        int pos = (int) (tail & mMask),
+            first = Math.min(len, mRing.length - pos);
+        System.arraycopy(b, off, mRing, pos, first);
+        System.arraycopy(b, off + first, mRing, 0, len - first);
+        mTail.set(tail + len);
+
+        used += len;
+        if (used > mHighWaterMark)
+            mHighWaterMark = used;
+
+        if (mWriterParked)
+            LockSupport.unpark(mWriter);
+    }
+
+    /**
+     * replaces as much of the gap left by dropped writes as fits into the free space
+     */
+    private void fillGap() {
+        long tail = mTail.get(),
+             n = Math.min(mGap, mRing.length - (tail - mHead.get()));
+
+        if (n <= 0)
+            return;
+
+        long filled = mFilledBytes;
+        for (long i = 0; i < n; i++)
+            mRing[(int) ((tail + i) & mMask)] = mFiller[(int) ((filled + i) % mFiller.length)];
+        mTail.set(tail + n);
+
+        mGap -= n;
+        mFilledBytes = filled + n;
+        if (tail + n - mHead.get() > mHighWaterMark)
+            mHighWaterMark = tail + n - mHead.get();
+
+        if (mWriterParked)
+            LockSupport.unpark(mWriter);
+    }
+
+    /**
+     * writes *len* bytes without dropping them, waiting for the writer thread to make room
+     * if needed. Meant for the few writes a stream can not do without, e.g. headers, the
+     * producer may block on them.
+     */
+    public void writeBlocking(byte[] b, int off, int len) throws IOException {
+        awaitGap();
+
+        while (len > 0) {
+            if (mClosed)
+                throw new IOException("stream is closed");
+            if (mError != null)
+                throw mError;
+
+            long tail = mTail.get();
+            int n = (int) Math.min(len, mRing.length - (tail - mHead.get()));
+
+            if (n == 0) {
+                LockSupport.unpark(mWriter);
+                LockSupport.parkNanos(this, PARK_NANOS);
+                continue;
+            }
+
+            int pos = (int) (tail & mMask),
+                first = Math.min(n, mRing.length - pos);
+            System.arraycopy(b, off, mRing, pos, first);
+            System.arraycopy(b, off + first, mRing, 0, n - first);
+            mTail.set(tail + n);
+
+            long used = tail + n - mHead.get();
+            if (used > mHighWaterMark)
+                mHighWaterMark = used;
+
+            off += n;
+            len -= n;
+            LockSupport.unpark(mWriter);
+        }
+    }
+
+    /**
+     * blocks until the gap left by dropped writes has been filled
+     */
+    private void awaitGap() throws IOException {
+        while (mGap > 0) {
+            if (mError != null)
+                throw mError;
+
+            fillGap();
+            if (mGap > 0) {
+                LockSupport.unpark(mWriter);
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * does not block, the writer thread flushes the wrapped stream as soon as it has written
+     * everything that was handed to this stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (mError != null)
+            throw mError;
+    }
+
+    /**
+     * closes the stream, blocks until all buffered data and the filler for a trailing gap
+     * have been written and closes the wrapped stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed)
+            return;
+
+        try {
+            awaitGap();
+        } catch (IOException e) {
+            /** the writer failed, which is reported below once it has exited */
+        }
+
+        mClosed = true;
+        LockSupport.unpark(mWriter);
+
+        try {
+            mWriter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        updateDrainRate(getDrainRate());
+
+        if (mError != null)
+            throw mError;
+    }
+
+    private static synchronized void updateDrainRate(double rate) {
+        if (rate <= 0)
+            return;
+
+        sDrainRate = sDrainRate <= 0 ? rate :
+                     (1 - DRAIN_RATE_WEIGHT) * sDrainRate + DRAIN_RATE_WEIGHT * rate;
+    }
+
+    private void drain() {
+        boolean dirty = false;
+
+        try {
+            while (true) {
+                long head = mHead.get(),
+                     tail = mTail.get();
+
+                if (head == tail) {
+                    if (dirty) {
+                        long start = System.nanoTime();
+                        mOut.flush();
+                        mDrainNanos += System.nanoTime() - start;
+                        dirty = false;
+                    }
+
+                    if (mClosed && mTail.get() == head)
+                        break;
+
+                    mWriterParked = true;
+                    /** the producer unparks the writer after publishing, no need to poll */
+                    if (mTail.get() == head && !mClosed)
+                        LockSupport.park(this);
+                    mWriterParked = false;
+                    continue;
+                }
+
+                int pos = (int) (head & mMask),
+                    n = (int) Math.min(tail - head, mRing.length - pos);
+                long start = System.nanoTime();
+                mOut.write(mRing, pos, n);
+                mDrainNanos += System.nanoTime() - start;
+                mDrainedBytes += n;
+                mHead.set(head + n);
+                dirty = true;
+            }
+        } catch (IOException e) {
+            mError = e;
+        } finally {
+            try { mOut.close(); }
+            catch (IOException e) { if (mError == null) mError = e; }
+        }
+    }
+
+    public int getCapacity() {
+        return mRing.length;
+    }
+
+    /** @return number of bytes currently waiting to be written */
+    public long getFillLevel() {
+        return mTail.get() - mHead.get();
+    }
+
+    /** @return the maximum number of bytes that were buffered at any time */
+    public long getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    /** @return number of writes that were dropped since the buffer was full */
+    public long getOverflowCount() {
+        return mOverflows;
+    }
+
+    /** @return number of bytes that were dropped since the buffer was full */
+    public long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    /** @return number of dropped bytes that were replaced by the gap filler so far */
+    public long getFilledBytes() {
+        return mFilledBytes;
+    }
+
+    /**
+     * @return bytes per second the wrapped stream accepted while the writer was busy, i.e.
+     * the speed at which a burst gets drained, or -1 if nothing was written yet
+     */
+    public double getDrainRate() {
+        long nanos = mDrainNanos;
+        return nanos > 0 ? mDrainedBytes * 1e9 / nanos : -1;
+    }
+
+    /**
+     * @return the drain speed in bytes per second averaged over previously closed streams of
+     * this process, or -1 if no stream was closed yet.
+     */
+    public static double getMeasuredDrainRate() {
+        return sDrainRate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d/%d bytes high-water mark, %d overflows (%d bytes dropped, %d filled)",
+                mWriter.getName(), mHighWaterMark, mRing.length, mOverflows, mDroppedBytes,
+                mFilledBytes);
+    }
+}
@@ -0,0 +1,395 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keeps track of a recording that is written in segments instead of a single growing file. A
+ * segment is written under a temporary .part name and atomically renamed once it is complete,
+ * so that any file without that suffix can be moved, merged or checked right away. Completed
+ * segments are listed in order in a manifest next to them, which is rewritten atomically as
+ * well and ends with an end marker once the recording is finished.
+ * <p>
+ * For an output of rec.mkv the segments are rec.00000.mkv, rec.00001.mkv, ... and the manifest
+ * is rec.segments, which holds a line of "name,start,end" per segment, start and end in seconds
+ * on the time axis of the recording.
+ */
+public class SegmentManifest {
+    public static final String HEADER = "# segments";
+    public static final String END = "# end";
+    public static final String EXTENSION = ".segments";
+    public static final String PART = ".part";
+
+    private static final String INDEX_FORMAT = "%05d";
+
+    /** a completed segment */
+    public static class Entry {
+        public final String name;
+        public final double start, end;
+
+        public Entry(String name, double start, double end) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s,%.6f,%.6f", name, start, end);
+        }
+    }
+
+    /**
+     * when to start a new segment, after a number of seconds or bytes. Given as a number of
+     * seconds, optionally with an s suffix, or as a size with a k, M or G suffix, e.g. "300" or
+     * "64M".
+     */
+    public static class Policy {
+        public final double seconds;
+        public final long bytes;
+
+        private Policy(double seconds, long bytes) {
+            this.seconds = seconds;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the specification is not a positive time or size
+         */
+        public static Policy parse(String spec) {
+            String s = spec.trim();
+            long unit = 0;
+
+            if (s.endsWith("k") || s.endsWith("K"))
+                unit = 1024;
+            else if (s.endsWith("M"))
+                unit = 1024 * 1024;
+            else if (s.endsWith("G"))
+                unit = 1024 * 1024 * 1024;
+
+            if (unit != 0 || s.endsWith("s"))
+                s = s.substring(0, s.length() - 1);
+
+            double value;
+            try {
+                value = Double.parseDouble(s);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid segment length " + spec);
+            }
+
+            if (!(value > 0))
+                throw new IllegalArgumentException("segment length must be positive: " + spec);
+
+            return unit == 0 ? new Policy(value, -1) : new Policy(-1, (long) (value * unit));
+        }
+
+        /**
+         * @param bytesPerSecond data rate written to the segments, an upper bound since the
+         *                       output is compressed
+         * @return length of a segment in seconds
+         */
+        public double getSeconds(double bytesPerSecond) {
+            if (seconds > 0)
+                return seconds;
+            if (bytesPerSecond <= 0)
+                throw new IllegalArgumentException("segments by size need a known data rate");
+            return bytes / bytesPerSecond;
+        }
+    }
+
+    private final File mDir;
+    private final String mBase, mExtension;
+    private final List<Entry> mEntries = new ArrayList<>();
+    private int mListLines = 0;
+    private boolean mFinished = false;
+
+    /**
+     * @param output the path a non-segmented recording would be written to
+     */
+    public SegmentManifest(File output) {
+        String name = output.getName();
+        int dot = name.lastIndexOf('.');
+
+        mDir = output.getAbsoluteFile().getParentFile();
+        mBase = dot > 0 ? name.substring(0, dot) : name;
+        mExtension = dot > 0 ? name.substring(dot) : "";
+    }
+
+    public File getManifestFile() {
+        return new File(mDir, mBase + EXTENSION);
+    }
+
+    public File getSegmentFile(int index) {
+        return new File(mDir, mBase + "." + String.format(Locale.US, INDEX_FORMAT, index) +
+                              mExtension);
+    }
+
+    /**
+     * @return path of the segments while they are written, with a printf pattern for the index
+     * as understood by ffmpeg's segment muxer
+     */
+    public String getPartPattern() {
+        return new File(mDir, mBase + "." + INDEX_FORMAT + mExtension + PART).getPath();
+    }
+
+    /**
+     * @return the list of completed segments ffmpeg is asked to write, read by update()
+     */
+    public File getListFile() {
+        return new File(mDir, "." + mBase + ".list");
+    }
+
+    /**
+     * moves the *index*-th segment, which must be completely written, to its final name and
+     * adds it to the manifest.
+     */
+    public synchronized Entry complete(int index, double start, double end) throws IOException {
+        if (mFinished)
+            throw new IllegalStateException("recording is finished already");
+        if (index != mEntries.size())
+            throw new IOException(String.format(
+                    "segment %d completed while expecting %d", index, mEntries.size()));
+
+        File segment = getSegmentFile(index),
+             part = new File(segment.getPath() + PART);
+
+        if (!part.renameTo(segment))
+            throw new IOException("unable to rename " + part + " to " + segment);
+
+        Entry e = new Entry(segment.getName(), start, end);
+        mEntries.add(e);
+        write(getManifestFile(), mEntries, false);
+        notifyAll();
+        return e;
+    }
+
+    /**
+     * completes the segments that were added to the list file of ffmpeg since the last call.
+     * ffmpeg may be appending to it, a line without its newline is left for the next call.
+     *
+     * @return number of segments completed by this call
+     */
+    public synchronized int update() throws IOException {
+        File list = getListFile();
+        if (!list.exists())
+            return 0;
+
+        List<String> lines = readCompleteLines(list);
+        int completed = 0;
+
+        for (; mListLines < lines.size(); mListLines++) {
+            String[] fields = lines.get(mListLines).split(",");
+            if (fields.length < 3)
+                continue;
+
+            String name = new File(unquote(fields[0])).getName();
+            complete(parseIndex(name), Double.parseDouble(fields[1]),
+                    Double.parseDouble(fields[2]));
+            completed++;
+        }
+
+        return completed;
+    }
+
+    /**
+     * picks up the segments completed last and marks the recording as finished, after which
+     * no more segments are added.
+     */
+    public synchronized void finish() throws IOException {
+        try {
+            update();
+        } finally {
+            mFinished = true;
+            write(getManifestFile(), mEntries, true);
+            getListFile().delete();
+            notifyAll();
+        }
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(mEntries);
+    }
+
+    public synchronized boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * blocks until the *index*-th segment is completed.
+     *
+     * @return the segment or null if the recording finished with fewer segments
+     */
+    public synchronized Entry await(int index) throws InterruptedException {
+        while (mEntries.size() <= index && !mFinished)
+            wait();
+
+        return index < mEntries.size() ? mEntries.get(index) : null;
+    }
+
+    /**
+     * @return the index in the name of a segment, e.g. 2 for rec.00002.mkv.part
+     */
+    int parseIndex(String name) {
+        String rest = name.substring(mBase.length() + 1);
+        int dot = rest.indexOf('.');
+        try {
+            return Integer.parseInt(dot < 0 ? rest : rest.substring(0, dot));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a segment of " + mBase + ": " + name);
+        }
+    }
+
+    private static String unquote(String s) {
+        s = s.trim();
+        if (s.length() >= 2 && s.startsWith("\"") && s.endsWith("\""))
+            s = s.substring(1, s.length() - 1).replace("\"\"", "\"");
+        return s;
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+        try {
+            String line;
+            while ((line = reader.readLine()) != null)
+                lines.add(line);
+        } finally {
+            reader.close();
+        }
+
+        return lines;
+    }
+
+    /**
+     * @return the lines of *file* that end in a newline, without it
+     */
+    private static List<String> readCompleteLines(File file) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+
+        try {
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) >= 0)
+                content.write(buf, 0, n);
+        } finally {
+            in.close();
+        }
+
+        String text = content.toString("UTF-8");
+        List<String> lines = new ArrayList<>();
+        for (int start = 0, end; (end = text.indexOf('\n', start)) >= 0; start = end + 1) {
+            String line = text.substring(start, end);
+            lines.add(line.endsWith("\r") ? line.substring(0, line.length() - 1) : line);
+        }
+
+        return lines;
+    }
+
+    /**
+     * atomically replaces *file* with a manifest of the given segments.
+     */
+    public static void write(File file, List<Entry> entries, boolean finished)
+            throws IOException {
+        StringBuilder sb = new StringBuilder(HEADER).append('\n');
+        for (Entry e : entries)
+            sb.append(e).append('\n');
+        if (finished)
+            sb.append(END).append('\n');
+
+        writeAtomically(file, sb.toString());
+    }
+
+    private static void writeAtomically(File file, String content) throws IOException {
+        File tmp = new File(file.getParentFile(), "." + file.getName() + ".tmp");
+        Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+
+        try {
+            w.write(content);
+        } finally {
+            w.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("unable to replace " + file);
+        }
+    }
+
+    /**
+     * @return whether *file* is a manifest rather than a recording
+     */
+    public static boolean isManifest(File file) {
+        if (file == null || !file.isFile())
+            return false;
+
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                return HEADER.equals(reader.readLine());
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the segments listed in *manifest*
+     * @throws IOException if it can not be read or was not finished
+     */
+    public static List<Entry> read(File manifest) throws IOException {
+        List<String> lines = readLines(manifest);
+        if (lines.isEmpty() || !HEADER.equals(lines.get(0)))
+            throw new IOException(manifest + " is not a segment manifest");
+        if (!END.equals(lines.get(lines.size() - 1)))
+            throw new IOException(manifest + " lists an unfinished recording");
+
+        List<Entry> entries = new ArrayList<>();
+        for (String line : lines.subList(1, lines.size() - 1)) {
+            String[] fields = line.split(",");
+            entries.add(new Entry(fields[0], Double.parseDouble(fields[1]),
+                    Double.parseDouble(fields[2])));
+        }
+
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * writes a list of *segments* for ffmpeg's concat demuxer, which joins them into a single
+     * input.
+     */
+    public static void writeConcatList(File list, List<File> segments) throws IOException {
+        StringBuilder sb = new StringBuilder("ffconcat version 1.0\n");
+        for (File f : segments)
+            sb.append("file '")
+              .append(f.getAbsolutePath().replace("'", "'\\''"))
+              .append("'\n");
+
+        writeAtomically(list, sb.toString());
+    }
+
+    /**
+     * @return the id under which the *index*-th item of a segmented recording is transferred,
+     * the segments first and the manifest last
+     */
+    public static String getItemId(String recordingUUID, int index) {
+        return recordingUUID + "." + index;
+    }
+}
@@ -0,0 +1,104 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Records when each phase of starting a recording began and how long it took, on the monotonic
+ * clock relative to the creation of the trace. Phases may overlap, e.g. sensors get prepared
+ * while the clock is synchronized. The encoded form is sent with the ready broadcast, which
+ * goes out before the readysteady and start phases end and so lacks them, and is stored
+ * complete next to the recording once it stopped, one phase per entry:
+ * <p>
+ * parse@0.0+1.2;discovery@1.2+3001.5;...
+ * <p>
+ * with the start and the duration of each phase given in milliseconds.
+ */
+public class StartupTrace {
+    public static final String SEPARATOR = ";";
+
+    private final long mOrigin;
+    private final LinkedHashMap<String, long[]> mPhases = new LinkedHashMap<>();
+
+    public StartupTrace() {
+        mOrigin = System.nanoTime();
+    }
+
+    /** @return the monotonic time in nanoseconds at which the trace started */
+    public long getOrigin() {
+        return mOrigin;
+    }
+
+    public synchronized void begin(String phase) {
+        mPhases.put(phase, new long[]{System.nanoTime(), -1});
+    }
+
+    public synchronized void end(String phase) {
+        long[] times = mPhases.get(phase);
+        if (times == null)
+            mPhases.put(phase, new long[]{mOrigin, System.nanoTime()});
+        else
+            times[1] = System.nanoTime();
+    }
+
+    /**
+     * adds a phase that was measured elsewhere, both times on the System.nanoTime() clock.
+     */
+    public synchronized void record(String phase, long begin, long end) {
+        mPhases.put(phase, new long[]{begin, end});
+    }
+
+    /**
+     * @return duration of the phase in nanoseconds, or -1 if it did not end (yet)
+     */
+    public synchronized long getDurationNanos(String phase) {
+        long[] times = mPhases.get(phase);
+        return times == null || times[1] < 0 ? -1 : times[1] - times[0];
+    }
+
+    /**
+     * @return all ended phases in the order they began, see the class description
+     */
+    public synchronized String encode() {
+        StringBuilder b = new StringBuilder();
+
+        for (Map.Entry<String, long[]> e : mPhases.entrySet()) {
+            long[] times = e.getValue();
+            if (times[1] < 0)
+                continue;
+
+            if (b.length() > 0)
+                b.append(SEPARATOR);
+            b.append(String.format(Locale.US, "%s@%.1f+%.1f", e.getKey(),
+                    (times[0] - mOrigin) / 1e6, (times[1] - times[0]) / 1e6));
+        }
+
+        return b.toString();
+    }
+
+    /**
+     * @return the duration in milliseconds of each phase of an encoded trace
+     */
+    public static LinkedHashMap<String, Double> decode(String trace) {
+        LinkedHashMap<String, Double> phases = new LinkedHashMap<>();
+        if (trace == null || trace.isEmpty())
+            return phases;
+
+        for (String phase : trace.split(SEPARATOR)) {
+            int at = phase.lastIndexOf('@'),
+                plus = phase.lastIndexOf('+');
+            if (at < 0 || plus < at)
+                continue;
+
+            phases.put(phase.substring(0, at), Double.parseDouble(phase.substring(plus + 1)));
+        }
+
+        return phases;
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
@@ -0,0 +1,102 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+/**
+ * Sizes the buffers between a sensor and its ffmpeg input by the data rate of the stream. A
+ * buffer holds at most FLUSH_INTERVAL_S worth of data, so a slow sensor reaches ffmpeg within
+ * that time, while a fast one is handed over in large writes with few syscalls. Streams above
+ * DIRECT_BYTE_RATE, i.e. video, write frames that are larger than any sensible buffer, so
+ * they are written to the pipe directly.
+ */
+public class StreamBuffering {
+    /** upper bound in seconds for data to wait in a buffer */
+    public static final double FLUSH_INTERVAL_S = 1;
+
+    public static final int MIN_BUFFER = 512, MAX_BUFFER = 64 * 1024;
+
+    /** buffer size for streams of unknown rate, the default of a BufferedOutputStream */
+    public static final int DEFAULT_BUFFER = 8192;
+
+    /** bytes per second from which a stream is written without a buffer in between */
+    public static final double DIRECT_BYTE_RATE = 1024 * 1024;
+
+    private StreamBuffering() {
+    }
+
+    /**
+     * @param bytesPerSecond data rate of the stream, zero or less if unknown
+     * @return size of the write buffer in bytes, zero to write directly
+     */
+    public static int getBufferSize(double bytesPerSecond) {
+        if (bytesPerSecond <= 0)
+            return DEFAULT_BUFFER;
+        if (bytesPerSecond >= DIRECT_BYTE_RATE)
+            return 0;
+
+        long size = (long) Math.ceil(bytesPerSecond * FLUSH_INTERVAL_S);
+        return (int) Math.max(MIN_BUFFER, Math.min(MAX_BUFFER, size));
+    }
+
+    /**
+     * @param rate       samples per second
+     * @param frameBytes bytes of a single sample over all channels
+     * @param maxBytes   upper bound for a batch
+     * @return bytes of whole samples to collect before writing them in one go, so that a batch
+     * covers at most FLUSH_INTERVAL_S and holds at least one sample
+     */
+    public static int getBatchBytes(double rate, int frameBytes, int maxBytes) {
+        if (frameBytes <= 0)
+            throw new IllegalArgumentException("samples must not be empty");
+
+        long samples = (long) Math.floor(rate * FLUSH_INTERVAL_S);
+        samples = Math.min(samples, maxBytes / frameBytes);
+        return (int) Math.max(1, samples) * frameBytes;
+    }
+
+    /**
+     * @param format an ffmpeg sample format like f32le, s16be or u8
+     * @return bytes per sample and channel, or -1 if unknown
+     */
+    public static int getSampleBytes(String format) {
+        if (format == null || format.length() < 2)
+            return -1;
+
+        char kind = format.charAt(0);
+        if (kind != 'f' && kind != 's' && kind != 'u')
+            return -1;
+
+        int end = 1;
+        while (end < format.length() && Character.isDigit(format.charAt(end)))
+            end++;
+
+        if (end == 1)
+            return -1;
+
+        int bits = Integer.parseInt(format.substring(1, end));
+        return bits % 8 == 0 ? bits / 8 : -1;
+    }
+
+    /**
+     * @param format an ffmpeg sample format like f32le, s16be or u8
+     * @return a single sample marking a gap in the stream, NaN for floating point formats and
+     * the center of the range for integer ones, or null if the format is unknown
+     */
+    public static byte[] getGapSample(String format) {
+        int bytes = getSampleBytes(format);
+        if (bytes < 0)
+            return null;
+
+        char kind = format.charAt(0);
+        if (kind == 'f' && bytes != 4 && bytes != 8)
+            return null;
+
+        long bits = kind == 'f' ? (bytes == 4 ? Float.floatToRawIntBits(Float.NaN) :
+                                                Double.doubleToRawLongBits(Double.NaN)) :
+                    kind == 'u' ? 1L << (bytes * 8 - 1) : 0;
+
+        byte[] sample = new byte[bytes];
+        boolean bigEndian = format.endsWith("be");
+        for (int i = 0; i < bytes; i++)
+            sample[bigEndian ? bytes - 1 - i : i] = (byte) (bits >>> (8 * i));
+        return sample;
+    }
+}
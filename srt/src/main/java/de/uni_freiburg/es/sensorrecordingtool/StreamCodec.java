@@ -0,0 +1,97 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import de.uni_freiburg.es.sensorrecordingtool.sensors.FormatSpec;
+
+/**
+ * The lossless codecs an audio or scalar sensor stream can be stored with, chosen by the codec
+ * option of the format specifier, e.g. "codec=flac". Not every codec keeps every sample format,
+ * FLAC and TTA for example have no float samples and ffmpeg would silently convert them, so
+ * such combinations are rejected. copy stores the raw samples as they are written.
+ */
+public enum StreamCodec {
+    WAVPACK("wavpack", "u8", "s16", "s32", "f32"),
+    FLAC("flac", "s16"),
+    TTA("tta", "u8", "s16"),
+    COPY("copy");
+
+    public static final String OPTION = "codec";
+
+    /** used for streams that do not ask for a codec */
+    public static final StreamCodec DEFAULT = WAVPACK;
+
+    private final String mEncoder;
+    private final List<String> mFormats;
+
+    StreamCodec(String encoder, String... formats) {
+        mEncoder = encoder;
+        mFormats = Collections.unmodifiableList(Arrays.asList(formats));
+    }
+
+    /** @return the name used in the format specifier */
+    public String getName() {
+        return name().toLowerCase(Locale.US);
+    }
+
+    /** @return the ffmpeg encoder, as given to -c */
+    public String getEncoder() {
+        return mEncoder;
+    }
+
+    /**
+     * @param sampleFormat ffmpeg sample format of the input, e.g. f32le
+     * @return whether the samples are stored without conversion
+     */
+    public boolean isLossless(String sampleFormat) {
+        if (this == COPY)
+            return true;
+
+        String f = sampleFormat.toLowerCase(Locale.US);
+        if (f.endsWith("le") || f.endsWith("be"))
+            f = f.substring(0, f.length() - 2);
+
+        return mFormats.contains(f);
+    }
+
+    /**
+     * @throws IllegalArgumentException for an unknown codec
+     */
+    public static StreamCodec fromName(String name) {
+        for (StreamCodec c : values())
+            if (c.getName().equalsIgnoreCase(name.trim()))
+                return c;
+
+        throw new IllegalArgumentException("unknown codec " + name + ", use one of " +
+                Arrays.toString(values()).toLowerCase(Locale.US));
+    }
+
+    /**
+     * @return true if the format specifier asks for a codec that compresses the stream
+     */
+    public static boolean isRequested(String format) {
+        String name = FormatSpec.getValue(format, OPTION, null);
+        return name != null && fromName(name) != COPY;
+    }
+
+    /**
+     * @param format       format specifier of the stream, may hold the codec option
+     * @param sampleFormat ffmpeg sample format of the stream
+     * @return the codec for the stream, DEFAULT if none is given
+     * @throws IllegalArgumentException if the codec is unknown or not lossless for the samples
+     */
+    public static StreamCodec choose(String format, String sampleFormat) {
+        String name = FormatSpec.getValue(format, OPTION, null);
+        StreamCodec codec = name == null ? DEFAULT : fromName(name);
+
+        if (!codec.isLossless(sampleFormat))
+            throw new IllegalArgumentException(String.format(
+                    "%s can not store %s samples losslessly, use encoding=s16 or another codec",
+                    codec.getName(), sampleFormat));
+
+        return codec;
+    }
+}
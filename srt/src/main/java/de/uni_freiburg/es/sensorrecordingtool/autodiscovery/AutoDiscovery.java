@@ -5,13 +5,17 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.preference.PreferenceManager;
 import android.provider.Settings;
 import android.util.Log;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import de.uni_freiburg.es.sensorrecordingtool.Recorder;
 import de.uni_freiburg.es.sensorrecordingtool.RecorderStatus;
@@ -24,6 +28,12 @@ public class AutoDiscovery {
 
     private static final String TAG = "AutoDiscovery";
     private static final long DISCOVERY_TIMEOUT = 50000;
+
+    /** time without new answers after which a round without known members is complete */
+    private static final long SETTLE_MS = 500;
+    /** time every round stays open, so nodes forwarded over slow links can answer */
+    private static final long MIN_ROUND_MS = 2000;
+    private static final String KEY_MEMBERS = "discovery_members";
     private static AutoDiscovery sInstance;
     private final WeakReference<Context> mContext;
 
@@ -31,6 +41,7 @@ public class AutoDiscovery {
     private List<OnNodeSensorsDiscoveredListener> mListeners = new ArrayList<>();
 
     private boolean isReceiverRegistered = false;
+    private volatile DiscoveryRound mRound = null;
 
     /**
      * Listens for Responses.
@@ -74,6 +85,14 @@ public class AutoDiscovery {
             connectionTechnologies.add(new ConnectionTechnology(ConnectionTechnology.Type.LOCAL));
 
 
+        DiscoveryRound round = mRound;
+        if (round != null && !round.respond(aid)) {
+            Log.w(TAG, String.format("late joiner %s[%s] is not part of the current round",
+                    aid, platform));
+            /** but it is expected in the next one, so it is not left out for good */
+            addMembers(Collections.singleton(aid));
+        }
+
         Node node = new Node(platform, aid);
 
         Log.e(TAG, String.format("Device %s has following sensors: %s", platform, sensors != null ? Arrays.toString(sensors) : "[]"));
@@ -114,17 +133,70 @@ public class AutoDiscovery {
 
     /**
      * Starts the autodiscovery asynchronously. Will remove all previously discovered devices.
+     * Opens a new round, see awaitRound().
      */
     public void discover() {
         if(!sInstance.isReceiverRegistered)
             sInstance.bind();
 
+        mRound = new DiscoveryRound(getPreviousMembers(), SETTLE_MS, MIN_ROUND_MS);
+
         Intent intent = new Intent();
         intent.setAction(Recorder.DISCOVERY_ACTION);
         mContext.get().sendBroadcast(intent);
         Log.e(TAG, "send discover action");
     }
 
+    /**
+     * waits until all members of the previous round answered the last discover() call, or
+     * until no new node answered for a short while if there was no previous round. The nodes
+     * that answered become the expected members of the next round.
+     *
+     * @param maxWaitMs upper bound for waiting
+     * @return android ids of all nodes that answered in time
+     */
+    public Set<String> awaitRound(long maxWaitMs) throws InterruptedException {
+        DiscoveryRound round = mRound;
+        if (round == null)
+            throw new IllegalStateException("discover() was not called");
+
+        long start = System.currentTimeMillis();
+        Set<String> members = round.await(maxWaitMs);
+
+        Log.e(TAG, String.format("discovery round complete after %d ms with %d nodes",
+                System.currentTimeMillis() - start, members.size()));
+        if (!round.getMissing().isEmpty())
+            Log.w(TAG, "nodes of the previous round missing: " + round.getMissing());
+
+        /** late joiners of this round are expected in the next one as well */
+        Set<String> next = new HashSet<>(members);
+        next.addAll(round.getLateJoiners());
+        if (!next.isEmpty())
+            PreferenceManager.getDefaultSharedPreferences(mContext.get()).edit()
+                    .putStringSet(KEY_MEMBERS, next)
+                    .commit();
+
+        return members;
+    }
+
+    /**
+     * adds *aids* to the nodes expected in the next round.
+     */
+    private synchronized void addMembers(Set<String> aids) {
+        Set<String> members = getPreviousMembers();
+        if (!members.addAll(aids))
+            return;
+
+        PreferenceManager.getDefaultSharedPreferences(mContext.get()).edit()
+                .putStringSet(KEY_MEMBERS, members)
+                .commit();
+    }
+
+    private Set<String> getPreviousMembers() {
+        return new HashSet<>(PreferenceManager.getDefaultSharedPreferences(mContext.get())
+                .getStringSet(KEY_MEMBERS, new HashSet<String>()));
+    }
+
     /**
      * Close the discovery by unregistering the BroadcastReceivers. Must be called on Recorder end.
      */
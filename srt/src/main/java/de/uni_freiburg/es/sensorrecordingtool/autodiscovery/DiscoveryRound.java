@@ -0,0 +1,112 @@
+package de.uni_freiburg.es.sensorrecordingtool.autodiscovery;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Collects the nodes answering a single discovery broadcast. A round is complete as soon as
+ * all expected nodes answered, usually the members of the previous session. Without any
+ * expectation, the round completes once no new node answered for a settle time. Either way it
+ * stays open for a minimum time, so that slowly forwarded nodes get a chance to answer. Nodes
+ * that answer after the round was closed are not part of it, but are remembered as late
+ * joiners so that the next round can expect them.
+ */
+public class DiscoveryRound {
+    private final Set<String> mExpected;
+    private final long mSettleMs, mMinWaitMs, mOpened;
+    private final LinkedHashSet<String> mResponders = new LinkedHashSet<>();
+    private final LinkedHashSet<String> mLate = new LinkedHashSet<>();
+    private long mLastResponse = -1;
+    private boolean mClosed = false;
+
+    /**
+     * @param expected android ids of the nodes expected to answer, may be empty
+     * @param settleMs time without new answers after which a round without expectation is
+     *                 complete
+     */
+    public DiscoveryRound(Set<String> expected, long settleMs) {
+        this(expected, settleMs, 0);
+    }
+
+    /**
+     * @param minWaitMs time after opening before which the round is never complete
+     */
+    public DiscoveryRound(Set<String> expected, long settleMs, long minWaitMs) {
+        mExpected = new LinkedHashSet<>(expected);
+        mSettleMs = settleMs;
+        mMinWaitMs = minWaitMs;
+        mOpened = System.currentTimeMillis();
+    }
+
+    /**
+     * @return false if the round was already closed, i.e. the node is a late joiner
+     */
+    public synchronized boolean respond(String aid) {
+        if (mClosed) {
+            if (mResponders.contains(aid))
+                return true;
+            mLate.add(aid);
+            return false;
+        }
+
+        if (mResponders.add(aid)) {
+            mLastResponse = System.currentTimeMillis();
+            notifyAll();
+        }
+
+        return true;
+    }
+
+    public synchronized boolean isComplete() {
+        if (mResponders.isEmpty() || System.currentTimeMillis() - mOpened < mMinWaitMs)
+            return false;
+
+        if (!mExpected.isEmpty())
+            return mResponders.containsAll(mExpected);
+
+        return System.currentTimeMillis() - mLastResponse >= mSettleMs;
+    }
+
+    /**
+     * waits until the round is complete or *maxWaitMs* have passed and closes it.
+     *
+     * @return the nodes that answered in this round
+     */
+    public synchronized Set<String> await(long maxWaitMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + maxWaitMs;
+
+        for (long now = System.currentTimeMillis(); !isComplete() && now < deadline;
+             now = System.currentTimeMillis()) {
+            long wait = deadline - now;
+            if (now < mOpened + mMinWaitMs)
+                wait = Math.min(wait, mOpened + mMinWaitMs - now);
+            else if (!mResponders.isEmpty() && mExpected.isEmpty())
+                wait = Math.min(wait, mLastResponse + mSettleMs - now);
+            wait(Math.max(1, wait));
+        }
+
+        mClosed = true;
+        return getResponders();
+    }
+
+    public synchronized Set<String> getResponders() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(mResponders));
+    }
+
+    /**
+     * @return nodes that answered after the round was closed
+     */
+    public synchronized Set<String> getLateJoiners() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(mLate));
+    }
+
+    /**
+     * @return expected nodes that did not answer (yet)
+     */
+    public synchronized Set<String> getMissing() {
+        LinkedHashSet<String> missing = new LinkedHashSet<>(mExpected);
+        missing.removeAll(mResponders);
+        return missing;
+    }
+}
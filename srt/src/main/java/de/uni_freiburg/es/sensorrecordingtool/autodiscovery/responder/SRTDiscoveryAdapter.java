@@ -5,14 +5,13 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 import android.provider.Settings;
-import android.text.TextUtils;
 
 import java.util.ArrayList;
 
 import de.uni_freiburg.es.sensorrecordingtool.Recorder;
 import de.uni_freiburg.es.sensorrecordingtool.RecorderStatus;
 import de.uni_freiburg.es.sensorrecordingtool.autodiscovery.ConnectionTechnology;
-import de.uni_freiburg.es.sensorrecordingtool.sensors.Sensor;
+import de.uni_freiburg.es.sensorrecordingtool.sensors.SensorIndex;
 
 public class SRTDiscoveryAdapter extends DiscoveryResponseAdapter {
 
@@ -33,12 +32,8 @@ public class SRTDiscoveryAdapter extends DiscoveryResponseAdapter {
         response.setAction(Recorder.DISCOVERY_RESPONSE_ACTION);
 
         ArrayList<String> sensorNameList = new ArrayList<>();
-        for (Sensor sensor : Sensor.getAvailableSensors(context)) {
-            String name = sensor.getStringType();
-            if (TextUtils.isEmpty(name))
-                name = "to.unknown." + sensor.getStringName().toLowerCase().replace(" ", "_") + "_unknown";
-            sensorNameList.add(name);
-        }
+        for (SensorIndex.SensorInfo sensor : SensorIndex.getInstance(context).getSensors())
+            sensorNameList.add(sensor.getDiscoveryName());
         response.putExtra(RecorderStatus.SENSORS, sensorNameList.toArray(new String[sensorNameList.size()]));
 
         ArrayList<ConnectionTechnology> connectionTechnologies = ConnectionTechnology.gatherConnectionList(context);
@@ -0,0 +1,487 @@
+package de.uni_freiburg.es.sensorrecordingtool.merger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small framed protocol to move a recording over one or more TCP connections, which can be
+ * resumed from where a connection dropped. Each connection asks for a range of the file:
+ * <pre>
+ *   request:  int MAGIC, byte GET, long offset, long length
+ *   response: int MAGIC, long size, { int n, int crc32c, n bytes }*, int 0, int 0
+ * </pre>
+ * The provider reads each chunk once and computes its CRC-32C from the same buffer it sends.
+ * The retriever checks every chunk before it is stored, so only verified bytes count towards
+ * the offset from which a broken range is asked for again. A request of length 0 tells the
+ * size only, a DONE request ends the provider once the retriever has everything.
+ * <p>
+ * Ranges are fetched in parallel when written to a file, to fill links that a single TCP
+ * stream does not, and in order over a single stream when written to a sink.
+ */
+public class ChunkedTransfer {
+    public static final int MAGIC = 0x53525431; /* SRT1 */
+    public static final byte GET = 1, DONE = 2;
+    public static final int CHUNK_SIZE = TransferEngine.BUFFER_SIZE;
+
+    /** how long the provider waits for the retriever to (re)connect */
+    public static final int IDLE_TIMEOUT_MS = 120 * 1000;
+    public static final int CONNECT_TIMEOUT_MS = 10 * 1000;
+    public static final int READ_TIMEOUT_MS = 30 * 1000;
+
+    /**
+     * Serves a single file to any number of connections, until the retriever is done or did
+     * not connect for IDLE_TIMEOUT_MS.
+     */
+    public static class Server {
+        private final File mFile;
+        private final ServerSocket mSocket;
+        private final List<Thread> mConnections = new ArrayList<>();
+        private volatile boolean mDone = false;
+        private int mIdleTimeoutMs = IDLE_TIMEOUT_MS;
+
+        /**
+         * listens on any free port of all interfaces.
+         */
+        public Server(File file) throws IOException {
+            this(file, new ServerSocket(0));
+        }
+
+        public Server(File file, ServerSocket socket) {
+            mFile = file;
+            mSocket = socket;
+        }
+
+        public int getPort() {
+            return mSocket.getLocalPort();
+        }
+
+        public Server setIdleTimeout(int ms) {
+            mIdleTimeoutMs = ms;
+            return this;
+        }
+
+        /**
+         * blocks until the retriever is done or gone.
+         *
+         * @return whether the retriever said it is done
+         */
+        public boolean serve() throws IOException {
+            RandomAccessFile file = new RandomAccessFile(mFile, "r");
+
+            try {
+                mSocket.setSoTimeout(mIdleTimeoutMs);
+                while (!mDone) {
+                    final Socket client;
+                    try {
+                        client = mSocket.accept();
+                    } catch (SocketTimeoutException e) {
+                        if (isIdle())
+                            break;
+                        continue;
+                    } catch (IOException e) {
+                        if (mDone) /* closed by a DONE request */
+                            break;
+                        throw e;
+                    }
+
+                    final FileChannel channel = file.getChannel();
+                    Thread t = new Thread("ChunkedTransfer-" + client.getPort()) {
+                        @Override
+                        public void run() {
+                            try {
+                                handle(client, channel);
+                            } catch (IOException e) {
+                                /* the retriever resumes the range on a new connection */
+                            } finally {
+                                IOUtils.closeQuietly(client);
+                            }
+                        }
+                    };
+                    synchronized (mConnections) {
+                        mConnections.add(t);
+                    }
+                    t.start();
+                }
+
+                return mDone;
+            } finally {
+                IOUtils.closeQuietly(mSocket);
+                synchronized (mConnections) {
+                    for (Thread t : mConnections)
+                        t.interrupt();
+                }
+                file.close();
+            }
+        }
+
+        private boolean isIdle() {
+            synchronized (mConnections) {
+                for (Thread t : mConnections)
+                    if (t.isAlive())
+                        return false;
+                return true;
+            }
+        }
+
+        private void handle(Socket client, FileChannel file) throws IOException {
+            client.setSoTimeout(READ_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(client.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(client.getOutputStream()));
+
+            if (in.readInt() != MAGIC)
+                throw new IOException("not a transfer request");
+
+            byte command = in.readByte();
+            long offset = in.readLong(), length = in.readLong();
+
+            if (command == DONE) {
+                mDone = true;
+                IOUtils.closeQuietly(mSocket);
+                return;
+            }
+
+            long size = file.size(),
+                 end = offset < 0 || offset > size ? offset : Math.min(size, offset + length);
+            out.writeInt(MAGIC);
+            out.writeLong(size);
+
+            ByteBuffer buffer = TransferEngine.acquire();
+            try {
+                byte[] b = buffer.array();
+
+                for (long position = offset; position < end; ) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(CHUNK_SIZE, end - position));
+                    while (buffer.hasRemaining())
+                        if (file.read(buffer, position + buffer.position()) < 0)
+                            throw new EOFException(mFile + " shrunk while serving it");
+
+                    int n = buffer.position();
+                    out.writeInt(n);
+                    out.writeInt(Crc32c.compute(b, 0, n));
+                    out.write(b, 0, n);
+                    position += n;
+                }
+            } finally {
+                TransferEngine.release(buffer);
+            }
+
+            out.writeInt(0);
+            out.writeInt(0);
+            out.flush();
+        }
+    }
+
+    /** where verified chunks are stored */
+    interface Destination {
+        void write(byte[] b, int n, long position) throws IOException;
+    }
+
+    /**
+     * Fetches a file from a Server, resuming each range up to a number of times in a row when
+     * its connection breaks or a chunk arrives corrupted.
+     */
+    public static class Client {
+        private final InetSocketAddress mAddress;
+        private int mStreams = 4, mRetries = 5;
+        private long mRetryDelayMs = 1000;
+        private long mSize = -1;
+        private TransferEngine.ProgressListener mListener;
+        private long mIntervalMs = TransferEngine.DEFAULT_PROGRESS_INTERVAL_MS, mLastReportMs;
+        private long mTransferred = 0;
+
+        public Client(InetSocketAddress address) {
+            mAddress = address;
+        }
+
+        /** number of connections a file is fetched over in parallel */
+        public Client setStreams(int streams) {
+            mStreams = Math.max(1, streams);
+            return this;
+        }
+
+        /**
+         * @param retries attempts to resume a range that made no progress since the last one
+         * @param delayMs wait before the first attempt, doubled for each further one
+         */
+        public Client setRetries(int retries, long delayMs) {
+            mRetries = retries;
+            mRetryDelayMs = delayMs;
+            return this;
+        }
+
+        public Client setProgressListener(TransferEngine.ProgressListener listener) {
+            mListener = listener;
+            return this;
+        }
+
+        /**
+         * @return size of the file, known once the transfer started
+         */
+        public synchronized long getSize() {
+            return mSize;
+        }
+
+        /**
+         * fetches the file into *dest*, over several connections at once.
+         *
+         * @return number of bytes fetched
+         */
+        public long fetch(File dest) throws IOException, InterruptedException {
+            long size = stat();
+            final RandomAccessFile file = new RandomAccessFile(dest, "rw");
+
+            try {
+                file.setLength(size);
+                final FileChannel channel = file.getChannel();
+
+                fetch(size, mStreams, new Destination() {
+                    @Override
+                    public void write(byte[] b, int n, long position) throws IOException {
+                        ByteBuffer buffer = ByteBuffer.wrap(b, 0, n);
+                        while (buffer.hasRemaining())
+                            position += channel.write(buffer, position);
+                    }
+                });
+            } finally {
+                file.close();
+            }
+
+            return size;
+        }
+
+        /**
+         * fetches the file into *sink* in order, over a single connection. The sink is not
+         * closed.
+         *
+         * @return number of bytes fetched
+         */
+        public long fetch(final OutputStream sink) throws IOException, InterruptedException {
+            long size = stat();
+
+            fetch(size, 1, new Destination() {
+                private long mWritten = 0;
+
+                @Override
+                public void write(byte[] b, int n, long position) throws IOException {
+                    if (position != mWritten)
+                        throw new IllegalStateException("chunks must arrive in order");
+                    sink.write(b, 0, n);
+                    mWritten += n;
+                }
+            });
+
+            sink.flush();
+            return size;
+        }
+
+        /** tells the server that everything has arrived, so it can stop listening */
+        public void done() {
+            Socket socket = null;
+            try {
+                socket = connect();
+                request(socket, DONE, 0, 0);
+            } catch (IOException e) {
+                /* the server stops on its own once idle */
+            } finally {
+                IOUtils.closeQuietly(socket);
+            }
+        }
+
+        private long stat() throws IOException, InterruptedException {
+            Range r = new Range(0, 0);
+            fetch(r, null);
+            synchronized (this) {
+                mSize = r.size;
+            }
+            return r.size;
+        }
+
+        private void fetch(long size, int streams, final Destination dest)
+                throws IOException, InterruptedException {
+            int n = (int) Math.max(1, Math.min(streams, (size + CHUNK_SIZE - 1) / CHUNK_SIZE));
+            long step = (size + n - 1) / n;
+            step = (step + CHUNK_SIZE - 1) / CHUNK_SIZE * CHUNK_SIZE;
+
+            final List<Range> ranges = new ArrayList<>();
+            for (long start = 0; start < size; start += step)
+                ranges.add(new Range(start, Math.min(step, size - start)));
+
+            if (ranges.size() <= 1) {
+                for (Range r : ranges)
+                    fetch(r, dest);
+                progress(true);
+                return;
+            }
+
+            final IOException[] error = new IOException[1];
+            List<Thread> threads = new ArrayList<>();
+            for (final Range r : ranges) {
+                Thread t = new Thread("ChunkedTransfer-" + r.start) {
+                    @Override
+                    public void run() {
+                        try {
+                            fetch(r, dest);
+                        } catch (IOException e) {
+                            synchronized (error) {
+                                error[0] = e;
+                            }
+                        } catch (InterruptedException e) {
+                            synchronized (error) {
+                                error[0] = new IOException("interrupted", e);
+                            }
+                        }
+                    }
+                };
+                threads.add(t);
+                t.start();
+            }
+
+            try {
+                for (Thread t : threads)
+                    t.join();
+            } catch (InterruptedException e) {
+                for (Thread t : threads)
+                    t.interrupt();
+                throw e;
+            }
+
+            if (error[0] != null)
+                throw error[0];
+            progress(true);
+        }
+
+        /**
+         * fetches the bytes of *r* that have not arrived yet into *dest*, or only the size if
+         * *dest* is null.
+         */
+        private void fetch(Range r, Destination dest) throws IOException, InterruptedException {
+            int failures = 0;
+            IOException last = null;
+
+            while (true) {
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+
+                long before = r.done;
+                Socket socket = null;
+                try {
+                    socket = connect();
+                    receive(socket, r, dest);
+                    return;
+                } catch (IOException e) {
+                    last = e;
+                } finally {
+                    IOUtils.closeQuietly(socket);
+                }
+
+                failures = r.done > before ? 1 : failures + 1;
+                if (failures > mRetries)
+                    throw new IOException(String.format("range at %d failed after %d bytes",
+                            r.start, r.done), last);
+
+                Thread.sleep(mRetryDelayMs << Math.min(failures - 1, 6));
+            }
+        }
+
+        private Socket connect() throws IOException {
+            Socket socket = new Socket();
+            socket.connect(mAddress, CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            return socket;
+        }
+
+        private static void request(Socket socket, byte command, long offset, long length)
+                throws IOException {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(MAGIC);
+            out.writeByte(command);
+            out.writeLong(offset);
+            out.writeLong(length);
+            out.flush();
+        }
+
+        private void receive(Socket socket, Range r, Destination dest) throws IOException {
+            request(socket, GET, r.start + r.done, r.length - r.done);
+
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            if (in.readInt() != MAGIC)
+                throw new IOException("not a transfer response");
+            r.size = in.readLong();
+
+            ByteBuffer buffer = TransferEngine.acquire();
+            try {
+                byte[] b = buffer.array();
+                int n;
+
+                while ((n = in.readInt()) > 0) {
+                    int crc = in.readInt();
+                    if (n > b.length)
+                        throw new IOException("chunk of " + n + " bytes is too large");
+                    in.readFully(b, 0, n);
+
+                    if (Crc32c.compute(b, 0, n) != crc)
+                        throw new IOException("checksum mismatch at " + (r.start + r.done));
+
+                    dest.write(b, n, r.start + r.done);
+                    r.done += n;
+                    add(n);
+                }
+                in.readInt();
+            } finally {
+                TransferEngine.release(buffer);
+            }
+
+            if (r.done != r.length)
+                throw new EOFException(String.format("range at %d ended after %d of %d bytes",
+                        r.start, r.done, r.length));
+        }
+
+        private synchronized void add(long bytes) {
+            mTransferred += bytes;
+            progress(false);
+        }
+
+        private synchronized void progress(boolean last) {
+            if (mListener == null)
+                return;
+
+            long now = System.currentTimeMillis();
+            if (last || now - mLastReportMs >= mIntervalMs) {
+                mLastReportMs = now;
+                mListener.onProgress(mTransferred);
+            }
+        }
+    }
+
+    /** a part of the file and how much of it has been verified */
+    private static class Range {
+        final long start, length;
+        volatile long done = 0;
+        volatile long size = -1;
+
+        Range(long start, long length) {
+            this.start = start;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package de.uni_freiburg.es.sensorrecordingtool.merger;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli), as used by iSCSI and ext4. java.util.zip.CRC32C is only available
+ * from Java 9 and API level 26, so this is a table driven version that processes eight bytes
+ * per step.
+ */
+public class Crc32c implements Checksum {
+    private static final int POLYNOMIAL = 0x82F63B78; /* reversed 0x1EDC6F41 */
+    private static final int[][] TABLE = new int[8][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++)
+                crc = (crc >>> 1) ^ ((crc & 1) != 0 ? POLYNOMIAL : 0);
+            TABLE[0][i] = crc;
+        }
+
+        for (int i = 0; i < 256; i++)
+            for (int t = 1; t < 8; t++)
+                TABLE[t][i] = (TABLE[t - 1][i] >>> 8) ^ TABLE[0][TABLE[t - 1][i] & 0xff];
+    }
+
+    private int mCrc = 0xffffffff;
+
+    @Override
+    public void update(int b) {
+        mCrc = (mCrc >>> 8) ^ TABLE[0][(mCrc ^ b) & 0xff];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int crc = mCrc, end = off + len;
+
+        for (; off + 8 <= end; off += 8) {
+            int lo = crc ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8 |
+                            (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24);
+            crc = TABLE[7][lo & 0xff] ^ TABLE[6][(lo >>> 8) & 0xff] ^
+                  TABLE[5][(lo >>> 16) & 0xff] ^ TABLE[4][lo >>> 24] ^
+                  TABLE[3][b[off + 4] & 0xff] ^ TABLE[2][b[off + 5] & 0xff] ^
+                  TABLE[1][b[off + 6] & 0xff] ^ TABLE[0][b[off + 7] & 0xff];
+        }
+
+        for (; off < end; off++)
+            crc = (crc >>> 8) ^ TABLE[0][(crc ^ b[off]) & 0xff];
+
+        mCrc = crc;
+    }
+
+    public void update(byte[] b) {
+        update(b, 0, b.length);
+    }
+
+    @Override
+    public long getValue() {
+        return ~mCrc & 0xffffffffL;
+    }
+
+    @Override
+    public void reset() {
+        mCrc = 0xffffffff;
+    }
+
+    /**
+     * @return the checksum of *len* bytes of *b* from *off*
+     */
+    public static int compute(byte[] b, int off, int len) {
+        Crc32c crc = new Crc32c();
+        crc.update(b, off, len);
+        return (int) crc.getValue();
+    }
+}
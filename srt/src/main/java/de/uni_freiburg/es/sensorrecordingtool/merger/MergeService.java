@@ -6,6 +6,7 @@ import android.os.IBinder;
 import android.support.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import de.uni_freiburg.es.sensorrecordingtool.RecorderStatus;
 import de.uni_freiburg.es.sensorrecordingtool.autodiscovery.AutoDiscovery;
@@ -15,6 +16,8 @@ public class MergeService extends Service {
 
     private static final String TAG = MergeService.class.getSimpleName();
     public static final String RELEVANT_AIDS = "relevant_aids";
+    public static final String STARTUP_TRACES = "startup_traces";
+    public static final String SEGMENTED = "segmented";
     private AutoDiscovery mAutoDiscovery;
     private ArrayList<MergeSession> mSessionList = new ArrayList<>();
 
@@ -35,8 +38,11 @@ public class MergeService extends Service {
 
         String recordUUID = intent.getStringExtra(RecorderStatus.RECORDING_UUID);
         ArrayList<String> nodeAidList = intent.getStringArrayListExtra(RELEVANT_AIDS);
+        HashMap<String, String> traces = (HashMap<String, String>) intent.getSerializableExtra(STARTUP_TRACES);
 
-        mSessionList.add(new MergeSession(this, recordUUID, getNodesFromAutoDiscovery(nodeAidList)));
+        boolean segmented = intent.getBooleanExtra(SEGMENTED, false);
+
+        mSessionList.add(new MergeSession(this, recordUUID, getNodesFromAutoDiscovery(nodeAidList), traces, segmented));
 
         return super.onStartCommand(intent, flags, startId);
     }
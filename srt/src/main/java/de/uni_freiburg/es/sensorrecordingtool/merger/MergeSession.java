@@ -12,11 +12,22 @@ import android.util.Log;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import de.uni_freiburg.es.sensorrecordingtool.FFMpegCopyProcess;
+import de.uni_freiburg.es.sensorrecordingtool.FFMpegProcess;
 import de.uni_freiburg.es.sensorrecordingtool.RSyncProcess;
 import de.uni_freiburg.es.sensorrecordingtool.RecorderStatus;
+import de.uni_freiburg.es.sensorrecordingtool.SegmentManifest;
 import de.uni_freiburg.es.sensorrecordingtool.autodiscovery.ConnectionTechnology;
 import de.uni_freiburg.es.sensorrecordingtool.autodiscovery.Node;
 import de.uni_freiburg.es.sensorrecordingtool.merger.retriever.BTDataRetriever;
@@ -32,13 +43,22 @@ public class MergeSession {
     private final ArrayList<RetrieverThread> mThreadPool = new ArrayList<>();
     private String mRecordingUUID;
     private ArrayList<File> mFiles = new ArrayList<>();
+    /** android ids of the nodes the files are from, in the same order */
+    private ArrayList<String> mFileNodes = new ArrayList<>();
+    /** the retrieved metadata files of the nodes by android id, see MetadataMerge */
+    private final HashMap<String, File> mMetadata = new HashMap<>();
     private Context mContext;
     private final String TAG = MergeSession.class.getSimpleName();
     private int mNodeDataCount = 0;
     private Handler mTimeoutHandler = new Handler();
     public static final long TIMEOUT_AFTER_LAST_FILE_MS = 120 * 1000;
+    /** how long to wait for the metadata file a node provides right after its recording */
+    public static final long METADATA_TIMEOUT_MS = 30 * 1000;
     private boolean mIsFinished = false;
     public static final String ACTION_MERGE_CANCEL = "merge_cancel";
+    /** prefix of the tags holding the startup traces nodes sent with READY, followed by the
+     * android id. Those end before the readysteady and start phases, see StartupTrace. */
+    public static final String READY_TRACE_TAG = "startup_trace_ready_";
     private boolean isRegistered = false;
 
     private final BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
@@ -53,16 +73,50 @@ public class MergeSession {
             for (Thread t : mThreadPool)
                 t.interrupt();
             mTimeoutHandler.removeCallbacksAndMessages(null); // remove all scheduled runnables
+            if (mMerge != null) // lets the muxer stop, off the main thread
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            mMerge.finish();
+                        } catch (InterruptedException e) {
+                        }
+                    }
+                }.start();
             mMergeStatus.error(new InterruptedException("cancelled by user"));
             mIsFinished = true;
         }
     };
 
     private MergeStatus mMergeStatus;
+    private final HashMap<String, String> mStartupTraces = new HashMap<>();
     private String outputPath;
+    private boolean mSegmented = false;
+    private StreamingMerge mMerge;
+    private final HashMap<Node, StreamingMerge.Input> mInputs = new HashMap<>();
 
     public MergeSession(Context context, String recordingUUID, ArrayList<Node> nodes) {
+        this(context, recordingUUID, nodes, null);
+    }
+
+    /**
+     * @param traces encoded startup traces by android id, stored in the merged recording
+     */
+    public MergeSession(Context context, String recordingUUID, ArrayList<Node> nodes,
+                        HashMap<String, String> traces) {
+        this(context, recordingUUID, nodes, traces, false);
+    }
+
+    /**
+     * @param segmented whether the nodes record in segments, which are retrieved one after the
+     *                  other while the recording is running, see SegmentManifest
+     */
+    public MergeSession(Context context, String recordingUUID, ArrayList<Node> nodes,
+                        HashMap<String, String> traces, boolean segmented) {
         this.mContext = context;
+        this.mSegmented = segmented;
+        if (traces != null)
+            this.mStartupTraces.putAll(traces);
         this.mNodeDataCount = nodes.size();
         this.mRecordingUUID = recordingUUID;
         this.mMergeStatus = new MergeStatus(context, recordingUUID, nodes.size());
@@ -73,6 +127,9 @@ public class MergeSession {
 
         registerReceiver(mBroadcastReceiver, intentFilter);
 
+        if (!segmented)
+            setupStreamingMerge(nodes);
+
         launchRetrievers(nodes);
 
     }
@@ -91,6 +148,71 @@ public class MergeSession {
         }
     }
 
+    /**
+     * Creates an input of the streaming merge for each node, into which its recording is
+     * retrieved directly. Falls back to retrieving files if the pipes can not be created.
+     */
+    private void setupStreamingMerge(ArrayList<Node> nodes) {
+        StreamingMerge merge = new StreamingMerge(mContext.getFilesDir().getParentFile(),
+                new CopyMuxer(), TIMEOUT_AFTER_LAST_FILE_MS);
+
+        try {
+            for (Node node : nodes)
+                mInputs.put(node, merge.addInput(node.getAid()));
+            mMerge = merge;
+        } catch (Exception e) {
+            Log.e(TAG, "unable to set up streaming merge, merging files instead", e);
+            mInputs.clear();
+            try {
+                merge.finish();
+            } catch (InterruptedException ie) {
+            }
+        }
+    }
+
+    private String getMergedOutput() {
+        return getOutputPath() + "/" + mRecordingUUID + ".merged.mkv";
+    }
+
+    /**
+     * Copies the streams of the nodes from their pipes into the merged recording.
+     */
+    private class CopyMuxer implements StreamingMerge.Muxer {
+        private FFMpegCopyProcess mProcess;
+
+        @Override
+        public void start(List<File> inputs) throws IOException {
+            String[] input = new String[inputs.size()];
+            for (int i = 0; i < input.length; i++)
+                input[i] = inputs.get(i).getAbsolutePath();
+
+            try {
+                FFMpegCopyProcess.Builder builder = new FFMpegCopyProcess.Builder()
+                        .setInput(input)
+                        .setOutput(getMergedOutput())
+                        .setVerbose(FFMpegProcess.isVerbose(mContext));
+
+                for (Map.Entry<String, String> trace : mStartupTraces.entrySet())
+                    builder.setTag(READY_TRACE_TAG + trace.getKey(), trace.getValue());
+
+                mProcess = builder.build(mContext);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public boolean await() throws InterruptedException {
+            if (mProcess.waitFor() != 0)
+                return false;
+
+            Log.i(TAG, "merged to: " + getMergedOutput() + ", " + mProcess.getProgress());
+            return true;
+        }
+    }
+
     private void registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
         mContext.getApplicationContext().registerReceiver(mBroadcastReceiver, filter);
         isRegistered = true;
@@ -122,31 +244,61 @@ public class MergeSession {
     }
 
     /**
-     * Merges all device recordings to one big mkv container using FFMPEG.
+     * Merges all device recordings to one big mkv container using FFMPEG, or waits for the
+     * streaming merge to finish, which cuts the transfers still running short.
      * Deletes all device recordings if {@link #CLEANUP} is set and will RSync if allowed by the user.
      * This method will block until all recordings were merged.
      */
     private void mergeAllRecordings() {
+        if (mMerge != null) {
+            finishStreamingMerge();
+            return;
+        }
+
         Log.i(TAG, "merging all node recordings");
 
         int i = 0;
-        ArrayList<String> input = new ArrayList<>();
-        for (File file : mFiles)
-            if (file != null)
-                input.add(file.getAbsolutePath());
+        ArrayList<String> input = new ArrayList<>(),
+                          nodes = new ArrayList<>();
+        synchronized (mFiles) {
+            for (int j = 0; j < mFiles.size(); j++) {
+                input.add(mFiles.get(j).getAbsolutePath());
+                nodes.add(mFileNodes.get(j));
+            }
+        }
 
         try {
             unregisterReceiver(mBroadcastReceiver);
             String output = getOutputPath() + "/" + mRecordingUUID + ".merged.mkv";
 
-            FFMpegCopyProcess copyProcess = new FFMpegCopyProcess.Builder()
-                    .setInput(input.toArray(new String[input.size()]))
+            FFMpegCopyProcess.Builder builder = new FFMpegCopyProcess.Builder();
+
+            /** the segments of each node are joined into a single input */
+            for (int j = 0; j < input.size(); j++) {
+                File file = new File(input.get(j));
+                if (!SegmentManifest.isManifest(file))
+                    continue;
+
+                File list = new File(file.getPath() + ".concat");
+                SegmentManifest.writeConcatList(list, getSegmentFiles(file));
+                input.set(j, list.getAbsolutePath());
+                builder.addInputArgument(j, "-f", "concat")
+                       .addInputArgument(j, "-safe", "0");
+            }
+
+            builder.setInput(input.toArray(new String[input.size()]))
                     .setOutput(output)
-                    .build(mContext);
+                    .setVerbose(FFMpegProcess.isVerbose(mContext));
+
+            for (Map.Entry<String, String> trace : mStartupTraces.entrySet())
+                builder.setTag(READY_TRACE_TAG + trace.getKey(), trace.getValue());
+
+            FFMpegCopyProcess copyProcess = builder.build(mContext);
             copyProcess.waitFor();
 
             if (new File(output).exists()) {
-                Log.i(TAG, "merged to: " + output);
+                Log.i(TAG, "merged to: " + output + ", " + copyProcess.getProgress());
+                mergeMetadata(nodes, output);
                 mMergeStatus.finished(output);
 
                 rSyncIfNecessary(output);
@@ -166,6 +318,66 @@ public class MergeSession {
         }
     }
 
+    private void finishStreamingMerge() {
+        Log.i(TAG, "finishing the streaming merge of " + mMerge.getMerged().size() + " nodes");
+
+        try {
+            unregisterReceiver(mBroadcastReceiver);
+            String output = getMergedOutput();
+
+            if (mMerge.finish() && new File(output).exists()) {
+                List<String> nodes = new ArrayList<>();
+                for (StreamingMerge.Input input : mMerge.getMerged())
+                    nodes.add(input.name);
+                mergeMetadata(nodes, output);
+                mMergeStatus.finished(output);
+                rSyncIfNecessary(output);
+            } else
+                mMergeStatus.error(new FileNotFoundException("file not written"));
+
+            mIsFinished = true;
+        } catch (Exception e) {
+            mMergeStatus.error(e);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * stores the metadata files of the merged *nodes*, given in the order of their streams in
+     * *output*, in a single one next to it, see MetadataMerge.
+     */
+    private void mergeMetadata(List<String> nodes, String output) {
+        MetadataMerge merge = new MetadataMerge();
+        File file = MetadataMerge.getFile(new File(output));
+
+        synchronized (mMetadata) {
+            if (mMetadata.isEmpty())
+                return;
+
+            try {
+                for (String aid : nodes)
+                    merge.add(aid, mMetadata.get(aid));
+                merge.write(file);
+            } catch (IOException e) {
+                Log.e(TAG, "unable to merge the metadata of the nodes into " + file, e);
+                return;
+            }
+        }
+
+        if (!merge.isAligned())
+            Log.w(TAG, "not all nodes provided their metadata, streams in " + file + " are incomplete");
+    }
+
+    /**
+     * @return the segments listed in *manifest*, which are stored next to it
+     */
+    private static List<File> getSegmentFiles(File manifest) throws IOException {
+        List<File> files = new ArrayList<>();
+        for (SegmentManifest.Entry e : SegmentManifest.read(manifest))
+            files.add(new File(manifest.getParentFile(), e.name));
+        return files;
+    }
+
     /**
      * Will check whether rSync is activated and kick off the process if it is.
      * @param file
@@ -222,43 +434,199 @@ public class MergeSession {
          * Builds a compatible Retriever for a given Node.
          *
          * @param node
+         * @param id the recording or, for segmented recordings, the item to retrieve
          * @return
          */
-        private DataRetriever pickRetriever(Node node) {
-
-            ArrayList<ConnectionTechnology.Type> list = new ArrayList<>();
-            for (ConnectionTechnology tech : node.getConnectionTechnologies())
-                list.add(tech.getType());
+        private DataRetriever pickRetriever(Node node, String id) {
+            List<ConnectionTechnology.Type> list = getTypes(node);
 
             if (list.contains(ConnectionTechnology.Type.LOCAL))
                 return new LocalDataRetriever(mContext, node, mRecordingUUID);
             else if (list.contains(ConnectionTechnology.Type.WEAR))
-                return new WearDataRetriever(mContext, node, mRecordingUUID);
+                return new WearDataRetriever(mContext, node, id);
             else if (list.contains(ConnectionTechnology.Type.TCP_OVER_WIFI))
-                return new TCPRetriever(mContext, node, mRecordingUUID);
+                return new TCPRetriever(mContext, node, id);
             else if (list.contains(ConnectionTechnology.Type.BT_CLASSIC))
-                return new BTDataRetriever(mContext, node, mRecordingUUID);
+                return new BTDataRetriever(mContext, node, id);
 
             else return null; // TODO
         }
 
-        @Override
-        public void run() {
-            this.retriever = pickRetriever(node);
+        /**
+         * @return a retriever listening for the metadata file a remote node provides right
+         * after its recording, or null if none is provided. Bluetooth can only serve ids that
+         * are UUIDs, and the file of this device is read in place.
+         */
+        private DataRetriever pickMetadataRetriever(boolean segments) {
+            if (segments || retriever instanceof LocalDataRetriever ||
+                    retriever instanceof BTDataRetriever)
+                return null;
 
-            this.retriever.setProgressChangedListener(new ProgressChangedListener() {
+            return pickRetriever(node, MetadataMerge.getItemId(mRecordingUUID));
+        }
+
+        /**
+         * waits at most METADATA_TIMEOUT_MS for the metadata file of the node, so that a node
+         * without one does not hold up the merge.
+         *
+         * @return the metadata file, or null if there is none
+         */
+        private File retrieveMetadata(final DataRetriever metadata) {
+            if (retriever instanceof LocalDataRetriever) {
+                File recording = ((LocalDataRetriever) retriever).getSource(),
+                     file = recording == null ? null : MetadataMerge.getFile(recording);
+                return file != null && file.exists() ? file : null;
+            }
+
+            if (metadata == null)
+                return null;
+
+            FutureTask<File> task = new FutureTask<>(new Callable<File>() {
+                @Override
+                public File call() throws Exception {
+                    return metadata.getFile();
+                }
+            });
+            Thread thread = new Thread(task, "metadata of " + node.getAid());
+            thread.start();
+
+            try {
+                return task.get(METADATA_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                Log.w(TAG, node.toString() + " did not provide the metadata of its recording");
+                return null;
+            } catch (InterruptedException e) {
+                interrupt();
+                return null;
+            } finally {
+                thread.interrupt();
+                metadata.destroy();
+            }
+        }
+
+        private List<ConnectionTechnology.Type> getTypes(Node node) {
+            ArrayList<ConnectionTechnology.Type> list = new ArrayList<>();
+            for (ConnectionTechnology tech : node.getConnectionTechnologies())
+                list.add(tech.getType());
+            return list;
+        }
+
+        private void listen(DataRetriever retriever) {
+            retriever.setProgressChangedListener(new ProgressChangedListener() {
                 @Override
                 public void progressChanged(DataRetriever retriever) {
                     System.out.println(retriever+" -> "+retriever.getProgress());
                     mMergeStatus.setProgress(calculateTotalProgress());
                 }
             });
+        }
+
+        /**
+         * Retrieves the segments of a remote node one after the other, while it is still
+         * recording, until its manifest arrives. The retriever of the next item is listening
+         * before the current one is awaited, so that no announcement of the provider is missed.
+         *
+         * @return a manifest of the retrieved segments
+         */
+        private File retrieveSegments() throws InterruptedException, IOException {
+            List<File> segments = new ArrayList<>();
+
+            for (int index = 0; ; index++) {
+                DataRetriever next = pickRetriever(node,
+                        SegmentManifest.getItemId(mRecordingUUID, index + 1));
+                File file;
+
+                try {
+                    file = retriever.getFile();
+                } catch (InterruptedException e) {
+                    next.destroy();
+                    throw e;
+                }
+
+                if (file == null) {
+                    next.destroy();
+                    throw new IOException(String.format("item %d of %s was not retrieved",
+                            index, node));
+                }
+
+                if (!SegmentManifest.isManifest(file)) {
+                    Log.i(TAG, node.toString() + " provided segment " + file);
+                    segments.add(file);
+                    retriever.destroy();
+                    retriever = next;
+                    listen(retriever);
+                    continue;
+                }
+
+                next.destroy();
+
+                /** the same segments under their local names */
+                List<SegmentManifest.Entry> remote = SegmentManifest.read(file),
+                                            local = new ArrayList<>();
+                if (remote.size() != segments.size())
+                    throw new IOException(String.format("%s lists %d segments, but %d arrived",
+                            file, remote.size(), segments.size()));
+
+                for (int j = 0; j < remote.size(); j++)
+                    local.add(new SegmentManifest.Entry(segments.get(j).getName(),
+                            remote.get(j).start, remote.get(j).end));
+
+                File manifest = new File(file.getParentFile(),
+                        node.getAid() + "_" + mRecordingUUID + SegmentManifest.EXTENSION);
+                SegmentManifest.write(manifest, local, true);
+                return manifest;
+            }
+        }
+
+        @Override
+        public void run() {
+            /** the segments of this node are on disk already */
+            boolean segments = mSegmented &&
+                    !getTypes(node).contains(ConnectionTechnology.Type.LOCAL);
+            this.retriever = pickRetriever(node, segments ?
+                    SegmentManifest.getItemId(mRecordingUUID, 0) : mRecordingUUID);
+            listen(this.retriever);
+
+            /** the recording is streamed into the merge instead of a file */
+            if (mInputs.containsKey(node))
+                this.retriever.setSink(mInputs.get(node));
+
+            /** listens before the recording is awaited, the metadata follows right after it */
+            DataRetriever metadata = pickMetadataRetriever(segments);
 
             File file = null;
             try {
-                file = retriever.getFile();
-                Log.i(TAG, node.toString()+" provided "+file.toString());
-                mFiles.add(file);
+                try {
+                    file = segments ? retrieveSegments() : retriever.getFile();
+                } catch (IOException e) {
+                    /** ends this node like any other failed retrieval, so the session ends */
+                    Log.e(TAG, "unable to retrieve the segments of " + node, e);
+                } catch (InterruptedException e) {
+                    if (metadata != null)
+                        metadata.destroy();
+                    throw e;
+                }
+
+                if (file != null || retriever.isStreaming()) {
+                    File f = retrieveMetadata(metadata);
+                    if (f != null)
+                        synchronized (mMetadata) {
+                            mMetadata.put(node.getAid(), f);
+                        }
+                } else if (metadata != null)
+                    metadata.destroy();
+
+                if (file == null && !retriever.isStreaming())
+                    Log.e(TAG, node.toString() + " failed to provide its recording, merging without it");
+                else if (retriever.isRefused())
+                    Log.w(TAG, node.toString() + " started too late to be merged, kept " + file);
+                else
+                    Log.i(TAG, node.toString()+" provided "+(file != null ? file : "its stream"));
+                if (file != null)
+                    synchronized (mFiles) {
+                        mFiles.add(file);
+                        mFileNodes.add(node.getAid());
+                    }
 //                mMergeStatus.incrementProgress();
                 mTimeoutHandler.removeCallbacksAndMessages(null); // remove all scheduled runanbles
                 mNodeDataCount--;
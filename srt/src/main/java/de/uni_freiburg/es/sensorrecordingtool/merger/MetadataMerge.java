@@ -0,0 +1,143 @@
+package de.uni_freiburg.es.sensorrecordingtool.merger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Joins the metadata files that nodes store next to their recordings once they stopped, see
+ * Recorder.writeFrameCounters(), into one for the merged recording. Both are in ffmpeg's
+ * metadata format. The global entries of a node get its android id appended to their keys,
+ * the [STREAM] sections are concatenated in the order the streams appear in the merged
+ * recording, so the result can be applied with
+ * <p>
+ * ffmpeg -i merged.mkv -i merged.mkv.frames -map_metadata 1 -c copy tagged.mkv
+ */
+public class MetadataMerge {
+    public static final String HEADER = ";FFMETADATA1";
+
+    /** appended to a recording for the name of its metadata file */
+    public static final String EXTENSION = ".frames";
+    private static final String STREAM = "[STREAM]";
+
+    private final StringBuilder mGlobal = new StringBuilder(),
+                                mStreams = new StringBuilder();
+    private boolean mAligned = true;
+
+    /**
+     * @return the metadata file next to *recording*
+     */
+    public static File getFile(File recording) {
+        return new File(recording.getPath() + EXTENSION);
+    }
+
+    /**
+     * @return the id the metadata file of a recording is provided under, after the recording
+     */
+    public static String getItemId(String recordingUUID) {
+        return recordingUUID + EXTENSION;
+    }
+
+    /**
+     * adds the metadata of the next node in the merged recording.
+     *
+     * @param aid      android id of the node
+     * @param metadata the node's metadata file, null if it has none. Since the number of its
+     *                 streams is unknown then, no streams after it get any metadata.
+     */
+    public void add(String aid, File metadata) throws IOException {
+        if (metadata == null) {
+            mAligned = false;
+            return;
+        }
+
+        StringBuilder global = new StringBuilder(),
+                      streams = new StringBuilder();
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(metadata), "UTF-8"));
+
+        try {
+            String line = in.readLine();
+            if (line == null || !line.equals(HEADER))
+                throw new IOException(metadata + " is not an ffmpeg metadata file");
+
+            boolean stream = false, other = false;
+            while ((line = readEntry(in)) != null) {
+                if (line.isEmpty() || line.startsWith(";") || line.startsWith("#"))
+                    continue;
+
+                if (line.startsWith("[")) {
+                    stream = line.equals(STREAM);
+                    other = !stream;
+                    if (stream)
+                        streams.append(STREAM).append('\n');
+                    continue;
+                }
+
+                int eq = line.indexOf('=');
+                if (eq <= 0 || other)
+                    continue;
+
+                if (stream)
+                    streams.append(line).append('\n');
+                else
+                    global.append(line, 0, eq).append('_').append(aid)
+                          .append(line, eq, line.length()).append('\n');
+            }
+        } finally {
+            in.close();
+        }
+
+        mGlobal.append(global);
+        if (mAligned)
+            mStreams.append(streams);
+    }
+
+    /**
+     * @return the next line, joined with the following ones while it ends with an escaped
+     * line break
+     */
+    private static String readEntry(BufferedReader in) throws IOException {
+        String line = in.readLine();
+        if (line == null)
+            return null;
+
+        StringBuilder b = new StringBuilder(line);
+        while (endsEscaped(b) && (line = in.readLine()) != null)
+            b.append('\n').append(line);
+        return b.toString();
+    }
+
+    private static boolean endsEscaped(CharSequence s) {
+        int n = 0;
+        for (int i = s.length() - 1; i >= 0 && s.charAt(i) == '\\'; i--)
+            n++;
+        return n % 2 == 1;
+    }
+
+    /**
+     * @return whether the streams of all added nodes got their metadata
+     */
+    public boolean isAligned() {
+        return mAligned;
+    }
+
+    public void write(File out) throws IOException {
+        Writer w = new OutputStreamWriter(new FileOutputStream(out), "UTF-8");
+        try {
+            w.write(toString());
+        } finally {
+            w.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return HEADER + "\n" + mGlobal + mStreams;
+    }
+}
@@ -0,0 +1,333 @@
+package de.uni_freiburg.es.sensorrecordingtool.merger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges the recordings of all nodes while they are transferred, instead of storing each one
+ * and copying them afterwards. Each node gets a named pipe as Input, into which its retriever
+ * streams the bytes as they arrive, see DataRetriever.setSink(). Once every node started its
+ * transfer, the Muxer is started on all pipes and the merged recording is the only file that
+ * is written. ffmpeg interleaves the inputs by timestamp, so it reads all pipes at the pace of
+ * the slowest node: a faster one blocks on its full pipe until the others caught up, and the
+ * merge ends about when the slowest transfer does.
+ * <p>
+ * Nodes that did not start their transfer within the timeout after the last one did are left
+ * out of the merge, the first write to their Input fails with a LeftOutException, upon which
+ * the retriever stores the recording in a file instead. Once the muxer exits, writers still
+ * waiting for it to open their pipe are released and fail.
+ */
+public class StreamingMerge {
+    /** copies the recordings from a list of pipes into the merged one */
+    public interface Muxer {
+        /**
+         * starts reading *inputs*, which must be opened in order, and returns right away.
+         */
+        void start(List<File> inputs) throws IOException;
+
+        /**
+         * blocks until all inputs are read.
+         *
+         * @return whether the merged recording was written
+         */
+        boolean await() throws InterruptedException;
+    }
+
+    /** thrown by the first write to an Input that is not part of the merge */
+    public static class LeftOutException extends IOException {
+        public LeftOutException(String message) {
+            super(message);
+        }
+    }
+
+    private final File mDir;
+    private final Muxer mMuxer;
+    private final long mTimeoutMs;
+    private final List<Input> mInputs = new ArrayList<>();
+    private final List<Input> mMerged = new ArrayList<>();
+    private long mFirstStartMs = -1, mLastStartMs = -1;
+    private boolean mDecided = false;
+    private IOException mStartError = null;
+    private Thread mWatcher = null;
+    private volatile boolean mMuxerExited = false, mMuxed = false;
+
+    /**
+     * @param dir       where the pipes are created
+     * @param muxer     the muxer to start
+     * @param timeoutMs how long to wait on the other nodes once the last one started
+     */
+    public StreamingMerge(File dir, Muxer muxer, long timeoutMs) {
+        mDir = dir;
+        mMuxer = muxer;
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * The stream a single node is retrieved into. The first write blocks until the muxer is
+     * started, and fails if the node was left out.
+     */
+    public class Input extends OutputStream {
+        public final String name;
+        private final File mPipe;
+        private OutputStream mOut;
+        private boolean mStarted = false, mClosed = false, mOpening = false;
+
+        Input(String name, File pipe) {
+            this.name = name;
+            mPipe = pipe;
+        }
+
+        public File getPipe() {
+            return mPipe;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            open().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            OutputStream out;
+            synchronized (this) {
+                out = mOut;
+            }
+            if (out != null)
+                out.flush();
+        }
+
+        /**
+         * ends the transfer of this node. A node that never wrote is not waited on anymore,
+         * this may also be called from another thread to cut a stalled transfer short.
+         */
+        @Override
+        public void close() throws IOException {
+            OutputStream out;
+            synchronized (this) {
+                mClosed = true;
+                out = mOut;
+            }
+
+            if (out != null)
+                out.close();
+            else
+                onClosed(this);
+        }
+
+        public synchronized boolean isClosed() {
+            return mClosed;
+        }
+
+        public synchronized boolean isStarted() {
+            return mStarted;
+        }
+
+        /**
+         * lets a writer that waits for the pipe to be opened fail, in case the muxer stopped
+         * before opening it.
+         */
+        void release() {
+            synchronized (this) {
+                if (!mOpening)
+                    return;
+            }
+
+            try {
+                new FileInputStream(mPipe).close();
+            } catch (IOException e) {
+            }
+        }
+
+        private OutputStream open() throws IOException {
+            synchronized (this) {
+                if (mOut != null)
+                    return mOut;
+                if (mClosed)
+                    throw new IOException(name + " is closed");
+                mStarted = true;
+            }
+
+            if (!awaitMerge(this))
+                throw new LeftOutException(name + " was left out of the merge");
+
+            /** blocks until the muxer opens the pipe for reading, or release() */
+            synchronized (this) {
+                mOpening = true;
+            }
+            if (mMuxerExited) {
+                synchronized (this) {
+                    mOpening = false;
+                }
+                throw new IOException(name + " was not read, the muxer exited");
+            }
+            OutputStream out = new FileOutputStream(mPipe);
+            synchronized (this) {
+                mOpening = false;
+                if (!mClosed) {
+                    mOut = out;
+                    return out;
+                }
+            }
+
+            out.close();
+            throw new IOException(name + " is closed");
+        }
+    }
+
+    /**
+     * creates the pipe of another node, all nodes must be added before the first one starts.
+     */
+    public synchronized Input addInput(String name) throws IOException, InterruptedException {
+        if (mFirstStartMs >= 0)
+            throw new IllegalStateException("inputs must be added before the first transfer");
+
+        File pipe = File.createTempFile("merge", "", mDir);
+        pipe.delete();
+
+        Process p = new ProcessBuilder().command("mknod", pipe.getAbsolutePath(), "p").start();
+        if (p.waitFor() != 0)
+            throw new IOException("mknod failed for " + pipe);
+        pipe.deleteOnExit();
+
+        Input in = new Input(name, pipe);
+        mInputs.add(in);
+        return in;
+    }
+
+    /**
+     * @return whether *in* is part of the merge, after waiting until that is decided
+     */
+    private synchronized boolean awaitMerge(Input in) throws IOException {
+        mLastStartMs = System.currentTimeMillis();
+        if (mFirstStartMs < 0)
+            mFirstStartMs = mLastStartMs;
+        notifyAll();
+
+        try {
+            while (!mDecided) {
+                long left = mLastStartMs + mTimeoutMs - System.currentTimeMillis();
+
+                if (left <= 0 || allDecided())
+                    decide();
+                else
+                    wait(left);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting on the other nodes");
+        }
+
+        if (mStartError != null)
+            throw mStartError;
+
+        return mMerged.contains(in);
+    }
+
+    private synchronized void onClosed(Input in) {
+        if (!mDecided && mFirstStartMs >= 0 && allDecided())
+            decide();
+        notifyAll();
+    }
+
+    /** @return whether every node either started or gave up */
+    private boolean allDecided() {
+        for (Input in : mInputs)
+            if (!in.isStarted() && !in.isClosed())
+                return false;
+        return true;
+    }
+
+    private void decide() {
+        List<File> pipes = new ArrayList<>();
+        for (Input in : mInputs)
+            if (in.isStarted() && !in.isClosed()) {
+                mMerged.add(in);
+                pipes.add(in.getPipe());
+            }
+
+        try {
+            if (!pipes.isEmpty()) {
+                mMuxer.start(pipes);
+                watchMuxer();
+            }
+        } catch (IOException e) {
+            mStartError = e;
+            mMerged.clear();
+        }
+
+        mDecided = true;
+        notifyAll();
+    }
+
+    /**
+     * waits for the muxer on another thread, and releases the writers of pipes it did not open
+     * once it exited, e.g. after failing on the first input.
+     */
+    private void watchMuxer() {
+        final List<Input> inputs = new ArrayList<>(mMerged);
+
+        mWatcher = new Thread("streaming merge watcher") {
+            @Override
+            public void run() {
+                try {
+                    mMuxed = mMuxer.await();
+                } catch (InterruptedException e) {
+                } finally {
+                    mMuxerExited = true;
+                    for (Input in : inputs)
+                        in.release();
+                }
+            }
+        };
+        mWatcher.start();
+    }
+
+    /** @return the inputs that are merged, empty until the muxer is started */
+    public synchronized List<Input> getMerged() {
+        return new ArrayList<>(mMerged);
+    }
+
+    /**
+     * closes all inputs, which cuts transfers that are still running short, and waits for
+     * the muxer.
+     *
+     * @return whether the merged recording was written
+     */
+    public boolean finish() throws InterruptedException {
+        List<Input> inputs;
+        synchronized (this) {
+            inputs = new ArrayList<>(mInputs);
+        }
+
+        for (Input in : inputs)
+            IOUtils.closeQuietly(in);
+
+        Thread watcher;
+        synchronized (this) {
+            watcher = mWatcher;
+        }
+
+        try {
+            if (watcher == null)
+                return false;
+
+            watcher.join();
+            return mMuxed;
+        } finally {
+            for (Input in : inputs) {
+                in.release();
+                in.getPipe().delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package de.uni_freiburg.es.sensorrecordingtool.merger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Locale;
+
+/**
+ * Measures how fast a recording is moved over a loopback TCP connection, either plainly by the
+ * TransferEngine or the way a TCPProvider serves it to a TCPRetriever, so that the throughput
+ * of the transfer itself can be told apart from that of the link.
+ */
+public class TransferBenchmark {
+
+    public static class Result {
+        public final long bytes;
+        public final double seconds;
+
+        public Result(long bytes, double seconds) {
+            this.bytes = bytes;
+            this.seconds = seconds;
+        }
+
+        public double getMegabytesPerSecond() {
+            return seconds > 0 ? bytes / (1024. * 1024.) / seconds : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d bytes in %.3fs, %.1f MB/s", bytes, seconds,
+                    getMegabytesPerSecond());
+        }
+    }
+
+    /**
+     * sends *input* over loopback and stores it in *output*.
+     */
+    public static Result run(final File input, File output) throws IOException,
+            InterruptedException {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName(null), 0));
+        final IOException[] error = new IOException[1];
+
+        Thread provider = new Thread() {
+            @Override
+            public void run() {
+                SocketChannel client = null;
+                FileInputStream in = null;
+                try {
+                    client = server.accept();
+                    in = new FileInputStream(input);
+                    new TransferEngine().send(in.getChannel(), client);
+                } catch (IOException e) {
+                    error[0] = e;
+                } finally {
+                    IOUtils.closeQuietly(in);
+                    IOUtils.closeQuietly(client);
+                }
+            }
+        };
+
+        long start = System.nanoTime();
+        provider.start();
+
+        SocketChannel channel = null;
+        FileOutputStream out = null;
+        long bytes;
+        try {
+            channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+            out = new FileOutputStream(output);
+            bytes = new TransferEngine().receive(channel, out);
+        } finally {
+            IOUtils.closeQuietly(out);
+            IOUtils.closeQuietly(channel);
+            provider.join();
+            IOUtils.closeQuietly(server);
+        }
+
+        if (error[0] != null)
+            throw error[0];
+
+        return new Result(bytes, (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * sends *input* over loopback with the ChunkedTransfer protocol, which checksums every
+     * chunk, over *streams* connections and stores it in *output*.
+     */
+    public static Result runChunked(File input, File output, int streams) throws IOException,
+            InterruptedException {
+        final ChunkedTransfer.Server server = new ChunkedTransfer.Server(input,
+                new ServerSocket(0, 50, InetAddress.getByName(null)));
+        final IOException[] error = new IOException[1];
+
+        Thread provider = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        };
+
+        long start = System.nanoTime();
+        provider.start();
+
+        ChunkedTransfer.Client client = new ChunkedTransfer.Client(
+                new InetSocketAddress(InetAddress.getByName(null), server.getPort()))
+                .setStreams(streams);
+        long bytes;
+        try {
+            bytes = client.fetch(output);
+        } finally {
+            client.done();
+            provider.join();
+        }
+
+        if (error[0] != null)
+            throw error[0];
+
+        return new Result(bytes, (System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,199 @@
+package de.uni_freiburg.es.sensorrecordingtool.merger;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Moves whole recordings between files, sockets and pipes. Files are sent with
+ * FileChannel.transferTo, which the platform turns into sendfile when the other side is a
+ * socket channel, everything else is copied through large buffers that are pooled across
+ * transfers. Progress is reported at most once per interval, and once more at the end.
+ */
+public class TransferEngine {
+    public static final int BUFFER_SIZE = 256 * 1024;
+    public static final long DEFAULT_PROGRESS_INTERVAL_MS = 250;
+
+    /** how many idle buffers are kept for the next transfer */
+    private static final int POOL_SIZE = 4;
+    private static final ArrayDeque<ByteBuffer> POOL = new ArrayDeque<>();
+
+    /** bytes handed to a single transferTo call, so progress is reported along the way */
+    private static final long TRANSFER_CHUNK = 4 * 1024 * 1024;
+
+    public interface ProgressListener {
+        /**
+         * @param bytes transferred so far
+         */
+        void onProgress(long bytes);
+    }
+
+    private final long mIntervalMs;
+    private ProgressListener mListener;
+    private long mLastReportMs;
+
+    public TransferEngine() {
+        this(DEFAULT_PROGRESS_INTERVAL_MS);
+    }
+
+    /**
+     * @param progressIntervalMs minimum time between two progress reports
+     */
+    public TransferEngine(long progressIntervalMs) {
+        mIntervalMs = progressIntervalMs;
+    }
+
+    public TransferEngine setProgressListener(ProgressListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * @return a buffer of BUFFER_SIZE bytes, which should be released after the transfer
+     */
+    public static ByteBuffer acquire() {
+        synchronized (POOL) {
+            ByteBuffer b = POOL.poll();
+            if (b != null) {
+                b.clear();
+                return b;
+            }
+        }
+        return ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    public static void release(ByteBuffer buffer) {
+        synchronized (POOL) {
+            if (POOL.size() < POOL_SIZE)
+                POOL.push(buffer);
+        }
+    }
+
+    /**
+     * sends the remainder of *in* into *out*, without copying it through the heap where
+     * supported.
+     *
+     * @return number of bytes sent
+     */
+    public long send(FileChannel in, WritableByteChannel out) throws IOException {
+        long start = in.position(), position = start, size = in.size();
+        mLastReportMs = System.currentTimeMillis();
+
+        while (position < size) {
+            long n = in.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), out);
+            if (n <= 0) /* e.g. a non-blocking channel that is full, copy the rest */
+                break;
+            position += n;
+            progress(position - start, false);
+        }
+
+        in.position(position);
+        return position - start + copy(in, out, position - start);
+    }
+
+    /**
+     * copies *in* into *out* until the end of *in*.
+     *
+     * @return number of bytes copied
+     */
+    public long copy(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        mLastReportMs = System.currentTimeMillis();
+        return copy(in, out, 0);
+    }
+
+    private long copy(ReadableByteChannel in, WritableByteChannel out, long offset)
+            throws IOException {
+        ByteBuffer buffer = acquire();
+        long count = 0;
+
+        try {
+            while (in.read(buffer) >= 0 || buffer.position() > 0) {
+                buffer.flip();
+                count += out.write(buffer);
+                buffer.compact();
+                progress(offset + count, false);
+            }
+        } finally {
+            release(buffer);
+        }
+
+        progress(offset + count, true);
+        return count;
+    }
+
+    /**
+     * copies *in* into *out* until the end of *in* and flushes *out*. Between two files the
+     * channels are used, anything else is copied through a pooled buffer. Neither stream is
+     * closed.
+     *
+     * @return number of bytes copied
+     */
+    public long transfer(InputStream in, OutputStream out) throws IOException {
+        long count;
+
+        if (in instanceof FileInputStream && out instanceof FileOutputStream)
+            count = send(((FileInputStream) in).getChannel(),
+                    ((FileOutputStream) out).getChannel());
+        else
+            count = copy(in, out);
+
+        out.flush();
+        return count;
+    }
+
+    /**
+     * copies *in* into *out* until the end of *in*, through the channel of *out* if it is a
+     * file. *out* is not closed.
+     *
+     * @return number of bytes copied
+     */
+    public long receive(ReadableByteChannel in, OutputStream out) throws IOException {
+        if (out instanceof FileOutputStream)
+            return copy(in, ((FileOutputStream) out).getChannel());
+        return transfer(Channels.newInputStream(in), out);
+    }
+
+    /**
+     * wrapping a stream with Channels.newChannel() would copy it through an 8k buffer of its
+     * own, so streams are copied with the pooled array directly.
+     */
+    private long copy(InputStream in, OutputStream out) throws IOException {
+        ByteBuffer buffer = acquire();
+        byte[] b = buffer.array();
+        long count = 0;
+        int n;
+        mLastReportMs = System.currentTimeMillis();
+
+        try {
+            while ((n = in.read(b)) >= 0) {
+                out.write(b, 0, n);
+                count += n;
+                progress(count, false);
+            }
+        } finally {
+            release(buffer);
+        }
+
+        progress(count, true);
+        return count;
+    }
+
+    private void progress(long bytes, boolean last) {
+        if (mListener == null)
+            return;
+
+        long now = System.currentTimeMillis();
+        if (last || now - mLastReportMs >= mIntervalMs) {
+            mLastReportMs = now;
+            mListener.onProgress(bytes);
+        }
+    }
+}
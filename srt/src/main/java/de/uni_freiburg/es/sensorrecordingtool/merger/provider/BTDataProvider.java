@@ -17,6 +17,7 @@ import java.util.UUID;
 import de.uni_freiburg.es.sensorrecordingtool.RecorderStatus;
 import de.uni_freiburg.es.sensorrecordingtool.autodiscovery.ConnectionTechnology;
 import de.uni_freiburg.es.sensorrecordingtool.merger.IOUtils;
+import de.uni_freiburg.es.sensorrecordingtool.merger.TransferEngine;
 
 public class BTDataProvider extends DataProvider {
 
@@ -37,6 +38,7 @@ public class BTDataProvider extends DataProvider {
 
         BluetoothServerSocket serverSocket = null;
         BluetoothSocket clientSocket = null;
+        FileInputStream in = null;
 
         try {
             serverSocket = BluetoothAdapter.getDefaultAdapter().listenUsingInsecureRfcommWithServiceRecord("Merge-Sync",
@@ -47,11 +49,13 @@ public class BTDataProvider extends DataProvider {
             Log.i(TAG, clientSocket.toString()+" connected");
 
 
-            IOUtils.transport(new FileInputStream(file), clientSocket.getOutputStream());
-            Log.i(TAG, "Wrote " + file.length() + "bytes over Bluetooth");
+            in = new FileInputStream(file);
+            long n = new TransferEngine().transfer(in, clientSocket.getOutputStream());
+            Log.i(TAG, "Wrote " + n + "bytes over Bluetooth");
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            IOUtils.closeQuietly(in);
 
             if(clientSocket != null)
                 try {
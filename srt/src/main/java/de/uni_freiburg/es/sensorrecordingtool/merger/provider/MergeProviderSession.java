@@ -5,7 +5,9 @@ import android.util.Log;
 
 import java.io.File;
 
+import de.uni_freiburg.es.sensorrecordingtool.SegmentManifest;
 import de.uni_freiburg.es.sensorrecordingtool.autodiscovery.ConnectionTechnology;
+import de.uni_freiburg.es.sensorrecordingtool.merger.MetadataMerge;
 
 public class MergeProviderSession extends Thread {
 
@@ -13,7 +15,12 @@ public class MergeProviderSession extends Thread {
     private Context mContext;
     private String mRecordUUID;
     private File mInputFile;
+    private SegmentManifest mSegments;
 
+    /**
+     * serves the recording, followed by the metadata file next to it if there is one, see
+     * MetadataMerge.
+     */
     public MergeProviderSession(Context context, String recordUUID, File inputFile) {
         mContext = context;
         mRecordUUID = recordUUID;
@@ -21,13 +28,50 @@ public class MergeProviderSession extends Thread {
         start();
     }
 
+    /**
+     * serves each segment as soon as it is completed, while the recording is still running,
+     * and the manifest once it is finished. The items are served one after the other with
+     * the ids of SegmentManifest.getItemId().
+     */
+    public MergeProviderSession(Context context, String recordUUID, SegmentManifest segments) {
+        mContext = context;
+        mRecordUUID = recordUUID;
+        mSegments = segments;
+        start();
+    }
+
     @Override
     public void run() {
         super.run();
+
+        if (mSegments == null) {
+            serve(mRecordUUID, mInputFile);
+
+            File metadata = MetadataMerge.getFile(mInputFile);
+            if (metadata.exists())
+                serve(MetadataMerge.getItemId(mRecordUUID), metadata);
+            return;
+        }
+
+        try {
+            int index = 0;
+            SegmentManifest.Entry entry;
+
+            while ((entry = mSegments.await(index)) != null)
+                serve(SegmentManifest.getItemId(mRecordUUID, index++),
+                        new File(mSegments.getManifestFile().getParentFile(), entry.name));
+
+            serve(SegmentManifest.getItemId(mRecordUUID, index), mSegments.getManifestFile());
+        } catch (InterruptedException e) {
+            Log.e(TAG, "stopped serving segments of " + mRecordUUID);
+        }
+    }
+
+    private void serve(String id, File file) {
         ConnectionTechnology tech = ConnectionTechnology.pickBestConnectionTechnology(ConnectionTechnology.gatherConnectionList(mContext));
         DataProvider provider = pickProvider(tech);
-        Log.i(TAG, "serving "+mRecordUUID+" via "+provider.getClass().getSimpleName());
-        provider.serve(mRecordUUID, mInputFile);
+        Log.i(TAG, "serving "+id+" via "+provider.getClass().getSimpleName());
+        provider.serve(id, file);
     }
 
     private DataProvider pickProvider(ConnectionTechnology technology) {
@@ -40,4 +84,4 @@ public class MergeProviderSession extends Thread {
             return new TCPProvider(mContext);
         else return null;
     }
-}
\ No newline at end of file
+}
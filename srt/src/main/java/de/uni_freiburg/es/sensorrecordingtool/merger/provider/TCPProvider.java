@@ -6,14 +6,11 @@ import android.provider.Settings;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
 
 import de.uni_freiburg.es.sensorrecordingtool.RecorderStatus;
 import de.uni_freiburg.es.sensorrecordingtool.autodiscovery.ConnectionTechnology;
-import de.uni_freiburg.es.sensorrecordingtool.merger.IOUtils;
+import de.uni_freiburg.es.sensorrecordingtool.merger.ChunkedTransfer;
 
 import static de.uni_freiburg.es.sensorrecordingtool.merger.provider.BTDataProvider.ACTION_PROVIDER_READY;
 
@@ -31,13 +28,14 @@ public class TCPProvider extends DataProvider {
     public void serve(String recordingUUID, File file) {
 
         try {
-            ServerSocket serverSocket = new ServerSocket(0); // assign any free port
-            sendProviderReadyIntent(recordingUUID, serverSocket.getLocalPort());
-            Socket clientSocket = serverSocket.accept();
-            Log.i(TAG, clientSocket.getInetAddress().toString() + " connected!");
-            IOUtils.transport(new FileInputStream(file), clientSocket.getOutputStream());
-            clientSocket.close();
-            serverSocket.close();
+            /** the retriever may reconnect to resume, see ChunkedTransfer */
+            ChunkedTransfer.Server server = new ChunkedTransfer.Server(file); // assign any free port
+            sendProviderReadyIntent(recordingUUID, server.getPort());
+
+            if (server.serve())
+                Log.i(TAG, "served " + file.length() + " bytes of " + file);
+            else
+                Log.e(TAG, "retriever of " + file + " did not finish");
         } catch (IOException e) {
             e.printStackTrace();
         }
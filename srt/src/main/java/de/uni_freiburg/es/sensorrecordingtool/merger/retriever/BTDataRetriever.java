@@ -10,8 +10,8 @@ import android.content.IntentFilter;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 
@@ -52,18 +52,21 @@ public class BTDataRetriever extends DataRetriever {
 
     private void doBluetoothExchange(String mac) {
         BluetoothSocket bluetoothSocket = null;
+        OutputStream out = null;
         try {
             BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(mac);
             bluetoothSocket = device.createInsecureRfcommSocketToServiceRecord(UUID.fromString(mRecordingUUID));
             bluetoothSocket.connect();
             Log.i(TAG, "connected to " + mac);
 
-            IOUtils.transport(bluetoothSocket.getInputStream(), new FileOutputStream(getDestinationFile()));
+            out = openDestination();
+            long n = newTransferEngine().transfer(bluetoothSocket.getInputStream(), out);
+            Log.i(TAG, "received " + n + " bytes from " + mac);
 
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-
+            IOUtils.closeQuietly(out);
 
             if (bluetoothSocket != null)
                 try {
@@ -94,7 +97,7 @@ public class BTDataRetriever extends DataRetriever {
     public File getFile() throws InterruptedException {
         latch.await();
         setProgress(1);
-        return getDestinationFile();
+        return getRetrievedFile();
     }
 
 
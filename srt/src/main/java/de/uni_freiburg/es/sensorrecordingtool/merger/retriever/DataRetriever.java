@@ -2,18 +2,29 @@ package de.uni_freiburg.es.sensorrecordingtool.merger.retriever;
 
 import android.content.Context;
 import android.os.Environment;
+import android.util.Log;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 
 import de.uni_freiburg.es.sensorrecordingtool.autodiscovery.Node;
+import de.uni_freiburg.es.sensorrecordingtool.merger.StreamingMerge;
+import de.uni_freiburg.es.sensorrecordingtool.merger.TransferEngine;
 
 public abstract class DataRetriever {
 
+    private static final String TAG = DataRetriever.class.getSimpleName();
     protected final String mRecordingUUID;
     protected final Node mNode;
     protected Context mContext;
     private String fileName;
     private ProgressChangedListener mProgressChangedListener;
+    private OutputStream mSink;
+    private volatile boolean mRefused = false;
+    private volatile long mTransferredBytes = 0;
 
     private float mProgress = 0f;
 
@@ -46,8 +57,119 @@ public abstract class DataRetriever {
             mProgressChangedListener.progressChanged(this);
     }
 
+    /**
+     * blocks until the recording is retrieved.
+     *
+     * @return the retrieved file, or null if it was written to the sink or could not be
+     * retrieved completely
+     */
     public abstract File getFile() throws InterruptedException;
 
+    /**
+     * streams the retrieved bytes into *sink* as they arrive instead of storing them in a
+     * file. The sink is closed once the transfer ended, must be set before it starts.
+     */
+    public void setSink(OutputStream sink) {
+        mSink = sink;
+    }
+
+    public boolean isStreaming() {
+        return mSink != null;
+    }
+
+    /**
+     * @return whether the sink refused the recording since it was left out of the streaming
+     * merge, it is stored in the destination file instead
+     */
+    public boolean isRefused() {
+        return mRefused;
+    }
+
+    /**
+     * @return where the retrieved bytes are written to, the sink or the destination file
+     */
+    protected OutputStream openDestination() throws FileNotFoundException {
+        return mSink != null ? new SinkStream(mSink) : new FileOutputStream(getDestinationFile());
+    }
+
+    /**
+     * @return the destination file, or null if the recording was written to the sink
+     */
+    protected File getRetrievedFile() {
+        return isStreaming() && !isRefused() ? null : getDestinationFile();
+    }
+
+    /**
+     * Writes into the sink, unless it refuses the first write, then into the destination file.
+     */
+    private class SinkStream extends OutputStream {
+        private final OutputStream mSink;
+        private OutputStream mOut;
+
+        SinkStream(OutputStream sink) {
+            mSink = sink;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mOut == null)
+                try {
+                    mSink.write(b, off, len);
+                    mOut = mSink;
+                    return;
+                } catch (StreamingMerge.LeftOutException e) {
+                    Log.w(TAG, e.getMessage() + ", retrieving into " + getDestinationFile());
+                    mRefused = true;
+                    mOut = new FileOutputStream(getDestinationFile());
+                }
+
+            mOut.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mOut != null)
+                mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (mOut != null && mOut != mSink)
+                    mOut.close();
+            } finally {
+                mSink.close();
+            }
+        }
+    }
+
+    /**
+     * @return an engine that keeps track of the bytes retrieved so far
+     */
+    protected TransferEngine newTransferEngine() {
+        return new TransferEngine().setProgressListener(new TransferEngine.ProgressListener() {
+            @Override
+            public void onProgress(long bytes) {
+                setTransferredBytes(bytes);
+            }
+        });
+    }
+
+    protected void setTransferredBytes(long bytes) {
+        mTransferredBytes = bytes;
+        if (mProgressChangedListener != null)
+            mProgressChangedListener.progressChanged(this);
+    }
+
+    public long getTransferredBytes() {
+        return mTransferredBytes;
+    }
+
     public String getFileName() {
         return fileName;
     }
@@ -6,10 +6,15 @@ import android.content.Intent;
 import android.content.IntentFilter;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.concurrent.CountDownLatch;
 
 import de.uni_freiburg.es.sensorrecordingtool.RecorderStatus;
 import de.uni_freiburg.es.sensorrecordingtool.autodiscovery.Node;
+import de.uni_freiburg.es.sensorrecordingtool.merger.IOUtils;
 
 
 public class LocalDataRetriever extends DataRetriever {
@@ -48,10 +53,40 @@ public class LocalDataRetriever extends DataRetriever {
             super.mContext.unregisterReceiver(mReceiver);
     }
 
+    /**
+     * @return the recording on this device, null until it is finished
+     */
+    public File getSource() {
+        return latch.getCount() == 0 ? mFile : null;
+    }
+
+    /**
+     * the recording is on this device already, when streaming it is read once into the sink.
+     */
     @Override
     public File getFile() throws InterruptedException {
         latch.await();
+
+        if (isStreaming()) {
+            OutputStream out = null;
+            InputStream in = null;
+            try {
+                out = openDestination();
+                in = new FileInputStream(mFile);
+                newTransferEngine().transfer(in, out);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                IOUtils.closeQuietly(in);
+                IOUtils.closeQuietly(out);
+            }
+        }
+
+        /** the recording is here already, a copy of it is not needed */
+        if (isRefused())
+            getDestinationFile().delete();
+
         setProgress(1);
-        return mFile;
+        return isStreaming() && !isRefused() ? null : mFile;
     }
 }
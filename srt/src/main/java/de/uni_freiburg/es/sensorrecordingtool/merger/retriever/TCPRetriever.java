@@ -8,21 +8,26 @@ import android.content.IntentFilter;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.Socket;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.util.concurrent.CountDownLatch;
 
 import de.uni_freiburg.es.sensorrecordingtool.RecorderStatus;
 import de.uni_freiburg.es.sensorrecordingtool.autodiscovery.ConnectionTechnology;
 import de.uni_freiburg.es.sensorrecordingtool.autodiscovery.Node;
+import de.uni_freiburg.es.sensorrecordingtool.merger.ChunkedTransfer;
 import de.uni_freiburg.es.sensorrecordingtool.merger.IOUtils;
+import de.uni_freiburg.es.sensorrecordingtool.merger.TransferEngine;
 import de.uni_freiburg.es.sensorrecordingtool.merger.provider.BTDataProvider;
 
 public class TCPRetriever extends DataRetriever {
 
     private static final String TAG = TCPRetriever.class.getSimpleName();
+    /** connections a recording is fetched over in parallel, unless it is streamed */
+    private static final int STREAMS = 4;
     private CountDownLatch latch = new CountDownLatch(1);
+    private volatile boolean mComplete = false;
     private boolean isBroadcastReceiverRegistered = false;
 
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
@@ -44,12 +49,39 @@ public class TCPRetriever extends DataRetriever {
                     super.run();
                     String host = ip.split(":")[0];
                     int port = Integer.parseInt(ip.split(":")[1]);
+                    final ChunkedTransfer.Client client =
+                            new ChunkedTransfer.Client(new InetSocketAddress(host, port));
+                    client.setProgressListener(new TransferEngine.ProgressListener() {
+                        @Override
+                        public void onProgress(long bytes) {
+                            long size = client.getSize();
+                            if (size > 0)
+                                setProgress(Math.min(1f, bytes / (float) size));
+                            setTransferredBytes(bytes);
+                        }
+                    });
+
+                    OutputStream out = null;
                     try {
-                        Socket socket = new Socket(host, port);
-                        IOUtils.transport(socket.getInputStream(), new FileOutputStream(getDestinationFile()));
-                        socket.close();
+                        long n;
+                        if (isStreaming()) {
+                            out = openDestination();
+                            n = client.fetch(out);
+                        } else
+                            n = client.setStreams(STREAMS).fetch(getDestinationFile());
+                        Log.i(TAG, "received " + n + " bytes from " + ip);
+                        mComplete = true;
                     } catch (IOException e) {
-                        e.printStackTrace();
+                        Log.e(TAG, "unable to retrieve from " + ip, e);
+                    } catch (InterruptedException e) {
+                        Log.e(TAG, "stopped retrieving from " + ip);
+                    } finally {
+                        /** the file has its full size from the start, holes must not be merged */
+                        if (!mComplete && getRetrievedFile() != null)
+                            getDestinationFile().delete();
+                        client.done();
+                        IOUtils.closeQuietly(out);
+                        latch.countDown();
                     }
                 }
             }.start();
@@ -72,7 +104,11 @@ public class TCPRetriever extends DataRetriever {
     @Override
     public File getFile() throws InterruptedException{
         latch.await();
-        return getDestinationFile();
+        if (!mComplete)
+            return null;
+
+        setProgress(1);
+        return getRetrievedFile();
 
     }
 }
@@ -17,14 +17,20 @@ import com.google.android.gms.wearable.DataMapItem;
 import com.google.android.gms.wearable.Wearable;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 
 import de.uni_freiburg.es.sensorrecordingtool.autodiscovery.Node;
 import de.uni_freiburg.es.sensorrecordingtool.merger.IOUtils;
 import de.uni_freiburg.es.sensorrecordingtool.merger.MergeConst;
+import de.uni_freiburg.es.sensorrecordingtool.merger.TransferEngine;
 
 public class WearDataRetriever extends DataRetriever implements
         DataApi.DataListener,
@@ -35,6 +41,8 @@ public class WearDataRetriever extends DataRetriever implements
     private GoogleApiClient mGoogleApiClient;
 
     private int counter = 0;
+    private int mTotal = -1;
+    private final Set<Integer> mReceived = new HashSet<>();
 
     private CountDownLatch latch = new CountDownLatch(1);
 
@@ -62,9 +70,47 @@ public class WearDataRetriever extends DataRetriever implements
 
     @Override
     public File getFile() throws InterruptedException {
+        if (isStreaming())
+            streamChunks();
+
         latch.await();
         setProgress(1);
-        return getDestinationFile();
+        return getRetrievedFile();
+    }
+
+    /**
+     * writes the chunks into the sink in order as they arrive. This happens on the calling
+     * thread, since data items are delivered on the main thread, which must not block on the
+     * sink.
+     */
+    private void streamChunks() throws InterruptedException {
+        OutputStream out = null;
+        try {
+            out = openDestination();
+            TransferEngine engine = new TransferEngine();
+
+            for (int next = 0; ; next++) {
+                synchronized (this) {
+                    while (!mReceived.contains(next) && (mTotal < 0 || next < mTotal))
+                        wait();
+                    if (next == mTotal)
+                        break;
+                }
+
+                File chunk = getDestinationFile(next);
+                InputStream in = new FileInputStream(chunk);
+                try {
+                    engine.transfer(in, out);
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+                chunk.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
     }
 
 
@@ -112,9 +158,18 @@ public class WearDataRetriever extends DataRetriever implements
             counter++;
             setProgress(counter / (float) total);
 
+            synchronized (this) {
+                mTotal = total;
+                mReceived.add(offset);
+                notifyAll();
+            }
+
             if (counter == total) {
                 destroy();
-                mergeChunks();
+                if (isStreaming())
+                    latch.countDown();
+                else
+                    mergeChunks();
             }
         } catch (IOException e) {
             e.printStackTrace();
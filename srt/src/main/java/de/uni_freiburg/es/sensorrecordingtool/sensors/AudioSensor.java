@@ -1,22 +1,30 @@
 package de.uni_freiburg.es.sensorrecordingtool.sensors;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.AudioTimestamp;
 import android.media.MediaRecorder;
 import android.os.Build;
 import android.os.Handler;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
 import de.uni_freiburg.es.sensorrecordingtool.PermissionDialog;
 
 /**
- * Not wokring at all.
+ * Records the microphone in blocks of *latency* milliseconds, which can be set with the
+ * latency=ms option of the format specifier. Blocks are read into pooled buffers, see
+ * BufferPool, that hold BUFFERED_MS of audio for a writer that is temporarily too slow.
+ * Blocks that are read while the pool is empty are dropped and replaced by silence of the same
+ * length as soon as a buffer is free again, so the audio stays in sync with the other streams.
  * <p>
  * Created by phil on 4/26/16.
  */
@@ -27,6 +35,18 @@ public class AudioSensor extends Sensor {
     private int mChannelConfig, mSampleRate;
     private static int mAudioFormat = AudioFormat.ENCODING_PCM_16BIT;
 
+    /** capture latency, i.e. duration of a single block, unless given in the format */
+    public static final double DEFAULT_LATENCY_MS = 20;
+
+    /** duration of audio the buffer pool can hold while waiting to be written */
+    public static final double BUFFERED_MS = 1000;
+    private static final int MIN_BUFFERS = 4;
+
+    private double mLatencyMs = DEFAULT_LATENCY_MS;
+
+    /** samples over all channels that were dropped and replaced by silence */
+    private volatile long mDropped = 0;
+
     private RecorderThread mRecorderThread;
     private boolean mRecord = false;
 
@@ -42,6 +62,10 @@ public class AudioSensor extends Sensor {
     public void prepareSensor(double rate, String format) {
 
         mSampleRate = (int) rate;
+        mLatencyMs = FormatSpec.getDouble(format, "latency", DEFAULT_LATENCY_MS);
+        if (mLatencyMs <= 0)
+            mLatencyMs = DEFAULT_LATENCY_MS;
+
         if (mRecorderThread == null)
             mRecorderThread = new RecorderThread();
         mRecorderThread.startRecording();
@@ -66,7 +90,7 @@ public class AudioSensor extends Sensor {
             return;
         }
 
-        Log.d(TAG, String.format("default rate is %d", getAudioSampleRate()));
+        Log.d(TAG, String.format("default rate is %d", getAudioSampleRate(context)));
 
         if (mListeners.size() == 0) {
             mRecorderThread.readyToRecord();
@@ -89,6 +113,16 @@ public class AudioSensor extends Sensor {
         return 0;
     }
 
+    @Override
+    public long getDropped() {
+        return mDropped;
+    }
+
+    @Override
+    public boolean hasPooledBuffers() {
+        return true;
+    }
+
 
     /*
      * Valid Audio Sample rates
@@ -101,15 +135,94 @@ public class AudioSensor extends Sensor {
             32000, 37800, 44056, 44100, 47250, 4800, 50000, 50400, 88200,
             96000, 176400, 192000, 352800, 2822400, 5644800};
 
-    public static int getAudioSampleRate() {
-        for (int rate : getSupportedAudioSampleRates())
-            if (rate == 44100)
-                return rate;
+    /** the rate used when 44100Hz is supported or nothing is known yet */
+    public static final int DEFAULT_SAMPLE_RATE = 44100;
+
+    private static final String KEY_SAMPLE_RATES = "audio_sample_rates";
+    private static final String KEY_SAMPLE_RATES_FINGERPRINT = "audio_sample_rates_fingerprint";
+
+    private static volatile List<Integer> sSupportedRates = null;
+    private static Thread sProbeThread = null;
+
+    /**
+     * @return 44100Hz if supported or the supported rates are not known yet, otherwise the
+     * lowest supported rate. Never probes the hardware on the calling thread.
+     */
+    public static int getAudioSampleRate(Context c) {
+        List<Integer> rates = getSupportedAudioSampleRates(c);
+
+        if (rates.isEmpty() || rates.contains(DEFAULT_SAMPLE_RATE))
+            return DEFAULT_SAMPLE_RATE;
+
+        return rates.get(0);
+    }
+
+    /**
+     * returns the sample rates supported by the microphone, as probed once per device and OS
+     * build. If they are not known yet, a probe is started in the background and an empty list
+     * is returned.
+     */
+    public static List<Integer> getSupportedAudioSampleRates(Context c) {
+        List<Integer> rates = sSupportedRates;
+        if (rates != null)
+            return rates;
+
+        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(c);
+        if (Build.FINGERPRINT.equals(pref.getString(KEY_SAMPLE_RATES_FINGERPRINT, null))) {
+            rates = new ArrayList<>();
+            for (String rate : pref.getString(KEY_SAMPLE_RATES, "").split(","))
+                if (!rate.isEmpty())
+                    rates.add(Integer.parseInt(rate));
+
+            sSupportedRates = Collections.unmodifiableList(rates);
+            return sSupportedRates;
+        }
 
-        return getSupportedAudioSampleRates().get(0);
+        probeSampleRatesInBackground(c);
+        return Collections.emptyList();
     }
 
-    public static List<Integer> getSupportedAudioSampleRates() {
+    /**
+     * starts probing the supported sample rates in the background, unless they are already
+     * known or being probed. The result is stored together with the build fingerprint, so
+     * probing runs again after an OS update.
+     */
+    public static synchronized void probeSampleRatesInBackground(Context c) {
+        if (sSupportedRates != null || sProbeThread != null || !PermissionDialog.audio(c))
+            return;
+
+        final Context context = c.getApplicationContext();
+        sProbeThread = new Thread("audio rate probe") {
+            @Override
+            public void run() {
+                List<Integer> rates = probeSampleRates();
+
+                if (!rates.isEmpty()) {
+                    StringBuilder b = new StringBuilder();
+                    for (int rate : rates) {
+                        if (b.length() > 0)
+                            b.append(",");
+                        b.append(rate);
+                    }
+
+                    PreferenceManager.getDefaultSharedPreferences(context).edit()
+                            .putString(KEY_SAMPLE_RATES, b.toString())
+                            .putString(KEY_SAMPLE_RATES_FINGERPRINT, Build.FINGERPRINT)
+                            .commit();
+                    sSupportedRates = Collections.unmodifiableList(rates);
+                }
+
+                Log.d(TAG, "supported sample rates " + rates);
+                synchronized (AudioSensor.class) {
+                    sProbeThread = null;
+                }
+            }
+        };
+        sProbeThread.setPriority(Thread.MIN_PRIORITY);
+        sProbeThread.start();
+    }
+
+    private static List<Integer> probeSampleRates() {
         List<Integer> list = new ArrayList<>();
         /*
         * Selecting default audio input source for recording since
@@ -124,7 +237,8 @@ public class AudioSensor extends Sensor {
                         AudioFormat.CHANNEL_IN_MONO, mAudioFormat);
                 aud = new AudioRecord(MediaRecorder.AudioSource.DEFAULT,
                         samplingRate, AudioFormat.CHANNEL_IN_MONO, mAudioFormat, minBufSize);
-                list.add(samplingRate);
+                if (aud.getState() == AudioRecord.STATE_INITIALIZED)
+                    list.add(samplingRate);
             } catch (Exception e) {
             } finally {
                 if (aud != null)
@@ -132,10 +246,14 @@ public class AudioSensor extends Sensor {
                 aud = null;
             }
 
-
+        Collections.sort(list);
         return list;
     }
 
+    public int getChannelConfig() {
+        return mChannelConfig;
+    }
+
     public int getChannels() {
         return mChannelConfig == AudioFormat.CHANNEL_IN_MONO ? 1 : 2;
     }
@@ -144,7 +262,7 @@ public class AudioSensor extends Sensor {
 
         private CountDownLatch mRecordLatch = new CountDownLatch(1);
 
-        private boolean status = true;
+        private volatile boolean status = true;
 
         public void readyToRecord() {
             mRecordLatch.countDown();
@@ -152,35 +270,85 @@ public class AudioSensor extends Sensor {
 
         @Override
         public void run() {
-            int minBufSize = AudioRecord.getMinBufferSize(mSampleRate, mChannelConfig, mAudioFormat);
-            AudioRecord aud = new AudioRecord(MediaRecorder.AudioSource.DEFAULT,
-                    mSampleRate, mChannelConfig, mAudioFormat, minBufSize);
+            int minBufSize = AudioRecord.getMinBufferSize(mSampleRate, mChannelConfig, mAudioFormat),
+                frameSize = getChannels() * 2,
+                blockSize = Math.max(1, (int) (mSampleRate * mLatencyMs / 1000)) * frameSize,
+                count = Math.max(MIN_BUFFERS, (int) Math.ceil(BUFFERED_MS / mLatencyMs));
+            AudioRecord aud;
             AudioTimestamp ts = new AudioTimestamp();
-            byte buf[] = new byte[minBufSize];
 
-            for (aud.startRecording();
-                 aud.getState() == AudioRecord.STATE_UNINITIALIZED;
-                 aud.startRecording())
-                _sleep(200);
+            /** AudioRecord can only read into direct buffers since Lollipop */
+            boolean direct = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+            BufferPool pool = new BufferPool(count, blockSize, direct);
+
+            /** blocks that do not fit into the pool still need to be read, so they go here */
+            ByteBuffer spare = direct ? ByteBuffer.allocateDirect(blockSize) :
+                                        ByteBuffer.allocate(blockSize);
+
+            /** bytes of dropped blocks that still need to be replaced by silence */
+            long silence = 0;
+            byte[] zeros = new byte[blockSize];
 
-            aud.read(buf, 0, minBufSize);
+            try {
+                aud = new AudioRecord(MediaRecorder.AudioSource.DEFAULT,
+                        mSampleRate, mChannelConfig, mAudioFormat,
+                        Math.max(minBufSize, 2 * blockSize));
+
+                for (aud.startRecording();
+                     aud.getState() == AudioRecord.STATE_UNINITIALIZED;
+                     aud.startRecording())
+                    _sleep(200);
+            } catch (RuntimeException e) {
+                setFailed(e);
+                return;
+            }
+
+            read(aud, spare, blockSize);
 
             setPrepared();
 
             try {
                 mRecordLatch.await();
 
-                for (int err = aud.read(buf, 0, minBufSize);
-                     err >= 0 && status;
-                     err = aud.read(buf, 0, minBufSize)) {
+                while (status) {
+                    BufferPool.Buffer block = pool.acquire();
+                    ByteBuffer data = block == null ? spare : block.data();
+                    int err = read(aud, data, blockSize);
+
+                    if (err < 0) {
+                        if (block != null)
+                            block.release();
+                        break;
+                    }
+
+                    long timestamp;
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
                         aud.getTimestamp(ts, AudioTimestamp.TIMEBASE_MONOTONIC);
-                        mEvent.timestamp = ts.nanoTime;
+                        timestamp = ts.nanoTime;
                     } else
-                        mEvent.timestamp = System.currentTimeMillis() * 1000 * 1000;
+                        timestamp = System.currentTimeMillis() * 1000 * 1000;
+
+                    /** the silence for earlier drops has to go out first, which needs buffers
+                     * of its own. Until they are free this block is dropped as well. */
+                    if (silence > 0)
+                        silence = writeSilence(pool, zeros, silence, timestamp, frameSize);
 
-                    mEvent.rawdata = buf;
+                    if (block == null || silence > 0) {
+                        if (block != null)
+                            block.release();
+
+                        mDropped += err / frameSize;
+                        silence += err;
+                        continue;
+                    }
+
+                    mEvent.timestamp = timestamp;
+
+                    data.limit(err);
+                    mEvent.buffer = block;
                     notifyListeners();
+                    mEvent.buffer = null;
+                    block.release();
 
                     if (err == 0)
                         Log.d(TAG, "skipped block");
@@ -188,6 +356,8 @@ public class AudioSensor extends Sensor {
 
                 aud.stop();
                 aud.release();
+                Log.d(TAG, String.format("%s: %d samples dropped, %d of them not yet replaced by silence, %s",
+                        getStringName(), mDropped, silence / frameSize, pool));
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
@@ -195,6 +365,47 @@ public class AudioSensor extends Sensor {
 
         }
 
+        /**
+         * hands *bytes* of silence to the listeners in as many blocks as there are free
+         * buffers, timestamped as if they ended right before *timestamp*.
+         *
+         * @return the bytes of silence that did not fit into the free buffers
+         */
+        private long writeSilence(BufferPool pool, byte[] zeros, long bytes, long timestamp,
+                                  int frameSize) {
+            BufferPool.Buffer block;
+
+            while (bytes > 0 && (block = pool.acquire()) != null) {
+                int n = (int) Math.min(bytes, zeros.length);
+                ByteBuffer data = block.data();
+                data.clear();
+                data.put(zeros, 0, n);
+                data.flip();
+
+                mEvent.timestamp = timestamp - (long) (bytes / frameSize * 1e9 / mSampleRate);
+                mEvent.buffer = block;
+                notifyListeners();
+                mEvent.buffer = null;
+                block.release();
+
+                bytes -= n;
+            }
+
+            return bytes;
+        }
+
+        /**
+         * reads *size* bytes into *data*, which is left at position zero.
+         */
+        private int read(AudioRecord aud, ByteBuffer data, int size) {
+            data.clear();
+
+            if (data.isDirect() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+                return aud.read(data, size);
+
+            return aud.read(data.array(), data.arrayOffset(), size);
+        }
+
         private void _sleep(int i) {
             try {
                 Thread.sleep(i);
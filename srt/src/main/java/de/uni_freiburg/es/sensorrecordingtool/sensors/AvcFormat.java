@@ -0,0 +1,102 @@
+package de.uni_freiburg.es.sensorrecordingtool.sensors;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts H.264 as delivered by platform encoders, an Annex-B byte stream with start codes, to
+ * the form stored in Matroska and MP4: NAL units prefixed with their length, and a decoder
+ * configuration record holding the parameter sets.
+ */
+public class AvcFormat {
+    private static final int NAL_SPS = 7, NAL_PPS = 8;
+
+    private AvcFormat() {
+    }
+
+    /**
+     * @return offset and length of each NAL unit in *data*, as pairs
+     */
+    public static List<int[]> split(byte[] data, int off, int len) {
+        List<int[]> nals = new ArrayList<>();
+        int end = off + len, start = -1;
+
+        for (int i = off; i + 2 < end; i++) {
+            if (data[i] != 0 || data[i + 1] != 0 || data[i + 2] != 1)
+                continue;
+
+            if (start >= 0)
+                nals.add(new int[]{start, trim(data, start, i) - start});
+
+            start = i + 3;
+            i += 2;
+        }
+
+        if (start >= 0 && start < end)
+            nals.add(new int[]{start, end - start});
+
+        return nals;
+    }
+
+    /** @return the end of a NAL unit without the zero byte of a following four byte start code */
+    private static int trim(byte[] data, int start, int next) {
+        return next > start && data[next - 1] == 0 ? next - 1 : next;
+    }
+
+    /**
+     * @return the NAL units of an Annex-B stream, each prefixed with its length in four bytes
+     */
+    public static byte[] toLengthPrefixed(byte[] data, int off, int len) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(len + 16);
+
+        for (int[] nal : split(data, off, len)) {
+            out.write(nal[1] >>> 24);
+            out.write(nal[1] >>> 16);
+            out.write(nal[1] >>> 8);
+            out.write(nal[1]);
+            out.write(data, nal[0], nal[1]);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * @param config the codec configuration of an encoder, i.e. SPS and PPS with start codes
+     * @return an AVCDecoderConfigurationRecord with four byte lengths
+     * @throws IllegalArgumentException if the configuration lacks a parameter set
+     */
+    public static byte[] toDecoderConfig(byte[] config, int off, int len) {
+        int[] sps = null, pps = null;
+
+        for (int[] nal : split(config, off, len)) {
+            if (nal[1] == 0)
+                continue;
+
+            int type = config[nal[0]] & 0x1F;
+            if (type == NAL_SPS && sps == null)
+                sps = nal;
+            else if (type == NAL_PPS && pps == null)
+                pps = nal;
+        }
+
+        if (sps == null || pps == null || sps[1] < 4)
+            throw new IllegalArgumentException("codec configuration without SPS and PPS");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(1);                       /* version */
+        out.write(config[sps[0] + 1]);      /* profile */
+        out.write(config[sps[0] + 2]);      /* profile compatibility */
+        out.write(config[sps[0] + 3]);      /* level */
+        out.write(0xFF);                    /* four byte NAL lengths */
+        out.write(0xE1);                    /* one SPS */
+        out.write(sps[1] >>> 8);
+        out.write(sps[1]);
+        out.write(config, sps[0], sps[1]);
+        out.write(1);                       /* one PPS */
+        out.write(pps[1] >>> 8);
+        out.write(pps[1]);
+        out.write(config, pps[0], pps[1]);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,73 @@
+package de.uni_freiburg.es.sensorrecordingtool.sensors;
+
+/**
+ * Chooses the maximum report latency of a sensor when recording in batching mode. The longer
+ * the latency, the longer the CPU can sleep while the sensor hub collects samples in its FIFO.
+ * A batch must however fit into three places: the hardware FIFO, which drops samples when it
+ * overflows, the ring buffer in front of ffmpeg, which receives the whole batch at once, and
+ * the time budget of the writer thread that drains the ring buffer into ffmpeg.
+ */
+public class BatchingPolicy {
+    /** upper bound for the report latency, so a recording never lags too far behind */
+    public static final double MAX_LATENCY_S = 5 * 60;
+
+    /** share of the FIFO kept free for samples arriving while the CPU wakes up */
+    static final double FIFO_HEADROOM = .1;
+
+    /** number of FIFO slots that are never used for batching */
+    static final int FIFO_RESERVE = 2;
+
+    /** share of the ring buffer that a single batch may take up */
+    static final double BUFFER_SHARE = .5;
+
+    /** batches shorter than this number of samples are not worth it */
+    static final int MIN_BATCH_SAMPLES = 2;
+
+    /**
+     * @param fifoSize    number of events reserved for the sensor in the hardware FIFO
+     * @param rate        requested sampling rate in Hz
+     * @param sampleBytes number of bytes a single sample takes up on the output
+     * @param capacity    capacity in bytes of the buffer in front of the writer
+     * @param drainRate   measured drain speed of the writer in bytes per second, or a value
+     *                    smaller or equal to zero when unknown
+     * @return report latency in microseconds, zero for no batching
+     */
+    public static int getReportLatencyUs(int fifoSize, double rate, int sampleBytes,
+                                         int capacity, double drainRate) {
+        if (rate <= 0 || sampleBytes <= 0)
+            return 0;
+
+        double latency = Math.min(MAX_LATENCY_S, getFifoLatency(fifoSize, rate));
+        latency = Math.min(latency, getBufferLatency(rate, sampleBytes, capacity, drainRate));
+
+        if (latency * rate < MIN_BATCH_SAMPLES)
+            return 0;
+
+        return (int) (latency * 1e6);
+    }
+
+    /**
+     * @return seconds until the FIFO is filled up to its headroom
+     */
+    static double getFifoLatency(int fifoSize, double rate) {
+        double usable = fifoSize * (1 - FIFO_HEADROOM) - FIFO_RESERVE;
+        return usable > 0 ? usable / rate : 0;
+    }
+
+    /**
+     * A batch arrives all at once, while the writer drains it at its own speed. The more of
+     * its time the writer already spends on the continuous input of this stream, the smaller
+     * the share of the buffer that can safely take up a batch.
+     *
+     * @return seconds of samples that fit into the buffer
+     */
+    static double getBufferLatency(double rate, int sampleBytes, int capacity, double drainRate) {
+        double bytesPerSecond = rate * sampleBytes,
+               share = BUFFER_SHARE;
+
+        if (drainRate > 0)
+            share *= Math.max(0, 1 - bytesPerSecond / drainRate);
+
+        return capacity * share / bytesPerSecond;
+    }
+}
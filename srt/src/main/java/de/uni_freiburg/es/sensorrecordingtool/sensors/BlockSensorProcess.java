@@ -2,13 +2,34 @@ package de.uni_freiburg.es.sensorrecordingtool.sensors;
 
 import android.content.Context;
 import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 
-import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import de.uni_freiburg.es.sensorrecordingtool.FFMpegProcess;
 
+
 /**
+ * Writes blocks of samples (audio) or frames (video) to the output. These sensors do not
+ * deliver a timestamp per sample, so there is no resampling. An audio block is skipped when
+ * it arrives less than 1/rate seconds after the last one.
+ * <p>
+ * Sensors delivering pooled buffers (audio) write to an ffmpeg channel instead of a ring
+ * buffer. Each block is retained and written on the handler thread of this process, so the
+ * capturing thread never waits for ffmpeg and the block is never copied. When the writer
+ * falls behind, the sensor runs out of pooled buffers and drops blocks itself.
+ * <p>
+ * Video frames pass through the VideoEncoder, which either hands them to ffmpeg as they are
+ * or compresses them before, each with its own timestamp.
+ *
  * Created by phil on 9/1/16.
  */
 public class BlockSensorProcess extends SensorProcess {
@@ -21,12 +42,201 @@ public class BlockSensorProcess extends SensorProcess {
         super(c, sensor, rate, format, dur, os, handler);
     }
 
-    public BlockSensorProcess(Context c, String sensor, double rate, String format, double dur, FFMpegProcess p, int j, Handler handler) throws Exception {
-        super(c,sensor,rate,format,dur,p,j, handler);
+    public BlockSensorProcess(Context c, String sensor, double rate, String format, double dur, Handler handler) throws Exception {
+        super(c, sensor, rate, format, dur, handler);
+    }
+
+    private static final String TAG = "BlockSensorProcess";
+
+    /** how long the encoder waits for the camera to settle on a frame size */
+    private static final long PREPARE_TIMEOUT_MS = 10000;
+
+    private volatile WritableByteChannel mChannel = null;
+    private VideoEncoder mEncoder = null;
+    private long mWriteErrors = 0;
+
+    long mFirstTimestamp = -1;
+    long mWritten = 0;
+    double mDiff = 0;
+
+    @Override
+    public void onSensorChanged(SensorEvent sensorEvent) {
+        if (mEncoder != null) {
+            encode(sensorEvent);
+            return;
+        }
+
+        if (mLastTimestamp == -1) {
+            mFirstTimestamp = mLastTimestamp = sensorEvent.timestamp;
+            return;
+        }
+
+        if (mOut == null)
+            return;
+
+        try {
+            mDiff += (sensorEvent.timestamp - mLastTimestamp) * 1e-9;
+            mLastTimestamp = sensorEvent.timestamp;
+
+            if (mDiff < 1. / mRate)
+                return;
+
+            /** a block of audio holds many samples, a gap is never filled by repeating one */
+            mDiff -= 1. / mRate;
+            write(sensorEvent, 1);
+            mWritten++;
+
+            if (mDur > 0 && getElapsed() > mDur)
+                terminate();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * hands every frame with its own timestamp to the encoder, the first written frame is at
+     * zero. Nothing is dropped or repeated here, the track has a variable frame rate.
+     */
+    private void encode(SensorEvent sensorEvent) {
+        if (mOut == null)
+            return;
+
+        try {
+            if (mFirstTimestamp == -1)
+                mFirstTimestamp = sensorEvent.timestamp;
+
+            mLastTimestamp = sensorEvent.timestamp;
+            mEncoder.encode(sensorEvent.rawdata, 0, sensorEvent.rawdata.length,
+                    mLastTimestamp - mFirstTimestamp);
+            mWritten++;
+
+            if (mDur > 0 && getElapsed() > mDur)
+                terminate();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * sets the encoder for the frames of a video sensor, must be called before attach().
+     */
+    public void setEncoder(VideoEncoder encoder) {
+        if (!(mSensor instanceof VideoSensor))
+            throw new IllegalArgumentException(mSensor.getStringName() + " has no frames to encode");
+
+        mEncoder = encoder;
+    }
+
+    public VideoEncoder getEncoder() {
+        return mEncoder;
+    }
+
+    @Override
+    protected OutputStream openOutput(FFMpegProcess p, int j) throws IOException {
+        if (mEncoder != null) {
+            VideoSensor video = (VideoSensor) mSensor;
+
+            /** the camera may record another size than asked for, known once it is open */
+            try {
+                video.getPrepared().await(PREPARE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting for the camera");
+            }
+
+            VideoSensor.CameraSize size = video.getSize();
+            if (size == null)
+                throw new IOException(video.getStringName() + " did not open in time");
+
+            mEncoder.start(size.width, size.height, video.getCameraRotation(), mRate,
+                    super.openOutput(p, j));
+            return mEncoder.asStream();
+        }
+
+        if (!mSensor.hasPooledBuffers())
+            return super.openOutput(p, j);
+
+        WritableByteChannel channel = p.getChannel(j);
+        mChannel = channel;
+        return Channels.newOutputStream(channel);
+    }
+
+    @Override
+    protected void write(SensorEvent sensorEvent, int copies) throws IOException {
+        if (sensorEvent.buffer == null || mChannel == null) {
+            super.write(sensorEvent, copies);
+            return;
+        }
+
+        final BufferPool.Buffer block = sensorEvent.buffer.retain();
+        final WritableByteChannel channel = mChannel;
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ByteBuffer data = block.data();
+                    while (data.hasRemaining())
+                        channel.write(data);
+                } catch (IOException e) {
+                    if (mWriteErrors++ == 0)
+                        Log.e(TAG, "unable to write block", e);
+                } finally {
+                    block.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * waits until all blocks posted to the handler thread are written.
+     */
+    @Override
+    protected void flushPending() throws IOException {
+        if (mChannel == null || Looper.myLooper() == mHandler.getLooper())
+            return;
+
+        final CountDownLatch written = new CountDownLatch(1);
+        if (!mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                written.countDown();
+            }
+        }))
+            return;
+
+        try {
+            written.await(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
+    /**
+     * @return the block as a byte array, pooled buffers are copied since they get reused
+     */
     @Override
     public byte[] transfer(SensorEvent sensorEvent) {
-        return sensorEvent.rawdata;
+        if (sensorEvent.buffer == null)
+            return sensorEvent.rawdata;
+
+        ByteBuffer data = sensorEvent.buffer.data().duplicate();
+        byte[] arr = new byte[data.remaining()];
+        data.get(arr);
+        return arr;
+    }
+
+    @Override
+    public double getElapsed() {
+        return mFirstTimestamp == -1 ? 0 : (mLastTimestamp - mFirstTimestamp) * 1e-9;
+    }
+
+    @Override
+    public long getMeasuredSamples() {
+        return mWritten;
+    }
+
+    @Override
+    public long getSynthesizedSamples() {
+        return 0;
     }
 }
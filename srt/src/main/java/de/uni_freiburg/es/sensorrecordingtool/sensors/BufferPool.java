@@ -0,0 +1,116 @@
+package de.uni_freiburg.es.sensorrecordingtool.sensors;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed number of equally sized buffers that are handed from a capturing thread to the
+ * thread writing them out, without copying them in between. Buffers are reference counted:
+ * whoever keeps a buffer beyond the call it was handed over in must retain() it and release()
+ * it when done. A buffer returns to the pool once the last reference is released.
+ * <p>
+ * The pool never grows. When all buffers are in use the writer is too slow, acquire() returns
+ * null and the capturing side drops that block instead of overwriting one still in flight.
+ */
+public class BufferPool {
+    private final ConcurrentLinkedQueue<Buffer> mFree = new ConcurrentLinkedQueue<>();
+    private final int mCount;
+    private final int mSize;
+    private volatile long mMisses = 0;
+
+    public class Buffer {
+        private final ByteBuffer mData;
+        private final AtomicInteger mRefs = new AtomicInteger(0);
+
+        private Buffer(ByteBuffer data) {
+            mData = data;
+        }
+
+        /**
+         * @return the data of this buffer, valid between position and limit
+         */
+        public ByteBuffer data() {
+            return mData;
+        }
+
+        public Buffer retain() {
+            if (mRefs.getAndIncrement() <= 0)
+                throw new IllegalStateException("buffer was already released");
+            return this;
+        }
+
+        public void release() {
+            int refs = mRefs.decrementAndGet();
+
+            if (refs == 0)
+                mFree.add(this);
+            else if (refs < 0)
+                throw new IllegalStateException("buffer was released too often");
+        }
+    }
+
+    /**
+     * @param count  number of buffers in the pool
+     * @param size   capacity of each buffer in bytes
+     * @param direct whether to allocate buffers outside of the java heap, which lets native
+     *               code like AudioRecord or a FileChannel access them without a copy
+     */
+    public BufferPool(int count, int size, boolean direct) {
+        if (count <= 0 || size <= 0)
+            throw new IllegalArgumentException(
+                    String.format("invalid pool of %d buffers with %d bytes", count, size));
+
+        mCount = count;
+        mSize = size;
+
+        for (int i = 0; i < count; i++) {
+            ByteBuffer b = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+            mFree.add(new Buffer(b.order(ByteOrder.nativeOrder())));
+        }
+    }
+
+    /**
+     * only a single thread may acquire buffers, releasing is allowed from any thread.
+     *
+     * @return a cleared buffer with a single reference held by the caller, or null if all
+     * buffers are in use
+     */
+    public Buffer acquire() {
+        Buffer b = mFree.poll();
+
+        if (b == null) {
+            mMisses++;
+            return null;
+        }
+
+        b.mData.clear();
+        b.mRefs.set(1);
+        return b;
+    }
+
+    public int getBufferSize() {
+        return mSize;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /** @return number of buffers that are not in use */
+    public int getAvailable() {
+        return mFree.size();
+    }
+
+    /** @return number of times acquire() found no free buffer */
+    public long getMisses() {
+        return mMisses;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d buffers of %d bytes available, %d misses",
+                getAvailable(), mCount, mSize, mMisses);
+    }
+}
@@ -0,0 +1,199 @@
+package de.uni_freiburg.es.sensorrecordingtool.sensors;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The outcome of an asynchronous step like preparing or flushing a sensor. A completion is
+ * pending until it is either completed or failed exactly once, threads can wait for that with
+ * a timeout and callbacks get notified. The time from start() to the outcome is kept for
+ * diagnostics.
+ */
+public class Completion {
+    public enum State { PENDING, DONE, FAILED }
+
+    public interface Callback {
+        /** called once the completion is done or failed, on the thread that finished it */
+        void onFinished(Completion c);
+    }
+
+    private final String mName;
+    private final CountDownLatch mLatch = new CountDownLatch(1);
+    private final List<Callback> mCallbacks = new ArrayList<>();
+    private volatile State mState = State.PENDING;
+    private volatile Throwable mFailure = null;
+    private volatile long mStarted;
+    private volatile long mFinished = -1;
+
+    public Completion(String name) {
+        mName = name;
+        mStarted = System.nanoTime();
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * restarts the latency measurement, has no effect once finished.
+     */
+    public Completion start() {
+        if (mState == State.PENDING)
+            mStarted = System.nanoTime();
+        return this;
+    }
+
+    /**
+     * @return true if this call finished the completion, false if it was already finished
+     */
+    public boolean complete() {
+        return finish(State.DONE, null);
+    }
+
+    /**
+     * @return true if this call finished the completion, false if it was already finished
+     */
+    public boolean fail(Throwable reason) {
+        return finish(State.FAILED, reason);
+    }
+
+    private boolean finish(State state, Throwable reason) {
+        List<Callback> callbacks;
+
+        synchronized (this) {
+            if (mState != State.PENDING)
+                return false;
+
+            mFinished = System.nanoTime();
+            mFailure = reason;
+            mState = state;
+            callbacks = new ArrayList<>(mCallbacks);
+            mCallbacks.clear();
+        }
+
+        mLatch.countDown();
+        for (Callback cb : callbacks)
+            cb.onFinished(this);
+
+        return true;
+    }
+
+    /**
+     * registers a callback, which is called right away if the completion is already finished.
+     */
+    public void addCallback(Callback cb) {
+        synchronized (this) {
+            if (mState == State.PENDING) {
+                mCallbacks.add(cb);
+                return;
+            }
+        }
+
+        cb.onFinished(this);
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    public boolean isPending() {
+        return mState == State.PENDING;
+    }
+
+    public boolean isDone() {
+        return mState == State.DONE;
+    }
+
+    public boolean isFailed() {
+        return mState == State.FAILED;
+    }
+
+    public Throwable getFailure() {
+        return mFailure;
+    }
+
+    /** @return System.nanoTime() at which the step started */
+    public long getStartNanos() {
+        return mStarted;
+    }
+
+    /** @return System.nanoTime() at which the step finished, or -1 if still pending */
+    public long getFinishNanos() {
+        return mFinished;
+    }
+
+    /**
+     * @return nanoseconds from start to the outcome, or -1 if still pending
+     */
+    public long getLatencyNanos() {
+        long finished = mFinished;
+        return finished < 0 ? -1 : finished - mStarted;
+    }
+
+    /**
+     * waits until the completion is finished or the timeout passed.
+     *
+     * @return true if finished, false if still pending
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return mLatch.await(timeout, unit);
+    }
+
+    /**
+     * waits until the completion is done.
+     *
+     * @throws TimeoutException if still pending after the timeout
+     * @throws Exception        carrying the failure reason if the completion failed
+     */
+    public void sync(long timeout, TimeUnit unit) throws Exception {
+        if (!await(timeout, unit))
+            throw new TimeoutException(mName + " still pending after " +
+                    unit.toMillis(timeout) + "ms");
+
+        if (mState == State.FAILED)
+            throw new Exception(mName + " failed", mFailure);
+    }
+
+    /**
+     * waits for all completions within a single deadline.
+     *
+     * @throws TimeoutException naming all pending completions after the timeout
+     * @throws Exception        carrying the failure reason of the first failed completion
+     */
+    public static void syncAll(Collection<Completion> completions, long timeout, TimeUnit unit)
+            throws Exception {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        for (Completion c : completions)
+            c.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+
+        StringBuilder pending = new StringBuilder();
+        for (Completion c : completions) {
+            if (c.isFailed())
+                throw new Exception(c.getName() + " failed", c.getFailure());
+
+            if (c.isPending()) {
+                if (pending.length() > 0)
+                    pending.append(", ");
+                pending.append(c.getName());
+            }
+        }
+
+        if (pending.length() > 0)
+            throw new TimeoutException(pending + " still pending after " +
+                    unit.toMillis(timeout) + "ms");
+    }
+
+    @Override
+    public String toString() {
+        if (mState == State.PENDING)
+            return mName + ": pending";
+
+        return String.format("%s: %s after %.1fms", mName, mState.name().toLowerCase(),
+                getLatencyNanos() / 1e6);
+    }
+}
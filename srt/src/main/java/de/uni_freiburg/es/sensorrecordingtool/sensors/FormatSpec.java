@@ -0,0 +1,62 @@
+package de.uni_freiburg.es.sensorrecordingtool.sensors;
+
+/**
+ * Helpers for the per-input format specifier of a recording (the -f argument). A specifier is
+ * a list of options separated by ':', each of which is either a flag (e.g. "linear") or a
+ * key=value pair (e.g. "latency=20"). The video resolution, e.g. "1280x720", is just another
+ * flag in there, so "1280x720" is still a valid specifier.
+ */
+public class FormatSpec {
+    public static final String SEPARATOR = ":";
+
+    private FormatSpec() {
+    }
+
+    /**
+     * @param format the specifier, may be null
+     * @param flag   flag to look for, case-insensitive
+     * @return true if the flag is part of the specifier
+     */
+    public static boolean hasFlag(String format, String flag) {
+        if (format == null)
+            return false;
+
+        for (String option : format.split(SEPARATOR))
+            if (option.trim().equalsIgnoreCase(flag))
+                return true;
+
+        return false;
+    }
+
+    /**
+     * @param format the specifier, may be null
+     * @param key    key of the option, case-insensitive
+     * @param def    value to return when the option is not part of the specifier
+     * @return the value of the given key=value option or def
+     */
+    public static String getValue(String format, String key, String def) {
+        if (format == null)
+            return def;
+
+        for (String option : format.split(SEPARATOR)) {
+            int i = option.indexOf('=');
+            if (i > 0 && option.substring(0, i).trim().equalsIgnoreCase(key))
+                return option.substring(i + 1).trim();
+        }
+
+        return def;
+    }
+
+    public static double getDouble(String format, String key, double def) {
+        String value = getValue(format, key, null);
+
+        if (value == null)
+            return def;
+
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+}
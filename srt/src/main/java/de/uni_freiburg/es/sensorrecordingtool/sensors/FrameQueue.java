@@ -0,0 +1,151 @@
+package de.uni_freiburg.es.sensorrecordingtool.sensors;
+
+import java.util.ArrayDeque;
+
+/**
+ * A bounded handoff of frame buffers from a capturing thread (the camera) to the thread that
+ * writes them. The buffers themselves are owned by the capturing side and handed back through
+ * a Recycler once they were written or dropped, so no frame data is ever allocated here.
+ * <p>
+ * When the queue is full, the policy decides: DROP discards the oldest queued frame to keep
+ * the latency low, BLOCK makes the capturing thread wait for the writer.
+ */
+public class FrameQueue {
+    public enum Policy { DROP, BLOCK }
+
+    public interface Recycler {
+        /** hands a buffer back to its owner, called for every frame that was put() */
+        void recycle(byte[] data);
+    }
+
+    public static class Frame {
+        public final byte[] data;
+        public final long timestamp;
+
+        Frame(byte[] data, long timestamp) {
+            this.data = data;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final ArrayDeque<Frame> mFrames;
+    private final int mCapacity;
+    private final Policy mPolicy;
+    private final Recycler mRecycler;
+    private boolean mClosed = false;
+
+    private long mQueued = 0;
+    private long mDropped = 0;
+    private long mBlockedNanos = 0;
+
+    public FrameQueue(int capacity, Policy policy, Recycler recycler) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive, but was " + capacity);
+
+        mFrames = new ArrayDeque<>(capacity);
+        mCapacity = capacity;
+        mPolicy = policy;
+        mRecycler = recycler;
+    }
+
+    /**
+     * queues a frame, depending on the policy either dropping the oldest frame or waiting
+     * when the queue is full.
+     *
+     * @return false if the frame was not queued since the queue is closed, it is recycled
+     */
+    public boolean put(byte[] data, long timestamp) throws InterruptedException {
+        Frame dropped = null;
+
+        synchronized (this) {
+            if (mPolicy == Policy.BLOCK && !mClosed && mFrames.size() >= mCapacity) {
+                long start = System.nanoTime();
+                while (!mClosed && mFrames.size() >= mCapacity)
+                    wait();
+                mBlockedNanos += System.nanoTime() - start;
+            }
+
+            if (!mClosed) {
+                if (mFrames.size() >= mCapacity) {
+                    dropped = mFrames.poll();
+                    mDropped++;
+                }
+
+                mFrames.add(new Frame(data, timestamp));
+                mQueued++;
+                notifyAll();
+                data = null;
+            }
+        }
+
+        if (dropped != null)
+            mRecycler.recycle(dropped.data);
+        if (data != null)
+            mRecycler.recycle(data);
+
+        return data == null;
+    }
+
+    /**
+     * waits for the next frame, which must be handed to release() once written.
+     *
+     * @return the oldest queued frame, or null once the queue is closed
+     */
+    public synchronized Frame take() throws InterruptedException {
+        while (!mClosed && mFrames.isEmpty())
+            wait();
+
+        Frame f = mFrames.poll();
+        notifyAll();
+        return f;
+    }
+
+    /**
+     * hands the buffer of a frame from take() back to its owner.
+     */
+    public void release(Frame f) {
+        mRecycler.recycle(f.data);
+    }
+
+    /**
+     * wakes up all waiting threads and recycles all frames that were not taken yet.
+     */
+    public void close() {
+        ArrayDeque<Frame> remaining;
+
+        synchronized (this) {
+            mClosed = true;
+            remaining = new ArrayDeque<>(mFrames);
+            mFrames.clear();
+            notifyAll();
+        }
+
+        for (Frame f : remaining)
+            mRecycler.recycle(f.data);
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    /** @return number of frames that were queued */
+    public synchronized long getQueued() {
+        return mQueued;
+    }
+
+    /** @return number of queued frames that were dropped before being taken */
+    public synchronized long getDropped() {
+        return mDropped;
+    }
+
+    /** @return nanoseconds the capturing thread waited for space in total */
+    public synchronized long getBlockedNanos() {
+        return mBlockedNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d frames queued, %d dropped, %.1fms blocked (%s)",
+                mQueued, mDropped, mBlockedNanos / 1e6, mPolicy.name().toLowerCase());
+    }
+}
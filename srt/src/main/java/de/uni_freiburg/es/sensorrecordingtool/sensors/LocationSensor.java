@@ -5,6 +5,7 @@ import android.location.Location;
 import android.os.Bundle;
 import android.os.Handler;
 
+import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.location.LocationListener;
 import com.google.android.gms.location.LocationRequest;
@@ -15,7 +16,8 @@ import com.google.android.gms.location.LocationServices;
  * <p>
  * Created by phil on 3/1/16.
  */
-public class LocationSensor extends Sensor implements GoogleApiClient.ConnectionCallbacks, LocationListener {
+public class LocationSensor extends Sensor implements GoogleApiClient.ConnectionCallbacks,
+        GoogleApiClient.OnConnectionFailedListener, LocationListener {
 
     protected GoogleApiClient mGoogleApiClient;
     protected Location mLastLocation = new Location("empty");
@@ -33,6 +35,7 @@ public class LocationSensor extends Sensor implements GoogleApiClient.Connection
 
         mGoogleApiClient = new GoogleApiClient.Builder(mContext)
                 .addConnectionCallbacks(LocationSensor.this)
+                .addOnConnectionFailedListener(LocationSensor.this)
                 .addApi(LocationServices.API)
                 .build();
         mGoogleApiClient.connect();
@@ -125,6 +128,11 @@ public class LocationSensor extends Sensor implements GoogleApiClient.Connection
     public void onConnectionSuspended(int i) {
     }
 
+    @Override
+    public void onConnectionFailed(ConnectionResult result) {
+        setFailed(new Exception("unable to connect to location services: " + result));
+    }
+
     @Override
     public void flush(SensorEventListener l) {
         onLocationChanged(mLastLocation);
@@ -0,0 +1,331 @@
+package de.uni_freiburg.es.sensorrecordingtool.sensors;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import de.uni_freiburg.es.sensorrecordingtool.MatroskaWriter;
+
+/**
+ * Encodes frames to H.264 with the platform encoder, which is usually done in hardware. The
+ * encoded frames are written as a Matroska stream with the presentation times reported by the
+ * codec, ffmpeg copies them into the container. Frames are rotated before encoding, see
+ * VideoRotation.
+ */
+public class MediaCodecVideoEncoder extends VideoEncoder {
+    private static final String TAG = "MediaCodecVideoEncoder";
+    private static final String MIME = "video/avc";
+
+    /** bits per pixel and frame, gives about 2.7MBit/s at 720p with 30fps */
+    public static final double BITS_PER_PIXEL = .1;
+
+    /** seconds between two key frames */
+    public static final int KEY_FRAME_INTERVAL = 1;
+
+    /** how long to wait for a free input buffer before dropping the frame */
+    private static final long TIMEOUT_US = 10 * 1000;
+
+    /** upper bound for waiting on the end of the stream, in multiples of TIMEOUT_US */
+    private static final int EOS_TRIES = 100;
+
+    private MediaCodec mCodec;
+    private int mColorFormat, mStride, mSliceHeight;
+    private byte[] mRotated, mConverted, mChunk = new byte[0];
+    private ByteBuffer[] mInputs, mOutputs;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private long mDropped = 0, mLastUs = 0;
+    private MatroskaWriter mWriter;
+    private int mTrack = -1;
+    private boolean mKeyRequested = false;
+
+    @Override
+    public boolean isCompressed() {
+        return true;
+    }
+
+    /**
+     * @return an encoder that takes semi-planar or planar YUV420 input, or null if there is none
+     */
+    private static MediaCodecInfo findEncoder() {
+        for (int i = 0; i < MediaCodecList.getCodecCount(); i++) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            if (!info.isEncoder())
+                continue;
+
+            for (String type : info.getSupportedTypes())
+                if (type.equalsIgnoreCase(MIME) && getColorFormat(info) != -1)
+                    return info;
+        }
+
+        return null;
+    }
+
+    private static int getColorFormat(MediaCodecInfo info) {
+        int planar = -1;
+
+        for (int format : info.getCapabilitiesForType(MIME).colorFormats)
+            if (format == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar)
+                return format;
+            else if (format == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar)
+                planar = format;
+
+        return planar;
+    }
+
+    /**
+     * @return true if the platform has an H.264 encoder for camera frames
+     */
+    public static boolean isAvailable() {
+        try {
+            return findEncoder() != null;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    @Override
+    protected void onStart() throws IOException {
+        MediaCodecInfo info = findEncoder();
+        if (info == null)
+            throw new IOException("no H.264 encoder available");
+
+        boolean swap = mRotation == 90 || mRotation == 270;
+        int width = swap ? mHeight : mWidth,
+            height = swap ? mWidth : mHeight;
+
+        mColorFormat = getColorFormat(info);
+        MediaFormat format = MediaFormat.createVideoFormat(MIME, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, mColorFormat);
+        format.setInteger(MediaFormat.KEY_BIT_RATE,
+                (int) (BITS_PER_PIXEL * width * height * mRate));
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, (int) Math.ceil(mRate));
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, KEY_FRAME_INTERVAL);
+
+        try {
+            mCodec = MediaCodec.createByCodecName(info.getName());
+            mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mCodec.start();
+        } catch (RuntimeException e) {
+            if (mCodec != null)
+                mCodec.release();
+            mCodec = null;
+            throw new IOException("unable to start " + info.getName(), e);
+        }
+
+        /** encoders may pad rows and planes, e.g. to multiples of 16 */
+        mStride = width;
+        mSliceHeight = height;
+        if (Build.VERSION.SDK_INT >= 21) {
+            MediaFormat input = mCodec.getInputFormat();
+            if (input.containsKey("stride"))
+                mStride = Math.max(width, input.getInteger("stride"));
+            if (input.containsKey("slice-height"))
+                mSliceHeight = Math.max(height, input.getInteger("slice-height"));
+        }
+
+        mInputs = mCodec.getInputBuffers();
+        mOutputs = mCodec.getOutputBuffers();
+        mRotated = mRotation == 0 ? null : new byte[mWidth * mHeight * 3 / 2];
+        mConverted = new byte[mStride * mSliceHeight * 3 / 2];
+
+        /** a frame that does not fit would be encoded cut off */
+        for (ByteBuffer input : mInputs)
+            if (input.capacity() < mConverted.length) {
+                mCodec.stop();
+                mCodec.release();
+                mCodec = null;
+                throw new IOException(String.format(
+                        "input buffers of %s hold %d bytes, but a frame takes %d, record with encoder=raw",
+                        info.getName(), input.capacity(), mConverted.length));
+            }
+        mWriter = new MatroskaWriter(mOut);
+        mTrack = -1;
+        Log.d(TAG, String.format("encoding %dx%d (stride %d, slice height %d) with %s",
+                width, height, mStride, mSliceHeight, info.getName()));
+    }
+
+    @Override
+    protected void encodeFrame(byte[] nv21, int off, int len, long timestampNs)
+            throws IOException {
+        int i = mCodec.dequeueInputBuffer(TIMEOUT_US);
+
+        if (i < 0) {
+            mDropped++;
+        } else {
+            byte[] frame = nv21;
+            if (off != 0) {
+                frame = new byte[len];
+                System.arraycopy(nv21, off, frame, 0, len);
+            }
+
+            if (mRotated != null) {
+                VideoRotation.rotateNV21(frame, mRotated, mWidth, mHeight, mRotation);
+                frame = mRotated;
+            }
+
+            boolean swap = mRotation == 90 || mRotation == 270;
+            convert(frame, swap ? mHeight : mWidth, swap ? mWidth : mHeight, mConverted,
+                    mStride, mSliceHeight, mColorFormat);
+
+            ByteBuffer input = mInputs[i];
+            input.clear();
+            input.put(mConverted);
+            mLastUs = timestampNs / 1000;
+            mCodec.queueInputBuffer(i, 0, mConverted.length, mLastUs, 0);
+        }
+
+        drain(false);
+    }
+
+    /**
+     * converts a *width* x *height* NV21 (VU interleaved) frame to NV12 (UV interleaved) or
+     * I420 (U and V planes), laid out in rows of *stride* bytes and planes of *sliceHeight*
+     * rows as the encoder expects them.
+     */
+    private static void convert(byte[] nv21, int width, int height, byte[] out, int stride,
+                                int sliceHeight, int colorFormat) {
+        for (int y = 0; y < height; y++)
+            System.arraycopy(nv21, y * width, out, y * stride, width);
+
+        int luma = width * height, chroma = stride * sliceHeight;
+
+        if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar)
+            for (int y = 0; y < height / 2; y++) {
+                int src = luma + y * width, dst = chroma + y * stride;
+                for (int x = 0; x < width; x += 2) {
+                    out[dst + x] = nv21[src + x + 1];
+                    out[dst + x + 1] = nv21[src + x];
+                }
+            }
+        else {
+            int half = stride / 2, v = chroma + half * (sliceHeight / 2);
+            for (int y = 0; y < height / 2; y++) {
+                int src = luma + y * width;
+                for (int x = 0; x < width / 2; x++) {
+                    out[chroma + y * half + x] = nv21[src + 2 * x + 1];
+                    out[v + y * half + x] = nv21[src + 2 * x];
+                }
+            }
+        }
+    }
+
+    /**
+     * writes all encoded data to the output, and waits for the end of the stream if *eos*.
+     */
+    private void drain(boolean eos) throws IOException {
+        for (int tries = 0; ; ) {
+            int i = mCodec.dequeueOutputBuffer(mInfo, eos ? TIMEOUT_US : 0);
+
+            if (i == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!eos || ++tries >= EOS_TRIES)
+                    return;
+            } else if (i == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                mOutputs = mCodec.getOutputBuffers();
+            } else if (i == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                MediaFormat format = mCodec.getOutputFormat();
+                if (mTrack < 0 && format.containsKey("csd-0") && format.containsKey("csd-1")) {
+                    ByteArrayOutputStream config = new ByteArrayOutputStream();
+                    append(config, format.getByteBuffer("csd-0"));
+                    append(config, format.getByteBuffer("csd-1"));
+                    startTrack(config.toByteArray(), config.size());
+                }
+            } else if (i >= 0) {
+                ByteBuffer output = mOutputs[i];
+                output.position(mInfo.offset);
+                output.limit(mInfo.offset + mInfo.size);
+
+                if (mChunk.length < mInfo.size)
+                    mChunk = new byte[mInfo.size];
+                output.get(mChunk, 0, mInfo.size);
+                mCodec.releaseOutputBuffer(i, false);
+
+                if ((mInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    if (mTrack < 0)
+                        startTrack(mChunk, mInfo.size);
+                } else if (mInfo.size > 0 && mTrack >= 0) {
+                    byte[] frame = AvcFormat.toLengthPrefixed(mChunk, 0, mInfo.size);
+                    boolean key = (mInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+
+                    if (mWriter.writeFrame(mTrack, mInfo.presentationTimeUs * 1000, key,
+                            frame, 0, frame.length))
+                        mKeyRequested &= !key;
+                    else
+                        requestKeyFrame();
+                }
+
+                if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+                    return;
+            }
+        }
+    }
+
+    /**
+     * the frames after a dropped one are skipped by the writer until the next key frame, so
+     * one is asked for right away instead of waiting for the key frame interval.
+     */
+    private void requestKeyFrame() {
+        if (mKeyRequested)
+            return;
+
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mCodec.setParameters(params);
+        mKeyRequested = true;
+    }
+
+    private static void append(ByteArrayOutputStream out, ByteBuffer buffer) {
+        byte[] b = new byte[buffer.remaining()];
+        buffer.duplicate().get(b);
+        out.write(b, 0, b.length);
+    }
+
+    /**
+     * adds the video track once the encoder reported its parameter sets.
+     */
+    private void startTrack(byte[] config, int len) throws IOException {
+        boolean swap = mRotation == 90 || mRotation == 270;
+
+        mTrack = mWriter.addTrack(new MatroskaWriter.Track(
+                MatroskaWriter.TRACK_VIDEO, "V_MPEG4/ISO/AVC")
+                .setCodecPrivate(AvcFormat.toDecoderConfig(config, 0, len))
+                .setVideo(swap ? mHeight : mWidth, swap ? mWidth : mHeight, null));
+        mWriter.writeHeader();
+    }
+
+    @Override
+    protected void onStop() throws IOException {
+        if (mCodec == null)
+            return;
+
+        try {
+            int i = mCodec.dequeueInputBuffer(TIMEOUT_US * 10);
+            if (i >= 0) {
+                mCodec.queueInputBuffer(i, 0, 0, mLastUs,
+                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                drain(true);
+            }
+        } finally {
+            mCodec.stop();
+            mCodec.release();
+            mCodec = null;
+            Log.d(TAG, String.format("%d frames encoded, %d dropped", getFrames(), mDropped));
+        }
+    }
+
+    /**
+     * @return frames dropped since the codec had no input buffer in time, and those the
+     * writer skipped while waiting for a key frame
+     */
+    @Override
+    public synchronized long getDroppedFrames() {
+        return mDropped + (mWriter == null ? 0 : mWriter.getSkippedFrames());
+    }
+}
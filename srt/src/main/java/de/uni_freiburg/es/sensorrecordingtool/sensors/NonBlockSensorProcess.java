@@ -3,15 +3,39 @@ package de.uni_freiburg.es.sensorrecordingtool.sensors;
 import android.content.Context;
 import android.os.Handler;
 
+import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import de.uni_freiburg.es.sensorrecordingtool.StreamBuffering;
 
-import de.uni_freiburg.es.sensorrecordingtool.FFMpegProcess;
 
 /**
+ * Writes scalar sensor samples in native byte order, as floats unless another SampleEncoding
+ * is set. The timestamped samples are brought to the requested rate by a Resampler, chosen
+ * through the format specifier of the input.
+ * Samples are staged in a preallocated buffer and handed to the output in batches of at most
+ * BATCH_BYTES, so that in steady state no allocations happen per sample and only a fraction
+ * of the writes reach the ffmpeg pipe. A batch covers at most StreamBuffering.FLUSH_INTERVAL_S
+ * of samples, so slow sensors do not sit in the buffer for minutes.
+ *
  * Created by phil on 9/1/16.
  */
-public class NonBlockSensorProcess extends SensorProcess {
+public class NonBlockSensorProcess extends SensorProcess implements Resampler.Sink {
+    /** upper bound of bytes staged before they are written to the output in one go */
+    public static final int BATCH_BYTES = 8192;
+
+    /** sample format of the written stream as understood by ffmpeg, for the default encoding */
+    public static final String SAMPLE_FORMAT = SampleEncoding.F32.getFormat();
+
+    private Resampler mResampler;
+    private SampleEncoding mEncoding = SampleEncoding.F32;
+    private long mMaxSamples;
+    private ByteBuffer mBatch;
+    private FloatBuffer mSampleFloats;
+
     public NonBlockSensorProcess(Context c, String sensor, double rate, String format, double dur,
                                  OutputStream bf) throws Exception {
         super(c, sensor, rate, format, dur, bf, new Handler(c.getMainLooper()));
@@ -21,20 +45,105 @@ public class NonBlockSensorProcess extends SensorProcess {
         super(c, sensor, rate, format, dur, os, handler);
     }
 
-    public NonBlockSensorProcess(Context c, String sensor, double rate, String format, double dur, FFMpegProcess p, int j, Handler handler) throws Exception {
-        super(c, sensor, rate, format, dur, p, j, handler);
+    public NonBlockSensorProcess(Context c, String sensor, double rate, String format, double dur, Handler handler) throws Exception {
+        super(c, sensor, rate, format, dur, handler);
     }
 
     @Override
-    public byte[] transfer(SensorEvent sensorEvent) {
-        if (mBuf == null)
-            mBuf = ByteBuffer.allocate(sensorEvent.values.length * 4);
-        else
-            mBuf.clear();
+    public void onSensorChanged(SensorEvent sensorEvent) {
+        if (mOut == null)
+            return;
+
+        if (mResampler == null) {
+            int channels = sensorEvent.values.length;
+            mResampler = Resampler.create(mFormat, mRate, channels);
+            mMaxSamples = mDur > 0 ? (long) Math.ceil(mDur * mRate) : Long.MAX_VALUE;
+
+            int bytes = StreamBuffering.getBatchBytes(mRate, channels * mEncoding.getBytes(),
+                    BATCH_BYTES);
+            mBatch = ByteBuffer.allocate(bytes).order(ByteOrder.nativeOrder());
+        }
+
+        try {
+            mResampler.push(sensorEvent.timestamp, sensorEvent.values, this);
+            mLastTimestamp = sensorEvent.timestamp;
+
+            if (mResampler.getEmitted() >= mMaxSamples)
+                terminate();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * receives the resampled frames, stages them and writes all staged frames when the batch
+     * is full. Frames beyond the requested duration are ignored.
+     */
+    @Override
+    public void onSample(float[] frame) throws IOException {
+        if (mResampler.getEmitted() >= mMaxSamples)
+            return;
+
+        if (mBatch.remaining() < frame.length * mEncoding.getBytes())
+            writeBatch();
+
+        for (float value : frame)
+            mEncoding.put(mBatch, value);
+    }
+
+    /**
+     * sets how values are written, must be called before the first sample arrives.
+     */
+    public void setEncoding(SampleEncoding encoding) {
+        mEncoding = encoding;
+    }
+
+    public SampleEncoding getEncoding() {
+        return mEncoding;
+    }
 
-        for (float v : sensorEvent.values)
-            mBuf.putFloat(v);
+    @Override
+    public byte[] transfer(SensorEvent sensorEvent) {
+        if (mBuf == null) {
+            mBuf = ByteBuffer.allocate(sensorEvent.values.length * 4).order(ByteOrder.nativeOrder());
+            mSampleFloats = mBuf.asFloatBuffer();
+        } else
+            mSampleFloats.clear();
 
+        mSampleFloats.put(sensorEvent.values);
         return mBuf.array();
     }
+
+    /**
+     * emits the samples the resampler still holds back and writes all staged samples.
+     */
+    @Override
+    protected void flushPending() throws IOException {
+        if (mResampler != null)
+            mResampler.drain(this);
+        writeBatch();
+    }
+
+    private void writeBatch() throws IOException {
+        if (mBatch == null || mBatch.position() == 0)
+            return;
+
+        mOut.write(mBatch.array(), mBatch.arrayOffset(), mBatch.position());
+        mBatch.clear();
+    }
+
+    @Override
+    public double getElapsed() {
+        return mResampler == null ? 0 : mResampler.getEmitted() / mRate;
+    }
+
+    @Override
+    public long getMeasuredSamples() {
+        return mResampler == null ? 0 : mResampler.getMeasured();
+    }
+
+    @Override
+    public long getSynthesizedSamples() {
+        return mResampler == null ? 0 : mResampler.getSynthesized();
+    }
 }
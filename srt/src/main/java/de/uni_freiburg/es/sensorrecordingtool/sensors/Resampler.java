@@ -0,0 +1,317 @@
+package de.uni_freiburg.es.sensorrecordingtool.sensors;
+
+import java.io.IOException;
+
+/**
+ * Converts irregularly timestamped sensor samples to a constant rate. Output samples are
+ * placed on the grid start + k/rate, where start is the timestamp of the first input sample
+ * and k an integer, so no error accumulates over long recordings. Each output sample is
+ * either measured, i.e. it is the output closest to a distinct input sample, or synthesized.
+ * <p>
+ * Subclasses only implement the interpolation on a short history of input samples, which is
+ * kept in flat primitive arrays. Neither pushing samples nor emitting them allocates.
+ * <p>
+ * Strategies are chosen with a flag in the format specifier of an input: "zoh" (zero-order
+ * hold, the default and equivalent to repeating the last sample), "linear" or "sinc".
+ */
+public abstract class Resampler {
+    /** receives resampled frames, the frame array is reused for every call */
+    public interface Sink {
+        void onSample(float[] frame) throws IOException;
+    }
+
+    protected final double mRate;
+    protected final int mChannels;
+
+    /** ring of the last input samples, values are interleaved */
+    protected final long[] mTimes;
+    protected final float[] mValues;
+    protected final float[] mFrame;
+
+    /** number of input samples needed after an output time before it can be interpolated */
+    private final int mLookahead;
+
+    /** total number of accepted input samples and number of samples held in the ring */
+    protected long mSeq = 0;
+    protected int mCount = 0;
+
+    private long mStart = -1;
+    private long mNext = 0;
+    private long mLastNearest = -1;
+
+    private long mMeasured = 0;
+    private long mSynthesized = 0;
+    private long mDiscarded = 0;
+
+    protected Resampler(double rate, int channels, int history, int lookahead) {
+        mRate = rate;
+        mChannels = channels;
+        mLookahead = lookahead;
+        mTimes = new long[history];
+        mValues = new float[history * channels];
+        mFrame = new float[channels];
+    }
+
+    /**
+     * create a resampler as specified by the given format specifier.
+     *
+     * @param format   format specifier of the input, may be null
+     * @param rate     output rate in Hz
+     * @param channels number of values per sample
+     */
+    public static Resampler create(String format, double rate, int channels) {
+        if (FormatSpec.hasFlag(format, "sinc"))
+            return new Sinc(rate, channels, SINC_HALF_WIDTH);
+        if (FormatSpec.hasFlag(format, "linear"))
+            return new Linear(rate, channels);
+        return new ZeroOrderHold(rate, channels);
+    }
+
+    /**
+     * add a single sample and emit all output samples that can be computed.
+     *
+     * @param timestamp time of the sample in nanoseconds
+     * @param values    mChannels values of the sample
+     * @param sink      receives the output samples
+     * @return number of emitted samples
+     */
+    public int push(long timestamp, float[] values, Sink sink) throws IOException {
+        if (!add(timestamp, values, 0))
+            return 0;
+        return emit(sink, mLookahead);
+    }
+
+    /**
+     * add a batch of samples and emit all output samples that can be computed.
+     *
+     * @param timestamps times of the samples in nanoseconds
+     * @param values     interleaved values, mChannels per sample
+     * @param n          number of samples in the batch
+     * @param sink       receives the output samples
+     * @return number of emitted samples
+     */
+    public int process(long[] timestamps, float[] values, int n, Sink sink) throws IOException {
+        int emitted = 0;
+
+        for (int i = 0; i < n; i++)
+            if (add(timestamps[i], values, i * mChannels))
+                emitted += emit(sink, mLookahead);
+
+        return emitted;
+    }
+
+    /**
+     * emit all output samples up to the newest input sample, without waiting for further
+     * input. To be called when no more samples will arrive.
+     *
+     * @return number of emitted samples
+     */
+    public int drain(Sink sink) throws IOException {
+        return emit(sink, 0);
+    }
+
+    private boolean add(long timestamp, float[] values, int offset) {
+        if (mCount > 0 && timestamp <= time(mSeq - 1)) {
+            mDiscarded++;
+            return false;
+        }
+
+        if (mStart == -1)
+            mStart = timestamp;
+
+        int slot = slot(mSeq);
+        mTimes[slot] = timestamp;
+        System.arraycopy(values, offset, mValues, slot * mChannels, mChannels);
+
+        mSeq++;
+        if (mCount < mTimes.length)
+            mCount++;
+
+        return true;
+    }
+
+    private int emit(Sink sink, int lookahead) throws IOException {
+        if (mCount <= lookahead)
+            return 0;
+
+        long limit = time(mSeq - 1 - lookahead);
+        int emitted = 0;
+
+        for (long t = tick(mNext); t <= limit; t = tick(++mNext)) {
+            interpolate(t, mFrame);
+            count(t);
+            sink.onSample(mFrame);
+            emitted++;
+        }
+
+        return emitted;
+    }
+
+    private void count(long t) {
+        long nearest = nearest(t);
+        long halfPeriod = (long) (.5e9 / mRate);
+
+        if (nearest > mLastNearest && Math.abs(time(nearest) - t) <= halfPeriod) {
+            mMeasured++;
+            mLastNearest = nearest;
+        } else
+            mSynthesized++;
+    }
+
+    /** @return time of the k-th output sample in nanoseconds */
+    protected long tick(long k) {
+        return mStart + Math.round(k * 1e9 / mRate);
+    }
+
+    /** @return sequence number of the oldest sample in the history */
+    protected long oldest() {
+        return mSeq - mCount;
+    }
+
+    protected int slot(long seq) {
+        return (int) (seq % mTimes.length);
+    }
+
+    protected long time(long seq) {
+        return mTimes[slot(seq)];
+    }
+
+    protected float value(long seq, int channel) {
+        return mValues[slot(seq) * mChannels + channel];
+    }
+
+    /** @return sequence number of the newest sample at or before t, or the oldest sample */
+    protected long before(long t) {
+        for (long i = mSeq - 1; i > oldest(); i--)
+            if (time(i) <= t)
+                return i;
+        return oldest();
+    }
+
+    /** @return sequence number of the sample closest to t */
+    protected long nearest(long t) {
+        long i = before(t);
+        if (i + 1 < mSeq && Math.abs(time(i + 1) - t) < Math.abs(time(i) - t))
+            return i + 1;
+        return i;
+    }
+
+    protected void copy(long seq, float[] out) {
+        System.arraycopy(mValues, slot(seq) * mChannels, out, 0, mChannels);
+    }
+
+    /**
+     * compute the output sample at time t from the history.
+     *
+     * @param t   time in nanoseconds, never after the newest sample in the history
+     * @param out mChannels values to fill
+     */
+    protected abstract void interpolate(long t, float[] out);
+
+    /** @return number of output samples which correspond to a distinct input sample */
+    public long getMeasured() {
+        return mMeasured;
+    }
+
+    /** @return number of output samples which were interpolated or repeated */
+    public long getSynthesized() {
+        return mSynthesized;
+    }
+
+    /** @return number of input samples which were ignored due to non-increasing timestamps */
+    public long getDiscarded() {
+        return mDiscarded;
+    }
+
+    /** @return number of emitted output samples */
+    public long getEmitted() {
+        return mNext;
+    }
+
+    /** repeats the last sample before each output time */
+    public static class ZeroOrderHold extends Resampler {
+        public ZeroOrderHold(double rate, int channels) {
+            super(rate, channels, 2, 0);
+        }
+
+        @Override
+        protected void interpolate(long t, float[] out) {
+            copy(before(t), out);
+        }
+    }
+
+    /** interpolates linearly between the samples before and after each output time */
+    public static class Linear extends Resampler {
+        public Linear(double rate, int channels) {
+            super(rate, channels, 2, 0);
+        }
+
+        @Override
+        protected void interpolate(long t, float[] out) {
+            long a = before(t), b = a + 1;
+
+            if (b >= mSeq || time(a) >= t) {
+                copy(a, out);
+                return;
+            }
+
+            float w = (float) ((double) (t - time(a)) / (time(b) - time(a)));
+            for (int c = 0; c < mChannels; c++)
+                out[c] = value(a, c) + w * (value(b, c) - value(a, c));
+        }
+    }
+
+    public static final int SINC_HALF_WIDTH = 4;
+
+    /**
+     * band-limited interpolation with a Hann-windowed sinc kernel spanning halfWidth periods on
+     * each side of the output time, of the input or the output, whichever is longer. Only the
+     * last 2 * halfWidth + 2 input samples are kept, so when downsampling the kernel is cut
+     * short and is no anti-aliasing filter, content above half the output rate aliases. Weights
+     * are normalized, which keeps the gain correct for irregularly spaced samples.
+     */
+    public static class Sinc extends Resampler {
+        private final int mHalfWidth;
+        private final double[] mSums;
+
+        public Sinc(double rate, int channels, int halfWidth) {
+            super(rate, channels, 2 * halfWidth + 2, halfWidth);
+            mHalfWidth = halfWidth;
+            mSums = new double[channels];
+        }
+
+        @Override
+        protected void interpolate(long t, float[] out) {
+            long first = oldest(), last = mSeq - 1;
+            double inPeriod = mCount > 1 ? (time(last) - time(first)) / (double) (mCount - 1) : 0,
+                   period = Math.max(inPeriod, 1e9 / mRate),
+                   radius = mHalfWidth * period,
+                   norm = 0;
+
+            for (int c = 0; c < mChannels; c++)
+                mSums[c] = 0;
+
+            for (long i = first; i <= last; i++) {
+                double d = time(i) - t;
+                if (Math.abs(d) >= radius)
+                    continue;
+
+                double x = d / period,
+                       sinc = x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x),
+                       w = sinc * (.5 + .5 * Math.cos(Math.PI * d / radius));
+
+                norm += w;
+                for (int c = 0; c < mChannels; c++)
+                    mSums[c] += w * value(i, c);
+            }
+
+            if (Math.abs(norm) < 1e-6) {
+                copy(nearest(t), out);
+                return;
+            }
+
+            for (int c = 0; c < mChannels; c++)
+                out[c] = (float) (mSums[c] / norm);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package de.uni_freiburg.es.sensorrecordingtool.sensors;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * How the values of a scalar sensor are stored. Most MEMS sensors deliver 12 to 16 bits of
+ * real resolution, so 32bit floats mostly store noise. Besides those, values can be stored as
+ * 16bit integers with a scale and an offset, i.e. value = raw * scale + offset, or as IEEE
+ * half precision floats. Both halve the size of a recording.
+ * <p>
+ * The encoding is chosen with the encoding option of the format specifier, one of f32 (the
+ * default), f16, s16 or auto, which picks 16bit integers if they keep the resolution over the
+ * whole range of the sensor. All encodings are written in native byte order and described by
+ * stream tags, see getTags().
+ */
+public abstract class SampleEncoding {
+    public static final String OPTION = "encoding";
+
+    /** largest magnitude of a half precision float */
+    public static final float F16_MAX = 65504f;
+
+    /** relative precision of a half precision float, half its epsilon */
+    public static final double F16_PRECISION = Math.pow(2, -11);
+
+    private static final boolean LITTLE = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    /** @return the name stored in the encoding tag */
+    public abstract String getName();
+
+    /** @return bytes per value */
+    public abstract int getBytes();
+
+    /** @return the ffmpeg sample format of the raw stream */
+    public abstract String getFormat();
+
+    /** @return the Matroska codec id when muxing without ffmpeg */
+    public abstract String getMatroskaCodec();
+
+    /** appends *value* to *out*, which must be in native byte order */
+    public abstract void put(ByteBuffer out, float value);
+
+    /** reads a value written by put() */
+    public abstract float get(ByteBuffer in);
+
+    /**
+     * @return the stream tags needed to restore the values
+     */
+    public Map<String, String> getTags() {
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put(OPTION, getName());
+        return tags;
+    }
+
+    @Override
+    public String toString() {
+        return getTags().toString();
+    }
+
+    public static final SampleEncoding F32 = new SampleEncoding() {
+        @Override
+        public String getName() {
+            return "f32";
+        }
+
+        @Override
+        public int getBytes() {
+            return 4;
+        }
+
+        @Override
+        public String getFormat() {
+            return LITTLE ? "f32le" : "f32be";
+        }
+
+        @Override
+        public String getMatroskaCodec() {
+            return "A_PCM/FLOAT/IEEE";
+        }
+
+        @Override
+        public void put(ByteBuffer out, float value) {
+            out.putFloat(value);
+        }
+
+        @Override
+        public float get(ByteBuffer in) {
+            return in.getFloat();
+        }
+    };
+
+    /**
+     * half precision floats, stored as 16bit integers since ffmpeg has no such sample format.
+     */
+    public static final SampleEncoding F16 = new SampleEncoding() {
+        @Override
+        public String getName() {
+            return "f16";
+        }
+
+        @Override
+        public int getBytes() {
+            return 2;
+        }
+
+        @Override
+        public String getFormat() {
+            return LITTLE ? "s16le" : "s16be";
+        }
+
+        @Override
+        public String getMatroskaCodec() {
+            return "A_PCM/INT/LIT";
+        }
+
+        @Override
+        public void put(ByteBuffer out, float value) {
+            out.putShort(toHalf(value));
+        }
+
+        @Override
+        public float get(ByteBuffer in) {
+            return fromHalf(in.getShort());
+        }
+    };
+
+    /**
+     * 16bit integers, restored with value = raw * scale + offset.
+     */
+    public static class S16 extends SampleEncoding {
+        public final double scale, offset;
+
+        public S16(double scale, double offset) {
+            if (!(scale > 0))
+                throw new IllegalArgumentException("scale must be positive, but was " + scale);
+
+            this.scale = scale;
+            this.offset = offset;
+        }
+
+        /**
+         * @return an encoding that covers [-range, range] with the finest possible scale
+         */
+        public static S16 forRange(double range) {
+            return new S16(range / Short.MAX_VALUE, 0);
+        }
+
+        @Override
+        public String getName() {
+            return "s16";
+        }
+
+        @Override
+        public int getBytes() {
+            return 2;
+        }
+
+        @Override
+        public String getFormat() {
+            return LITTLE ? "s16le" : "s16be";
+        }
+
+        @Override
+        public String getMatroskaCodec() {
+            return "A_PCM/INT/LIT";
+        }
+
+        @Override
+        public void put(ByteBuffer out, float value) {
+            long raw = Math.round((value - offset) / scale);
+            out.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, raw)));
+        }
+
+        @Override
+        public float get(ByteBuffer in) {
+            return (float) (in.getShort() * scale + offset);
+        }
+
+        @Override
+        public Map<String, String> getTags() {
+            Map<String, String> tags = super.getTags();
+            tags.put("scale", Double.toString(scale));
+            tags.put("offset", Double.toString(offset));
+            return tags;
+        }
+    }
+
+    /**
+     * @param format     format specifier of the stream, may hold the encoding option
+     * @param resolution smallest step of the sensor, zero or less if unknown
+     * @param range      largest magnitude the sensor reports, zero or less if unknown
+     * @return the encoding for the stream, F32 if the sensor is not known well enough for
+     * the requested one
+     * @throws IllegalArgumentException for an unknown encoding
+     */
+    public static SampleEncoding choose(String format, double resolution, double range) {
+        String name = FormatSpec.getValue(format, OPTION, F32.getName()).toLowerCase(Locale.US);
+
+        if (name.equals(F32.getName()))
+            return F32;
+        if (name.equals(F16.getName()))
+            return F16;
+        if (name.equals("s16"))
+            return range > 0 ? S16.forRange(range) : F32;
+        if (!name.equals("auto"))
+            throw new IllegalArgumentException("unknown sample encoding " + name);
+
+        if (resolution <= 0 || range <= 0)
+            return F32;
+
+        /** integers if a step of the scale is no coarser than a step of the sensor. Half
+         * floats only keep a relative precision, e.g. steps of .5hPa at sea level pressure, so
+         * they are never chosen automatically. */
+        S16 s16 = S16.forRange(range);
+        return s16.scale <= resolution ? s16 : F32;
+    }
+
+    /**
+     * @return *value* as IEEE 754 half precision float, rounded to the nearest even
+     */
+    public static short toHalf(float value) {
+        int bits = Float.floatToIntBits(value),
+            sign = (bits >>> 16) & 0x8000,
+            exp = (bits >>> 23) & 0xFF,
+            mantissa = bits & 0x7FFFFF;
+
+        if (exp == 0xFF)
+            return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+
+        int e = exp - 127 + 15;
+        if (e >= 0x1F)
+            return (short) (sign | 0x7C00);
+
+        if (e <= 0) {
+            /** subnormal or zero, shift the mantissa with its implicit bit into place */
+            if (e < -10)
+                return (short) sign;
+
+            int m = mantissa | 0x800000, shift = 14 - e;
+            int half = m >>> shift, rest = m & ((1 << shift) - 1), mid = 1 << (shift - 1);
+            if (rest > mid || (rest == mid && (half & 1) != 0))
+                half++;
+            return (short) (sign | half);
+        }
+
+        int half = (e << 10) | (mantissa >>> 13), rest = mantissa & 0x1FFF;
+        /** a carry into the exponent is correct, up to infinity */
+        if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0))
+            half++;
+        return (short) (sign | half);
+    }
+
+    /**
+     * @return the float of an IEEE 754 half precision float
+     */
+    public static float fromHalf(short half) {
+        int h = half & 0xFFFF,
+            sign = (h & 0x8000) << 16,
+            exp = (h >>> 10) & 0x1F,
+            mantissa = h & 0x3FF;
+
+        if (exp == 0x1F)
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+
+        if (exp == 0) {
+            float v = mantissa * (float) Math.pow(2, -24);
+            return sign != 0 ? -v : v;
+        }
+
+        return Float.intBitsToFloat(sign | ((exp - 15 + 127) << 23) | (mantissa << 13));
+    }
+}
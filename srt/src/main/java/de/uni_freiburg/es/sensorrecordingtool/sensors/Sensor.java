@@ -25,15 +25,35 @@ public abstract class Sensor {
     protected final LinkedList<ParameterizedListener> mListeners;
     protected SensorEvent mEvent;
 
+    private Completion mPrepared = null;
+
     public boolean isPrepared() {
-        return isPrepared;
+        return getPrepared().isDone();
     }
 
-    public void setPrepared(boolean prepared) {
-        isPrepared = prepared;
+    /**
+     * @return the completion that finishes once this sensor is ready to deliver data
+     */
+    public synchronized Completion getPrepared() {
+        if (mPrepared == null)
+            mPrepared = new Completion(getStringName() + " prepare");
+        return mPrepared;
     }
 
-    protected boolean isPrepared = false;
+    /** whether samples may be collected in a hardware FIFO while the CPU sleeps */
+    protected boolean mBatching = false;
+
+    public boolean isBatching() {
+        return mBatching;
+    }
+
+    /**
+     * enable or disable batching mode, must be called before registering a listener. Sensors
+     * without hardware FIFO ignore this.
+     */
+    public void setBatching(boolean batching) {
+        mBatching = batching;
+    }
 
     public Sensor(Context context, int num) {
         mContext = context;
@@ -41,15 +61,39 @@ public abstract class Sensor {
         mEvent = new SensorEvent(4);
     }
 
+    /**
+     * starts preparing the sensor for a recording at *rate* with the given *format*. Preparing
+     * might finish asynchronously, the returned completion fails if the sensor could not be
+     * prepared.
+     */
+    public Completion prepare(double rate, String format) {
+        Completion prepared = getPrepared().start();
+
+        try {
+            prepareSensor(rate, format);
+        } catch (RuntimeException e) {
+            setFailed(e);
+        }
+
+        return prepared;
+    }
+
     public void prepareSensor(double rate, String format) {
-        if (isPrepared)
+        if (isPrepared())
             Log.w(TAG, "Sensor is already in prepared state, no need to prepare it again.");
     }
 
     public void setPrepared() {
-        isPrepared = true;
-        Log.e(TAG, "Sensor " + getStringName() + " prepared");
+        if (getPrepared().complete())
+            Log.e(TAG, "Sensor " + getPrepared());
+    }
 
+    /**
+     * marks the preparation of this sensor as failed, e.g. when its hardware is not available.
+     */
+    public void setFailed(Throwable reason) {
+        if (getPrepared().fail(reason))
+            Log.e(TAG, "Sensor " + getPrepared(), reason);
     }
 
     public void startRecording() {
@@ -109,7 +153,7 @@ public abstract class Sensor {
     }
 
     protected void onNewListener() {
-        if (!isPrepared)
+        if (!isPrepared())
             throw new IllegalStateException("sensor was not prepared");
     }
 
@@ -131,6 +175,22 @@ public abstract class Sensor {
 
     public abstract int getFifoSize();
 
+    /**
+     * @return number of samples, blocks or frames this sensor had to drop since its listeners
+     * were too slow
+     */
+    public long getDropped() {
+        return 0;
+    }
+
+    /**
+     * @return true if blocks of samples are delivered in SensorEvent.buffer instead of
+     * SensorEvent.rawdata, so they can be written out without a copy
+     */
+    public boolean hasPooledBuffers() {
+        return false;
+    }
+
 
 
     protected class ParameterizedListener {
@@ -6,6 +6,8 @@ package de.uni_freiburg.es.sensorrecordingtool.sensors;
 public class SensorEvent {
     public float[] values;
     public byte[] rawdata;
+    /** a block of samples from a pool, only valid during onSensorChanged() unless retained */
+    public BufferPool.Buffer buffer;
     public long timestamp;
 
     public SensorEvent(int i) {
@@ -0,0 +1,274 @@
+package de.uni_freiburg.es.sensorrecordingtool.sensors;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.hardware.Camera;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A process-wide index of all sensors of this device and their capabilities. Enumerating the
+ * sensors creates camera, audio and location sensors and queries the sample size of each
+ * Android sensor via reflection, which is too slow to do every time a sensor name needs to be
+ * resolved. The index is built once and answers all further queries from memory, Sensor
+ * instances for a recording are created from the stored descriptors without enumerating
+ * again. Call invalidate() when the set of sensors changes, dynamic sensors do so on their own.
+ */
+public class SensorIndex {
+    private static final String TAG = SensorIndex.class.getSimpleName();
+
+    public enum Kind { HARDWARE, LOCATION, VIDEO, AUDIO }
+
+    private static SensorIndex sInstance;
+    private static boolean sDynamicCallbackRegistered = false;
+
+    private final List<SensorInfo> mSensors;
+    private final HashMap<String, SensorInfo> mMatches = new HashMap<>();
+
+    /**
+     * describes a single sensor, as far as it can be known without accessing its hardware.
+     */
+    public static class SensorInfo {
+        public final Kind kind;
+        public final String name;
+        public final String type;
+
+        /** number of values per sample, 0 for block-based sensors */
+        public final int sampleSize;
+        public final int fifoSize;
+
+        /** minimum and maximum delay between samples in microseconds, 0 if unknown */
+        public final int minDelayUs;
+        public final int maxDelayUs;
+
+        final String mLowerType;
+        final android.hardware.Sensor mSensor;
+        final int mCameraId;
+        final Camera.CameraInfo mCameraInfo;
+        final int mChannelConfig;
+
+        SensorInfo(Kind kind, Sensor s, int sampleSize, int minDelayUs, int maxDelayUs,
+                   android.hardware.Sensor sensor, int cameraId, Camera.CameraInfo cameraInfo,
+                   int channelConfig) {
+            this.kind = kind;
+            this.name = s.getStringName();
+            this.type = s.getStringType();
+            this.sampleSize = sampleSize;
+            this.fifoSize = s.getFifoSize();
+            this.minDelayUs = minDelayUs;
+            this.maxDelayUs = maxDelayUs;
+            mLowerType = type == null ? "" : type.toLowerCase(Locale.US);
+            mSensor = sensor;
+            mCameraId = cameraId;
+            mCameraInfo = cameraInfo;
+            mChannelConfig = channelConfig;
+        }
+
+        /**
+         * @return the highest supported rate in Hz, or -1 if unknown
+         */
+        public double getMaxRate() {
+            return minDelayUs > 0 ? 1e6 / minDelayUs : -1;
+        }
+
+        /**
+         * @return the lowest supported rate in Hz, or -1 if unknown
+         */
+        public double getMinRate() {
+            return maxDelayUs > 0 ? 1e6 / maxDelayUs : -1;
+        }
+
+        /**
+         * @return the encoding of the values for the given format specifier, chosen from the
+         * resolution and range of hardware sensors
+         */
+        public SampleEncoding getEncoding(String format) {
+            if (mSensor == null)
+                return SampleEncoding.choose(format, 0, 0);
+
+            return SampleEncoding.choose(format, mSensor.getResolution(),
+                    mSensor.getMaximumRange());
+        }
+
+        /**
+         * @return the name under which this sensor is announced to other nodes
+         */
+        public String getDiscoveryName() {
+            if (!TextUtils.isEmpty(type))
+                return type;
+            return "to.unknown." + name.toLowerCase().replace(" ", "_") + "_unknown";
+        }
+
+        /**
+         * @return a new, unprepared Sensor instance for a recording
+         */
+        public Sensor newSensor(Context c) {
+            switch (kind) {
+                case HARDWARE:
+                    return new SensorWrapper(c, mSensor);
+                case VIDEO:
+                    return new VideoSensor(c, mCameraId, mCameraInfo);
+                case AUDIO:
+                    return new AudioSensor(c, mChannelConfig);
+                default:
+                    return new LocationSensor(c);
+            }
+        }
+
+        boolean matches(String lowerName) {
+            return mLowerType.contains(lowerName);
+        }
+    }
+
+    private SensorIndex(Context c) {
+        ArrayList<SensorInfo> sensors = new ArrayList<>();
+
+        for (Sensor s : Sensor.getAvailableSensors(c))
+            sensors.add(describe(s));
+
+        mSensors = Collections.unmodifiableList(sensors);
+    }
+
+    public static synchronized SensorIndex getInstance(Context c) {
+        if (sInstance == null) {
+            long start = System.nanoTime();
+            sInstance = new SensorIndex(c.getApplicationContext());
+            registerDynamicSensorCallback(c.getApplicationContext());
+            AudioSensor.probeSampleRatesInBackground(c);
+            Log.d(TAG, String.format("indexed %d sensors in %.1fms",
+                    sInstance.mSensors.size(), (System.nanoTime() - start) / 1e6));
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * drops the index, the next call to getInstance() enumerates all sensors again.
+     */
+    public static synchronized void invalidate() {
+        sInstance = null;
+    }
+
+    public List<SensorInfo> getSensors() {
+        return mSensors;
+    }
+
+    /**
+     * given a String tries to find a matching sensor given these rules:
+     * <p>
+     * 1. find all sensors which type contains the *sensor*
+     * 2. choose the one with the shortest name of that list
+     * <p>
+     * e.g., when "gyro" is given, choose android.sensor.type.gyroscope rather than
+     * android.sensor.type.gyroscope_uncalibrated. Matching is case-insensitive, results are
+     * remembered for each name.
+     *
+     * @param sensor sensor name to match for
+     * @return the matching sensor or null if there is none
+     * @throws Exception when multiple matches are found
+     */
+    public SensorInfo find(String sensor) throws Exception {
+        String key = sensor.trim().toLowerCase(Locale.US);
+
+        synchronized (mMatches) {
+            if (mMatches.containsKey(key))
+                return mMatches.get(key);
+        }
+
+        LinkedList<SensorInfo> candidates = new LinkedList<>();
+        int minimum = Integer.MAX_VALUE;
+
+        for (SensorInfo s : mSensors)
+            if (s.matches(key)) {
+                candidates.add(s);
+                minimum = Math.min(minimum, s.name.length());
+            }
+
+        Iterator<SensorInfo> it = candidates.iterator();
+        while (it.hasNext())
+            if (it.next().name.length() != minimum)
+                it.remove();
+
+        if (candidates.size() > 1) {
+            StringBuilder b = new StringBuilder();
+            for (SensorInfo s : candidates) {
+                b.append(s.name);
+                b.append(" ");
+                b.append(s.type);
+                b.append(", ");
+            }
+            throw new Exception("too many sensor candidates for " + sensor +
+                    " options are " + b.toString());
+        }
+
+        SensorInfo match = candidates.isEmpty() ? null : candidates.getFirst();
+
+        synchronized (mMatches) {
+            mMatches.put(key, match);
+        }
+
+        return match;
+    }
+
+    private static SensorInfo describe(Sensor s) {
+        if (s instanceof SensorWrapper) {
+            android.hardware.Sensor hw = ((SensorWrapper) s).mSensor;
+            int size;
+
+            try {
+                size = ((SensorWrapper) s).getMaxLengthValuesArray();
+            } catch (Exception e) {
+                size = 0;
+            }
+
+            return new SensorInfo(Kind.HARDWARE, s, size, hw.getMinDelay(), getMaxDelay(hw),
+                    hw, -1, null, 0);
+        } else if (s instanceof VideoSensor) {
+            VideoSensor v = (VideoSensor) s;
+            return new SensorInfo(Kind.VIDEO, s, 0, 0, 0, null, v.getCameraID(),
+                    v.getCameraInfo(), 0);
+        } else if (s instanceof AudioSensor) {
+            AudioSensor a = (AudioSensor) s;
+            return new SensorInfo(Kind.AUDIO, s, 0, 0, 0, null, -1, null,
+                    a.getChannelConfig());
+        }
+
+        return new SensorInfo(Kind.LOCATION, s, 4, 0, 0, null, -1, null, 0);
+    }
+
+    private static int getMaxDelay(android.hardware.Sensor s) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return 0;
+        return s.getMaxDelay();
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private static void registerDynamicSensorCallback(Context c) {
+        if (sDynamicCallbackRegistered || Build.VERSION.SDK_INT < Build.VERSION_CODES.N)
+            return;
+
+        SensorManager mgr = (SensorManager) c.getSystemService(Context.SENSOR_SERVICE);
+        mgr.registerDynamicSensorCallback(new SensorManager.DynamicSensorCallback() {
+            @Override
+            public void onDynamicSensorConnected(android.hardware.Sensor sensor) {
+                invalidate();
+            }
+
+            @Override
+            public void onDynamicSensorDisconnected(android.hardware.Sensor sensor) {
+                invalidate();
+            }
+        });
+        sDynamicCallbackRegistered = true;
+    }
+}
@@ -0,0 +1,76 @@
+package de.uni_freiburg.es.sensorrecordingtool.sensors;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/**
+ * A small pool of event loops shared by sensor processes that never block, i.e. those writing
+ * through a ring buffer. Each call to acquire() hands out the loop with the fewest processes,
+ * loops are only started once they are needed. Blocking streams like audio and video should
+ * keep a dedicated thread instead.
+ */
+public class SensorLoopPool {
+    public static final int DEFAULT_SIZE = 2;
+
+    private final String mName;
+    private final HandlerThread[] mLoops;
+    private final Handler[] mHandlers;
+    private final int[] mLoad;
+    private boolean mQuit = false;
+
+    /**
+     * @param size maximum number of event loops, at least one
+     * @param name prefix for the thread names
+     */
+    public SensorLoopPool(int size, String name) {
+        size = Math.max(1, size);
+        mName = name;
+        mLoops = new HandlerThread[size];
+        mHandlers = new Handler[size];
+        mLoad = new int[size];
+    }
+
+    /**
+     * @return a handler on the least loaded event loop
+     */
+    public synchronized Handler acquire() {
+        if (mQuit)
+            throw new IllegalStateException("pool was already quit");
+
+        int best = 0;
+        for (int i = 1; i < mLoops.length; i++)
+            if (mLoad[i] < mLoad[best])
+                best = i;
+
+        if (mLoops[best] == null) {
+            mLoops[best] = new HandlerThread(mName + " " + best);
+            mLoops[best].start();
+            mHandlers[best] = new Handler(mLoops[best].getLooper());
+        }
+
+        mLoad[best]++;
+        return mHandlers[best];
+    }
+
+    /**
+     * @return number of event loops that were started so far
+     */
+    public synchronized int getStartedLoops() {
+        int started = 0;
+        for (HandlerThread t : mLoops)
+            if (t != null)
+                started++;
+        return started;
+    }
+
+    /**
+     * stops all event loops after they handled all pending messages.
+     */
+    public synchronized void quit() {
+        mQuit = true;
+
+        for (HandlerThread t : mLoops)
+            if (t != null)
+                t.quitSafely();
+    }
+}
@@ -1,27 +1,27 @@
 package de.uni_freiburg.es.sensorrecordingtool.sensors;
 
 import android.content.Context;
-import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.PowerManager;
 import android.util.Log;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import de.uni_freiburg.es.sensorrecordingtool.FFMpegProcess;
 
 
 /**
  * Copies *sensor* data for *dur* seconds at *rate* to a bufferedwriter *bf*. Automatically
- * closes the output buffer when done.
+ * closes the output buffer when done. How samples are brought to the requested rate depends
+ * on the subclass: scalar sensors are resampled, audio and video blocks are written as is.
  * <p>
  * This is all done in binary float format, all the channels are recorded and the current
  * accuracy of the process. For example the accelerometer reports all three axes, so one sample
@@ -39,228 +39,323 @@ public abstract class SensorProcess implements SensorEventListener {
      * on new sensor data. We chose ten minutes for no specific reason.
      */
     public static final int DEFAULT_LATENCY_US = 10 * 1000 * 1000;
+
+    /** time to wait for onFlushCompleted() before closing the output without it */
+    public static final long FLUSH_TIMEOUT_MS = 5000;
+
+    private static final String TAG = "SensorProcess";
     final Sensor mSensor;
     final double mRate;
-    OutputStream mOut = null;
+    volatile OutputStream mOut = null;
     public final double mDur;
     private final PowerManager.WakeLock mWl = null;
-    private final String mFormat;
-    private final Handler mHandler;
+    final String mFormat;
+    final Handler mHandler;
     ByteBuffer mBuf;
     long mLastTimestamp = -1;
-    public double mElapsed = 0;
-    double mDiff = 0;
-    private boolean isClosed = false;
+    private volatile boolean isClosed = false;
+    private boolean mFlushRequested = false;
+    private final Completion mFlushed;
 
     private HandlerThread mHandlerThread;
 
-    public SensorProcess(Context context, String sensor, double rate, String format, double dur,
-                         OutputStream bf, Handler h) throws Exception {
-        mRate = rate;
-        mDur = dur;
-        mOut = bf;
-        mFormat = format;
-        mHandler = h;
-
-        mSensor = getMatchingSensor(context, sensor);
-        mSensor.prepareSensor(mRate, mFormat);
-    }
-
+    /**
+     * creates a process that is neither prepared nor attached to an output yet, see prepare()
+     * and attach().
+     */
     public SensorProcess(Context c, String sensor, double rate, String format, double dur,
-                         final FFMpegProcess p, final int j, Handler handler) throws Exception {
+                         Handler handler) throws Exception {
         mRate = rate;
         mDur = dur;
         mFormat = format;
         mHandler = handler;
 
         mSensor = getMatchingSensor(c, sensor);
-        mSensor.prepareSensor(mRate, mFormat);
+        mFlushed = new Completion(mSensor.getStringName() + " flush");
+    }
 
-        handler.post(new Runnable() {
+    public SensorProcess(Context context, String sensor, double rate, String format, double dur,
+                         OutputStream bf, Handler h) throws Exception {
+        this(context, sensor, rate, format, dur, h);
+        mOut = bf;
+        mSensor.prepare(mRate, mFormat);
+    }
+
+    /**
+     * prepares the sensor on the given executor, so that multiple sensors can get ready at
+     * the same time.
+     *
+     * @return the completion that finishes once the sensor is ready
+     */
+    public Completion prepare(Executor executor) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mSensor.prepare(mRate, mFormat);
+            }
+        });
+
+        return mSensor.getPrepared();
+    }
+
+    /**
+     * writes all samples to the *j*-th input of the ffmpeg process. Opening a named pipe blocks
+     * until ffmpeg opens its end, which ffmpeg does one input after the other. The input is
+     * therefore opened on its own thread, so that processes sharing an event loop do not wait
+     * for each other. Samples are dropped until the input is open.
+     */
+    public void attach(final FFMpegProcess p, final int j) {
+        new Thread("open ffmpeg input " + j) {
             @Override
             public void run() {
                 try {
-                    mOut = p.getOutputStream(j);
-                } catch (FileNotFoundException e) {
+                    final OutputStream out = openOutput(p, j);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mOut = out;
+                        }
+                    });
+                } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
-        });
+        }.start();
+    }
 
+    /**
+     * opens the *j*-th input of the ffmpeg process, called on the thread started by attach().
+     */
+    protected OutputStream openOutput(FFMpegProcess p, int j) throws IOException {
+        return p.getOutputStream(j);
     }
 
     public Sensor getSensor() {
         return mSensor;
     }
 
+    /**
+     * @return the completion that finishes once all samples are written and the output closed
+     */
+    public Completion getFlushed() {
+        return mFlushed;
+    }
+
     public void startRecording() {
         mSensor.registerListener(this, mRate, mFormat, mHandler);
     }
 
     /**
-     * given a String tries to find a matching sensor given these rules:
-     * <p>
-     * 1. find all sensors which string description (getStringName()) contains the *sensor*
-     * 2. choose the shortest one of that list
-     * <p>
-     * e.g., when "gyro" is given, choose android.sensor.type.gyroscope rather than
-     * android.sensor.type.gyroscope_uncalibrated. Matching is case-insensitive.
+     * resolves the *sensor* name with the SensorIndex and returns a new instance of the
+     * matching sensor, see SensorIndex.find() for the matching rules.
      *
      * @param sensor sensor name to match for
-     * @return the sensor for which the description is shortest and contains the *sensor*
-     * @throws Exception when no or multiple matches are found
+     * @return a new instance of the matching sensor, or null if there is none
+     * @throws Exception when multiple matches are found
      */
     public static Sensor getMatchingSensor(Context context, String sensor) throws Exception {
-        LinkedList<Sensor> candidates = new LinkedList<Sensor>();
-
-        for (Sensor s : Sensor.getAvailableSensors(context))
-            if (s.equals(sensor))
-                candidates.add(s);
-
-        if (candidates.size() == 0) {
-            StringBuilder b = new StringBuilder();
-            for (Sensor s : Sensor.getAvailableSensors(context)) {
-                b.append(s.getStringName());
-                b.append(" ");
-                b.append(s.getStringType());
-                b.append("\n");
-            }
-            return null;
-//            throw new Exception("no matches for " + sensor + " found." +
-//                    "Options are: \n" + b.toString());
-        }
+        SensorIndex.SensorInfo info = SensorIndex.getInstance(context).find(sensor);
+        return info == null ? null : info.newSensor(context);
+    }
 
-        int minimum = Integer.MAX_VALUE;
+    /**
+     * @return number of seconds written to the output so far
+     */
+    public abstract double getElapsed();
 
-        for (Sensor s : candidates)
-            minimum = Math.min(minimum, s.getStringName().length());
+    /**
+     * @return number of written samples that correspond to a distinct measurement
+     */
+    public abstract long getMeasuredSamples();
 
-        Iterator<Sensor> it = candidates.iterator();
-        while (it.hasNext())
-            if (it.next().getStringName().length() != minimum)
-                it.remove();
+    /**
+     * @return number of written samples that were interpolated or repeated
+     */
+    public abstract long getSynthesizedSamples();
 
-        if (candidates.size() != 1) {
-            StringBuilder b = new StringBuilder();
-            for (Sensor s : candidates) {
-                b.append(s.getStringName());
-                b.append(" ");
-                b.append(s.getStringType());
-                b.append(", ");
-            }
-            throw new Exception("too many sensor candidates for " + sensor +
-                    " options are " + b.toString());
-        }
+    public abstract byte[] transfer(SensorEvent sensorEvent);
 
-        return candidates.getFirst();
-    }
+    /**
+     * writes the given sample *copies* times to the output. The default implementation hands
+     * the result of transfer() to the outputstream for each copy, subclasses may stage samples
+     * and write them in larger batches, in which case flushPending() must be overridden as well.
+     *
+     * @param sensorEvent the sample to write
+     * @param copies number of times this sample is repeated on the output
+     */
+    protected void write(SensorEvent sensorEvent, int copies) throws IOException {
+        if (copies <= 0)
+            return;
 
-    @Override
-    public void onSensorChanged(SensorEvent sensorEvent) {
+        byte[] arr = transfer(sensorEvent);
+        for (int i = 0; i < copies; i++)
+            mOut.write(arr);
+    }
 
-        if (mLastTimestamp == -1) {
-            mLastTimestamp = sensorEvent.timestamp;
-            return;
-        }
+    /**
+     * hands all staged but not yet written samples to the output, called before the output
+     * gets closed.
+     */
+    protected void flushPending() throws IOException {
+    }
 
-        if (mOut == null)
-            return;
+    /**
+     * asks the sensor to deliver all samples it still holds in its FIFO, without waiting for
+     * it. Requesting the flush of all processes before terminating any of them lets the
+     * sensor hub empty all FIFOs in one go, instead of waking up once for each sensor.
+     */
+    public void requestFlush() {
+        synchronized (this) {
+            if (mFlushRequested || isClosed)
+                return;
 
-        try {
-            /*
-             * the sensorrate might not be constant, which is why we do a simple repetition
-             * interpolation here. I.e. we make sure that at least 1/rate seconds have passed
-             * between samples.
-             */
-            assert (mLastTimestamp < sensorEvent.timestamp);
-            mDiff += (sensorEvent.timestamp - mLastTimestamp) * 1e-9;
-
-            if (mDur > 0 && mElapsed > mDur) {
-                terminate();
+            // XXX avoid flushing completly, as on LOLLIPOP no onFlushCompleted() is called?
+            if (!(getElapsed() < mDur || mDur < 0))
                 return;
-            }
 
-            /*
-             * transfer a sensor sample and the current accuracy measure
-             */
-            byte[] arr = transfer(sensorEvent);
+            mFlushRequested = true;
+            mFlushed.start();
+        }
 
-            /*
-             * store it or multiple copies of the same, close when done.
-             */
-            int tointerpolate = (int) Math.floor( mDiff * mRate ) - 1;
+        /** may complete right away, and closing waits for the event loop */
+        mSensor.flush(SensorProcess.this);
+    }
 
-            if (tointerpolate > 1 && !(mSensor instanceof  AudioSensor))
-                Log.d("SensorProcess", String.format("%s interpolating %d frames", mSensor.getStringName(), tointerpolate));
+    /**
+     * flushes the sensor and closes the output, waits for both unless called on the event
+     * loop of this process. That loop delivers onFlushCompleted() and may be shared with
+     * other processes, so there the output is closed later on and never waited for.
+     */
+    public void terminate() {
 
+        if (Thread.currentThread() == Looper.getMainLooper().getThread())
+            Log.wtf("SensorProcess", "Terminate called on UI Thread!!!");
 
-            while (mDiff >= 1. / mRate) {
-                mOut.write(arr);
-                mDiff -= 1. / mRate;
-                mElapsed += 1. / mRate;
+        requestFlush();
 
-                if (mDur > 0 && mElapsed > mDur + .5 / mRate) {
-                    terminate();
-                    return;
-                }
-                /** audio sensor does not provide timestamps, so interpolating can not work */
-                if (mSensor instanceof AudioSensor || mSensor instanceof VideoSensor)
-                    break;
+        if (Looper.myLooper() == mHandler.getLooper()) {
+            if (!mFlushRequested) {
+                onFlushCompleted();
+                return;
             }
 
-            mLastTimestamp = sensorEvent.timestamp;
-        } catch (IOException e) {
-            e.printStackTrace();
-            //terminate();
-        }
-    }
-
-    public abstract byte[] transfer(SensorEvent sensorEvent);
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (isClosed)
+                        return;
 
-    public void terminate() {
-
-        if (Thread.currentThread() == Looper.getMainLooper().getThread())
-            Log.wtf("SensorProcess", "Terminate called on UI Thread!!!");
+                    Log.e(TAG, mSensor.getStringName() + ": closing without flush");
+                    mFlushed.fail(new TimeoutException("no flush within " + FLUSH_TIMEOUT_MS + " ms"));
+                    close();
+                }
+            }, FLUSH_TIMEOUT_MS);
+            return;
+        }
 
-        // XXX avoid flushing completly, as on LOLLIPOP no onFlushCompleted() is called?
-        if (mElapsed < mDur || mDur < 0) {
-            mSensor.flush(SensorProcess.this);
-            while (!isClosed) Thread.currentThread().yield();
+        if (mFlushRequested) {
+            try {
+                mFlushed.sync(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                Log.e(TAG, "closing without flush", e);
+                mFlushed.fail(e);
+                close();
+            }
         } else
             onFlushCompleted();
     }
 
     @Override
     public void onFlushCompleted() {
+        close();
+
+        if (mFlushed.complete())
+            Log.d(TAG, mFlushed.toString());
+    }
+
+    /**
+     * stops listening to the sensor, writes all pending samples and closes the output. This
+     * is done on the event loop of the process, so that it does not race onSensorChanged(),
+     * other threads wait for it.
+     */
+    private void close() {
+        if (isClosed)
+            return;
+
+        if (Looper.myLooper() == mHandler.getLooper()) {
+            closeOnLoop();
+            return;
+        }
+
+        final CountDownLatch closed = new CountDownLatch(1);
+        boolean posted = mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    closeOnLoop();
+                } finally {
+                    closed.countDown();
+                }
+            }
+        });
+
+        /** the loop quit already, so nothing else writes anymore */
+        if (!posted) {
+            closeOnLoop();
+            return;
+        }
+
+        try {
+            if (!closed.await(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                Log.e(TAG, mSensor.getStringName() + ": event loop did not close the output in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void closeOnLoop() {
+        if (isClosed)
+            return;
+
         if (mWl != null && mWl.isHeld())
             mWl.release();
 
         mSensor.unregisterListener(this);
-        try { mOut.close(); }
+        Log.d(TAG, String.format("%s: %d measured, %d synthesized samples",
+                mSensor.getStringName(), getMeasuredSamples(), getSynthesizedSamples()));
+
+        try {
+            if (mOut != null) {
+                flushPending();
+                mOut.close();
+            }
+        }
         catch (IOException e) {}
 
-        Looper wtf = mHandlerThread.getLooper();
-        if (wtf != null)
-            wtf.quit();
+        /** only dedicated threads are stopped here, shared event loops keep running */
+        if (mHandlerThread != null) {
+            Looper wtf = mHandlerThread.getLooper();
+            if (wtf != null)
+                wtf.quit();
 
-        mHandlerThread.interrupt();
+            mHandlerThread.interrupt();
+        }
         isClosed = true;
     }
 
     public static int getSampleSize(Context context, String sensor) throws Exception {
-        Sensor s = getMatchingSensor(context, sensor);
+        SensorIndex.SensorInfo info = SensorIndex.getInstance(context).find(sensor);
 
-        if (s instanceof SensorWrapper) {
-            Method m = android.hardware.Sensor.class.getDeclaredMethod("getMaxLengthValuesArray",
-                    new Class[]{android.hardware.Sensor.class, int.class});
-            m.setAccessible(true);
-            return (int) m.invoke(null, ((SensorWrapper) s).mSensor, Build.VERSION.SDK_INT);
-        } else if (s instanceof LocationSensor)
-            return 4;
+        if (info != null && info.sampleSize > 0)
+            return info.sampleSize;
 
         throw new Exception("unknown sensor: " + sensor);
     }
 
+    /**
+     * hands over a thread that is dedicated to this process, it is stopped once the process
+     * is closed.
+     */
     public void setHandlerThread(HandlerThread handlerThread) {
         this.mHandlerThread = handlerThread;
     }
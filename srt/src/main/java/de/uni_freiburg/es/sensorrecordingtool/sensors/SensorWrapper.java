@@ -5,15 +5,20 @@ import android.content.Context;
 import android.hardware.SensorManager;
 import android.os.Build;
 import android.os.Handler;
+import android.util.Log;
 
+import java.lang.reflect.Method;
 import java.util.HashMap;
 
+import de.uni_freiburg.es.sensorrecordingtool.RingBufferOutputStream;
+
 /**
  * A wrapper for the Android Sensor class.
  *
  * Created by phil on 3/1/16.
  */
 public class SensorWrapper extends Sensor {
+    private static final String TAG = SensorWrapper.class.getSimpleName();
     protected final android.hardware.Sensor mSensor;
     protected final SensorManager mSensorMgr;
     protected final HashMap<SensorEventListener, SensorEventListenerWrapper> mSensorWrapper;
@@ -129,15 +134,60 @@ public class SensorWrapper extends Sensor {
         }
     }
 
+    /**
+     * registers the listener at the given rate. In batching mode the wake-up variant of the
+     * sensor is preferred, since only wake-up sensors may wake the CPU up when their FIFO runs
+     * full, and the report latency is chosen by the BatchingPolicy.
+     */
     @Override
     public void registerListener(SensorEventListener l, double rate, String format, Handler h) {
-        int us = (int) (1e6 / rate),
+        int us = (int) (1e6 / rate), md;
+        android.hardware.Sensor s = mBatching ? getWakeUpSensor() : mSensor;
+
+        if (mBatching) {
+            md = BatchingPolicy.getReportLatencyUs(s.getFifoReservedEventCount(), rate,
+                    getSampleBytes(), RingBufferOutputStream.DEFAULT_CAPACITY,
+                    RingBufferOutputStream.getMeasuredDrainRate());
+            Log.d(TAG, String.format("batching %s at %.2fs report latency", s.getName(), md / 1e6));
+        } else
             md = (getFifoSize() - 2 ) * us;
 
         md = md > 0 ? md : 0;
 
-        SensorEventListenerWrapper wl = new SensorEventListenerWrapper(l);
-        mSensorMgr.registerListener(get(l), mSensor, us, md, h);
+        mSensorMgr.registerListener(get(l), s, us, md, h);
+    }
+
+    /**
+     * @return the wake-up variant of this sensor, or this sensor if there is none
+     */
+    @SuppressLint("NewApi")
+    protected android.hardware.Sensor getWakeUpSensor() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || mSensor.isWakeUpSensor())
+            return mSensor;
+
+        android.hardware.Sensor s = mSensorMgr.getDefaultSensor(mSensor.getType(), true);
+        return s != null ? s : mSensor;
+    }
+
+    /**
+     * @return the maximum number of values this sensor reports per event
+     */
+    public int getMaxLengthValuesArray() throws Exception {
+        Method m = android.hardware.Sensor.class.getDeclaredMethod("getMaxLengthValuesArray",
+                new Class[]{android.hardware.Sensor.class, int.class});
+        m.setAccessible(true);
+        return (int) m.invoke(null, mSensor, Build.VERSION.SDK_INT);
+    }
+
+    /**
+     * @return number of bytes a single sample of this sensor takes up in the recording
+     */
+    protected int getSampleBytes() {
+        try {
+            return getMaxLengthValuesArray() * 4;
+        } catch (Exception e) {
+            return 16;
+        }
     }
 
     @Override
@@ -159,10 +209,8 @@ public class SensorWrapper extends Sensor {
 
     @Override
     public void flush(SensorEventListener l) {
-        if (isRunningOnGlass())
+        if (isRunningOnGlass() || !mSensorMgr.flush(get(l)))
             l.onFlushCompleted();
-        else
-            mSensorMgr.flush(get(l));
     }
 
     protected android.hardware.SensorEventListener2 get(SensorEventListener l) {
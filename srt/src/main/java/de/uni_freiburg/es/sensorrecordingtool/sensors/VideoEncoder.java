@@ -0,0 +1,169 @@
+package de.uni_freiburg.es.sensorrecordingtool.sensors;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import de.uni_freiburg.es.sensorrecordingtool.MatroskaWriter;
+
+/**
+ * The stage between the camera and an ffmpeg input. An encoder takes NV21 frames with their
+ * timestamps and writes them as a Matroska stream to the output, either the frames as they are
+ * or already compressed so that ffmpeg only copies them into the container. As each frame
+ * carries its own timestamp the track has a variable frame rate, ffmpeg does not need to drop
+ * or duplicate frames to hit a nominal rate.
+ * <p>
+ * Compressed streams can not be filtered by ffmpeg, so encoders returning true for
+ * isCompressed() rotate the frames themselves. Raw streams are rotated by ffmpeg.
+ */
+public abstract class VideoEncoder {
+    protected OutputStream mOut;
+    protected int mWidth, mHeight, mRotation;
+    protected double mRate;
+    private long mFrames = 0;
+    private boolean mStopped = false;
+
+    /**
+     * @return the ffmpeg input format of the encoded stream
+     */
+    public String getFormat() {
+        return "matroska";
+    }
+
+    /**
+     * @return true if ffmpeg only needs to copy the stream
+     */
+    public abstract boolean isCompressed();
+
+    /**
+     * prepares encoding frames of *width*x*height*, the size of the camera image.
+     *
+     * @param rotation clockwise rotation in degrees, applied by compressing encoders only
+     * @param rate     nominal frame rate, used for frames without a timestamp and as a hint
+     * @param out      where the encoded stream is written to, closed by stop()
+     */
+    public synchronized void start(int width, int height, int rotation, double rate,
+                                   OutputStream out) throws IOException {
+        mWidth = width;
+        mHeight = height;
+        mRotation = VideoRotation.normalize(rotation);
+        mRate = rate;
+        mOut = out;
+        mFrames = 0;
+        mStopped = false;
+        onStart();
+    }
+
+    /**
+     * encodes a single NV21 frame.
+     *
+     * @param timestampNs presentation time in nanoseconds since the first frame
+     */
+    public synchronized void encode(byte[] nv21, int off, int len, long timestampNs)
+            throws IOException {
+        if (mStopped)
+            throw new IOException("encoder was stopped");
+
+        mFrames++;
+        encodeFrame(nv21, off, len, Math.max(0, timestampNs));
+    }
+
+    /**
+     * writes all pending frames and closes the output.
+     */
+    public synchronized void stop() throws IOException {
+        if (mStopped)
+            return;
+
+        mStopped = true;
+        try {
+            onStop();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    /** @return number of frames handed to encode() */
+    public synchronized long getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * @return number of frames handed to encode() that are not in the stream, as the encoder
+     * or the output could not keep up
+     */
+    public synchronized long getDroppedFrames() {
+        return 0;
+    }
+
+    protected void onStart() throws IOException {
+    }
+
+    protected abstract void encodeFrame(byte[] nv21, int off, int len, long timestampNs)
+            throws IOException;
+
+    protected void onStop() throws IOException {
+    }
+
+    /**
+     * @return a stream that encodes each write as a single frame and stops the encoder when
+     * closed. Frames written to it are stamped by the frame count and the nominal rate.
+     */
+    public OutputStream asStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("frames must be written as a whole");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (VideoEncoder.this) {
+                    encode(b, off, len, (long) (mFrames * 1e9 / mRate));
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                mOut.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                stop();
+            }
+        };
+    }
+
+    /**
+     * hands frames to ffmpeg as they are, which encodes them in software.
+     */
+    public static class Raw extends VideoEncoder {
+        private MatroskaWriter mWriter;
+        private int mTrack;
+
+        @Override
+        public boolean isCompressed() {
+            return false;
+        }
+
+        @Override
+        protected void onStart() throws IOException {
+            mWriter = new MatroskaWriter(mOut);
+            mTrack = mWriter.addTrack(new MatroskaWriter.Track(
+                    MatroskaWriter.TRACK_VIDEO, "V_UNCOMPRESSED")
+                    .setVideo(mWidth, mHeight, "NV21"));
+            mWriter.writeHeader();
+        }
+
+        @Override
+        protected void encodeFrame(byte[] nv21, int off, int len, long timestampNs)
+                throws IOException {
+            mWriter.writeFrame(mTrack, timestampNs, true, nv21, off, len);
+        }
+
+        @Override
+        public synchronized long getDroppedFrames() {
+            return mWriter == null ? 0 : mWriter.getSkippedFrames();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package de.uni_freiburg.es.sensorrecordingtool.sensors;
+
+import java.security.InvalidParameterException;
+
+/**
+ * Rotates camera frames clockwise by a multiple of 90 degrees, either by ffmpeg while encoding
+ * or in NV21 buffers directly. The NV21 rotation is a single pass over the pixels, ffmpeg
+ * needs a single filter for 90 and 270 degrees and a chain of two for 180, see getFilter().
+ * <p>
+ * Matroska has no rotation field that players honor, so the pixels are always rotated.
+ */
+public class VideoRotation {
+    /** edge length of the square tiles, so that a tile of the output stays in the cache */
+    private static final int TILE = 32;
+
+    private VideoRotation() {
+    }
+
+    /**
+     * @return an ffmpeg filter chain that rotates clockwise by *degrees*, or null for none.
+     * That is a single transpose for 90 and 270 degrees, and hflip followed by vflip for 180.
+     */
+    public static String getFilter(int degrees) {
+        switch (normalize(degrees)) {
+            case 90:
+                return "transpose=1";
+            case 180:
+                /** vflip only changes the line order without touching the pixels */
+                return "hflip,vflip";
+            case 270:
+                return "transpose=2";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return *degrees* in [0, 360)
+     * @throws InvalidParameterException if not a multiple of 90
+     */
+    public static int normalize(int degrees) {
+        if (degrees % 90 != 0)
+            throw new InvalidParameterException("Rotation must be a factor of 90");
+
+        return ((degrees % 360) + 360) % 360;
+    }
+
+    /**
+     * rotates an NV21 frame of *width*x*height* clockwise by *degrees*. The output is
+     * *height*x*width* when rotating by 90 or 270 degrees.
+     *
+     * @param in  NV21 frame, a luma plane followed by interleaved VU pairs at half resolution
+     * @param out buffer of at least width*height*3/2 bytes, must not be *in*
+     */
+    public static void rotateNV21(byte[] in, byte[] out, int width, int height, int degrees) {
+        int luma = width * height;
+
+        if (in == out)
+            throw new IllegalArgumentException("can not rotate in place");
+        if (in.length < luma * 3 / 2 || out.length < luma * 3 / 2)
+            throw new IllegalArgumentException(String.format(
+                    "buffer too small for %dx%d NV21 frame", width, height));
+
+        rotatePlane(in, 0, out, 0, width, height, 1, normalize(degrees));
+        rotatePlane(in, luma, out, luma, width / 2, height / 2, 2, normalize(degrees));
+    }
+
+    /**
+     * rotates a plane of *w*x*h* elements with *size* bytes each. The input is read line by
+     * line within a tile, so only a tile's worth of output lines is touched at a time.
+     */
+    private static void rotatePlane(byte[] in, int inOff, byte[] out, int outOff,
+                                    int w, int h, int size, int degrees) {
+        if (degrees == 0) {
+            System.arraycopy(in, inOff, out, outOff, w * h * size);
+            return;
+        }
+
+        if (degrees == 180) {
+            int last = outOff + (w * h - 1) * size;
+            for (int i = 0, n = w * h; i < n; i++)
+                for (int k = 0; k < size; k++)
+                    out[last - i * size + k] = in[inOff + i * size + k];
+            return;
+        }
+
+        /** the output is h wide, a step along the input line is a step down the output column */
+        int step = (degrees == 90 ? h : -h) * size;
+
+        for (int ty = 0; ty < h; ty += TILE)
+            for (int tx = 0; tx < w; tx += TILE) {
+                int ye = Math.min(ty + TILE, h),
+                    xe = Math.min(tx + TILE, w);
+
+                for (int y = ty; y < ye; y++) {
+                    int src = inOff + (y * w + tx) * size,
+                        dst = degrees == 90 ?
+                              outOff + (tx * h + h - 1 - y) * size :
+                              outOff + ((w - 1 - tx) * h + y) * size;
+
+                    for (int x = tx; x < xe; x++, src += size, dst += step)
+                        for (int k = 0; k < size; k++)
+                            out[dst + k] = in[src + k];
+                }
+            }
+    }
+}
@@ -11,13 +11,17 @@ import android.util.Log;
 import android.view.Surface;
 import android.view.WindowManager;
 
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.List;
 
 /**
  * Grabs frames at the specified videorate and returns them in raw format at maximum
  * resolution as sensorevents.
  * <p>
+ * The camera fills a fixed set of FRAME_BUFFERS preallocated buffers. Filled buffers are
+ * handed to the listeners on a separate thread through a FrameQueue and given back to the
+ * camera afterwards. The queue drops the oldest frame when full, or waits for the listeners if
+ * the format specifier contains the "block" flag.
+ * <p>
  * Created by phil on 4/26/16.
  */
 public class VideoSensor extends Sensor implements Camera.ErrorCallback {
@@ -29,20 +33,41 @@ public class VideoSensor extends Sensor implements Camera.ErrorCallback {
     private int mRateInMilliHz = 0;
     private SurfaceTexture mSurfaceTexture;
     private Camera.CameraInfo info;
-    private CameraSize mSize;
-    private boolean mRecord = false;
+    private volatile CameraSize mSize;
+    private volatile boolean mRecord = false;
+
+    /** number of preview buffers, some are filled by the camera while others are written */
+    public static final int FRAME_BUFFERS = 6;
+
+    /** number of filled frames waiting for the listeners */
+    public static final int FRAME_QUEUE_SIZE = 3;
+
+    private FrameQueue mFrames;
+    private Thread mDelivery;
 
     public VideoSensor(Context c, int id) {
+        this(c, id, queryCameraInfo(id));
+    }
+
+    /**
+     * creates a video sensor from an already queried CameraInfo, which is not modified.
+     */
+    VideoSensor(Context c, int id, Camera.CameraInfo cameraInfo) {
         super(c, 1);
         context = c;
         this.id = id;
 
-        info = new Camera.CameraInfo();
-        Camera.getCameraInfo(id, info);
+        info = cameraInfo;
         this.facing = info.facing;
         mEvent = new SensorEvent(0);
     }
 
+    private static Camera.CameraInfo queryCameraInfo(int id) {
+        Camera.CameraInfo info = new Camera.CameraInfo();
+        Camera.getCameraInfo(id, info);
+        return info;
+    }
+
     @Override
     public String getStringName() {
         return String.format("Video %s", facing == Camera.CameraInfo.CAMERA_FACING_BACK ? "back" : "front");
@@ -58,11 +83,12 @@ public class VideoSensor extends Sensor implements Camera.ErrorCallback {
         //if (!PermissionDialog.camera(context))
         //    return;
 
-        if (mListeners.size() == 0) {
+        super.registerListener(l, rate, format, h);
+
+        if (mListeners.size() == 1) {
+            startDelivery();
             mRecord = true;
         }
-
-        super.registerListener(l, rate, format, h);
     }
 
     /**
@@ -76,9 +102,19 @@ public class VideoSensor extends Sensor implements Camera.ErrorCallback {
 
         /** open the camera if we are just creating the first listeners, otherwise just
          * add a new listener. */
-        mSize = getCameraSize(format, id);
         newOpenCamera();
+        if (mCamera == null) {
+            setFailed(new Exception("unable to open camera " + id));
+            return;
+        }
+
         Camera.Parameters params = mCamera.getParameters();
+        CameraSize requested = getCameraSize(format, id);
+        mSize = getSupportedSize(requested, params.getSupportedPreviewSizes());
+        if (mSize != requested)
+            Log.w(TAG, String.format("%dx%d is not supported by camera %d, recording %dx%d",
+                    requested.width, requested.height, id, mSize.width, mSize.height));
+
         params.setPreviewSize(mSize.width, mSize.height);
         params.setPreviewFpsRange(mRateInMilliHz, mRateInMilliHz);
         Log.d(TAG, "starting recording with pixel format " + params.getPictureFormat());
@@ -92,6 +128,12 @@ public class VideoSensor extends Sensor implements Camera.ErrorCallback {
                 ImageFormat.getBitsPerPixel(params.getPreviewFormat()) / 8.
                         * mSize.width * mSize.height);
 
+        for (int i = 0; i < FRAME_BUFFERS; i++)
+            mCamera.addCallbackBuffer(new byte[bytesPerBuffer]);
+
+        mFrames = new FrameQueue(FRAME_QUEUE_SIZE, FormatSpec.hasFlag(format, "block") ?
+                FrameQueue.Policy.BLOCK : FrameQueue.Policy.DROP, recycler);
+
         startRecording();
     }
 
@@ -127,43 +169,69 @@ public class VideoSensor extends Sensor implements Camera.ErrorCallback {
         return "Google".equalsIgnoreCase(Build.MANUFACTURER) && Build.MODEL.startsWith("Glass");
     }
 
+    /**
+     * @return the size given as widthxheight in the format, e.g. 1280x720, or 320x240. The
+     * default preview size of the camera is not used, since it is unreliable on some devices.
+     */
     public static CameraSize getCameraSize(String format, int camerId) {
-        CameraSize size = null;
-
-        if (isRunningOnGlass() || true) { // camera impl is flawed
-            return new CameraSize(320, 240);
-        }
-
-        try {
-            Camera cam = Camera.open(camerId);
-            Camera.Parameters params = cam.getParameters();
-            Camera.Size tmpSize = params.getPreviewSize();
+        if (format != null)
+            for (String option : format.split(FormatSpec.SEPARATOR)) {
+                String[] wh = option.trim().split("x");
+
+                try {
+                    if (wh.length == 2)
+                        return new CameraSize(Integer.parseInt(wh[0]), Integer.parseInt(wh[1]));
+                } catch (NumberFormatException e) {
+                }
+            }
 
-            size = new CameraSize(tmpSize.width, tmpSize.height);
+        return new CameraSize(320, 240);
+    }
 
-            cam.unlock();
-            cam.release();
+    /**
+     * @return *requested* if it is one of the *supported* preview sizes, otherwise the
+     * supported size closest to it in area
+     */
+    static CameraSize getSupportedSize(CameraSize requested, List<Camera.Size> supported) {
+        if (supported == null || supported.isEmpty())
+            return requested;
 
-            if (format != null && format.contains("x")) {
+        Camera.Size best = null;
+        long area = (long) requested.width * requested.height, bestDiff = Long.MAX_VALUE;
 
-                String[] wh = format.split("x");
-                int w = Integer.parseInt(wh[0]),
-                        h = Integer.parseInt(wh[1]);
+        for (Camera.Size s : supported) {
+            if (s.width == requested.width && s.height == requested.height)
+                return requested;
 
-                size.width = w;
-                size.height = h;
+            long diff = Math.abs((long) s.width * s.height - area);
+            if (diff < bestDiff) {
+                best = s;
+                bestDiff = diff;
             }
-        } catch (NullPointerException e) {
-            Log.d(TAG, "camera not available");
-        } catch (Exception e) {
-            Log.d(TAG, String.format(
-                    "unable to parse format '%s', using default resolution %dx%d",
-                    (format != null ? format : ""), size == null ? 0 : size.width, size == null ? 0 : size.height));
         }
 
-        return size;
+        return new CameraSize(best.width, best.height);
     }
 
+    /**
+     * @return the size frames are recorded in, one the camera supports, or null until the
+     * sensor is prepared
+     */
+    public CameraSize getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return the H.264 platform encoder if available, unless the format contains encoder=raw,
+     * otherwise frames are encoded by ffmpeg
+     */
+    public static VideoEncoder newEncoder(String format) {
+        if (!"raw".equalsIgnoreCase(FormatSpec.getValue(format, "encoder", null)) &&
+            MediaCodecVideoEncoder.isAvailable())
+            return new MediaCodecVideoEncoder();
+
+        return new VideoEncoder.Raw();
+    }
 
 
 
@@ -176,7 +244,7 @@ public class VideoSensor extends Sensor implements Camera.ErrorCallback {
 
             mSurfaceTexture = new SurfaceTexture(10);
             mCamera.setPreviewTexture(mSurfaceTexture);
-            mCamera.setPreviewCallback(preview);
+            mCamera.setPreviewCallbackWithBuffer(preview);
             mCamera.setErrorCallback(this);
             mCamera.startPreview();
         } catch (Exception e) {
@@ -187,14 +255,60 @@ public class VideoSensor extends Sensor implements Camera.ErrorCallback {
     }
 
     public void stopRecording() {
+        mRecord = false;
+
+        if (mFrames != null) {
+            mFrames.close();
+            Log.d(TAG, getStringName() + ": " + mFrames);
+        }
+
+        if (mDelivery != null) {
+            mDelivery.interrupt();
+            mDelivery = null;
+        }
+
         if (mCamera != null) {
-            mCamera.setPreviewCallback(null);
+            mCamera.setPreviewCallbackWithBuffer(null);
             mCamera.stopPreview();
             mCamera.release();
             mCamera = null;
         }
     }
 
+    /**
+     * @return number of frames dropped since the listeners were too slow
+     */
+    @Override
+    public long getDropped() {
+        return mFrames == null ? 0 : mFrames.getDropped();
+    }
+
+    /**
+     * starts the thread handing queued frames to the listeners.
+     */
+    private void startDelivery() {
+        if (mFrames == null || mDelivery != null)
+            return;
+
+        final FrameQueue frames = mFrames;
+        mDelivery = new Thread("video delivery " + id) {
+            @Override
+            public void run() {
+                try {
+                    for (FrameQueue.Frame f = frames.take(); f != null; f = frames.take()) {
+                        mEvent.timestamp = f.timestamp;
+                        mEvent.rawdata = f.data;
+                        notifyListeners();
+                        mEvent.rawdata = null;
+                        frames.release(f);
+                    }
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        mDelivery.start();
+    }
+
 
     public int getCorrectCameraOrientation(Camera.CameraInfo info, Camera camera) {
 
@@ -255,14 +369,16 @@ public class VideoSensor extends Sensor implements Camera.ErrorCallback {
         return id;
     }
 
-    public int getCameraRotation() {
-        Camera cam = Camera.open(id);
-        Camera.CameraInfo info = new Camera.CameraInfo();
-        Camera.getCameraInfo(id, info);
-        cam.unlock();
-        cam.release();
+    public Camera.CameraInfo getCameraInfo() {
+        return info;
+    }
 
-        return getCorrectCameraOrientation(info, cam);
+    /**
+     * @return the rotation of the camera image relative to the display, derived from the
+     * CameraInfo only so that the camera does not need to be opened.
+     */
+    public int getCameraRotation() {
+        return getCorrectCameraOrientation(info, null);
     }
 
 
@@ -286,77 +402,51 @@ public class VideoSensor extends Sensor implements Camera.ErrorCallback {
     }
 
 
-    int frames = 0;
-
-    Executor excecutor = Executors.newFixedThreadPool(1);
+    /** gives written or dropped buffers back to the camera, on the camera thread */
+    protected FrameQueue.Recycler recycler = new FrameQueue.Recycler() {
+        @Override
+        public void recycle(final byte[] data) {
+            mThread.mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCamera != null)
+                        mCamera.addCallbackBuffer(data);
+                }
+            });
+        }
+    };
 
     protected Camera.PreviewCallback preview = new Camera.PreviewCallback() {
         @Override
         public void onPreviewFrame(final byte[] bytes, Camera camera) {
-//            Log.e(TAG, "frame #" + frames++);
-
             if(!isPrepared())
                 setPrepared();
 
-            if(!mRecord)
+            if (bytes == null)
                 return;
 
-            final long time = System.currentTimeMillis() * 1000 * 1000;
-            if (bytes != null)
-                excecutor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        mEvent.timestamp = time;
-                        mEvent.rawdata = bytes;
-                        notifyListeners();
-                        mEvent.rawdata = null;
-                    }
-                });
+            if(!mRecord) {
+                camera.addCallbackBuffer(bytes);
+                return;
+            }
 
+            try {
+                /** the monotonic clock of the audio timestamps, not affected by clock changes */
+                mFrames.put(bytes, System.nanoTime());
+            } catch (InterruptedException e) {
+                camera.addCallbackBuffer(bytes);
+            }
         }
 
         // Default format is YCbCr'NV21
     };
 
+    /**
+     * @return a copy of the NV21 frame rotated clockwise, see VideoRotation.rotateNV21()
+     */
     public byte[] rotateNV21(byte[] input, int width, int height, int rotation) {
         byte[] output = new byte[input.length];
-        boolean swap = (rotation == 90 || rotation == 270);
-        boolean yflip = (rotation == 90 || rotation == 180);
-        boolean xflip = (rotation == 270 || rotation == 180);
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                int xo = x, yo = y;
-                int w = width, h = height;
-                int xi = xo, yi = yo;
-                if (swap) {
-                    xi = w * yo / h;
-                    yi = h * xo / w;
-                }
-                if (yflip) {
-                    yi = h - yi - 1;
-                }
-                if (xflip) {
-                    xi = w - xi - 1;
-                }
-                output[w * yo + xo] = input[w * yi + xi];
-                int fs = w * h;
-                int qs = (fs >> 2);
-                xi = (xi >> 1);
-                yi = (yi >> 1);
-                xo = (xo >> 1);
-                yo = (yo >> 1);
-                w = (w >> 1);
-                h = (h >> 1);
-                // adjust for interleave here
-                int ui = fs + (w * yi + xi) * 2;
-                int uo = fs + (w * yo + xo) * 2;
-                // and here
-                int vi = ui + 1;
-                int vo = uo + 1;
-                output[uo] = input[ui];
-                output[vo] = input[vi];
-            }
-        }
+        VideoRotation.rotateNV21(input, output, width, height, rotation);
         return output;
     }
 
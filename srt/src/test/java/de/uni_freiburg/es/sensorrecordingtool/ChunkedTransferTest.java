@@ -0,0 +1,276 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.uni_freiburg.es.sensorrecordingtool.merger.ChunkedTransfer;
+import de.uni_freiburg.es.sensorrecordingtool.merger.TransferBenchmark;
+import de.uni_freiburg.es.sensorrecordingtool.merger.TransferEngine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkedTransferTest {
+    private static final int SIZE = ChunkedTransfer.CHUNK_SIZE * 10 + 1234;
+
+    private File mDir;
+    private File mInput;
+    private byte[] mData;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("chunked", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+
+        mData = new byte[SIZE];
+        new Random(7).nextBytes(mData);
+        mInput = new File(mDir, "in.mkv");
+        FileOutputStream out = new FileOutputStream(mInput);
+        out.write(mData);
+        out.close();
+    }
+
+    /** serves mInput on loopback until the client is done */
+    private class Provider extends Thread {
+        final ChunkedTransfer.Server server;
+        volatile boolean done = false;
+
+        Provider() throws IOException {
+            server = new ChunkedTransfer.Server(mInput,
+                    new ServerSocket(0, 50, InetAddress.getByName(null)));
+            start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                done = server.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * forwards connections to a provider, breaking the first *faults* of them after *after*
+     * bytes, either by cutting them or by flipping a byte.
+     */
+    private static class FaultyLink extends Thread {
+        final ServerSocket socket;
+        final int port, faults, after;
+        final boolean corrupt;
+        final AtomicInteger connections = new AtomicInteger();
+
+        FaultyLink(int port, int faults, int after, boolean corrupt) throws IOException {
+            this.socket = new ServerSocket(0, 50, InetAddress.getByName(null));
+            this.port = port;
+            this.faults = faults;
+            this.after = after;
+            this.corrupt = corrupt;
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket client = socket.accept();
+                    final Socket server = new Socket(InetAddress.getByName(null), port);
+                    final boolean faulty = connections.getAndIncrement() < faults;
+
+                    pipe(client.getInputStream(), server.getOutputStream(), -1, false, server);
+                    pipe(server.getInputStream(), client.getOutputStream(),
+                            faulty ? after : -1, corrupt, client);
+                }
+            } catch (IOException e) {
+            }
+        }
+
+        private static void pipe(final InputStream in, final OutputStream out, final int limit,
+                                 final boolean corrupt, final Socket close) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    byte[] b = new byte[8192];
+                    long count = 0;
+                    int n;
+                    try {
+                        while ((n = in.read(b)) >= 0) {
+                            if (limit >= 0 && count + n > limit) {
+                                int keep = (int) (limit - count);
+                                if (!corrupt) {
+                                    out.write(b, 0, keep);
+                                    out.flush();
+                                    break;
+                                }
+                                b[keep] ^= 0x55;
+                                out.write(b, 0, n);
+                                count = Long.MIN_VALUE / 2; /* corrupt once only */
+                                continue;
+                            }
+                            out.write(b, 0, n);
+                            count += n;
+                        }
+                    } catch (IOException e) {
+                    } finally {
+                        try {
+                            close.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+
+        InetSocketAddress getAddress() throws IOException {
+            return new InetSocketAddress(InetAddress.getByName(null), socket.getLocalPort());
+        }
+    }
+
+    private static InetSocketAddress address(int port) throws IOException {
+        return new InetSocketAddress(InetAddress.getByName(null), port);
+    }
+
+    private static byte[] read(File f) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(f, "r");
+        byte[] b = new byte[(int) file.length()];
+        file.readFully(b);
+        file.close();
+        return b;
+    }
+
+    @Test
+    public void testParallelStreams() throws Exception {
+        Provider provider = new Provider();
+        File output = new File(mDir, "out.mkv");
+        final List<Long> reports = Collections.synchronizedList(new ArrayList<Long>());
+
+        ChunkedTransfer.Client client = new ChunkedTransfer.Client(
+                address(provider.server.getPort()))
+                .setStreams(4)
+                .setProgressListener(new TransferEngine.ProgressListener() {
+                    @Override
+                    public void onProgress(long bytes) {
+                        reports.add(bytes);
+                    }
+                });
+
+        assertEquals(SIZE, client.fetch(output));
+        assertEquals(SIZE, client.getSize());
+        client.done();
+        provider.join(5000);
+
+        assertTrue(provider.done);
+        assertArrayEquals(mData, read(output));
+        assertEquals((long) SIZE, (long) reports.get(reports.size() - 1));
+    }
+
+    @Test
+    public void testStreamedInOrder() throws Exception {
+        Provider provider = new Provider();
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+
+        ChunkedTransfer.Client client = new ChunkedTransfer.Client(
+                address(provider.server.getPort())).setStreams(4);
+        assertEquals(SIZE, client.fetch(sink));
+        client.done();
+        provider.join(5000);
+
+        assertArrayEquals(mData, sink.toByteArray());
+    }
+
+    @Test
+    public void testResumesAfterDroppedConnection() throws Exception {
+        Provider provider = new Provider();
+        /** cuts the first connections halfway through the file, which only the range reaches */
+        FaultyLink link = new FaultyLink(provider.server.getPort(), 2, SIZE / 2, false);
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+
+        ChunkedTransfer.Client client = new ChunkedTransfer.Client(link.getAddress())
+                .setRetries(3, 10);
+        assertEquals(SIZE, client.fetch(sink));
+        client.done();
+
+        assertArrayEquals(mData, sink.toByteArray());
+        /** stat, the broken range, its resumption and done */
+        assertEquals(4, link.connections.get());
+    }
+
+    @Test
+    public void testCorruptedChunkIsFetchedAgain() throws Exception {
+        Provider provider = new Provider();
+        FaultyLink link = new FaultyLink(provider.server.getPort(), 2, SIZE / 3, true);
+        File output = new File(mDir, "out.mkv");
+
+        ChunkedTransfer.Client client = new ChunkedTransfer.Client(link.getAddress())
+                .setStreams(1)
+                .setRetries(3, 10);
+        assertEquals(SIZE, client.fetch(output));
+        client.done();
+
+        assertArrayEquals(mData, read(output));
+    }
+
+    @Test
+    public void testGivesUpWithoutProgress() throws Exception {
+        Provider provider = new Provider();
+        /** every connection breaks right after the size */
+        FaultyLink link = new FaultyLink(provider.server.getPort(), 100, 12, false);
+
+        ChunkedTransfer.Client client = new ChunkedTransfer.Client(link.getAddress())
+                .setRetries(2, 1);
+        try {
+            client.fetch(new ByteArrayOutputStream());
+            assertTrue("broken link was not noticed", false);
+        } catch (IOException e) {
+        }
+
+        client.done();
+        provider.join(5000);
+        assertFalse(provider.isAlive());
+    }
+
+    @Test
+    public void testProviderStopsWhenIdle() throws Exception {
+        ChunkedTransfer.Server server = new ChunkedTransfer.Server(mInput,
+                new ServerSocket(0, 50, InetAddress.getByName(null))).setIdleTimeout(100);
+        assertFalse(server.serve());
+    }
+
+    @Test
+    public void testLoopbackBenchmark() throws Exception {
+        File input = new File(mDir, "big.mkv");
+        RandomAccessFile f = new RandomAccessFile(input, "rw");
+        f.setLength(64 * 1024 * 1024);
+        f.close();
+
+        for (int streams : new int[]{1, 4}) {
+            File output = new File(mDir, "big.out." + streams);
+            TransferBenchmark.Result r = TransferBenchmark.runChunked(input, output, streams);
+            System.out.println("chunked loopback transfer, " + streams + " streams: " + r);
+            assertEquals(input.length(), output.length());
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package de.uni_freiburg.es.sensorrecordingtool;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import de.uni_freiburg.es.sensorrecordingtool.merger.Crc32c;
+
+import static org.junit.Assert.assertEquals;
+
+public class Crc32cTest {
+
+    @Test
+    public void testKnownValues() throws Exception {
+        /** check value of the CRC catalogue and test vectors of RFC 3720 */
+        assertEquals(0xE3069283L, value("123456789".getBytes("US-ASCII")));
+        assertEquals(0x8A9136AAL, value(new byte[32]));
+
+        byte[] ones = new byte[32];
+        for (int i = 0; i < ones.length; i++)
+            ones[i] = (byte) 0xff;
+        assertEquals(0x62A8AB43L, value(ones));
+
+        byte[] ascending = new byte[32];
+        for (int i = 0; i < ascending.length; i++)
+            ascending[i] = (byte) i;
+        assertEquals(0x46DD794EL, value(ascending));
+
+        assertEquals(0L, value(new byte[0]));
+    }
+
+    @Test
+    public void testUpdatesAddUp() {
+        byte[] data = new byte[1000];
+        new Random(3).nextBytes(data);
+
+        Crc32c bytewise = new Crc32c(), split = new Crc32c();
+        for (byte b : data)
+            bytewise.update(b);
+        split.update(data, 0, 13);
+        split.update(data, 13, data.length - 13);
+
+        assertEquals(value(data), bytewise.getValue());
+        assertEquals(value(data), split.getValue());
+        assertEquals((int) value(data), Crc32c.compute(data, 0, data.length));
+
+        split.reset();
+        assertEquals(0L, split.getValue());
+    }
+
+    private static long value(byte[] b) {
+        Crc32c crc = new Crc32c();
+        crc.update(b);
+        return crc.getValue();
+    }
+}